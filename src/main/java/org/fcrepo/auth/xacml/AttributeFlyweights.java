@@ -0,0 +1,104 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_ACTION_ID;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_GROUP;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_ROLE;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jboss.security.xacml.sunxacml.attr.StringAttribute;
+import org.jboss.security.xacml.sunxacml.ctx.Attribute;
+
+/**
+ * Shared request attributes. Request attributes are immutable, so the attributes of the fixed action vocabulary are
+ * created once, and role and group attributes are interned as they are first seen, rather than allocating them
+ * for every decision.
+ *
+ * @author agent
+ */
+public final class AttributeFlyweights {
+
+    /**
+     * The actions ModeShape asks permission for.
+     */
+    public static final String[] ACTIONS = { "read", "add_node", "set_property", "remove", "remove_child_nodes" };
+
+    /**
+     * The largest number of role or group attributes interned; attributes beyond it are created on each use.
+     */
+    static final int MAXIMUM_INTERNED = 10000;
+
+    private static final Map<String, Attribute> ACTION_ATTRIBUTES = new ConcurrentHashMap<>();
+
+    private static final Map<String, Attribute> ROLE_ATTRIBUTES = new ConcurrentHashMap<>();
+
+    private static final Map<String, Attribute> GROUP_ATTRIBUTES = new ConcurrentHashMap<>();
+
+    static {
+        for (final String action : ACTIONS) {
+            ACTION_ATTRIBUTES.put(action, create(ATTRIBUTEID_ACTION_ID, action));
+        }
+    }
+
+    private AttributeFlyweights() {
+    }
+
+    /**
+     * @param action an action
+     * @return the action-id attribute for the action
+     */
+    public static Attribute action(final String action) {
+        final Attribute attribute = ACTION_ATTRIBUTES.get(action);
+        return attribute != null ? attribute : create(ATTRIBUTEID_ACTION_ID, action);
+    }
+
+    /**
+     * @param role a role
+     * @return the role attribute for the role
+     */
+    public static Attribute role(final String role) {
+        return intern(ROLE_ATTRIBUTES, FCREPO_SUBJECT_ROLE, role);
+    }
+
+    /**
+     * @param group a group name
+     * @return the group attribute for the group
+     */
+    public static Attribute group(final String group) {
+        return intern(GROUP_ATTRIBUTES, FCREPO_SUBJECT_GROUP, group);
+    }
+
+    private static Attribute intern(final Map<String, Attribute> interned, final URI id, final String value) {
+        final Attribute attribute = interned.get(value);
+        if (attribute != null) {
+            return attribute;
+        }
+        if (interned.size() >= MAXIMUM_INTERNED) {
+            return create(id, value);
+        }
+        return interned.computeIfAbsent(value, v -> create(id, v));
+    }
+
+    private static Attribute create(final URI id, final String value) {
+        return new Attribute(id, null, null, new StringAttribute(value));
+    }
+}
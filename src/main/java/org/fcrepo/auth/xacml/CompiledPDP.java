@@ -0,0 +1,135 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Collections.singletonList;
+import static org.jboss.security.xacml.sunxacml.ctx.Status.STATUS_PROCESSING_ERROR;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.Map;
+import java.util.Optional;
+
+import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
+import org.jboss.security.xacml.sunxacml.AbstractPolicy;
+import org.jboss.security.xacml.sunxacml.EvaluationCtx;
+import org.jboss.security.xacml.sunxacml.MatchResult;
+import org.jboss.security.xacml.sunxacml.PDP;
+import org.jboss.security.xacml.sunxacml.PDPConfig;
+import org.jboss.security.xacml.sunxacml.ctx.ResponseCtx;
+import org.jboss.security.xacml.sunxacml.ctx.Result;
+import org.jboss.security.xacml.sunxacml.ctx.Status;
+import org.slf4j.Logger;
+
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * A PDP that decides requests with the linked policies compiled into {@link DecisionFunction}s, rather than by
+ * interpreting them. It finds the policy in effect for a request as the {@link FedoraPolicyFinderModule} does, and
+ * compiles each policy the first time it is used; requests for more than one resource, and policies that cannot be
+ * compiled, are left to the library.
+ *
+ * @author agent
+ */
+public class CompiledPDP extends PDP {
+
+    private static final Logger LOGGER = getLogger(CompiledPDP.class);
+
+    private final FedoraPolicyFinderModule fedoraPolicyFinderModule;
+
+    /**
+     * Compiled policies by identity, dropped along with policies no snapshot or residual cache holds anymore.
+     */
+    private final Map<AbstractPolicy, Optional<DecisionFunction>> functions =
+            CacheBuilder.newBuilder().weakKeys().<AbstractPolicy, Optional<DecisionFunction>>build().asMap();
+
+    /**
+     * Constructor
+     *
+     * @param config the configuration of the library PDP, used for what is not compiled
+     * @param fedoraPolicyFinderModule the module holding the loaded policies
+     */
+    public CompiledPDP(final PDPConfig config, final FedoraPolicyFinderModule fedoraPolicyFinderModule) {
+        super(config);
+        this.fedoraPolicyFinderModule = fedoraPolicyFinderModule;
+    }
+
+    @Override
+    public ResponseCtx evaluate(final EvaluationCtx context) {
+        if (context.getScope() != EvaluationCtx.SCOPE_IMMEDIATE) {
+            return super.evaluate(context);
+        }
+        final String resource = context.getResourceId().encode();
+        final String path = FedoraPolicyFinderModule.getResourcePath(context);
+        final DecisionFunction function;
+        final int match;
+        try {
+            final AbstractPolicy policy = fedoraPolicyFinderModule.getEffectivePolicy(path);
+            if (policy == null) {
+                return new ResponseCtx(new Result(Result.DECISION_NOT_APPLICABLE, resource));
+            }
+            function = functionOf(policy);
+            if (function == null) {
+                return super.evaluate(context);
+            }
+            match = function.match(context);
+        } catch (final RepositoryRuntimeException e) {
+            LOGGER.warn("Failed to retrieve a policy for {}", path, e);
+            return new ResponseCtx(new Result(Result.DECISION_NOT_APPLICABLE, resource));
+        }
+        if (match == MatchResult.NO_MATCH) {
+            return new ResponseCtx(new Result(Result.DECISION_NOT_APPLICABLE, resource));
+        }
+        // Errors while deciding the policy propagate, as they do from the library
+        final int decision = match == MatchResult.MATCH ? function.decide(context) : Result.DECISION_INDETERMINATE;
+        if (decision == Result.DECISION_INDETERMINATE) {
+            return new ResponseCtx(new Result(decision, new Status(singletonList(STATUS_PROCESSING_ERROR)),
+                    resource));
+        }
+        return new ResponseCtx(new Result(decision, resource));
+    }
+
+    /**
+     * Decide a request against the policy it was found to fall under, as the library would once the policy is found.
+     *
+     * @param policy the linked policy, or a residual of one
+     * @param context the evaluation context
+     * @return the decision, one of the decisions of {@link Result}
+     */
+    public int evaluate(final AbstractPolicy policy, final EvaluationCtx context) {
+        final DecisionFunction function = functionOf(policy);
+        if (function != null) {
+            return function.evaluate(context);
+        }
+        final MatchResult match = policy.match(context);
+        if (match.getResult() == MatchResult.MATCH) {
+            return policy.evaluate(context).getDecision();
+        }
+        return match.getResult() == MatchResult.NO_MATCH ? Result.DECISION_NOT_APPLICABLE :
+                Result.DECISION_INDETERMINATE;
+    }
+
+    /**
+     * @return the compiled policy, or null if it cannot be compiled
+     */
+    private DecisionFunction functionOf(final AbstractPolicy policy) {
+        return functions.computeIfAbsent(policy, p -> {
+            LOGGER.debug("Compiling policy {}", p.getId());
+            return Optional.ofNullable(DecisionFunction.compile(p));
+        }).orElse(null);
+    }
+}
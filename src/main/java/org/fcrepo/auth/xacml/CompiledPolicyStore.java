@@ -0,0 +1,458 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.attribute.PosixFilePermissions.asFileAttribute;
+import static java.nio.file.attribute.PosixFilePermissions.fromString;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+import org.springframework.stereotype.Component;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * A local store of policies in a compiled form, so that policies do not have to be parsed from XML again after a
+ * restart. Entries are keyed by the content digest of the policy binary, so an edited policy is compiled afresh
+ * under its new digest and entries never need to be invalidated.
+ *
+ * The XACML library cannot serialize its policy objects, so the compiled form is the policy DOM in a compact binary
+ * encoding: names and namespaces are written once to a string table and referred to by index, and whitespace
+ * between elements is dropped. Reading it back builds the DOM directly, without XML tokenizing, character decoding
+ * or entity handling.
+ *
+ * Compiled policies are only as trustworthy as the directory they are kept in. The store is enabled only when a
+ * directory is configured or the Fedora home is known, the directory is made readable by its owner alone, and each
+ * entry carries an HMAC of the content digest it was compiled from and of its body, keyed by a secret kept in the
+ * directory. An entry that does not verify is discarded rather than used.
+ *
+ * @author agent
+ */
+@Component("compiledPolicyStore")
+public class CompiledPolicyStore {
+
+    private static final Logger LOGGER = getLogger(CompiledPolicyStore.class);
+
+    /**
+     * System property naming the directory of compiled policies.
+     */
+    public static final String DIRECTORY = "fcrepo.xacml.compiled.dir";
+
+    private static final int MAGIC = 0x58434d4c;
+
+    private static final int VERSION = 2;
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private static final String KEY_FILE = "store.key";
+
+    private static final int KEY_LENGTH = 32;
+
+    private static final Set<PosixFilePermission> OWNER_ONLY = fromString("rwx------");
+
+    private static final Set<PosixFilePermission> OWNER_READ_WRITE = fromString("rw-------");
+
+    private static final byte END = 0;
+
+    private static final byte ELEMENT = 1;
+
+    private static final byte TEXT = 2;
+
+    @Inject
+    private PolicyParser policyParser;
+
+    private Path directory;
+
+    private SecretKeySpec key;
+
+    private final LongAdder hitCount = new LongAdder();
+
+    private final LongAdder missCount = new LongAdder();
+
+    /**
+     * Use the directory named by the {@value #DIRECTORY} system property, or a directory below the Fedora home. With
+     * neither set, the store is disabled rather than kept in a directory shared with other users.
+     */
+    @PostConstruct
+    public void init() {
+        final String configured = System.getProperty(DIRECTORY);
+        final String home = System.getProperty("fcrepo.home");
+        if (configured != null) {
+            setDirectory(Paths.get(configured));
+        } else if (home != null) {
+            setDirectory(Paths.get(home, "xacml-compiled"));
+        } else {
+            LOGGER.info("Neither {} nor fcrepo.home is set, compiled policies disabled", DIRECTORY);
+            setDirectory(null);
+        }
+    }
+
+    /**
+     * @param directory the directory of compiled policies, created if needed and made accessible to its owner only;
+     *        null disables the store
+     */
+    public void setDirectory(final Path directory) {
+        this.directory = null;
+        this.key = null;
+        if (directory == null) {
+            return;
+        }
+        try {
+            final boolean posix = directory.getFileSystem().supportedFileAttributeViews().contains("posix");
+            if (posix) {
+                Files.createDirectories(directory, asFileAttribute(OWNER_ONLY));
+                // An existing directory may have been created by someone else, or with wider permissions
+                Files.setPosixFilePermissions(directory, OWNER_ONLY);
+            } else {
+                Files.createDirectories(directory);
+            }
+            this.key = new SecretKeySpec(loadKey(directory.resolve(KEY_FILE), posix), MAC_ALGORITHM);
+        } catch (final IOException | RuntimeException e) {
+            LOGGER.warn("Unable to prepare compiled policy directory {}, compiled policies disabled", directory,
+                    e);
+            return;
+        }
+        this.directory = directory;
+        LOGGER.debug("Compiled policy directory: {}", directory);
+    }
+
+    /**
+     * Read the secret the entries are authenticated with, creating it the first time.
+     */
+    private static byte[] loadKey(final Path file, final boolean posix) throws IOException {
+        if (!Files.exists(file)) {
+            final byte[] secret = new byte[KEY_LENGTH];
+            new SecureRandom().nextBytes(secret);
+            final Path temp = posix ?
+                    Files.createTempFile(file.getParent(), "key", ".tmp", asFileAttribute(OWNER_READ_WRITE)) :
+                    Files.createTempFile(file.getParent(), "key", ".tmp");
+            try {
+                Files.write(temp, secret);
+                Files.move(temp, file, ATOMIC_MOVE);
+            } catch (final IOException e) {
+                delete(temp);
+                // Another store created the key first
+                if (!Files.exists(file)) {
+                    throw e;
+                }
+            }
+        }
+        final byte[] secret = Files.readAllBytes(file);
+        if (secret.length != KEY_LENGTH) {
+            throw new IOException("Compiled policy key has the wrong length");
+        }
+        return secret;
+    }
+
+    /**
+     * Read the compiled form of a policy.
+     *
+     * @param digest the content digest of the policy binary
+     * @return the policy DOM, or null if no usable compiled form is stored
+     */
+    public Document read(final URI digest) {
+        final Path file = fileFor(digest);
+        if (file == null || !Files.isRegularFile(file)) {
+            missCount.increment();
+            return null;
+        }
+        try (final DataInputStream entry = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file)))) {
+            if (entry.readInt() != MAGIC || entry.readInt() != VERSION) {
+                throw new IOException("Unknown compiled policy format");
+            }
+            final byte[] mac = new byte[entry.readUnsignedByte()];
+            entry.readFully(mac);
+            final int length = entry.readInt();
+            if (length < 0) {
+                throw new IOException("Negative compiled policy length");
+            }
+            final byte[] body = new byte[length];
+            entry.readFully(body);
+            if (entry.read() != -1) {
+                throw new IOException("Trailing data in compiled policy");
+            }
+            // Nothing is decoded from an entry that was not written by this store for this policy content
+            if (!MessageDigest.isEqual(mac, mac(digest, body))) {
+                throw new IOException("Compiled policy does not match its policy");
+            }
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            final Document doc = policyParser.newDocument();
+            final Reader reader = new Reader(in, doc);
+            if (in.readByte() != ELEMENT) {
+                throw new IOException("Compiled policy has no root element");
+            }
+            doc.appendChild(reader.readElement());
+            hitCount.increment();
+            return doc;
+        } catch (final IOException | RuntimeException e) {
+            LOGGER.warn("Discarding unreadable compiled policy {}", file, e);
+            delete(file);
+            missCount.increment();
+            return null;
+        }
+    }
+
+    /**
+     * Store the compiled form of a policy, replacing any stored under the same digest.
+     *
+     * @param digest the content digest of the policy binary
+     * @param doc the policy DOM
+     */
+    public void write(final URI digest, final Document doc) {
+        final Path file = fileFor(digest);
+        if (file == null) {
+            return;
+        }
+        Path temp = null;
+        try {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final DataOutputStream bodyOut = new DataOutputStream(body);
+            new Writer(bodyOut).writeElement(doc.getDocumentElement());
+            bodyOut.flush();
+            final byte[] bytes = body.toByteArray();
+            final byte[] mac = mac(digest, bytes);
+
+            temp = Files.createTempFile(directory, "policy", ".tmp");
+            try (final OutputStream stream = new BufferedOutputStream(Files.newOutputStream(temp))) {
+                final DataOutputStream out = new DataOutputStream(stream);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeByte(mac.length);
+                out.write(mac);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.flush();
+            }
+            Files.move(temp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+        } catch (final IOException e) {
+            LOGGER.warn("Unable to store compiled policy {}", file, e);
+            if (temp != null) {
+                delete(temp);
+            }
+        }
+    }
+
+    /**
+     * @return the number of policies read from their compiled form
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * @return the number of policies that had no usable compiled form
+     */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * Authenticate the body of an entry together with the content digest of the policy it was compiled from.
+     */
+    private byte[] mac(final URI digest, final byte[] body) throws IOException {
+        try {
+            final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+            final byte[] name = digest.toString().getBytes(UTF_8);
+            mac.update(new byte[] { (byte) (name.length >>> 24), (byte) (name.length >>> 16),
+                (byte) (name.length >>> 8), (byte) name.length });
+            mac.update(name);
+            return mac.doFinal(body);
+        } catch (final GeneralSecurityException e) {
+            throw new IOException("Unable to authenticate compiled policy", e);
+        }
+    }
+
+    private Path fileFor(final URI digest) {
+        if (directory == null || digest == null) {
+            return null;
+        }
+        return directory.resolve(digest.toString().replaceAll("[^A-Za-z0-9]", "-") + ".policy");
+    }
+
+    private static void delete(final Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (final IOException e) {
+            LOGGER.debug("Unable to delete {}", file, e);
+        }
+    }
+
+    /**
+     * Writes a DOM, referring to names and namespaces through a string table.
+     */
+    private static class Writer {
+
+        private final DataOutputStream out;
+
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        private Writer(final DataOutputStream out) {
+            this.out = out;
+        }
+
+        private void writeElement(final Element element) throws IOException {
+            out.writeByte(ELEMENT);
+            writeString(element.getNamespaceURI());
+            writeString(element.getNodeName());
+
+            final NamedNodeMap attributes = element.getAttributes();
+            out.writeInt(attributes.getLength());
+            for (int i = 0; i < attributes.getLength(); i++) {
+                final Attr attribute = (Attr) attributes.item(i);
+                writeString(attribute.getNamespaceURI());
+                writeString(attribute.getName());
+                writeText(attribute.getValue());
+            }
+
+            boolean hasElements = false;
+            for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+                hasElements = hasElements || child.getNodeType() == Node.ELEMENT_NODE;
+            }
+            for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (child.getNodeType() == Node.ELEMENT_NODE) {
+                    writeElement((Element) child);
+                } else if (child.getNodeType() == Node.TEXT_NODE || child.getNodeType() == Node.CDATA_SECTION_NODE) {
+                    // Whitespace between elements carries no meaning; text content is kept as is
+                    final String text = child.getNodeValue();
+                    if (!hasElements || !text.trim().isEmpty()) {
+                        out.writeByte(TEXT);
+                        writeText(text);
+                    }
+                }
+            }
+            out.writeByte(END);
+        }
+
+        private void writeString(final String value) throws IOException {
+            if (value == null) {
+                out.writeInt(-1);
+                return;
+            }
+            final Integer index = strings.get(value);
+            if (index != null) {
+                out.writeInt(index);
+                return;
+            }
+            strings.put(value, strings.size());
+            out.writeInt(-2);
+            writeText(value);
+        }
+
+        private void writeText(final String value) throws IOException {
+            final byte[] bytes = value.getBytes(UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Builds a DOM from its compact form.
+     */
+    private static class Reader {
+
+        private final DataInputStream in;
+
+        private final Document doc;
+
+        private final List<String> strings = new ArrayList<>();
+
+        private Reader(final DataInputStream in, final Document doc) {
+            this.in = in;
+            this.doc = doc;
+        }
+
+        private Element readElement() throws IOException {
+            final Element element = doc.createElementNS(readString(), readString());
+            final int attributes = in.readInt();
+            for (int i = 0; i < attributes; i++) {
+                final String namespace = readString();
+                final String name = readString();
+                element.setAttributeNS(namespace, name, readText());
+            }
+            for (byte type = in.readByte(); type != END; type = in.readByte()) {
+                if (type == ELEMENT) {
+                    element.appendChild(readElement());
+                } else if (type == TEXT) {
+                    element.appendChild(doc.createTextNode(readText()));
+                } else {
+                    throw new IOException("Unknown compiled policy node type " + type);
+                }
+            }
+            return element;
+        }
+
+        private String readString() throws IOException {
+            final int index = in.readInt();
+            if (index == -1) {
+                return null;
+            }
+            if (index == -2) {
+                final String value = readText();
+                strings.add(value);
+                return value;
+            }
+            return strings.get(index);
+        }
+
+        private String readText() throws IOException {
+            final int length = in.readInt();
+            if (length < 0) {
+                throw new IOException("Negative text length in compiled policy");
+            }
+            final byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, UTF_8);
+        }
+    }
+}
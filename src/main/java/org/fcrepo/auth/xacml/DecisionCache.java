@@ -0,0 +1,182 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * A bounded cache of authorization decisions with a time-to-live. Entries for a path are dropped when the
+ * resource at or above that path changes, and the whole cache is dropped when a policy or a policy assignment
+ * changes; changes arrive from the {@link InvalidationPipeline}.
+ *
+ * @author agent
+ */
+public class DecisionCache implements InvalidationTarget {
+
+    private static final Logger LOGGER = getLogger(DecisionCache.class);
+
+    private final Cache<Key, Boolean> cache;
+
+    /**
+     * Constructor
+     *
+     * @param maximumSize the maximum number of decisions to retain
+     * @param ttlSeconds how long a decision may be reused, in seconds
+     */
+    public DecisionCache(final long maximumSize, final long ttlSeconds) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(maximumSize).expireAfterWrite(ttlSeconds, SECONDS)
+                .recordStats().build();
+    }
+
+    /**
+     * @param key the decision key
+     * @return the cached decision, or null
+     */
+    public Boolean get(final Key key) {
+        return cache.getIfPresent(key);
+    }
+
+    /**
+     * @param key the decision key
+     * @param permit the decision
+     */
+    public void put(final Key key, final boolean permit) {
+        cache.put(key, permit);
+    }
+
+    /**
+     * @param key the decision key
+     */
+    public void remove(final Key key) {
+        cache.invalidate(key);
+    }
+
+    /**
+     * Drop the decisions for a path and everything below it.
+     *
+     * @param path the expanded node path
+     */
+    public void invalidatePath(final String path) {
+        if ("/".equals(path)) {
+            invalidateAll();
+            return;
+        }
+        final String prefix = path + "/";
+        cache.asMap().keySet().removeIf(k -> k.path.equals(path) || k.path.startsWith(prefix));
+    }
+
+    /**
+     * Drop all decisions.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * @return the hit, miss and eviction counts of the cache
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    @Override
+    public void invalidate(final Invalidation invalidation) {
+        if (invalidation.isAll() || invalidation.isPolicyChanged()) {
+            LOGGER.debug("Policy change, dropping all cached decisions");
+            invalidateAll();
+            return;
+        }
+        invalidation.getExpandedPaths().forEach(this::invalidatePath);
+    }
+
+    /**
+     * The inputs of a decision: the subject, the resource path, the actions and any environment attributes that
+     * policies refer to, together with the policy attribute generation the key was computed against.
+     */
+    public static final class Key {
+
+        private final SubjectFingerprint subject;
+
+        private final String path;
+
+        private final Set<String> actions;
+
+        private final String environment;
+
+        private final long generation;
+
+        private final int hash;
+
+        /**
+         * Constructor
+         *
+         * @param subject the fingerprint of the subject
+         * @param path the node or property path
+         * @param actions the requested actions
+         * @param environment the referenced environment attribute values, or null
+         * @param generation the policy attribute generation the fingerprint was computed against
+         */
+        public Key(final SubjectFingerprint subject, final String path, final String[] actions,
+                   final String environment, final long generation) {
+            this.subject = subject;
+            this.path = path;
+            this.actions = actions == null ? new TreeSet<>() : new TreeSet<>(Arrays.asList(actions));
+            this.environment = environment;
+            this.generation = generation;
+            this.hash = Objects.hash(subject, path, this.actions, environment, generation);
+        }
+
+        /**
+         * @return the policy attribute generation the key was computed against
+         */
+        public long getGeneration() {
+            return generation;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return hash == other.hash && generation == other.generation && path.equals(other.path) &&
+                    subject.equals(other.subject) && actions.equals(other.actions) &&
+                    Objects.equals(environment, other.environment);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,543 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static org.jboss.security.xacml.sunxacml.MatchResult.INDETERMINATE;
+import static org.jboss.security.xacml.sunxacml.MatchResult.MATCH;
+import static org.jboss.security.xacml.sunxacml.MatchResult.NO_MATCH;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.ACTION_TARGET;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.RESOURCE_TARGET;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.SUBJECT_TARGET;
+import static org.jboss.security.xacml.sunxacml.ctx.Result.DECISION_DENY;
+import static org.jboss.security.xacml.sunxacml.ctx.Result.DECISION_INDETERMINATE;
+import static org.jboss.security.xacml.sunxacml.ctx.Result.DECISION_NOT_APPLICABLE;
+import static org.jboss.security.xacml.sunxacml.ctx.Result.DECISION_PERMIT;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.jboss.security.xacml.sunxacml.AbstractPolicy;
+import org.jboss.security.xacml.sunxacml.EvaluationCtx;
+import org.jboss.security.xacml.sunxacml.Policy;
+import org.jboss.security.xacml.sunxacml.PolicySet;
+import org.jboss.security.xacml.sunxacml.Rule;
+import org.jboss.security.xacml.sunxacml.Target;
+import org.jboss.security.xacml.sunxacml.attr.AnyURIAttribute;
+import org.jboss.security.xacml.sunxacml.attr.BagAttribute;
+import org.jboss.security.xacml.sunxacml.attr.StringAttribute;
+import org.jboss.security.xacml.sunxacml.combine.PolicyCombinerElement;
+import org.jboss.security.xacml.sunxacml.combine.RuleCombinerElement;
+import org.jboss.security.xacml.sunxacml.cond.EvaluationResult;
+
+/**
+ * A linked policy or policy set compiled into a tree of closures that decides a request as the library would
+ * interpret the policy, without walking its object model or boxing attribute values into bags of matches.
+ *
+ * Targets whose matches compare literal strings or URIs with designated attributes, the only ones the default
+ * policies use besides regular expressions, become comparisons against hash sets of plain {@link String} and
+ * {@link URI} values, each attribute fetched from the context at most once per decision. The standard rule and
+ * policy combining algorithms are unrolled over the compiled children. Anything else, such as a condition, a target
+ * with another function or a combining algorithm of an extension, is handed back to the library, node by node, so
+ * that every policy compiles and the decisions stay the same.
+ *
+ * Obligations and unresolved references are not compiled, since the decision alone cannot carry them; a tree with
+ * any of them is left to the library.
+ *
+ * @author agent
+ */
+public final class DecisionFunction {
+
+    private static final String RULE_ALGORITHM = "urn:oasis:names:tc:xacml:1.0:rule-combining-algorithm:";
+
+    private static final String ORDERED_RULE_ALGORITHM = "urn:oasis:names:tc:xacml:1.1:rule-combining-algorithm:";
+
+    private static final String POLICY_ALGORITHM = "urn:oasis:names:tc:xacml:1.0:policy-combining-algorithm:";
+
+    private static final String ORDERED_POLICY_ALGORITHM =
+            "urn:oasis:names:tc:xacml:1.1:policy-combining-algorithm:";
+
+    private static final Object ERROR = new Object();
+
+    private static final Node ALWAYS_MATCH = request -> MATCH;
+
+    private final Node match;
+
+    private final Node decide;
+
+    private DecisionFunction(final Node match, final Node decide) {
+        this.match = match;
+        this.decide = decide;
+    }
+
+    /**
+     * Compile a linked policy or policy set.
+     *
+     * @param policy the policy
+     * @return the compiled policy, or null if it carries obligations or unresolved references
+     */
+    public static DecisionFunction compile(final AbstractPolicy policy) {
+        return isCompilable(policy) ? new Compiler().policy(policy) : null;
+    }
+
+    /**
+     * Decide a request against the policy, as the library does once it has found the policy for the request: a
+     * policy whose target does not match is not applicable.
+     *
+     * @param context the evaluation context
+     * @return the decision, one of the decisions of {@link org.jboss.security.xacml.sunxacml.ctx.Result}
+     */
+    public int evaluate(final EvaluationCtx context) {
+        final Request request = new Request(context);
+        final int result = match.apply(request);
+        if (result == MATCH) {
+            return decide.apply(request);
+        }
+        return result == NO_MATCH ? DECISION_NOT_APPLICABLE : DECISION_INDETERMINATE;
+    }
+
+    /**
+     * Match a request against the target of the policy.
+     *
+     * @param context the evaluation context
+     * @return the match, one of the results of {@link org.jboss.security.xacml.sunxacml.MatchResult}
+     */
+    int match(final EvaluationCtx context) {
+        return match.apply(new Request(context));
+    }
+
+    /**
+     * Decide a request against the policy, once its target is known to match.
+     *
+     * @param context the evaluation context
+     * @return the decision, one of the decisions of {@link org.jboss.security.xacml.sunxacml.ctx.Result}
+     */
+    int decide(final EvaluationCtx context) {
+        return decide.apply(new Request(context));
+    }
+
+    private static boolean isCompilable(final AbstractPolicy policy) {
+        if (!(policy instanceof Policy) && !(policy instanceof PolicySet) || !policy.getObligations().isEmpty()) {
+            return false;
+        }
+        if (policy instanceof PolicySet) {
+            for (final Object element : policy.getChildElements()) {
+                if (!isCompilable(((PolicyCombinerElement) element).getPolicy())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A compiled node of the tree, yielding a match or a decision for a request.
+     */
+    @FunctionalInterface
+    private interface Node {
+
+        int apply(Request request);
+    }
+
+    /**
+     * A compiled rule: the node deciding it, and its effect, which some combining algorithms need to know.
+     */
+    private static final class CompiledRule {
+
+        private final Node node;
+
+        private final int effect;
+
+        private CompiledRule(final Node node, final int effect) {
+            this.node = node;
+            this.effect = effect;
+        }
+    }
+
+    /**
+     * A designated attribute, shared by every match of the tree that reads it.
+     */
+    private static final class Designator {
+
+        private final int type;
+
+        private final URI attributeId;
+
+        private final URI dataType;
+
+        private final URI issuer;
+
+        private final URI category;
+
+        private Designator(final SimpleTarget.Match match) {
+            this.type = match.getDesignatorType();
+            this.attributeId = match.getAttributeId();
+            this.dataType = match.getDataType();
+            this.issuer = match.getIssuer();
+            this.category = match.getCategory();
+        }
+
+        /**
+         * Read the values of the attribute, as the designator of the library would.
+         *
+         * @return the values as strings or URIs, or {@link #ERROR}
+         */
+        private Object read(final EvaluationCtx context) {
+            final EvaluationResult result;
+            if (type == SUBJECT_TARGET) {
+                result = context.getSubjectAttribute(dataType, attributeId, issuer, category);
+            } else if (type == RESOURCE_TARGET) {
+                result = context.getResourceAttribute(dataType, attributeId, issuer);
+            } else if (type == ACTION_TARGET) {
+                result = context.getActionAttribute(dataType, attributeId, issuer);
+            } else {
+                result = context.getEnvironmentAttribute(dataType, attributeId, issuer);
+            }
+            if (result.indeterminate()) {
+                return ERROR;
+            }
+            final BagAttribute bag = (BagAttribute) result.getAttributeValue();
+            final Set<Object> values = new HashSet<>(bag.size() * 2);
+            final Iterator<?> it = bag.iterator();
+            while (it.hasNext()) {
+                final Object value = it.next();
+                if (value instanceof StringAttribute) {
+                    values.add(((StringAttribute) value).getValue());
+                } else if (value instanceof AnyURIAttribute) {
+                    values.add(((AnyURIAttribute) value).getValue());
+                } else {
+                    values.add(value);
+                }
+            }
+            return values;
+        }
+
+        private List<Object> key() {
+            return Arrays.asList(type, attributeId, dataType, issuer, category);
+        }
+    }
+
+    /**
+     * The state of one decision: the context, and the values of the attributes read so far.
+     */
+    private static final class Request {
+
+        private final EvaluationCtx context;
+
+        private final Map<Designator, Object> values = new IdentityHashMap<>();
+
+        private Request(final EvaluationCtx context) {
+            this.context = context;
+        }
+
+        private Object values(final Designator designator) {
+            Object result = values.get(designator);
+            if (result == null) {
+                result = designator.read(context);
+                values.put(designator, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Compiles one tree, sharing designators between its matches.
+     */
+    private static final class Compiler {
+
+        private final Map<List<Object>, Designator> designators = new HashMap<>();
+
+        private DecisionFunction policy(final AbstractPolicy policy) {
+            return new DecisionFunction(target(policy.getTarget()), policy instanceof PolicySet ?
+                    policySet(policy) : rules(policy));
+        }
+
+        /**
+         * Compile a target, matching its sections in order, as the library does: the first section that does not
+         * match decides; a section matches if one of its groups does, and is indeterminate if none does and one
+         * is; a group matches if all of its matches do, and otherwise yields the first that does not.
+         */
+        private Node target(final Target target) {
+            if (target == null) {
+                return ALWAYS_MATCH;
+            }
+            final SimpleTarget simple = SimpleTarget.of(target);
+            if (simple == null) {
+                return request -> target.match(request.context).getResult();
+            }
+            final List<Node[][]> sections = new ArrayList<>();
+            for (final List<List<SimpleTarget.Match>> section : simple.getSections()) {
+                if (section.isEmpty()) {
+                    continue;
+                }
+                final Node[][] groups = new Node[section.size()][];
+                for (int i = 0; i < groups.length; i++) {
+                    final List<SimpleTarget.Match> group = section.get(i);
+                    groups[i] = new Node[group.size()];
+                    for (int j = 0; j < groups[i].length; j++) {
+                        groups[i][j] = match(group.get(j));
+                    }
+                }
+                sections.add(groups);
+            }
+            if (sections.isEmpty()) {
+                return ALWAYS_MATCH;
+            }
+            final Node[][][] compiled = sections.toArray(new Node[sections.size()][][]);
+            return request -> {
+                for (final Node[][] groups : compiled) {
+                    final int result = section(groups, request);
+                    if (result != MATCH) {
+                        return result;
+                    }
+                }
+                return MATCH;
+            };
+        }
+
+        private static int section(final Node[][] groups, final Request request) {
+            boolean error = false;
+            for (final Node[] group : groups) {
+                int result = MATCH;
+                for (final Node match : group) {
+                    result = match.apply(request);
+                    if (result != MATCH) {
+                        break;
+                    }
+                }
+                if (result == MATCH) {
+                    return MATCH;
+                }
+                error |= result == INDETERMINATE;
+            }
+            return error ? INDETERMINATE : NO_MATCH;
+        }
+
+        /**
+         * Compile one comparison: the literal is looked up among the values of the attribute, which is what
+         * comparing it with each of them in turn comes to, since these functions cannot be indeterminate.
+         */
+        private Node match(final SimpleTarget.Match match) {
+            final Designator key = new Designator(match);
+            final Designator designator = designators.computeIfAbsent(key.key(), k -> key);
+            final Object literal = match.getLiteral();
+            final boolean mustBePresent = match.isMustBePresent();
+            return request -> {
+                final Object values = request.values(designator);
+                if (values == ERROR) {
+                    return INDETERMINATE;
+                }
+                final Set<?> set = (Set<?>) values;
+                if (set.isEmpty()) {
+                    return mustBePresent ? INDETERMINATE : NO_MATCH;
+                }
+                return set.contains(literal) ? MATCH : NO_MATCH;
+            };
+        }
+
+        private Node rules(final AbstractPolicy policy) {
+            final List<CompiledRule> compiled = new ArrayList<>();
+            for (final Object element : policy.getChildElements()) {
+                compiled.add(rule(((RuleCombinerElement) element).getRule()));
+            }
+            final CompiledRule[] rules = compiled.toArray(new CompiledRule[compiled.size()]);
+            switch (algorithm(policy, RULE_ALGORITHM, ORDERED_RULE_ALGORITHM)) {
+            case "deny-overrides":
+            case "ordered-deny-overrides":
+                return request -> overrides(rules, request, DECISION_DENY, DECISION_PERMIT);
+            case "permit-overrides":
+            case "ordered-permit-overrides":
+                return request -> overrides(rules, request, DECISION_PERMIT, DECISION_DENY);
+            case "first-applicable":
+                return request -> {
+                    for (final CompiledRule rule : rules) {
+                        final int decision = rule.node.apply(request);
+                        if (decision != DECISION_NOT_APPLICABLE) {
+                            return decision;
+                        }
+                    }
+                    return DECISION_NOT_APPLICABLE;
+                };
+            default:
+                return request -> policy.evaluate(request.context).getDecision();
+            }
+        }
+
+        /**
+         * Combine rules so that the overriding effect wins, and an error in a rule that might have had it makes the
+         * result indeterminate.
+         */
+        private static int overrides(final CompiledRule[] rules, final Request request, final int overriding,
+                                     final int other) {
+            boolean error = false;
+            boolean potential = false;
+            boolean atLeastOneOther = false;
+            for (final CompiledRule rule : rules) {
+                final int decision = rule.node.apply(request);
+                if (decision == overriding) {
+                    return overriding;
+                }
+                if (decision == DECISION_INDETERMINATE) {
+                    error = true;
+                    potential |= rule.effect == overriding;
+                } else {
+                    atLeastOneOther |= decision == other;
+                }
+            }
+            if (potential) {
+                return DECISION_INDETERMINATE;
+            }
+            if (atLeastOneOther) {
+                return other;
+            }
+            return error ? DECISION_INDETERMINATE : DECISION_NOT_APPLICABLE;
+        }
+
+        private CompiledRule rule(final Rule rule) {
+            if (rule.getCondition() != null) {
+                return new CompiledRule(request -> rule.evaluate(request.context).getDecision(), rule.getEffect());
+            }
+            final Node target = target(rule.getTarget());
+            final int effect = rule.getEffect();
+            return new CompiledRule(request -> {
+                final int result = target.apply(request);
+                if (result == MATCH) {
+                    return effect;
+                }
+                return result == NO_MATCH ? DECISION_NOT_APPLICABLE : DECISION_INDETERMINATE;
+            }, effect);
+        }
+
+        private Node policySet(final AbstractPolicy policySet) {
+            final List<DecisionFunction> compiled = new ArrayList<>();
+            for (final Object element : policySet.getChildElements()) {
+                compiled.add(policy(((PolicyCombinerElement) element).getPolicy()));
+            }
+            final DecisionFunction[] policies = compiled.toArray(new DecisionFunction[compiled.size()]);
+            switch (algorithm(policySet, POLICY_ALGORITHM, ORDERED_POLICY_ALGORITHM)) {
+            case "deny-overrides":
+            case "ordered-deny-overrides":
+                return request -> denyOverrides(policies, request);
+            case "permit-overrides":
+            case "ordered-permit-overrides":
+                return request -> permitOverrides(policies, request);
+            case "first-applicable":
+                return request -> {
+                    for (final DecisionFunction policy : policies) {
+                        final int match = policy.match.apply(request);
+                        if (match == INDETERMINATE) {
+                            return DECISION_INDETERMINATE;
+                        }
+                        if (match == MATCH) {
+                            final int decision = policy.decide.apply(request);
+                            if (decision != DECISION_NOT_APPLICABLE) {
+                                return decision;
+                            }
+                        }
+                    }
+                    return DECISION_NOT_APPLICABLE;
+                };
+            case "only-one-applicable":
+                return request -> {
+                    DecisionFunction selected = null;
+                    for (final DecisionFunction policy : policies) {
+                        final int match = policy.match.apply(request);
+                        if (match == INDETERMINATE || match == MATCH && selected != null) {
+                            return DECISION_INDETERMINATE;
+                        }
+                        if (match == MATCH) {
+                            selected = policy;
+                        }
+                    }
+                    return selected == null ? DECISION_NOT_APPLICABLE : selected.decide.apply(request);
+                };
+            default:
+                return request -> policySet.evaluate(request.context).getDecision();
+            }
+        }
+
+        /**
+         * Combine policies so that a deny wins, and an error in any applicable policy is taken as a deny.
+         */
+        private static int denyOverrides(final DecisionFunction[] policies, final Request request) {
+            boolean permit = false;
+            for (final DecisionFunction policy : policies) {
+                final int match = policy.match.apply(request);
+                if (match == INDETERMINATE) {
+                    return DECISION_DENY;
+                }
+                if (match == MATCH) {
+                    final int decision = policy.decide.apply(request);
+                    if (decision == DECISION_DENY || decision == DECISION_INDETERMINATE) {
+                        return DECISION_DENY;
+                    }
+                    permit |= decision == DECISION_PERMIT;
+                }
+            }
+            return permit ? DECISION_PERMIT : DECISION_NOT_APPLICABLE;
+        }
+
+        /**
+         * Combine policies so that a permit wins, then a deny, then an error.
+         */
+        private static int permitOverrides(final DecisionFunction[] policies, final Request request) {
+            boolean error = false;
+            boolean deny = false;
+            for (final DecisionFunction policy : policies) {
+                final int match = policy.match.apply(request);
+                if (match == INDETERMINATE) {
+                    error = true;
+                } else if (match == MATCH) {
+                    final int decision = policy.decide.apply(request);
+                    if (decision == DECISION_PERMIT) {
+                        return DECISION_PERMIT;
+                    }
+                    deny |= decision == DECISION_DENY;
+                    error |= decision == DECISION_INDETERMINATE;
+                }
+            }
+            if (deny) {
+                return DECISION_DENY;
+            }
+            return error ? DECISION_INDETERMINATE : DECISION_NOT_APPLICABLE;
+        }
+
+        /**
+         * @return the name of a standard combining algorithm of the policy, or its identifier if it is not one
+         */
+        private static String algorithm(final AbstractPolicy policy, final String prefix,
+                                        final String orderedPrefix) {
+            final String id = Objects.toString(policy.getCombiningAlg().getIdentifier());
+            if (id.startsWith(prefix)) {
+                return id.substring(prefix.length());
+            }
+            if (id.startsWith(orderedPrefix) && id.substring(orderedPrefix.length()).startsWith("ordered-")) {
+                return id.substring(orderedPrefix.length());
+            }
+            return id;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.emptySet;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.ENVIRONMENT_TARGET;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.RESOURCE_TARGET;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.SUBJECT_CATEGORY_DEFAULT;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.SUBJECT_TARGET;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.jboss.security.xacml.sunxacml.BasicEvaluationCtx;
+import org.jboss.security.xacml.sunxacml.ParsingException;
+import org.jboss.security.xacml.sunxacml.attr.AttributeValue;
+import org.jboss.security.xacml.sunxacml.attr.BagAttribute;
+import org.jboss.security.xacml.sunxacml.attr.StringAttribute;
+import org.jboss.security.xacml.sunxacml.cond.EvaluationResult;
+import org.jboss.security.xacml.sunxacml.ctx.RequestCtx;
+import org.jboss.security.xacml.sunxacml.finder.AttributeFinder;
+
+/**
+ * The evaluation context of a single Fedora authorization decision. In addition to the standard request
+ * attributes, it lets attribute finder modules memoize work, such as loading the resource, for the rest of the
+ * decision.
+ *
+ * String attributes that are costly to gather, such as the user's groups or the remote address, can be given as
+ * suppliers instead of values. A supplier is only called when a designator asks for its attribute, and at most once
+ * per decision, so a policy that only looks at roles and actions never pays for them.
+ *
+ * @author agent
+ */
+public class FedoraEvaluationCtx extends BasicEvaluationCtx {
+
+    private static final URI DEFAULT_CATEGORY = URI.create(SUBJECT_CATEGORY_DEFAULT);
+
+    /**
+     * Values memoized for this decision, by type. A context is only used by one thread at a time.
+     */
+    private final Map<Class<?>, Object> memos = new HashMap<>();
+
+    private final Map<URI, Supplier<Collection<String>>> lazySubjectAttributes;
+
+    private final Map<URI, Supplier<Collection<String>>> lazyResourceAttributes;
+
+    private final Map<URI, Supplier<Collection<String>>> lazyEnvironmentAttributes;
+
+    /**
+     * Values of lazy attributes already supplied, by designator type and attribute ID.
+     */
+    private final Map<List<Object>, Collection<String>> supplied = new HashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param request the request
+     * @param finder the attribute finder
+     * @throws ParsingException if the request lacks required attributes
+     */
+    public FedoraEvaluationCtx(final RequestCtx request, final AttributeFinder finder) throws ParsingException {
+        this(request, finder, emptyMap(), emptyMap(), emptyMap());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param request the request
+     * @param finder the attribute finder
+     * @param lazySubjectAttributes suppliers of string attributes of the default subject, by attribute ID
+     * @param lazyResourceAttributes suppliers of string resource attributes, by attribute ID
+     * @param lazyEnvironmentAttributes suppliers of string environment attributes, by attribute ID
+     * @throws ParsingException if the request lacks required attributes
+     */
+    public FedoraEvaluationCtx(final RequestCtx request, final AttributeFinder finder,
+                               final Map<URI, Supplier<Collection<String>>> lazySubjectAttributes,
+                               final Map<URI, Supplier<Collection<String>>> lazyResourceAttributes,
+                               final Map<URI, Supplier<Collection<String>>> lazyEnvironmentAttributes)
+            throws ParsingException {
+        super(request, finder);
+        this.lazySubjectAttributes = lazySubjectAttributes;
+        this.lazyResourceAttributes = lazyResourceAttributes;
+        this.lazyEnvironmentAttributes = lazyEnvironmentAttributes;
+    }
+
+    @Override
+    public EvaluationResult getSubjectAttribute(final URI type, final URI id, final URI category) {
+        return getSubjectAttribute(type, id, null, category);
+    }
+
+    @Override
+    public EvaluationResult getSubjectAttribute(final URI type, final URI id, final URI issuer,
+                                                final URI category) {
+        if (issuer == null && (category == null || DEFAULT_CATEGORY.equals(category))) {
+            final EvaluationResult result = supply(SUBJECT_TARGET, lazySubjectAttributes, type, id);
+            if (result != null) {
+                return result;
+            }
+        }
+        return super.getSubjectAttribute(type, id, issuer, category);
+    }
+
+    @Override
+    public EvaluationResult getResourceAttribute(final URI type, final URI id, final URI issuer) {
+        if (issuer == null) {
+            final EvaluationResult result = supply(RESOURCE_TARGET, lazyResourceAttributes, type, id);
+            if (result != null) {
+                return result;
+            }
+        }
+        return super.getResourceAttribute(type, id, issuer);
+    }
+
+    @Override
+    public EvaluationResult getEnvironmentAttribute(final URI type, final URI id, final URI issuer) {
+        if (issuer == null) {
+            final EvaluationResult result = supply(ENVIRONMENT_TARGET, lazyEnvironmentAttributes, type, id);
+            if (result != null) {
+                return result;
+            }
+        }
+        return super.getEnvironmentAttribute(type, id, issuer);
+    }
+
+    /**
+     * Get the bag of a lazy attribute, calling its supplier the first time it is asked for.
+     *
+     * @return the bag, or null if the attribute is not lazy
+     */
+    private EvaluationResult supply(final int designatorType,
+                                    final Map<URI, Supplier<Collection<String>>> suppliers,
+                                    final URI type, final URI id) {
+        final Supplier<Collection<String>> supplier = suppliers.get(id);
+        if (supplier == null) {
+            return null;
+        }
+        final List<Object> key = Arrays.asList(designatorType, id);
+        Collection<String> values = supplied.get(key);
+        if (values == null) {
+            values = supplier.get();
+            if (values == null) {
+                values = emptySet();
+            }
+            supplied.put(key, values);
+        }
+
+        final Set<AttributeValue> bag = new HashSet<>();
+        if (StringAttribute.identifier.equals(type.toString())) {
+            for (final String value : values) {
+                if (value != null) {
+                    bag.add(new StringAttribute(value));
+                }
+            }
+        }
+        return new EvaluationResult(bag.isEmpty() ? BagAttribute.createEmptyBag(type) : new BagAttribute(type, bag));
+    }
+
+    /**
+     * Get the value of the given type memoized for this decision, computing it the first time.
+     *
+     * @param type the type of the value, used as its key
+     * @param supplier computes the value
+     * @param <T> the type of the value
+     * @return the memoized value
+     */
+    public <T> T memoize(final Class<T> type, final Supplier<T> supplier) {
+        final Object value = memos.get(type);
+        if (value != null) {
+            return type.cast(value);
+        }
+        final T computed = supplier.get();
+        memos.put(type, computed);
+        return computed;
+    }
+}
@@ -17,22 +17,26 @@
  */
 package org.fcrepo.auth.xacml;
 
-import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_ACTION_ID;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
 import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_ENVIRONMENT_ORIGINAL_IP_ADDRESS;
 import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_RESOURCE_ID;
 import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_RESOURCE_WORKSPACE;
 import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_SUBJECT_ID;
 import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_GROUP;
-import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_ROLE;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.net.URI;
 import java.security.Principal;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Supplier;
 
-import org.jboss.security.xacml.sunxacml.BasicEvaluationCtx;
 import org.jboss.security.xacml.sunxacml.EvaluationCtx;
 import org.jboss.security.xacml.sunxacml.ParsingException;
 import org.jboss.security.xacml.sunxacml.attr.StringAttribute;
@@ -76,11 +80,42 @@ public class FedoraEvaluationCtxBuilder {
      */
     private final List<Attribute> environmentList = new ArrayList<>();
 
+    /**
+     * Suppliers of subject, resource and environment attributes gathered only when asked for.
+     */
+    private final Map<URI, Supplier<Collection<String>>> lazySubjectAttributes = new HashMap<>();
+
+    private final Map<URI, Supplier<Collection<String>>> lazyResourceAttributes = new HashMap<>();
+
+    private final Map<URI, Supplier<Collection<String>>> lazyEnvironmentAttributes = new HashMap<>();
+
     /**
      * The list of attribute finder modules.
      */
     private final List<AttributeFinderModule> attributeFinderModules = new ArrayList<>();
 
+    /**
+     * A preconfigured attribute finder shared between contexts, or null to build one from the modules.
+     */
+    private final AttributeFinder attributeFinder;
+
+    /**
+     * Create a builder whose contexts use the finder modules added to it.
+     */
+    public FedoraEvaluationCtxBuilder() {
+        this.attributeFinder = null;
+    }
+
+    /**
+     * Create a builder whose contexts use a preconfigured attribute finder. Attribute finders are only read during
+     * evaluation, so one finder can serve every context.
+     *
+     * @param attributeFinder the attribute finder
+     */
+    public FedoraEvaluationCtxBuilder(final AttributeFinder attributeFinder) {
+        this.attributeFinder = attributeFinder;
+    }
+
     /**
      * Build the evaluation context.
      *
@@ -97,12 +132,16 @@ public class FedoraEvaluationCtxBuilder {
             }
         }
 
-        final AttributeFinder af = new AttributeFinder();
-        af.setModules(attributeFinderModules);
+        final AttributeFinder af;
+        if (attributeFinder != null) {
+            af = attributeFinder;
+        } else {
+            af = new AttributeFinder();
+            af.setModules(attributeFinderModules);
+        }
         try {
-            final BasicEvaluationCtx result = new BasicEvaluationCtx(rc, af);
-            // result.setResourceId(resourceId);
-            return result;
+            return new FedoraEvaluationCtx(rc, af, lazySubjectAttributes, lazyResourceAttributes,
+                    lazyEnvironmentAttributes);
         } catch (final ParsingException e) {
             throw new Error(e);
         }
@@ -115,6 +154,9 @@ public class FedoraEvaluationCtxBuilder {
      * @return the builder
      */
     public final FedoraEvaluationCtxBuilder addFinderModule(final AttributeFinderModule module) {
+        if (attributeFinder != null) {
+            throw new IllegalStateException("This builder uses a preconfigured attribute finder");
+        }
         this.attributeFinderModules.add(module);
         return this;
     }
@@ -127,7 +169,7 @@ public class FedoraEvaluationCtxBuilder {
      * @return the builder
      */
     public final FedoraEvaluationCtxBuilder addSubject(final String username, final Set<String> roles) {
-        final List<Attribute> subjectAttrs = new ArrayList<>();
+        final List<Attribute> subjectAttrs = new ArrayList<>(roles == null ? 1 : roles.size() + 1);
         if (username != null) {
             final StringAttribute v = new StringAttribute(username);
             final Attribute sid = new Attribute(ATTRIBUTEID_SUBJECT_ID, null, null, v);
@@ -136,9 +178,7 @@ public class FedoraEvaluationCtxBuilder {
 
         if (roles != null) {
             for (final String role : roles) {
-                final StringAttribute roleAttr = new StringAttribute(role);
-                final Attribute roleId = new Attribute(FCREPO_SUBJECT_ROLE, null, null, roleAttr);
-                subjectAttrs.add(roleId);
+                subjectAttrs.add(AttributeFlyweights.role(role));
             }
         }
 
@@ -146,6 +186,19 @@ public class FedoraEvaluationCtxBuilder {
         return this;
     }
 
+    /**
+     * Adds the subjects of another builder, including the subject attributes it gathers only when asked for, so that
+     * a subject built once can be shared by the contexts of many requests.
+     *
+     * @param other the builder holding the subjects
+     * @return the builder
+     */
+    public final FedoraEvaluationCtxBuilder addSubjects(final FedoraEvaluationCtxBuilder other) {
+        subjectList.addAll(other.subjectList);
+        lazySubjectAttributes.putAll(other.lazySubjectAttributes);
+        return this;
+    }
+
     /**
      * Add the node or property path as resource ID.
      *
@@ -170,6 +223,17 @@ public class FedoraEvaluationCtxBuilder {
         return this;
     }
 
+    /**
+     * Add the workspace name, read only if a policy asks for it.
+     *
+     * @param name supplies the name of the workspace
+     * @return the builder
+     */
+    public final FedoraEvaluationCtxBuilder addWorkspace(final Supplier<String> name) {
+        lazyResourceAttributes.put(ATTRIBUTEID_RESOURCE_WORKSPACE, () -> singletonOrEmpty(name.get()));
+        return this;
+    }
+
     /**
      * Adds actions as action ID and modify resource scope to handle remove.
      *
@@ -179,8 +243,7 @@ public class FedoraEvaluationCtxBuilder {
     public final FedoraEvaluationCtxBuilder addActions(final String[] actions) {
         if (actions != null) {
             for (final String action : actions) {
-                final Attribute a = new Attribute(ATTRIBUTEID_ACTION_ID, null, null, new StringAttribute(action));
-                actionList.add(a);
+                actionList.add(AttributeFlyweights.action(action));
                 // if ("remove".equals(action)) {
                 // final Attribute scope =
                 // new Attribute(ATTRIBUTEID_RESOURCE_SCOPE, null, null,
@@ -200,7 +263,17 @@ public class FedoraEvaluationCtxBuilder {
                                           null,
                                           null,
                                           new StringAttribute(remoteAddr));
-        actionList.add(a);
+        environmentList.add(a);
+    }
+
+    /**
+     * Add the original remote address, read only if a policy asks for it.
+     *
+     * @param remoteAddr supplies the remote address, or null
+     */
+    public void addOriginalRequestIP(final Supplier<String> remoteAddr) {
+        lazyEnvironmentAttributes.put(ATTRIBUTEID_ENVIRONMENT_ORIGINAL_IP_ADDRESS,
+                () -> singletonOrEmpty(remoteAddr.get()));
     }
 
     /**
@@ -218,17 +291,44 @@ public class FedoraEvaluationCtxBuilder {
             return this;
         }
 
-        final List<Attribute> subjectAttrs = new ArrayList<>();
+        final List<Attribute> subjectAttrs = new ArrayList<>(allGroups.size());
         for (final Principal group : allGroups) {
             // Do not include the user principal in the group attributes.
             if (!group.equals(user)) {
-                final StringAttribute groupAttr = new StringAttribute(group.getName());
-                final Attribute groupId = new Attribute(FCREPO_SUBJECT_GROUP, null, null, groupAttr);
-                subjectAttrs.add(groupId);
+                subjectAttrs.add(AttributeFlyweights.group(group.getName()));
             }
         }
         this.subjectList.add(new Subject(subjectAttrs));
         return this;
     }
 
+    /**
+     * Add group attributes to the subject, gathered only if a policy asks for them.
+     *
+     * @param user      for arg groups
+     * @param allGroups supplies the principals of the user, or null
+     * @return this object
+     */
+    public FedoraEvaluationCtxBuilder addGroups(final Principal user, final Supplier<Set<Principal>> allGroups) {
+        lazySubjectAttributes.put(FCREPO_SUBJECT_GROUP, () -> {
+            final Set<Principal> groups = allGroups.get();
+            LOGGER.trace("For user, {}, adding groups {}", user, groups);
+            if (groups == null) {
+                return emptyList();
+            }
+            final List<String> names = new ArrayList<>(groups.size());
+            for (final Principal group : groups) {
+                // Do not include the user principal in the group attributes.
+                if (!group.equals(user)) {
+                    names.add(group.getName());
+                }
+            }
+            return names;
+        });
+        return this;
+    }
+
+    private static Collection<String> singletonOrEmpty(final String value) {
+        return value == null ? emptyList() : singletonList(value);
+    }
 }
@@ -17,23 +17,24 @@
  */
 package org.fcrepo.auth.xacml;
 
+import static java.util.Collections.singletonList;
 import static org.fcrepo.auth.xacml.URIConstants.POLICY_URI_PREFIX;
-import static org.fcrepo.auth.xacml.URIConstants.XACML_POLICY_PROPERTY;
-import static org.fcrepo.kernel.modeshape.FedoraSessionImpl.getJcrSession;
+import static org.jboss.security.xacml.sunxacml.ctx.Status.STATUS_PROCESSING_ERROR;
 import static org.slf4j.LoggerFactory.getLogger;
 
+import java.io.InputStream;
 import java.net.URI;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.inject.Inject;
-import javax.jcr.Node;
-import javax.jcr.Property;
-import javax.jcr.RepositoryException;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 
-import org.fcrepo.http.commons.session.SessionFactory;
 import org.fcrepo.kernel.api.FedoraSession;
 import org.fcrepo.kernel.api.FedoraTypes;
+import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
 import org.fcrepo.kernel.api.models.FedoraBinary;
 import org.fcrepo.kernel.api.models.FedoraResource;
 import org.fcrepo.kernel.api.services.BinaryService;
@@ -47,6 +48,7 @@ import org.jboss.security.xacml.sunxacml.PolicySet;
 import org.jboss.security.xacml.sunxacml.VersionConstraints;
 import org.jboss.security.xacml.sunxacml.attr.AttributeValue;
 import org.jboss.security.xacml.sunxacml.cond.EvaluationResult;
+import org.jboss.security.xacml.sunxacml.ctx.Status;
 import org.jboss.security.xacml.sunxacml.finder.PolicyFinder;
 import org.jboss.security.xacml.sunxacml.finder.PolicyFinderModule;
 import org.jboss.security.xacml.sunxacml.finder.PolicyFinderResult;
@@ -55,20 +57,27 @@ import org.springframework.stereotype.Component;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import com.google.common.cache.CacheStats;
+
 
 /**
  * Locates a policy in ModeShape by evaluation context or by URI.
  *
+ * Policies are linked when first found: policy references within them are resolved once into the referenced
+ * policies, and the linked policies are reused until a policy they are built from changes. Assigned policies are
+ * served from an immutable {@link PolicySnapshot}, which is replaced in the background when policies or their
+ * assignments change.
+ *
  * @author Gregory Jansen
  * @author bbpennel
  */
 @Component("fedoraPolicyFinderModule")
-public class FedoraPolicyFinderModule extends PolicyFinderModule {
+public class FedoraPolicyFinderModule extends PolicyFinderModule implements InvalidationTarget {
 
     private static final Logger LOGGER = getLogger(FedoraPolicyFinderModule.class);
 
     @Inject
-    private SessionFactory sessionFactory;
+    private InternalSessionPool sessionPool;
 
     @Inject
     private BinaryService binaryService;
@@ -76,8 +85,34 @@ public class FedoraPolicyFinderModule extends PolicyFinderModule {
     @Inject
     private NodeService nodeService;
 
+    @Inject
+    private PolicyAssignmentIndex policyAssignmentIndex;
+
+    @Inject
+    private PolicyAttributeRegistry policyAttributeRegistry;
+
+    @Inject
+    private PolicyParser policyParser;
+
+    @Inject
+    private InvalidationPipeline invalidationPipeline;
+
+    @Inject
+    private CompiledPolicyStore compiledPolicyStore;
+
     private PolicyFinder finder;
 
+    private final PolicyCache policyCache =
+            new PolicyCache(Long.getLong("fcrepo.xacml.policy.cache.size", PolicyCache.DEFAULT_MAXIMUM_SIZE));
+
+    private final PolicyLinker policyLinker = new PolicyLinker(this::loadPolicyAt);
+
+    private volatile boolean observing = false;
+
+    private final AtomicReference<PolicySnapshot> snapshot = new AtomicReference<>();
+
+    private final InvalidationTarget snapshotRebuilder = this::rebuildSnapshot;
+
     /*
      * This policy finder can find by request context.
      * @see org.jboss.security.xacml.sunxacml.finder.PolicyFinderModule#
@@ -99,13 +134,198 @@ public class FedoraPolicyFinderModule extends PolicyFinderModule {
     }
 
     /**
-     * Retrieves the policy from the given policy node
+     * Retrieves the policy from the given policy node, parsing it only if the cache does not already hold the
+     * current version of the binary.
      *
      * @param policyBinary
      * @return
      */
     private AbstractPolicy getPolicy(final FedoraBinary policyBinary) {
-        return loadPolicy(policyBinary);
+        return policyCache.get(policyBinary, this::loadPolicy);
+    }
+
+    /**
+     * Get the statistics of the parsed-policy cache, for sizing it.
+     *
+     * @return the hit, miss and eviction counts
+     */
+    public CacheStats getPolicyCacheStats() {
+        return policyCache.stats();
+    }
+
+    /**
+     * Tell whether a repository path belongs to a policy that has been loaded.
+     *
+     * @param path a JCR node path
+     * @return whether the path is, or lies within, a loaded policy
+     */
+    public boolean isPolicyPath(final String path) {
+        return policyCache.containsPath(path) || policyLinker.containsPath(path);
+    }
+
+    /**
+     * Get the IDs of the policies that linked policies refer to but that could not be resolved.
+     *
+     * @return the unresolved policy IDs
+     */
+    public Set<String> getMissingPolicyReferences() {
+        return policyLinker.getMissingReferences();
+    }
+
+    /**
+     * Drop the linked policy at or above a path, and the linked policies that refer to it.
+     *
+     * @param path a JCR node path
+     */
+    public void invalidatePolicy(final String path) {
+        policyLinker.invalidate(path);
+    }
+
+    /**
+     * Load the policy stored at a repository path, without linking it.
+     *
+     * @param path the repository path of the policy
+     * @return the policy, or null if there is no policy at the path
+     */
+    private AbstractPolicy loadPolicyAt(final String path) {
+        try (final InternalSessionPool.Lease lease = sessionPool.lease()) {
+            final FedoraSession internalSession = lease.getSession();
+            final FedoraResource resource = nodeService.find(internalSession, path);
+            if (!resource.hasType(FedoraTypes.FEDORA_NON_RDF_SOURCE_DESCRIPTION)) {
+                LOGGER.warn("Policy Binary not found for: {}", path);
+                return null;
+            }
+
+            final FedoraBinary policyBinary = binaryService.findOrCreate(internalSession, resource.getPath());
+            if (policyBinary == null) {
+                LOGGER.warn("Policy binary for path: {} was null!", path);
+                return null;
+            }
+            return getPolicy(policyBinary);
+        } catch (final RepositoryRuntimeException e) {
+            LOGGER.warn("Failed to retrieve the policy at {}", path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Start dropping linked policies when the policies they are built from change, if not already doing so.
+     */
+    private void ensureObserving() {
+        if (observing) {
+            return;
+        }
+        synchronized (policyLinker) {
+            if (!observing) {
+                invalidationPipeline.register(this);
+                invalidationPipeline.registerDerived(snapshotRebuilder);
+                invalidationPipeline.registerPolicyMatcher(this::affectsPolicy);
+                invalidationPipeline.start();
+                observing = true;
+            }
+        }
+    }
+
+    /**
+     * Get the current snapshot of policies and assignments, building it on first use.
+     *
+     * @return the snapshot
+     */
+    public PolicySnapshot getPolicySnapshot() {
+        final PolicySnapshot current = snapshot.get();
+        if (current != null) {
+            return current;
+        }
+        synchronized (snapshot) {
+            PolicySnapshot built = snapshot.get();
+            if (built == null) {
+                built = buildSnapshot();
+                // A snapshot built while a policy change was translated may have read the index before the change,
+                // so it serves this call only, and the next use builds again
+                if (built.getGeneration() == invalidationPipeline.getGeneration()) {
+                    snapshot.set(built);
+                }
+            }
+            return built;
+        }
+    }
+
+    /**
+     * Link every assigned policy into a new snapshot.
+     */
+    private PolicySnapshot buildSnapshot() {
+        ensureObserving();
+        final long start = System.nanoTime();
+        final long generation = invalidationPipeline.getGeneration();
+        final Map<String, String> assignments = policyAssignmentIndex.getAssignments();
+        final Map<String, AbstractPolicy> policies = new HashMap<>();
+        for (final String policyPath : new HashSet<>(assignments.values())) {
+            final AbstractPolicy policy = policyLinker.get(policyPath);
+            if (policy != null) {
+                policies.put(policyPath, policy);
+            }
+        }
+        LOGGER.debug("Built policy snapshot of {} policies and {} assignments in {} ms", policies.size(),
+                assignments.size(), (System.nanoTime() - start) / 1000000);
+        return new PolicySnapshot(assignments, policies, generation);
+    }
+
+    /**
+     * Replace the snapshot after a batch of changes to policies or assignments. This runs on the invalidation
+     * thread, so decisions keep reading the previous snapshot until the new one is swapped in.
+     */
+    private void rebuildSnapshot(final Invalidation invalidation) {
+        // Wait for a snapshot being built on first use, which may have read the index before the change
+        synchronized (snapshot) {
+            final PolicySnapshot current = snapshot.get();
+            if (current == null || !invalidation.isPolicyChanged() && !removesAssignment(current, invalidation)) {
+                return;
+            }
+            try {
+                snapshot.set(buildSnapshot());
+            } catch (final RuntimeException e) {
+                LOGGER.warn("Unable to rebuild the policy snapshot, rebuilding on next use", e);
+                snapshot.set(null);
+            }
+        }
+    }
+
+    /**
+     * Tell whether a batch deleted or moved a node at or above an assignment of a snapshot, which sends no event for
+     * the assignment itself.
+     */
+    private static boolean removesAssignment(final PolicySnapshot current, final Invalidation invalidation) {
+        for (final String path : invalidation.getRemovedPaths()) {
+            final String expanded = invalidation.getExpandedPath(path);
+            if ("/".equals(expanded)) {
+                return true;
+            }
+            for (final String assigned : current.getAssignments().keySet()) {
+                if (assigned.equals(expanded) || assigned.startsWith(expanded + "/")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tell whether a change at a repository path would drop a linked policy.
+     *
+     * @param path a JCR node path
+     * @return whether the path is at, above or below a linked policy
+     */
+    public boolean affectsPolicy(final String path) {
+        return policyLinker.affects(path);
+    }
+
+    @Override
+    public void invalidate(final Invalidation invalidation) {
+        if (invalidation.isAll()) {
+            policyLinker.invalidateAll();
+            return;
+        }
+        invalidation.getAffectedPaths().forEach(policyLinker::invalidate);
     }
 
     /**
@@ -117,30 +337,35 @@ public class FedoraPolicyFinderModule extends PolicyFinderModule {
     private AbstractPolicy loadPolicy(final FedoraBinary policyBinary) {
         String policyName = "unparsed";
         try {
-            // create the factory
-            final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setIgnoringComments(true);
-            factory.setNamespaceAware(true);
-            factory.setValidating(false);
-
-            final DocumentBuilder db = factory.newDocumentBuilder();
-
-            // Parse the policy content
-            final Document doc = db.parse(policyBinary.getContent());
+            // Read the compiled form stored at an earlier load, or parse the policy content
+            final URI digest = policyBinary.getContentDigest();
+            Document doc = compiledPolicyStore.read(digest);
+            final boolean compiled = doc != null;
+            if (!compiled) {
+                try (final InputStream content = policyBinary.getContent()) {
+                    doc = policyParser.parse(content);
+                }
+            }
 
             // handle the policy, if it's a known type
             final Element root = doc.getDocumentElement();
             final String name = root.getTagName();
 
             policyName = PolicyUtil.getID(doc);
+            policyAttributeRegistry.register(doc);
+            final AbstractPolicy policy;
             if (name.equals("Policy")) {
-                return Policy.getInstance(root);
+                policy = TargetIndex.index(Policy.getInstance(root));
             } else if (name.equals("PolicySet")) {
-                return PolicySet.getInstance(root, finder);
+                policy = TargetIndex.index(PolicySet.getInstance(root, finder));
             } else {
                 // this isn't a root type that we know how to handle
                 throw new Exception("Unknown root document type: " + name);
             }
+            if (!compiled) {
+                compiledPolicyStore.write(digest, doc);
+            }
+            return policy;
         } catch (final Exception e) {
             LOGGER.error("Unable to parse policy from {}", policyName, e);
         }
@@ -158,51 +383,13 @@ public class FedoraPolicyFinderModule extends PolicyFinderModule {
      */
     @Override
     public final PolicyFinderResult findPolicy(final EvaluationCtx context) {
-        final EvaluationResult ridEvalRes = context.getResourceAttribute(
-                URI.create("http://www.w3.org/2001/XMLSchema#string"), URIConstants.ATTRIBUTEID_RESOURCE_ID, null);
-        final AttributeValue resourceIdAttValue = ridEvalRes.getAttributeValue();
-        String path = resourceIdAttValue.getValue().toString();
-
-        LOGGER.debug("Finding policy for resource: {}", path);
-
-        if ("".equals(path.trim())) {
-            path = "/";
-        }
-
+        final String path = getResourcePath(context);
         try {
-            final FedoraSession internalSession = sessionFactory.getInternalSession();
-
-            // Walk up the hierarchy to find the first node with a policy assigned
-            Node nodeWithPolicy = PolicyUtil.getFirstRealNode(path, getJcrSession(internalSession));
-            while (nodeWithPolicy != null && !nodeWithPolicy.hasProperty(XACML_POLICY_PROPERTY)) {
-                nodeWithPolicy = nodeWithPolicy.getParent();
-            }
-
-            // This should never happen, as PolicyUtil.getFirstRealNode() at least returns the root node.
-            if (null == nodeWithPolicy) {
-                LOGGER.warn("No policy found for: {}!", path);
-                return new PolicyFinderResult();
-            }
-
-            final Property prop = nodeWithPolicy.getProperty(XACML_POLICY_PROPERTY);
-
-            final FedoraBinary policyBinary;
-            final FedoraResource resource = nodeService.find(internalSession, prop.getNode().getPath());
-            if (resource.hasType(FedoraTypes.FEDORA_NON_RDF_SOURCE_DESCRIPTION)) {
-                policyBinary = binaryService.findOrCreate(internalSession, resource.getPath());
-
-            } else {
-                LOGGER.warn("Policy Binary not found for: {}", path);
-                return new PolicyFinderResult();
-            }
-
-            if (policyBinary == null) {
-                LOGGER.warn("Policy binary for path: {} was null!", nodeWithPolicy.getPath());
+            final AbstractPolicy policy = getEffectivePolicy(path);
+            if (policy == null) {
                 return new PolicyFinderResult();
             }
 
-            final AbstractPolicy policy = getPolicy(policyBinary);
-
             // Evaluate if the policy targets match the current context
             final MatchResult match = policy.match(context);
             final int result = match.getResult();
@@ -217,12 +404,53 @@ public class FedoraPolicyFinderModule extends PolicyFinderModule {
             }
 
             return new PolicyFinderResult();
-        } catch (final RepositoryException e) {
-            LOGGER.warn("Failed to retrieve a policy for {}", e, path);
+        } catch (final RepositoryRuntimeException e) {
+            LOGGER.warn("Failed to retrieve a policy for {}", path, e);
             return new PolicyFinderResult();
         }
     }
 
+    /**
+     * Get the path of the resource a request is for, as policies are found for it.
+     *
+     * @param context the evaluation context
+     * @return the path, where an empty resource ID stands for the root
+     */
+    public static String getResourcePath(final EvaluationCtx context) {
+        final EvaluationResult ridEvalRes = context.getResourceAttribute(
+                URI.create("http://www.w3.org/2001/XMLSchema#string"), URIConstants.ATTRIBUTEID_RESOURCE_ID, null);
+        final AttributeValue resourceIdAttValue = ridEvalRes.getAttributeValue();
+        final String path = resourceIdAttValue.getValue().toString();
+
+        LOGGER.debug("Finding policy for resource: {}", path);
+
+        return "".equals(path.trim()) ? "/" : path;
+    }
+
+    /**
+     * Get the linked policy in effect at a path: the one assigned to the path or to its nearest ancestor.
+     *
+     * @param path the path of the resource
+     * @return the policy, or null if none is found
+     */
+    public AbstractPolicy getEffectivePolicy(final String path) {
+        // Find the nearest assignment in the snapshot, rather than walking up the hierarchy
+        final PolicySnapshot current = getPolicySnapshot();
+        final String policyPath = current.findEffectivePolicy(path);
+
+        // This should never happen, as the root node always has a policy assigned.
+        if (null == policyPath) {
+            LOGGER.warn("No policy found for: {}!", path);
+            return null;
+        }
+
+        final AbstractPolicy policy = current.getPolicy(policyPath);
+        if (policy == null) {
+            LOGGER.warn("Policy not found at {} for: {}", policyPath, path);
+        }
+        return policy;
+    }
+
     /*
      * Find a policy in ModeShape by reference URI.
      * @see
@@ -242,20 +470,19 @@ public class FedoraPolicyFinderModule extends PolicyFinderModule {
         }
 
         final String path = PolicyUtil.getPathForId(id);
-        final FedoraSession internalSession = sessionFactory.getInternalSession();
-
-        final FedoraBinary policyBinary;
-        final FedoraResource resource = nodeService.find(internalSession, path);
-        if (resource.hasType(FedoraTypes.FEDORA_NON_RDF_SOURCE_DESCRIPTION)) {
-            policyBinary = binaryService.findOrCreate(internalSession, resource.getPath());
+        if (policyLinker.isCyclic(path)) {
+            return new PolicyFinderResult(new Status(singletonList(STATUS_PROCESSING_ERROR),
+                    "Policy " + id + " refers to itself"));
+        }
 
-        } else {
-            LOGGER.warn("Policy Binary not found for: {}", path);
+        // Policies that are only referenced, never assigned, are not part of the snapshot
+        AbstractPolicy policy = getPolicySnapshot().getPolicy(path);
+        if (policy == null) {
+            policy = policyLinker.get(path);
+        }
+        if (policy == null) {
             return new PolicyFinderResult();
         }
-
-        final AbstractPolicy policy = getPolicy(policyBinary);
-
         return new PolicyFinderResult(policy);
     }
 
@@ -269,5 +496,4 @@ public class FedoraPolicyFinderModule extends PolicyFinderModule {
     public void init(final PolicyFinder finder) {
         this.finder = finder;
     }
-
 }
@@ -31,9 +31,6 @@ import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
 
-import org.fcrepo.http.commons.session.SessionFactory;
-import org.fcrepo.kernel.api.FedoraSession;
-
 import org.jboss.security.xacml.sunxacml.EvaluationCtx;
 import org.jboss.security.xacml.sunxacml.attr.AttributeValue;
 import org.jboss.security.xacml.sunxacml.finder.ResourceFinderModule;
@@ -50,10 +47,10 @@ import org.springframework.stereotype.Component;
 public class FedoraResourceFinderModule extends ResourceFinderModule {
 
     /**
-     * Fedora's ModeShape session factory.
+     * The pool of internal sessions used to read the repository.
      */
     @Inject
-    protected SessionFactory sessionFactory;
+    protected InternalSessionPool sessionPool;
 
     /*
      * Does find child resources.
@@ -110,9 +107,8 @@ public class FedoraResourceFinderModule extends ResourceFinderModule {
      * @param recurse If true, find all descenant resources, not just direct children.
     **/
     private ResourceFinderResult findChildren( final AttributeValue parent, final boolean recurse ) {
-        try {
-            final FedoraSession session = sessionFactory.getInternalSession();
-            final Node node = getJcrSession(session).getNode( parent.getValue().toString() );
+        try ( final InternalSessionPool.Lease lease = sessionPool.lease() ) {
+            final Node node = getJcrSession(lease.getSession()).getNode( parent.getValue().toString() );
             final Set<String> children = new HashSet<>();
             findChildren( node, children, recurse );
             return new ResourceFinderResult( children );
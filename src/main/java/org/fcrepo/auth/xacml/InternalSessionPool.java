@@ -0,0 +1,330 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.lang.Integer.getInteger;
+import static org.fcrepo.kernel.modeshape.FedoraSessionImpl.getJcrSession;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jena.rdf.model.Resource;
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.api.FedoraSession;
+import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
+import org.fcrepo.kernel.api.identifiers.IdentifierConverter;
+import org.fcrepo.kernel.api.models.FedoraResource;
+import org.fcrepo.kernel.modeshape.rdf.impl.DefaultIdentifierTranslator;
+import org.slf4j.Logger;
+import org.springframework.stereotype.Component;
+
+/**
+ * A pool of long-lived internal sessions, used only to read the repository while authorizing requests.
+ *
+ * A session is leased to one thread at a time, and only taken from the pool when the lease is first asked for it.
+ * Leases taken on a thread that already holds one share its session, so the delegate can lease a session for a
+ * whole decision and every finder module consulted during the decision reads through it, and objects memoized for
+ * the decision stay bound to a session nobody else uses. When the last lease on a thread is closed, the session
+ * returns to the pool, or is logged out if the pool already holds as many idle sessions as it may.
+ *
+ * Each pooled session carries the identifier translator built for it, so finder modules need not keep their own
+ * per-session translators.
+ *
+ * The pool is an {@link InvalidationTarget}: every batch of repository changes marks the pooled sessions stale, and
+ * a stale session is refreshed before it is leased again. Sessions that are no longer live are discarded.
+ *
+ * @author agent
+ */
+@Component("internalSessionPool")
+public class InternalSessionPool implements InvalidationTarget {
+
+    private static final Logger LOGGER = getLogger(InternalSessionPool.class);
+
+    /**
+     * System property naming the most idle sessions kept by the pool.
+     */
+    public static final String MAXIMUM_IDLE = "fcrepo.xacml.session.pool.idle";
+
+    private final SessionFactory sessionFactory;
+
+    @Inject
+    private InvalidationPipeline invalidationPipeline;
+
+    private final int maximumIdle;
+
+    private final Deque<PooledSession> idle = new ConcurrentLinkedDeque<>();
+
+    private final ThreadLocal<Lease> current = new ThreadLocal<>();
+
+    private final AtomicBoolean observing = new AtomicBoolean();
+
+    private final AtomicLong epoch = new AtomicLong();
+
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private final AtomicInteger activeCount = new AtomicInteger();
+
+    private final AtomicLong createdCount = new AtomicLong();
+
+    private final AtomicLong leaseCount = new AtomicLong();
+
+    private final AtomicLong refreshCount = new AtomicLong();
+
+    private final AtomicLong discardCount = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param sessionFactory the factory of internal sessions
+     */
+    @Inject
+    public InternalSessionPool(final SessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+        this.maximumIdle = Math.max(1, getInteger(MAXIMUM_IDLE, 2 * Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Lease a session for the current thread, sharing the lease the thread already holds, if any.
+     *
+     * @return the lease, to be closed once the session is no longer used
+     */
+    public Lease lease() {
+        final Lease held = current.get();
+        if (held != null) {
+            held.depth++;
+            return held;
+        }
+        final Lease lease = new Lease();
+        current.set(lease);
+        return lease;
+    }
+
+    @Override
+    public void invalidate(final Invalidation invalidation) {
+        epoch.incrementAndGet();
+    }
+
+    /**
+     * Log out every idle session.
+     */
+    @PreDestroy
+    public void destroy() {
+        if (invalidationPipeline != null) {
+            invalidationPipeline.unregister(this);
+        }
+        PooledSession pooled;
+        while ((pooled = idle.poll()) != null) {
+            idleCount.decrementAndGet();
+            logout(pooled);
+        }
+    }
+
+    /**
+     * @return the number of sessions waiting in the pool
+     */
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    /**
+     * @return the number of sessions leased to a thread
+     */
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    /**
+     * @return the number of sessions opened by the pool
+     */
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    /**
+     * @return the number of times a session was taken from the pool or opened for a lease
+     */
+    public long getLeaseCount() {
+        return leaseCount.get();
+    }
+
+    /**
+     * @return the number of times a stale session was refreshed before being leased
+     */
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    /**
+     * @return the number of sessions logged out because they were no longer live or the pool was full
+     */
+    public long getDiscardCount() {
+        return discardCount.get();
+    }
+
+    private void ensureObserving() {
+        if (invalidationPipeline != null && observing.compareAndSet(false, true)) {
+            invalidationPipeline.register(this);
+            invalidationPipeline.start();
+        }
+    }
+
+    private PooledSession borrow() {
+        PooledSession pooled;
+        while ((pooled = idle.poll()) != null) {
+            idleCount.decrementAndGet();
+            final Session jcrSession = getJcrSession(pooled.session);
+            if (!jcrSession.isLive()) {
+                discardCount.incrementAndGet();
+                continue;
+            }
+            final long now = epoch.get();
+            if (pooled.epoch != now) {
+                try {
+                    jcrSession.refresh(false);
+                    refreshCount.incrementAndGet();
+                    pooled.epoch = now;
+                } catch (final RepositoryException e) {
+                    LOGGER.debug("Discarding a pooled session that could not be refreshed", e);
+                    discard(pooled);
+                    continue;
+                }
+            }
+            return pooled;
+        }
+        // Read the epoch first, so that changes made while the session opens are seen as stale
+        final long now = epoch.get();
+        final PooledSession created = new PooledSession(sessionFactory.getInternalSession(), now);
+        createdCount.incrementAndGet();
+        return created;
+    }
+
+    private void release(final PooledSession pooled) {
+        final Session jcrSession = getJcrSession(pooled.session);
+        try {
+            if (!jcrSession.isLive()) {
+                discardCount.incrementAndGet();
+                return;
+            }
+            if (jcrSession.hasPendingChanges()) {
+                LOGGER.warn("Discarding changes made through a read-only authorization session");
+                jcrSession.refresh(false);
+            }
+        } catch (final RepositoryException e) {
+            LOGGER.debug("Discarding a pooled session that could not be checked", e);
+            discard(pooled);
+            return;
+        }
+        if (idleCount.incrementAndGet() <= maximumIdle) {
+            idle.push(pooled);
+        } else {
+            idleCount.decrementAndGet();
+            discard(pooled);
+        }
+    }
+
+    private void discard(final PooledSession pooled) {
+        discardCount.incrementAndGet();
+        logout(pooled);
+    }
+
+    private static void logout(final PooledSession pooled) {
+        try {
+            getJcrSession(pooled.session).logout();
+        } catch (final RuntimeException e) {
+            LOGGER.debug("Failed to log out a pooled session", e);
+        }
+    }
+
+    /**
+     * A session, the epoch in which it was last refreshed, and its identifier translator, once one is needed.
+     */
+    private static final class PooledSession {
+
+        private final FedoraSession session;
+
+        private long epoch;
+
+        private IdentifierConverter<Resource, FedoraResource> translator;
+
+        private PooledSession(final FedoraSession session, final long epoch) {
+            this.session = session;
+            this.epoch = epoch;
+        }
+    }
+
+    /**
+     * The use of a pooled session by one thread.
+     */
+    public final class Lease implements AutoCloseable {
+
+        private PooledSession pooled;
+
+        private int depth = 1;
+
+        private Lease() {
+        }
+
+        /**
+         * @return the leased session, which must only be read from
+         * @throws RepositoryRuntimeException if a new session cannot be opened
+         */
+        public FedoraSession getSession() {
+            if (pooled == null) {
+                ensureObserving();
+                pooled = borrow();
+                leaseCount.incrementAndGet();
+                activeCount.incrementAndGet();
+            }
+            return pooled.session;
+        }
+
+        /**
+         * @return the identifier translator of the leased session, created once for as long as the session lives
+         * @throws RepositoryRuntimeException if a new session cannot be opened
+         */
+        public IdentifierConverter<Resource, FedoraResource> getIdentifierTranslator() {
+            final FedoraSession session = getSession();
+            if (pooled.translator == null) {
+                pooled.translator = new DefaultIdentifierTranslator(getJcrSession(session));
+            }
+            return pooled.translator;
+        }
+
+        @Override
+        public void close() {
+            if (depth == 0 || --depth > 0) {
+                return;
+            }
+            current.remove();
+            if (pooled != null) {
+                activeCount.decrementAndGet();
+                release(pooled);
+                pooled = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.unmodifiableMap;
+import static java.util.Collections.unmodifiableSet;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A batch of repository changes, translated into the paths that caches must drop. Paths are JCR paths with prefixed
+ * names; their expanded <code>/{namespace}local</code> forms are also available.
+ *
+ * @author agent
+ */
+public final class Invalidation {
+
+    private final boolean all;
+
+    private final Set<String> removedPaths;
+
+    private final Set<String> movedPaths;
+
+    private final Set<String> addedPaths;
+
+    private final Set<String> changedNodes;
+
+    private final Set<String> assignmentNodes;
+
+    private final Map<String, String> expandedPaths;
+
+    private final boolean policyChanged;
+
+    private final long generation;
+
+    /**
+     * Constructor
+     *
+     * @param removedPaths the roots of removed subtrees, including the sources of moves
+     * @param movedPaths the roots of moved subtrees, at their destinations
+     * @param addedPaths the roots of added subtrees
+     * @param changedNodes the nodes whose properties changed
+     * @param assignmentNodes the nodes whose policy assignment changed
+     * @param expandedPaths the expanded form of each of those paths
+     * @param policyChanged whether any change affects a policy or a policy assignment
+     * @param generation the policy generation after this batch
+     */
+    Invalidation(final Set<String> removedPaths, final Set<String> movedPaths, final Set<String> addedPaths,
+                 final Set<String> changedNodes, final Set<String> assignmentNodes,
+                 final Map<String, String> expandedPaths, final boolean policyChanged, final long generation) {
+        this.all = false;
+        this.removedPaths = unmodifiableSet(removedPaths);
+        this.movedPaths = unmodifiableSet(movedPaths);
+        this.addedPaths = unmodifiableSet(addedPaths);
+        this.changedNodes = unmodifiableSet(changedNodes);
+        this.assignmentNodes = unmodifiableSet(assignmentNodes);
+        this.expandedPaths = unmodifiableMap(expandedPaths);
+        this.policyChanged = policyChanged;
+        this.generation = generation;
+    }
+
+    private Invalidation(final long generation) {
+        this.all = true;
+        this.removedPaths = emptySet();
+        this.movedPaths = emptySet();
+        this.addedPaths = emptySet();
+        this.changedNodes = emptySet();
+        this.assignmentNodes = emptySet();
+        this.expandedPaths = emptyMap();
+        this.policyChanged = true;
+        this.generation = generation;
+    }
+
+    /**
+     * An invalidation of everything, for changes that could not be translated.
+     *
+     * @param generation the policy generation after this batch
+     * @return the invalidation
+     */
+    static Invalidation all(final long generation) {
+        return new Invalidation(generation);
+    }
+
+    /**
+     * @return whether everything must be dropped, in which case no paths are given
+     */
+    public boolean isAll() {
+        return all;
+    }
+
+    /**
+     * @return the roots of removed subtrees, including the sources of moves
+     */
+    public Set<String> getRemovedPaths() {
+        return removedPaths;
+    }
+
+    /**
+     * @return the roots of moved subtrees, at their destinations
+     */
+    public Set<String> getMovedPaths() {
+        return movedPaths;
+    }
+
+    /**
+     * @return the roots of added subtrees
+     */
+    public Set<String> getAddedPaths() {
+        return addedPaths;
+    }
+
+    /**
+     * @return the nodes whose properties changed, other than their policy assignment
+     */
+    public Set<String> getChangedNodes() {
+        return changedNodes;
+    }
+
+    /**
+     * @return the nodes whose policy assignment was added, changed or removed
+     */
+    public Set<String> getAssignmentNodes() {
+        return assignmentNodes;
+    }
+
+    /**
+     * @return every path affected by the batch
+     */
+    public Set<String> getAffectedPaths() {
+        return expandedPaths.keySet();
+    }
+
+    /**
+     * @param path an affected JCR path
+     * @return its expanded form
+     */
+    public String getExpandedPath(final String path) {
+        return expandedPaths.get(path);
+    }
+
+    /**
+     * @return the expanded forms of every affected path
+     */
+    public Set<String> getExpandedPaths() {
+        return unmodifiableSet(new HashSet<>(expandedPaths.values()));
+    }
+
+    /**
+     * @return whether any change affects a loaded policy or a policy assignment
+     */
+    public boolean isPolicyChanged() {
+        return policyChanged;
+    }
+
+    /**
+     * @return the policy generation after this batch
+     */
+    public long getGeneration() {
+        return generation;
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.lang.Long.getLong;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static javax.jcr.observation.Event.NODE_ADDED;
+import static javax.jcr.observation.Event.NODE_MOVED;
+import static javax.jcr.observation.Event.NODE_REMOVED;
+import static javax.jcr.observation.Event.PROPERTY_ADDED;
+import static javax.jcr.observation.Event.PROPERTY_CHANGED;
+import static javax.jcr.observation.Event.PROPERTY_REMOVED;
+import static org.fcrepo.auth.xacml.URIConstants.XACML_POLICY_PROPERTY;
+import static org.fcrepo.kernel.modeshape.FedoraSessionImpl.getJcrSession;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.api.FedoraSession;
+import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
+import org.slf4j.Logger;
+import org.springframework.stereotype.Component;
+
+/**
+ * The single JCR observer behind every cache of the XACML module. Change events are queued as they arrive and
+ * translated off the observation thread, in short batches, into an {@link Invalidation} that is handed to each
+ * registered {@link InvalidationTarget}. Within a batch, removals, moves and additions are reduced to the roots of
+ * the affected subtrees, so a large delete or move costs one invalidation per subtree rather than one per node.
+ *
+ * The pipeline also keeps a policy generation, which is bumped by every batch that touches a loaded policy or a
+ * policy assignment, including the deletion or move of a subtree holding an assignment. A decision computed while the generation moved may rest on a stale policy and should not be
+ * retained.
+ *
+ * @author agent
+ */
+@Component("invalidationPipeline")
+public class InvalidationPipeline {
+
+    private static final Logger LOGGER = getLogger(InvalidationPipeline.class);
+
+    /**
+     * System property naming how long changes are collected before being applied, in milliseconds.
+     */
+    public static final String BATCH_MILLIS = "fcrepo.xacml.invalidation.batch.millis";
+
+    private static final long DEFAULT_BATCH_MILLIS = 50;
+
+    private static final int EVENT_TYPES = NODE_ADDED | NODE_REMOVED | NODE_MOVED | PROPERTY_ADDED |
+            PROPERTY_CHANGED | PROPERTY_REMOVED;
+
+    private static final int PROPERTY_EVENTS = PROPERTY_ADDED | PROPERTY_CHANGED | PROPERTY_REMOVED;
+
+    private static final String POLICY_PROPERTY_SUFFIX = "/" + XACML_POLICY_PROPERTY;
+
+    @Inject
+    private SessionFactory sessionFactory;
+
+    private final List<InvalidationTarget> targets = new CopyOnWriteArrayList<>();
+
+    private final List<InvalidationTarget> derivedTargets = new CopyOnWriteArrayList<>();
+
+    private final List<Predicate<String>> policyMatchers = new CopyOnWriteArrayList<>();
+
+    private final List<Predicate<String>> assignmentMatchers = new CopyOnWriteArrayList<>();
+
+    private final Queue<Change> pending = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private final long batchMillis = getLong(BATCH_MILLIS, DEFAULT_BATCH_MILLIS);
+
+    private FedoraSession observerSession;
+
+    private EventListener listener;
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * Register a target for invalidations. Registering a target twice has no further effect.
+     *
+     * @param target the target
+     */
+    public void register(final InvalidationTarget target) {
+        if (!targets.contains(target)) {
+            targets.add(target);
+        }
+    }
+
+    /**
+     * Register a target for invalidations that is only called once every other target has applied the batch, for
+     * state derived from those targets.
+     *
+     * @param target the target
+     */
+    public void registerDerived(final InvalidationTarget target) {
+        if (!derivedTargets.contains(target)) {
+            derivedTargets.add(target);
+        }
+    }
+
+    /**
+     * Stop sending invalidations to a target.
+     *
+     * @param target the target
+     */
+    public void unregister(final InvalidationTarget target) {
+        targets.remove(target);
+        derivedTargets.remove(target);
+    }
+
+    /**
+     * Register a test telling whether a change at a JCR node path affects a loaded policy.
+     *
+     * @param matcher the test
+     */
+    public void registerPolicyMatcher(final Predicate<String> matcher) {
+        if (!policyMatchers.contains(matcher)) {
+            policyMatchers.add(matcher);
+        }
+    }
+
+    /**
+     * Register a test telling whether the subtree at an expanded node path holds a policy assignment. Deleting or
+     * moving an assigned node sends no event for its assignment property, so removed subtrees are checked with it.
+     *
+     * @param matcher the test
+     */
+    public void registerAssignmentMatcher(final Predicate<String> matcher) {
+        if (!assignmentMatchers.contains(matcher)) {
+            assignmentMatchers.add(matcher);
+        }
+    }
+
+    /**
+     * Start observing the repository, if not already observing.
+     */
+    public synchronized void start() {
+        if (observerSession != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "xacml-invalidation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            observerSession = sessionFactory.getInternalSession();
+            listener = new ChangeListener();
+            getJcrSession(observerSession).getWorkspace().getObservationManager()
+                    .addEventListener(listener, EVENT_TYPES, "/", true, null, null, false);
+        } catch (final RepositoryException e) {
+            observerSession = null;
+            executor.shutdownNow();
+            throw new RepositoryRuntimeException("Unable to observe repository changes", e);
+        }
+        LOGGER.debug("Observing repository changes in batches of {} ms", batchMillis);
+    }
+
+    /**
+     * @return the policy generation, bumped by every batch that touches a policy or a policy assignment
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Apply every queued change now, on the calling thread.
+     */
+    public void flush() {
+        drain();
+    }
+
+    /**
+     * Stop observing the repository.
+     */
+    @PreDestroy
+    public synchronized void destroy() {
+        if (observerSession == null) {
+            return;
+        }
+        try {
+            getJcrSession(observerSession).getWorkspace().getObservationManager().removeEventListener(listener);
+        } catch (final RepositoryException e) {
+            LOGGER.warn("Unable to remove invalidation listener", e);
+        }
+        executor.shutdownNow();
+        observerSession.expire();
+        observerSession = null;
+    }
+
+    private void enqueue(final Change change) {
+        pending.add(change);
+        if (scheduled.compareAndSet(false, true)) {
+            executor.schedule(this::drain, batchMillis, MILLISECONDS);
+        }
+    }
+
+    private synchronized void drain() {
+        scheduled.set(false);
+        final List<Change> changes = new ArrayList<>();
+        for (Change change = pending.poll(); change != null; change = pending.poll()) {
+            changes.add(change);
+        }
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        Invalidation invalidation;
+        try {
+            invalidation = translate(changes);
+        } catch (final RepositoryException | RuntimeException e) {
+            LOGGER.warn("Unable to translate {} repository changes, invalidating everything", changes.size(), e);
+            invalidation = Invalidation.all(generation.incrementAndGet());
+        }
+
+        dispatch(targets, invalidation);
+        dispatch(derivedTargets, invalidation);
+    }
+
+    private static void dispatch(final List<InvalidationTarget> targets, final Invalidation invalidation) {
+        for (final InvalidationTarget target : targets) {
+            try {
+                target.invalidate(invalidation);
+            } catch (final RuntimeException e) {
+                LOGGER.warn("Unable to apply invalidation to {}", target, e);
+            }
+        }
+    }
+
+    private Invalidation translate(final List<Change> changes) throws RepositoryException {
+        final Set<String> removed = new TreeSet<>();
+        final Set<String> moved = new TreeSet<>();
+        final Set<String> added = new TreeSet<>();
+        final Set<String> changed = new TreeSet<>();
+        final Set<String> assignments = new TreeSet<>();
+
+        for (final Change change : changes) {
+            if ((change.type & PROPERTY_EVENTS) != 0) {
+                if (change.path.endsWith(POLICY_PROPERTY_SUFFIX)) {
+                    assignments.add(parentOf(change.path));
+                } else {
+                    changed.add(parentOf(change.path));
+                }
+            } else if (change.type == NODE_REMOVED) {
+                removed.add(change.path);
+            } else if (change.type == NODE_MOVED) {
+                if (change.source != null) {
+                    removed.add(change.source);
+                }
+                moved.add(change.path);
+            } else if (change.type == NODE_ADDED) {
+                added.add(change.path);
+            }
+        }
+        retainRoots(removed);
+        retainRoots(moved);
+        retainRoots(added);
+
+        final Session session = getJcrSession(observerSession);
+        final Map<String, String> expanded = new HashMap<>();
+        boolean policyChanged = !assignments.isEmpty();
+        for (final Set<String> paths : asList(removed, moved, added, changed, assignments)) {
+            for (final String path : paths) {
+                if (!expanded.containsKey(path)) {
+                    expanded.put(path, PolicyUtil.toExpandedPath(path, session));
+                    policyChanged = policyChanged || isPolicy(path);
+                }
+            }
+        }
+
+        // Removed paths include the sources of moves
+        for (final String path : removed) {
+            policyChanged = policyChanged || holdsAssignment(expanded.get(path));
+        }
+
+        final long gen = policyChanged ? generation.incrementAndGet() : generation.get();
+        LOGGER.debug("Translated {} repository changes into {} affected paths, policy changed: {}",
+                changes.size(), expanded.size(), policyChanged);
+        return new Invalidation(removed, moved, added, changed, assignments, expanded, policyChanged, gen);
+    }
+
+    private boolean isPolicy(final String path) {
+        for (final Predicate<String> matcher : policyMatchers) {
+            if (matcher.test(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean holdsAssignment(final String expandedPath) {
+        for (final Predicate<String> matcher : assignmentMatchers) {
+            if (matcher.test(expandedPath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drop every path that lies below another path of the set.
+     */
+    private static void retainRoots(final Set<String> paths) {
+        final Set<String> all = new HashSet<>(paths);
+        paths.removeIf(path -> {
+            for (String ancestor = path; !"/".equals(ancestor);) {
+                ancestor = parentOf(ancestor);
+                if (all.contains(ancestor)) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    private static String parentOf(final String path) {
+        final String parent = path.substring(0, path.lastIndexOf('/'));
+        return parent.isEmpty() ? "/" : parent;
+    }
+
+    /**
+     * A queued change event.
+     */
+    private static class Change {
+
+        private final int type;
+
+        private final String path;
+
+        private final String source;
+
+        private Change(final int type, final String path, final String source) {
+            this.type = type;
+            this.path = path;
+            this.source = source;
+        }
+    }
+
+    /**
+     * Queues change events; the observation thread does no other work.
+     */
+    private class ChangeListener implements EventListener {
+
+        @Override
+        public void onEvent(final EventIterator events) {
+            while (events.hasNext()) {
+                final Event event = events.nextEvent();
+                try {
+                    String source = null;
+                    if (event.getType() == NODE_MOVED) {
+                        final Object info = event.getInfo().get("srcAbsPath");
+                        source = info == null ? null : info.toString();
+                    }
+                    enqueue(new Change(event.getType(), event.getPath(), source));
+                } catch (final RepositoryException e) {
+                    LOGGER.warn("Unable to read change event, invalidating everything", e);
+                    enqueue(new Change(NODE_REMOVED, "/", null));
+                }
+            }
+        }
+    }
+}
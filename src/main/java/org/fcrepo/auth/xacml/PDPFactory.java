@@ -41,6 +41,17 @@ public class PDPFactory {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PDPFactory.class);
 
+    /**
+     * System property selecting the decision engine: "sunxacml", the default, interprets the policies with the
+     * XACML library, and "compiled" decides with the policies compiled into {@link DecisionFunction}s.
+     */
+    public static final String ENGINE = "fcrepo.xacml.pdp.engine";
+
+    /**
+     * The value of {@link #ENGINE} selecting the compiled engine.
+     */
+    public static final String COMPILED_ENGINE = "compiled";
+
     @Inject
     private FedoraPolicyFinderModule fedoraPolicyFinderModule;
 
@@ -61,8 +72,9 @@ public class PDPFactory {
         resourceFinder.setModules(Collections.singletonList(fedoraResourceFinderModule));
 
         final PDPConfig pdpConfig = new PDPConfig(new AttributeFinder(), policyFinder, resourceFinder);
-        final PDP pdp = new PDP(pdpConfig);
-        LOGGER.info("XACML Policy Decision Point (PDP) initialized");
+        final boolean compiled = COMPILED_ENGINE.equals(System.getProperty(ENGINE));
+        final PDP pdp = compiled ? new CompiledPDP(pdpConfig, fedoraPolicyFinderModule) : new PDP(pdpConfig);
+        LOGGER.info("XACML Policy Decision Point (PDP) initialized{}", compiled ? " with compiled policies" : "");
         return pdp;
     }
 
@@ -0,0 +1,75 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * One check of a batch authorization request: whether the actions may be performed on a path, given the roles the
+ * user holds there.
+ *
+ * @author agent
+ */
+public final class PermissionCheck {
+
+    private final String path;
+
+    private final String[] actions;
+
+    private final Set<String> roles;
+
+    /**
+     * Constructor
+     *
+     * @param path the node or property path
+     * @param actions the actions requested
+     * @param roles the effective roles of the user at the path
+     */
+    public PermissionCheck(final String path, final String[] actions, final Set<String> roles) {
+        this.path = path;
+        this.actions = actions;
+        this.roles = roles;
+    }
+
+    /**
+     * @return the node or property path
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the actions requested
+     */
+    public String[] getActions() {
+        return actions;
+    }
+
+    /**
+     * @return the effective roles of the user at the path
+     */
+    public Set<String> getRoles() {
+        return roles;
+    }
+
+    @Override
+    public String toString() {
+        return path + " " + Arrays.toString(actions) + " " + roles;
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static javax.jcr.query.Query.JCR_SQL2;
+import static org.fcrepo.auth.xacml.URIConstants.XACML_POLICY_PROPERTY;
+import static org.fcrepo.kernel.modeshape.FedoraSessionImpl.getJcrSession;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.api.FedoraSession;
+import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
+import org.slf4j.Logger;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-memory index of every node carrying an {@code authz:policy} assignment, held as a path trie. The index is
+ * built from the repository at start-up and kept current by the {@link InvalidationPipeline}, so finding the policy
+ * that is effective for a path is a longest-prefix lookup that does not touch the repository. If the repository
+ * cannot be indexed at start-up, or a batch of changes cannot be applied, the index is built again when the next
+ * batch of changes arrives; lookups never build it.
+ *
+ * Paths are indexed in the expanded <code>/{namespace}local</code> form that ModeShape hands to the authorization
+ * delegate; policy paths are stored in the JCR form expected by the node service.
+ *
+ * @author agent
+ */
+@Component("policyAssignmentIndex")
+public class PolicyAssignmentIndex implements InvalidationTarget {
+
+    private static final Logger LOGGER = getLogger(PolicyAssignmentIndex.class);
+
+    private static final String ASSIGNMENT_QUERY =
+            "SELECT * FROM [nt:base] AS n WHERE n.[" + XACML_POLICY_PROPERTY + "] IS NOT NULL";
+
+    private static final String SUBTREE_ASSIGNMENT_QUERY = ASSIGNMENT_QUERY + " AND ISDESCENDANTNODE(n, '%s')";
+
+    @Inject
+    private SessionFactory sessionFactory;
+
+    @Inject
+    private InvalidationPipeline invalidationPipeline;
+
+    private final TrieNode root = new TrieNode();
+
+    private final Object writeLock = new Object();
+
+    private volatile boolean built = false;
+
+    private FedoraSession session;
+
+    /**
+     * Find the policy that is effective for a node or property path: the policy assigned to the path itself or to
+     * its nearest ancestor.
+     *
+     * @param path the node or property path, in expanded form
+     * @return the repository path of the effective policy, or null if no assignment applies
+     */
+    public String findEffectivePolicy(final String path) {
+        TrieNode node = root;
+        String policy = node.policyPath;
+        for (final String segment : segments(path)) {
+            node = node.children.get(segment);
+            if (node == null) {
+                break;
+            }
+            if (node.policyPath != null) {
+                policy = node.policyPath;
+            }
+        }
+        return policy;
+    }
+
+    /**
+     * Copy every assignment out of the index.
+     *
+     * @return the repository path of the assigned policy, by expanded node path
+     */
+    public Map<String, String> getAssignments() {
+        final Map<String, String> assignments = new HashMap<>();
+        synchronized (writeLock) {
+            collect(root, "", assignments);
+        }
+        return assignments;
+    }
+
+    private static void collect(final TrieNode node, final String path, final Map<String, String> assignments) {
+        if (node.policyPath != null) {
+            assignments.put(path.isEmpty() ? "/" : path, node.policyPath);
+        }
+        node.children.forEach((segment, child) -> collect(child, path + "/" + segment, assignments));
+    }
+
+    /**
+     * Record a policy assignment.
+     *
+     * @param path the expanded path of the assigned node
+     * @param policyPath the repository path of the policy
+     */
+    public void assign(final String path, final String policyPath) {
+        synchronized (writeLock) {
+            TrieNode node = root;
+            for (final String segment : segments(path)) {
+                node = node.children.computeIfAbsent(segment, s -> new TrieNode());
+            }
+            node.policyPath = policyPath;
+        }
+        LOGGER.debug("Indexed policy {} at {}", policyPath, path);
+    }
+
+    /**
+     * Remove the policy assignment of a node, if any.
+     *
+     * @param path the expanded path of the node
+     */
+    public void unassign(final String path) {
+        synchronized (writeLock) {
+            final TrieNode node = find(path);
+            if (node != null) {
+                node.policyPath = null;
+            }
+        }
+        LOGGER.debug("Removed policy assignment at {}", path);
+    }
+
+    /**
+     * Remove every assignment at or below a path.
+     *
+     * @param path the expanded path of the subtree
+     */
+    public void removeSubtree(final String path) {
+        synchronized (writeLock) {
+            final String[] segments = segments(path);
+            if (segments.length == 0) {
+                root.policyPath = null;
+                root.children.clear();
+                return;
+            }
+            final TrieNode parent = find(parentOf(segments));
+            if (parent != null) {
+                parent.children.remove(segments[segments.length - 1]);
+            }
+        }
+        LOGGER.debug("Removed policy assignments under {}", path);
+    }
+
+    /**
+     * Tell whether a node or any node below it carries an indexed assignment.
+     *
+     * @param path the expanded path of the node
+     * @return whether removing the subtree at the path would remove an assignment
+     */
+    public boolean holdsAssignment(final String path) {
+        final TrieNode node = find(path);
+        return node != null && holdsAssignment(node);
+    }
+
+    private static boolean holdsAssignment(final TrieNode node) {
+        if (node.policyPath != null) {
+            return true;
+        }
+        for (final TrieNode child : node.children.values()) {
+            if (holdsAssignment(child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Discard the index, so that it is built again from the repository when the next batch of changes arrives.
+     */
+    public void clear() {
+        synchronized (writeLock) {
+            root.policyPath = null;
+            root.children.clear();
+            built = false;
+        }
+    }
+
+    /**
+     * Build the index from the repository at start-up.
+     */
+    @PostConstruct
+    public void init() {
+        synchronized (writeLock) {
+            try {
+                build();
+                built = true;
+            } catch (final RepositoryRuntimeException e) {
+                LOGGER.warn("Unable to index XACML policy assignments, indexing on the next repository change", e);
+            }
+        }
+    }
+
+    private TrieNode find(final String path) {
+        TrieNode node = root;
+        for (final String segment : segments(path)) {
+            node = node.children.get(segment);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Load all assignments from the repository, registering for changes first so that none are missed.
+     */
+    private void build() {
+        try {
+            if (session == null) {
+                session = sessionFactory.getInternalSession();
+                invalidationPipeline.register(this);
+                invalidationPipeline.registerAssignmentMatcher(this::holdsAssignment);
+                invalidationPipeline.start();
+            }
+
+            final Session jcrSession = getJcrSession(session);
+            jcrSession.refresh(false);
+            final Query query = jcrSession.getWorkspace().getQueryManager().createQuery(ASSIGNMENT_QUERY, JCR_SQL2);
+            int count = 0;
+            for (final NodeIterator nodes = query.execute().getNodes(); nodes.hasNext(); count++) {
+                indexNode(jcrSession, nodes.nextNode());
+            }
+            LOGGER.info("Indexed {} XACML policy assignments", count);
+        } catch (final RepositoryException e) {
+            throw new RepositoryRuntimeException("Unable to index XACML policy assignments", e);
+        }
+    }
+
+    private void indexNode(final Session session, final Node node) throws RepositoryException {
+        if (node.hasProperty(XACML_POLICY_PROPERTY)) {
+            final String policyPath = node.getProperty(XACML_POLICY_PROPERTY).getNode().getPath();
+            assign(PolicyUtil.toExpandedPath(node.getPath(), session), policyPath);
+        }
+    }
+
+    /**
+     * Apply a batch of repository changes: removed subtrees lose their assignments, moved subtrees are indexed
+     * again at their destinations and changed assignments are read again. An index that was cleared, or never
+     * built, is built from the repository instead.
+     */
+    @Override
+    public void invalidate(final Invalidation invalidation) {
+        if (invalidation.isAll()) {
+            clear();
+        }
+        synchronized (writeLock) {
+            if (!built) {
+                init();
+                return;
+            }
+            final Session jcrSession = getJcrSession(session);
+            try {
+                jcrSession.refresh(false);
+                for (final String path : invalidation.getRemovedPaths()) {
+                    removeSubtree(invalidation.getExpandedPath(path));
+                }
+                for (final String path : invalidation.getMovedPaths()) {
+                    reindexSubtree(jcrSession, path);
+                }
+                for (final String path : invalidation.getAssignmentNodes()) {
+                    unassign(invalidation.getExpandedPath(path));
+                    if (jcrSession.nodeExists(path)) {
+                        indexNode(jcrSession, jcrSession.getNode(path));
+                    }
+                }
+            } catch (final RepositoryException | RepositoryRuntimeException e) {
+                LOGGER.warn("Unable to apply policy assignment change, rebuilding index", e);
+                clear();
+                init();
+            }
+        }
+    }
+
+    /**
+     * Index a moved node and the assignments below it, querying for the assigned nodes rather than visiting every
+     * node of the subtree.
+     */
+    private void reindexSubtree(final Session jcrSession, final String path) throws RepositoryException {
+        if (!jcrSession.nodeExists(path)) {
+            return;
+        }
+        indexNode(jcrSession, jcrSession.getNode(path));
+        final Query query = jcrSession.getWorkspace().getQueryManager().createQuery(
+                String.format(SUBTREE_ASSIGNMENT_QUERY, path.replace("'", "''")), JCR_SQL2);
+        for (final NodeIterator nodes = query.execute().getNodes(); nodes.hasNext();) {
+            indexNode(jcrSession, nodes.nextNode());
+        }
+    }
+
+    private static String[] segments(final String path) {
+        if (path == null || path.isEmpty() || "/".equals(path)) {
+            return new String[0];
+        }
+        return (path.charAt(0) == '/' ? path.substring(1) : path).split("/");
+    }
+
+    private static String parentOf(final String[] segments) {
+        final StringBuilder parent = new StringBuilder();
+        for (int i = 0; i < segments.length - 1; i++) {
+            parent.append('/').append(segments[i]);
+        }
+        return parent.length() == 0 ? "/" : parent.toString();
+    }
+
+    /**
+     * A node of the path trie. Children are read without locking; writers hold the index write lock.
+     */
+    private static class TrieNode {
+
+        private final Map<String, TrieNode> children = new ConcurrentHashMap<>();
+
+        private volatile String policyPath;
+    }
+}
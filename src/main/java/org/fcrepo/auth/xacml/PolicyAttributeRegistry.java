@@ -0,0 +1,261 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Collections.emptySet;
+import static java.util.Collections.unmodifiableSet;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_RESOURCE_ID;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.ACTION_TARGET;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.ENVIRONMENT_TARGET;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.RESOURCE_TARGET;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.SUBJECT_TARGET;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.slf4j.Logger;
+import org.springframework.stereotype.Component;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Records which attributes the loaded policies actually refer to, by designator type. Caches and attribute finders
+ * use this to avoid computing or keying on attributes that no policy can observe.
+ *
+ * The registry also records how the policies look at the resource ID. When every use of the resource ID is a match
+ * of a literal value, two resource IDs that agree on every recorded match cannot be told apart by the policies,
+ * which lets checks on sibling properties share a decision.
+ *
+ * The generation is incremented whenever a previously unseen attribute or resource ID match is registered, so that
+ * anything derived from the registry can tell that it has become stale.
+ *
+ * @author agent
+ */
+@Component("policyAttributeRegistry")
+public class PolicyAttributeRegistry {
+
+    private static final Logger LOGGER = getLogger(PolicyAttributeRegistry.class);
+
+    private static final String[] DESIGNATOR_ELEMENTS = { "SubjectAttributeDesignator",
+        "ResourceAttributeDesignator", "ActionAttributeDesignator", "EnvironmentAttributeDesignator" };
+
+    private static final int[] DESIGNATOR_TYPES = { SUBJECT_TARGET, RESOURCE_TARGET, ACTION_TARGET,
+        ENVIRONMENT_TARGET };
+
+    /**
+     * The XACML regular expression functions, which all match the string form of their second argument.
+     */
+    private static final Set<String> REGEXP_MATCHES = new HashSet<>(Arrays.asList(
+            "urn:oasis:names:tc:xacml:1.0:function:regexp-string-match",
+            "urn:oasis:names:tc:xacml:2.0:function:anyURI-regexp-match",
+            "urn:oasis:names:tc:xacml:2.0:function:ipAddress-regexp-match",
+            "urn:oasis:names:tc:xacml:2.0:function:dnsName-regexp-match",
+            "urn:oasis:names:tc:xacml:2.0:function:rfc822Name-regexp-match",
+            "urn:oasis:names:tc:xacml:2.0:function:x500Name-regexp-match"));
+
+    private final Map<Integer, Set<URI>> referenced = new ConcurrentHashMap<>();
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private volatile boolean selectorsUsed = false;
+
+    private final Map<String, Predicate<String>> resourceIdMatches = new ConcurrentHashMap<>();
+
+    private final List<Predicate<String>> resourceIdPredicates = new CopyOnWriteArrayList<>();
+
+    private volatile boolean resourceIdOpaque = false;
+
+    /**
+     * Register the attributes designated anywhere in a policy document.
+     *
+     * @param policy the policy or policy set DOM
+     */
+    public void register(final Document policy) {
+        for (int i = 0; i < DESIGNATOR_ELEMENTS.length; i++) {
+            final NodeList designators = policy.getElementsByTagNameNS("*", DESIGNATOR_ELEMENTS[i]);
+            for (int j = 0; j < designators.getLength(); j++) {
+                final String id = ((Element) designators.item(j)).getAttribute("AttributeId");
+                if (!id.isEmpty()) {
+                    register(DESIGNATOR_TYPES[i], URI.create(id));
+                }
+            }
+        }
+        final NodeList resourceDesignators = policy.getElementsByTagNameNS("*", "ResourceAttributeDesignator");
+        for (int j = 0; j < resourceDesignators.getLength(); j++) {
+            final Element designator = (Element) resourceDesignators.item(j);
+            if (ATTRIBUTEID_RESOURCE_ID.toString().equals(designator.getAttribute("AttributeId"))) {
+                registerResourceIdMatch(designator);
+            }
+        }
+        if (!selectorsUsed && policy.getElementsByTagNameNS("*", "AttributeSelector").getLength() > 0) {
+            selectorsUsed = true;
+            generation.incrementAndGet();
+        }
+    }
+
+    /**
+     * Register a single designated attribute.
+     *
+     * @param designatorType the designator type, as defined by AttributeDesignator
+     * @param attributeId the attribute ID
+     */
+    public void register(final int designatorType, final URI attributeId) {
+        if (referenced.computeIfAbsent(designatorType, t -> ConcurrentHashMap.newKeySet()).add(attributeId)) {
+            LOGGER.debug("Policies now reference attribute {} of designator type {}", attributeId, designatorType);
+            generation.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record the match a resource ID designator takes part in, or that its use cannot be recorded.
+     */
+    private void registerResourceIdMatch(final Element designator) {
+        final Predicate<String> predicate = resourceIdMatch(designator);
+        if (predicate == null) {
+            if (!resourceIdOpaque) {
+                LOGGER.debug("Policies use the resource ID in a way that property checks cannot be folded around");
+                resourceIdOpaque = true;
+                generation.incrementAndGet();
+            }
+            return;
+        }
+        final Node match = designator.getParentNode();
+        final String key = ((Element) match).getAttribute("MatchId") + " " + literal(match);
+        if (resourceIdMatches.putIfAbsent(key, predicate) == null) {
+            resourceIdPredicates.add(predicate);
+            generation.incrementAndGet();
+        }
+    }
+
+    /**
+     * Build a predicate equivalent to the ResourceMatch around a resource ID designator, if it compares the
+     * resource ID to a literal value in a known way.
+     */
+    private static Predicate<String> resourceIdMatch(final Element designator) {
+        final Node parent = designator.getParentNode();
+        if (!(parent instanceof Element) || !"ResourceMatch".equals(parent.getLocalName())) {
+            return null;
+        }
+        final String value = literal(parent);
+        if (value == null) {
+            return null;
+        }
+        final String matchId = ((Element) parent).getAttribute("MatchId");
+        if (matchId.endsWith(":string-equal") || matchId.endsWith(":anyURI-equal")) {
+            return value::equals;
+        }
+        if (REGEXP_MATCHES.contains(matchId)) {
+            try {
+                // Unanchored, as in the XACML regular expression functions
+                final Pattern pattern = Pattern.compile(value);
+                return resourceId -> pattern.matcher(resourceId).find();
+            } catch (final PatternSyntaxException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the text of the AttributeValue of a match, or null if it has none
+     */
+    private static String literal(final Node match) {
+        for (Node child = match.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child instanceof Element && "AttributeValue".equals(child.getLocalName())) {
+                return child.getTextContent();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param designatorType the designator type, as defined by AttributeDesignator
+     * @param attributeId the attribute ID
+     * @return whether any loaded policy designates the attribute
+     */
+    public boolean isReferenced(final int designatorType, final URI attributeId) {
+        return getReferenced(designatorType).contains(attributeId);
+    }
+
+    /**
+     * @param attributeId the attribute ID
+     * @return whether any loaded policy designates the attribute, with any designator type
+     */
+    public boolean isReferenced(final URI attributeId) {
+        for (final int type : DESIGNATOR_TYPES) {
+            if (isReferenced(type, attributeId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param designatorType the designator type, as defined by AttributeDesignator
+     * @return the attribute IDs designated with that type
+     */
+    public Set<URI> getReferenced(final int designatorType) {
+        final Set<URI> ids = referenced.get(designatorType);
+        return ids == null ? emptySet() : unmodifiableSet(ids);
+    }
+
+    /**
+     * @return whether any loaded policy uses an AttributeSelector, whose inputs cannot be known in advance
+     */
+    public boolean usesSelectors() {
+        return selectorsUsed;
+    }
+
+    /**
+     * Get what the policies can observe of a resource ID: which of the recorded resource ID matches it satisfies.
+     *
+     * @param resourceId the resource ID
+     * @return the signature, equal for resource IDs that no policy can tell apart, or null if a policy uses the
+     *         resource ID in a way that is not recorded
+     */
+    public String getResourceIdSignature(final String resourceId) {
+        if (resourceIdOpaque || selectorsUsed) {
+            return null;
+        }
+        final StringBuilder signature = new StringBuilder(resourceIdPredicates.size());
+        for (final Predicate<String> predicate : resourceIdPredicates) {
+            signature.append(predicate.test(resourceId) ? '1' : '0');
+        }
+        return signature.toString();
+    }
+
+    /**
+     * @return a counter that changes whenever a new attribute becomes referenced
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.net.URI;
+import java.util.function.Function;
+
+import org.fcrepo.kernel.api.models.FedoraBinary;
+import org.jboss.security.xacml.sunxacml.AbstractPolicy;
+import org.slf4j.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * A bounded, thread-safe cache of parsed policies. Entries are keyed by the repository path of the policy binary
+ * together with its content digest (or its last-modified date when no digest is recorded), so a rewritten binary is
+ * simply a cache miss.
+ *
+ * @author agent
+ */
+public class PolicyCache {
+
+    private static final Logger LOGGER = getLogger(PolicyCache.class);
+
+    /**
+     * Default maximum number of parsed policies held in the cache.
+     */
+    public static final long DEFAULT_MAXIMUM_SIZE = 500;
+
+    private static final char VERSION_SEPARATOR = '@';
+
+    private final Cache<String, AbstractPolicy> cache;
+
+    /**
+     * Constructor
+     *
+     * @param maximumSize the maximum number of parsed policies to retain
+     */
+    public PolicyCache(final long maximumSize) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+    }
+
+    /**
+     * Get the parsed policy for a binary, parsing it with the given loader on a miss. Loader failures (a null
+     * policy) are not cached.
+     *
+     * @param policyBinary the policy binary
+     * @param loader parses the binary into a policy, or returns null
+     * @return the parsed policy, or null if it could not be parsed
+     */
+    public AbstractPolicy get(final FedoraBinary policyBinary,
+                              final Function<FedoraBinary, AbstractPolicy> loader) {
+        final String key = keyFor(policyBinary);
+        if (key == null) {
+            LOGGER.debug("No version available for policy binary, not caching it");
+            return loader.apply(policyBinary);
+        }
+
+        final AbstractPolicy cached = cache.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        final AbstractPolicy policy = loader.apply(policyBinary);
+        if (policy != null) {
+            cache.put(key, policy);
+        }
+        return policy;
+    }
+
+    /**
+     * Drop every version of the policy stored at the given path.
+     *
+     * @param path the repository path of the policy binary
+     */
+    public void invalidate(final String path) {
+        final String prefix = path + VERSION_SEPARATOR;
+        cache.asMap().keySet().removeIf(k -> k.startsWith(prefix));
+    }
+
+    /**
+     * Tell whether a repository path holds a cached policy, or lies within one.
+     *
+     * @param path a repository path
+     * @return whether a cached policy is stored at or above the path
+     */
+    public boolean containsPath(final String path) {
+        for (final String key : cache.asMap().keySet()) {
+            final String policyPath = key.substring(0, key.lastIndexOf(VERSION_SEPARATOR));
+            if (path.equals(policyPath) || path.startsWith(policyPath + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drop all cached policies.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * @return the hit, miss and eviction counts of the cache
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    /**
+     * @return the number of parsed policies currently cached
+     */
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * Build the cache key for a policy binary.
+     *
+     * @param policyBinary the policy binary
+     * @return the key, or null if the binary has neither a path nor a version
+     */
+    static String keyFor(final FedoraBinary policyBinary) {
+        final String path = policyBinary.getPath();
+        if (path == null) {
+            return null;
+        }
+        final URI digest = policyBinary.getContentDigest();
+        final Object version = digest != null ? digest : policyBinary.getLastModifiedDate();
+        if (version == null) {
+            return null;
+        }
+        return path + VERSION_SEPARATOR + version;
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static org.fcrepo.auth.xacml.URIConstants.POLICY_URI_PREFIX;
+import static org.jboss.security.xacml.sunxacml.PolicyReference.POLICYSET_REFERENCE;
+import static org.jboss.security.xacml.sunxacml.PolicyReference.POLICY_REFERENCE;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.jboss.security.xacml.sunxacml.AbstractPolicy;
+import org.jboss.security.xacml.sunxacml.Policy;
+import org.jboss.security.xacml.sunxacml.PolicyReference;
+import org.jboss.security.xacml.sunxacml.PolicySet;
+import org.jboss.security.xacml.sunxacml.combine.PolicyCombinerElement;
+import org.jboss.security.xacml.sunxacml.combine.PolicyCombiningAlgorithm;
+import org.slf4j.Logger;
+
+/**
+ * Resolves the policy set references of parsed policies once, producing linked policy trees in which every
+ * resolvable <code>PolicySetIdReference</code> and <code>PolicyIdReference</code> is replaced by the policy it
+ * refers to. Evaluating a linked tree does not go back to the repository for referenced policies.
+ *
+ * Linked trees are kept until the policy at their root, or any policy they contain, is invalidated; only those
+ * trees are relinked, reusing every unaffected subtree. References that cannot be resolved are reported when the
+ * tree is linked and left in place. References that would close a cycle are also reported and left in place, and
+ * the policies on the cycle are marked so that resolving them by reference fails instead of recursing forever.
+ *
+ * @author agent
+ */
+public class PolicyLinker {
+
+    private static final Logger LOGGER = getLogger(PolicyLinker.class);
+
+    private final Function<String, AbstractPolicy> loader;
+
+    private final Map<String, AbstractPolicy> linked = new ConcurrentHashMap<>();
+
+    private final Map<String, Set<String>> dependents = new ConcurrentHashMap<>();
+
+    private final Map<String, Set<String>> missing = new ConcurrentHashMap<>();
+
+    private final Set<String> cyclic = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Constructor
+     *
+     * @param loader parses the policy stored at a repository path, or returns null if there is none
+     */
+    public PolicyLinker(final Function<String, AbstractPolicy> loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Get the linked policy stored at a repository path, linking it if necessary.
+     *
+     * @param path the repository path of the policy
+     * @return the linked policy, or null if there is no policy at the path
+     */
+    public AbstractPolicy get(final String path) {
+        final AbstractPolicy policy = linked.get(path);
+        if (policy != null) {
+            return policy;
+        }
+        synchronized (this) {
+            return link(path, new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * @param path the repository path of a policy
+     * @return whether the policy refers, directly or not, to itself
+     */
+    public boolean isCyclic(final String path) {
+        return cyclic.contains(path);
+    }
+
+    /**
+     * @param path a repository path
+     * @return whether the path is, or lies within, a linked policy
+     */
+    public boolean containsPath(final String path) {
+        for (final String policyPath : knownPaths()) {
+            if (path.equals(policyPath) || path.startsWith(policyPath + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param path a repository path
+     * @return whether a change at the path would drop a linked policy: the path is at, above or below one
+     */
+    public boolean affects(final String path) {
+        for (final String policyPath : knownPaths()) {
+            if (overlaps(path, policyPath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the policy IDs that were referenced but could not be resolved
+     */
+    public Set<String> getMissingReferences() {
+        final Set<String> ids = new TreeSet<>();
+        missing.values().forEach(ids::addAll);
+        return Collections.unmodifiableSet(ids);
+    }
+
+    /**
+     * Drop the linked policies at, above or below a path, and every linked policy that contains them, so that they
+     * are relinked on next use.
+     *
+     * @param path a repository path
+     */
+    public synchronized void invalidate(final String path) {
+        final Deque<String> affected = new ArrayDeque<>();
+        for (final String policyPath : knownPaths()) {
+            if (overlaps(path, policyPath)) {
+                affected.push(policyPath);
+            }
+        }
+        if (affected.isEmpty()) {
+            return;
+        }
+        final Set<String> seen = new HashSet<>();
+        while (!affected.isEmpty()) {
+            final String current = affected.pop();
+            if (seen.add(current)) {
+                linked.remove(current);
+                cyclic.remove(current);
+                missing.remove(current);
+                affected.addAll(dependents.getOrDefault(current, Collections.emptySet()));
+            }
+        }
+        LOGGER.debug("Invalidated linked policies {}", seen);
+    }
+
+    /**
+     * Drop all linked policies.
+     */
+    public synchronized void invalidateAll() {
+        linked.clear();
+        dependents.clear();
+        missing.clear();
+        cyclic.clear();
+    }
+
+    private static boolean overlaps(final String path, final String policyPath) {
+        final String prefix = "/".equals(path) ? path : path + "/";
+        return policyPath.startsWith(prefix) || path.equals(policyPath) || path.startsWith(policyPath + "/");
+    }
+
+    private void reportMissing(final String path, final String id) {
+        missing.computeIfAbsent(path, p -> ConcurrentHashMap.newKeySet()).add(id);
+    }
+
+    private Set<String> knownPaths() {
+        final Set<String> paths = new HashSet<>(linked.keySet());
+        paths.addAll(dependents.keySet());
+        return paths;
+    }
+
+    /**
+     * Link a policy depth-first. The stack holds the paths of the policies being linked above this one.
+     */
+    private AbstractPolicy link(final String path, final Deque<String> stack) {
+        final AbstractPolicy existing = linked.get(path);
+        if (existing != null) {
+            return existing;
+        }
+
+        final AbstractPolicy policy = loader.apply(path);
+        if (policy == null) {
+            return null;
+        }
+        if (!(policy instanceof PolicySet)) {
+            linked.put(path, policy);
+            return policy;
+        }
+
+        stack.push(path);
+        boolean changed = false;
+        final List<PolicyCombinerElement> elements = new ArrayList<>();
+        for (final Object element : policy.getChildElements()) {
+            final PolicyCombinerElement combinerElement = (PolicyCombinerElement) element;
+            final AbstractPolicy child = combinerElement.getPolicy();
+            final AbstractPolicy resolved = child instanceof PolicyReference ?
+                    resolve(path, (PolicyReference) child, stack) : null;
+            if (resolved != null) {
+                elements.add(new PolicyCombinerElement(resolved, combinerElement.getParameters()));
+                changed = true;
+            } else {
+                elements.add(combinerElement);
+            }
+        }
+        stack.pop();
+
+        final AbstractPolicy result = changed ? new PolicySet(policy.getId(), policy.getVersion(),
+                (PolicyCombiningAlgorithm) policy.getCombiningAlg(), policy.getDescription(), policy.getTarget(),
+                elements, policy.getDefaultVersion(), policy.getObligations(), policy.getCombiningParameters())
+                : policy;
+        linked.put(path, result);
+        return result;
+    }
+
+    /**
+     * Resolve a reference made by the policy at a path, or return null to leave it in place.
+     */
+    private AbstractPolicy resolve(final String path, final PolicyReference reference, final Deque<String> stack) {
+        final String id = reference.getReference().toString();
+        if (!id.startsWith(POLICY_URI_PREFIX)) {
+            LOGGER.warn("Policy {} refers to {}, which is not a repository policy and is left unresolved", path, id);
+            reportMissing(path, id);
+            return null;
+        }
+
+        final String targetPath = PolicyUtil.getPathForId(id);
+        dependents.computeIfAbsent(targetPath, p -> ConcurrentHashMap.newKeySet()).add(path);
+
+        if (stack.contains(targetPath)) {
+            LOGGER.error("Policy {} refers to {}, which closes a reference cycle through {}", path, id, stack);
+            for (final String onCycle : stack) {
+                cyclic.add(onCycle);
+                if (onCycle.equals(targetPath)) {
+                    break;
+                }
+            }
+            return null;
+        }
+
+        final AbstractPolicy target = link(targetPath, stack);
+        if (target == null) {
+            LOGGER.error("Policy {} refers to {}, which does not exist", path, id);
+            reportMissing(path, id);
+            return null;
+        }
+
+        final boolean typeMatches = reference.getReferenceType() == POLICYSET_REFERENCE ?
+                target instanceof PolicySet : reference.getReferenceType() == POLICY_REFERENCE &&
+                target instanceof Policy;
+        if (!typeMatches) {
+            LOGGER.error("Policy {} refers to {}, which is not of the referenced type", path, id);
+            reportMissing(path, id);
+            return null;
+        }
+        return target;
+    }
+}
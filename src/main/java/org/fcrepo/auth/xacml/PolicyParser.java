@@ -0,0 +1,186 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.springframework.stereotype.Component;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * Parses XACML policy documents. Document builders are created once per thread and reset between documents,
+ * rather than looking up and configuring a factory for every parse, and policy IDs are read by a streaming scan of
+ * the root element without building a DOM.
+ *
+ * The number of documents parsed and scanned, and the time spent doing so, are recorded for monitoring.
+ *
+ * @author agent
+ */
+@Component("policyParser")
+public class PolicyParser {
+
+    private static final Logger LOGGER = getLogger(PolicyParser.class);
+
+    private static final DocumentBuilderFactory BUILDER_FACTORY = DocumentBuilderFactory.newInstance();
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        BUILDER_FACTORY.setIgnoringComments(true);
+        BUILDER_FACTORY.setNamespaceAware(true);
+        BUILDER_FACTORY.setValidating(false);
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private static final ThreadLocal<DocumentBuilder> BUILDERS = ThreadLocal.withInitial(() -> {
+        synchronized (BUILDER_FACTORY) {
+            try {
+                return BUILDER_FACTORY.newDocumentBuilder();
+            } catch (final ParserConfigurationException e) {
+                throw new Error("Unable to create a policy document builder", e);
+            }
+        }
+    });
+
+    private final LongAdder parseCount = new LongAdder();
+
+    private final LongAdder parseNanos = new LongAdder();
+
+    private final LongAdder scanCount = new LongAdder();
+
+    private final LongAdder scanNanos = new LongAdder();
+
+    /**
+     * Parse a policy document.
+     *
+     * @param policyStream the policy input, which is not closed
+     * @return the DOM
+     * @throws SAXException if the document is not well-formed
+     * @throws IOException if the document cannot be read
+     */
+    public Document parse(final InputStream policyStream) throws SAXException, IOException {
+        final long start = System.nanoTime();
+        final DocumentBuilder builder = BUILDERS.get();
+        try {
+            return builder.parse(policyStream);
+        } finally {
+            builder.reset();
+            final long elapsed = System.nanoTime() - start;
+            parseCount.increment();
+            parseNanos.add(elapsed);
+            LOGGER.debug("Parsed policy document in {} microseconds", TimeUnit.NANOSECONDS.toMicros(elapsed));
+        }
+    }
+
+    /**
+     * Create an empty document, for building a policy DOM without parsing.
+     *
+     * @return the document
+     */
+    public Document newDocument() {
+        return BUILDERS.get().newDocument();
+    }
+
+    /**
+     * Read the policy set or policy ID of a document from its root element, without parsing the rest of it.
+     *
+     * @param policyStream the policy input, which is not closed
+     * @return the ID, or null if the root element is neither a Policy nor a PolicySet
+     * @throws XMLStreamException if the document is not well-formed
+     */
+    public String getID(final InputStream policyStream) throws XMLStreamException {
+        final long start = System.nanoTime();
+        try {
+            return readID(policyStream);
+        } finally {
+            scanCount.increment();
+            scanNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return the number of policy documents parsed
+     */
+    public long getParseCount() {
+        return parseCount.sum();
+    }
+
+    /**
+     * @return the total time spent parsing policy documents, in nanoseconds
+     */
+    public long getParseTimeNanos() {
+        return parseNanos.sum();
+    }
+
+    /**
+     * @return the number of policy documents scanned for their ID
+     */
+    public long getScanCount() {
+        return scanCount.sum();
+    }
+
+    /**
+     * @return the total time spent scanning policy documents for their ID, in nanoseconds
+     */
+    public long getScanTimeNanos() {
+        return scanNanos.sum();
+    }
+
+    /**
+     * Read the policy set or policy ID from the root element of a document.
+     *
+     * @param policyStream the policy input, which is not closed
+     * @return the ID, or null if the root element is neither a Policy nor a PolicySet
+     * @throws XMLStreamException if the document is not well-formed
+     */
+    private static String readID(final InputStream policyStream) throws XMLStreamException {
+        final XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(policyStream);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == START_ELEMENT) {
+                    final String name = reader.getLocalName();
+                    if (name.equals("Policy")) {
+                        return reader.getAttributeValue(null, "PolicyId");
+                    } else if (name.equals("PolicySet")) {
+                        return reader.getAttributeValue(null, "PolicySetId");
+                    }
+                    return null;
+                }
+            }
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+}
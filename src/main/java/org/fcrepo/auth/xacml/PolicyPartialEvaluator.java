@@ -0,0 +1,189 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Arrays.asList;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_SUBJECT_ID;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_GROUP;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_ROLE;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.SUBJECT_TARGET;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jboss.security.xacml.sunxacml.AbstractPolicy;
+import org.jboss.security.xacml.sunxacml.EvaluationCtx;
+import org.jboss.security.xacml.sunxacml.MatchResult;
+import org.jboss.security.xacml.sunxacml.Policy;
+import org.jboss.security.xacml.sunxacml.PolicyMetaData;
+import org.jboss.security.xacml.sunxacml.PolicyReference;
+import org.jboss.security.xacml.sunxacml.PolicySet;
+import org.jboss.security.xacml.sunxacml.Rule;
+import org.jboss.security.xacml.sunxacml.Target;
+import org.jboss.security.xacml.sunxacml.TargetMatch;
+import org.jboss.security.xacml.sunxacml.TargetSection;
+import org.jboss.security.xacml.sunxacml.combine.CombiningAlgorithm;
+import org.jboss.security.xacml.sunxacml.combine.PolicyCombinerElement;
+import org.jboss.security.xacml.sunxacml.combine.PolicyCombiningAlgorithm;
+import org.jboss.security.xacml.sunxacml.combine.RuleCombinerElement;
+import org.jboss.security.xacml.sunxacml.combine.RuleCombiningAlgorithm;
+
+/**
+ * Partially evaluates linked policy trees against the subject of a request. The <code>Subjects</code> section of
+ * every policy, policy set and rule target is matched once: a section the subject matches is replaced by one that
+ * matches any subject, and a policy, policy set or rule whose section the subject cannot match is dropped, since it
+ * could only ever be not applicable. What remains, the residual, depends only on the resource, the action and the
+ * environment, and decides every request of the subject as the whole tree would.
+ *
+ * Conditions, unresolved references and sections whose match is indeterminate are left as they are, and children
+ * are only dropped under the standard combining algorithms, which pass over children that are not applicable.
+ *
+ * @author agent
+ */
+public final class PolicyPartialEvaluator {
+
+    private static final Set<URI> SUBJECT_ATTRIBUTES = new HashSet<>(asList(ATTRIBUTEID_SUBJECT_ID,
+            FCREPO_SUBJECT_ROLE, FCREPO_SUBJECT_GROUP));
+
+    private static final Set<String> SKIPPING_ALGORITHMS = new HashSet<>();
+
+    static {
+        for (final String kind : new String[] { "rule", "policy" }) {
+            for (final String name : new String[] { "deny-overrides", "permit-overrides", "first-applicable",
+                "only-one-applicable" }) {
+                SKIPPING_ALGORITHMS.add("urn:oasis:names:tc:xacml:1.0:" + kind + "-combining-algorithm:" + name);
+            }
+            for (final String name : new String[] { "ordered-deny-overrides", "ordered-permit-overrides" }) {
+                SKIPPING_ALGORITHMS.add("urn:oasis:names:tc:xacml:1.1:" + kind + "-combining-algorithm:" + name);
+            }
+        }
+    }
+
+    private static final TargetSection ANY_SUBJECT = new TargetSection(null, TargetMatch.SUBJECT,
+            PolicyMetaData.XACML_VERSION_2_0);
+
+    private PolicyPartialEvaluator() {
+    }
+
+    /**
+     * Tell whether the loaded policies can be partially evaluated: they designate no subject attributes other than
+     * the ones every request carries, and use no attribute selectors, so a subject section reads nothing that can
+     * change from one request of the subject to the next.
+     *
+     * @param registry the attributes referenced by the loaded policies
+     * @return whether residuals are sound
+     */
+    public static boolean canEvaluate(final PolicyAttributeRegistry registry) {
+        return !registry.usesSelectors() && SUBJECT_ATTRIBUTES.containsAll(registry.getReferenced(SUBJECT_TARGET));
+    }
+
+    /**
+     * Get the residual of a policy for a subject.
+     *
+     * @param policy the linked policy or policy set
+     * @param context the context of any request of the subject
+     * @return the residual, the policy itself if nothing could be folded, or null if the policy cannot apply to
+     *         the subject
+     */
+    public static AbstractPolicy evaluate(final AbstractPolicy policy, final EvaluationCtx context) {
+        if (!(policy instanceof Policy) && !(policy instanceof PolicySet)) {
+            return policy;
+        }
+        final int match = matchSubjects(policy.getTarget(), context);
+        if (match == MatchResult.NO_MATCH) {
+            return null;
+        }
+        final Target target = match == MatchResult.MATCH ? withAnySubject(policy.getTarget()) : policy.getTarget();
+        boolean changed = target != policy.getTarget();
+        final boolean skipping = skipsNotApplicable(policy.getCombiningAlg());
+
+        if (policy instanceof PolicySet) {
+            final List<PolicyCombinerElement> elements = new ArrayList<>();
+            for (final Object element : policy.getChildElements()) {
+                final PolicyCombinerElement combinerElement = (PolicyCombinerElement) element;
+                final AbstractPolicy child = combinerElement.getPolicy();
+                final AbstractPolicy residual = child instanceof PolicyReference ? child : evaluate(child, context);
+                if (residual == null && skipping) {
+                    changed = true;
+                } else if (residual == null || residual == child) {
+                    elements.add(combinerElement);
+                } else {
+                    elements.add(new PolicyCombinerElement(residual, combinerElement.getParameters()));
+                    changed = true;
+                }
+            }
+            return changed ? new PolicySet(policy.getId(), policy.getVersion(),
+                    (PolicyCombiningAlgorithm) policy.getCombiningAlg(), policy.getDescription(), target, elements,
+                    policy.getDefaultVersion(), policy.getObligations(), policy.getCombiningParameters()) : policy;
+        }
+
+        final List<RuleCombinerElement> elements = new ArrayList<>();
+        for (final Object element : policy.getChildElements()) {
+            final RuleCombinerElement combinerElement = (RuleCombinerElement) element;
+            final Rule rule = combinerElement.getRule();
+            final int ruleMatch = matchSubjects(rule.getTarget(), context);
+            final Target ruleTarget = ruleMatch == MatchResult.MATCH ? withAnySubject(rule.getTarget()) :
+                    rule.getTarget();
+            if (ruleMatch == MatchResult.NO_MATCH && skipping) {
+                changed = true;
+            } else if (ruleTarget == rule.getTarget()) {
+                elements.add(combinerElement);
+            } else {
+                elements.add(new RuleCombinerElement(new Rule(rule.getId(), rule.getEffect(), rule.getDescription(),
+                        ruleTarget, rule.getCondition()), combinerElement.getParameters()));
+                changed = true;
+            }
+        }
+        return changed ? new Policy(policy.getId(), policy.getVersion(),
+                (RuleCombiningAlgorithm) policy.getCombiningAlg(), policy.getDescription(), target,
+                policy.getDefaultVersion(), elements, policy.getObligations(), policy.getCombiningParameters()) :
+                policy;
+    }
+
+    /**
+     * @return the match of the subjects section of a target, where a missing target matches anything
+     */
+    private static int matchSubjects(final Target target, final EvaluationCtx context) {
+        if (target == null || target.getSubjectsSection().matchesAny()) {
+            return MatchResult.MATCH;
+        }
+        return target.getSubjectsSection().match(context).getResult();
+    }
+
+    /**
+     * @return the target with a subjects section that matches any subject, or the target itself if it has one
+     */
+    private static Target withAnySubject(final Target target) {
+        if (target == null || target.getSubjectsSection().matchesAny()) {
+            return target;
+        }
+        return new Target(ANY_SUBJECT, target.getResourcesSection(), target.getActionsSection(),
+                target.getEnvironmentsSection());
+    }
+
+    /**
+     * @return whether a combining algorithm is one of the standard ones, which pass over children that are not
+     *         applicable, so that leaving such children out does not change its result
+     */
+    static boolean skipsNotApplicable(final CombiningAlgorithm algorithm) {
+        return algorithm != null && SKIPPING_ALGORITHMS.contains(algorithm.getIdentifier().toString());
+    }
+}
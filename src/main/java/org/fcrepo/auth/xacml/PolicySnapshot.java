@@ -0,0 +1,114 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.unmodifiableMap;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jboss.security.xacml.sunxacml.AbstractPolicy;
+
+/**
+ * An immutable view of every policy assignment and every linked policy they name. Evaluating threads read the
+ * current snapshot without locks and without a repository session; a changed policy or assignment produces a new
+ * snapshot that replaces the old one as a whole.
+ *
+ * @author agent
+ */
+public final class PolicySnapshot {
+
+    /**
+     * The snapshot of a repository without assignments.
+     */
+    public static final PolicySnapshot EMPTY = new PolicySnapshot(emptyMap(), emptyMap(), 0);
+
+    private final Map<String, String> assignments;
+
+    private final Map<String, AbstractPolicy> policies;
+
+    private final long generation;
+
+    /**
+     * Constructor
+     *
+     * @param assignments the repository path of the assigned policy, by expanded node path
+     * @param policies the linked policies, by repository path
+     * @param generation the policy generation the snapshot was built at
+     */
+    public PolicySnapshot(final Map<String, String> assignments, final Map<String, AbstractPolicy> policies,
+                          final long generation) {
+        this.assignments = unmodifiableMap(new HashMap<>(assignments));
+        this.policies = unmodifiableMap(new HashMap<>(policies));
+        this.generation = generation;
+    }
+
+    /**
+     * Find the policy that is effective for a node or property path: the policy assigned to the path itself or to
+     * its nearest ancestor.
+     *
+     * @param path the node or property path, in expanded form
+     * @return the repository path of the effective policy, or null if no assignment applies
+     */
+    public String findEffectivePolicy(final String path) {
+        // Namespaces may contain slashes, so some prefixes tried are not node paths; they simply do not match
+        String current = path;
+        while (true) {
+            final String policyPath = assignments.get(current);
+            if (policyPath != null) {
+                return policyPath;
+            }
+            final int slash = current.lastIndexOf('/');
+            if (slash <= 0) {
+                break;
+            }
+            current = current.substring(0, slash);
+        }
+        return assignments.get("/");
+    }
+
+    /**
+     * @param policyPath the repository path of a policy
+     * @return the linked policy, or null if it is not part of the snapshot
+     */
+    public AbstractPolicy getPolicy(final String policyPath) {
+        return policies.get(policyPath);
+    }
+
+    /**
+     * @return the linked policies, by repository path
+     */
+    public Map<String, AbstractPolicy> getPolicies() {
+        return policies;
+    }
+
+    /**
+     * @return the policy assignments, by expanded node path
+     */
+    public Map<String, String> getAssignments() {
+        return assignments;
+    }
+
+    /**
+     * @return the policy generation the snapshot was built at
+     */
+    public long getGeneration() {
+        return generation;
+    }
+}
@@ -26,11 +26,12 @@ import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 
 import org.jboss.security.xacml.sunxacml.EvaluationCtx;
+import org.jboss.security.xacml.sunxacml.attr.AnyURIAttribute;
+import org.jboss.security.xacml.sunxacml.attr.AttributeFactory;
 import org.jboss.security.xacml.sunxacml.attr.AttributeValue;
+import org.jboss.security.xacml.sunxacml.attr.StringAttribute;
 import org.jboss.security.xacml.sunxacml.cond.EvaluationResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,25 +51,16 @@ public class PolicyUtil {
     }
 
     /**
-     * Extract a policy set or policy ID for the document.
+     * Extract a policy set or policy ID for the document, with the shared parser, which counts the scan.
      *
+     * @param parser the policy parser
      * @param policyStream the policy input
      * @return an identifier
      */
-    public static String getID(final InputStream policyStream) {
+    public static String getID(final PolicyParser parser, final InputStream policyStream) {
         try {
-            // create the factory
-            final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setIgnoringComments(true);
-
-            factory.setNamespaceAware(true);
-            factory.setValidating(false);
-            final DocumentBuilder db = factory.newDocumentBuilder();
-
-            // Parse the policy content
-            final Document doc = db.parse(policyStream);
-
-            final String result = getID(doc);
+            // Only the root element is read
+            final String result = parser.getID(policyStream);
             if (result == null) {
                 throw new Error("Cannot find policy ID");
             }
@@ -139,6 +131,106 @@ public class PolicyUtil {
         return node;
     }
 
+    /**
+     * Convert a JCR path with prefixed names into the expanded <code>/{namespace}local</code> form that ModeShape
+     * uses for the paths given to the authorization delegate.
+     *
+     * @param jcrPath the path, with prefixed names
+     * @param session a session, for resolving namespace prefixes
+     * @return the path with expanded names
+     * @throws RepositoryException if a prefix cannot be resolved
+     */
+    public static String toExpandedPath(final String jcrPath, final Session session) throws RepositoryException {
+        if ("/".equals(jcrPath)) {
+            return jcrPath;
+        }
+        final StringBuilder expanded = new StringBuilder();
+        for (final String segment : jcrPath.substring(1).split("/")) {
+            final int index = segment.indexOf('[');
+            final String name = index > -1 ? segment.substring(0, index) : segment;
+            expanded.append('/');
+            if (name.startsWith("{")) {
+                expanded.append(name);
+                continue;
+            }
+            final int colon = name.indexOf(':');
+            if (colon > -1) {
+                expanded.append('{').append(session.getNamespaceURI(name.substring(0, colon))).append('}')
+                        .append(name.substring(colon + 1));
+            } else {
+                expanded.append("{}").append(name);
+            }
+        }
+        return expanded.toString();
+    }
+
+    /**
+     * Get the path of the node whose properties describe the resource being acted on: the resource itself, or for
+     * the set_property and add_node actions its parent node.
+     *
+     * @param context the evaluation context
+     * @return the node path, or null if the context has no resource-id
+     */
+    public static String getResourceNodePath(final EvaluationCtx context) {
+        final EvaluationResult ridEvalRes =
+                context.getResourceAttribute(URI.create("http://www.w3.org/2001/XMLSchema#string"),
+                        URIConstants.ATTRIBUTEID_RESOURCE_ID, null);
+        final AttributeValue resourceIdAttValue = ridEvalRes.getAttributeValue();
+        if (resourceIdAttValue.getValue().toString().isEmpty()) {
+            return null;
+        }
+
+        String resourceId = (String) resourceIdAttValue.getValue();
+
+        // if dealing with set_property action, use parent node for triples
+        final Set<String> actions = getActions(context);
+        if (actions.contains("set_property") || actions.contains("add_node")) {
+            final int index = resourceId.lastIndexOf("/{");
+            if (index > -1) {
+                resourceId = resourceId.substring(0, index);
+            }
+
+            if (resourceId.isEmpty()) {
+                resourceId = "/";
+            }
+        }
+        return resourceId;
+    }
+
+    /**
+     * Convert an RDF property value to an attribute value of the requested type. URI and literal values are
+     * converted through their lexical form.
+     *
+     * @param attributeType the requested data type
+     * @param value a URI or literal node
+     * @return the attribute value, or null if the value cannot be expressed in the requested type
+     */
+    public static AttributeValue toAttributeValue(final URI attributeType,
+                                                  final org.apache.jena.graph.Node value) {
+        final String lexical;
+        if (value.isURI()) {
+            lexical = value.getURI();
+        } else if (value.isLiteral()) {
+            lexical = value.getLiteralLexicalForm();
+        } else {
+            LOGGER.debug("Ignoring blank node property value: {}", value);
+            return null;
+        }
+
+        final String type = attributeType.toString();
+        try {
+            if (AnyURIAttribute.identifier.equals(type)) {
+                return new AnyURIAttribute(URI.create(lexical));
+            } else if (StringAttribute.identifier.equals(type)) {
+                return new StringAttribute(lexical);
+            }
+            return AttributeFactory.getInstance().createValue(attributeType, lexical);
+        } catch (final Exception e) {
+            LOGGER.debug("Ignoring property value {} that is not a valid {}: {}", value, type, e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * Get the action ids.
      *
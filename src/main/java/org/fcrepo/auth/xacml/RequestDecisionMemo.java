@@ -0,0 +1,153 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Arrays.asList;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Session;
+
+import org.slf4j.Logger;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Remembers the decisions made for a session, so that the permission checks ModeShape repeats while serving one
+ * request, for the same node and for each of its properties, are evaluated once. Fedora opens a session for every
+ * request, so the memo lives exactly as long as the request; it is held weakly and dropped with the session.
+ *
+ * Every batch of repository changes from the {@link InvalidationPipeline} makes the remembered decisions stale, so
+ * a request that changes the repository does not reuse a decision made before the change was applied.
+ *
+ * @author agent
+ */
+public class RequestDecisionMemo implements InvalidationTarget {
+
+    private static final Logger LOGGER = getLogger(RequestDecisionMemo.class);
+
+    private final int maximumDecisions;
+
+    private final Map<Session, Decisions> sessions =
+            CacheBuilder.newBuilder().weakKeys().<Session, Decisions>build().asMap();
+
+    private final AtomicLong epoch = new AtomicLong();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param maximumDecisions the most decisions remembered for one session
+     */
+    public RequestDecisionMemo(final int maximumDecisions) {
+        this.maximumDecisions = maximumDecisions;
+    }
+
+    /**
+     * @param session the session of the request
+     * @param path the node or property path
+     * @param actions the actions requested
+     * @param roles the effective roles
+     * @return the decision already made for the same check in the session, or null
+     */
+    public Boolean get(final Session session, final String path, final String[] actions, final Set<String> roles) {
+        final Decisions decisions = sessions.get(session);
+        final Boolean permit = decisions == null || decisions.epoch != epoch.get() ? null :
+                decisions.permits.get(key(path, actions, roles));
+        if (permit == null) {
+            missCount.incrementAndGet();
+        } else {
+            hitCount.incrementAndGet();
+        }
+        return permit;
+    }
+
+    /**
+     * Remember a decision for the rest of the session.
+     *
+     * @param session the session of the request
+     * @param path the node or property path
+     * @param actions the actions requested
+     * @param roles the effective roles
+     * @param epoch the epoch read, by {@link #getEpoch()}, before the decision was evaluated
+     * @param permit the decision
+     */
+    public void put(final Session session, final String path, final String[] actions, final Set<String> roles,
+                    final long epoch, final boolean permit) {
+        if (epoch != this.epoch.get()) {
+            return;
+        }
+        Decisions decisions = sessions.get(session);
+        if (decisions == null || decisions.epoch != epoch) {
+            decisions = new Decisions(epoch);
+            sessions.put(session, decisions);
+        }
+        if (decisions.permits.size() < maximumDecisions) {
+            // Copy the actions and roles, which the caller may reuse
+            decisions.permits.put(key(path, actions.clone(), roles == null ? null : new HashSet<>(roles)), permit);
+        }
+    }
+
+    /**
+     * @return the current epoch, which moves on with every batch of repository changes
+     */
+    public long getEpoch() {
+        return epoch.get();
+    }
+
+    /**
+     * @return the hit and miss counts of the memo
+     */
+    public CacheStats stats() {
+        return new CacheStats(hitCount.get(), missCount.get(), 0, 0, 0, 0);
+    }
+
+    @Override
+    public void invalidate(final Invalidation invalidation) {
+        epoch.incrementAndGet();
+        LOGGER.trace("Repository changed, remembered decisions are stale");
+    }
+
+    private static List<Object> key(final String path, final String[] actions, final Set<String> roles) {
+        return asList(path, asList(actions), roles);
+    }
+
+    /**
+     * The decisions of one session, made in one epoch.
+     */
+    private static final class Decisions {
+
+        private final long epoch;
+
+        private final Map<List<Object>, Boolean> permits = new ConcurrentHashMap<>();
+
+        private Decisions(final long epoch) {
+            this.epoch = epoch;
+        }
+    }
+}
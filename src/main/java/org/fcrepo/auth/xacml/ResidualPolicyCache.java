@@ -0,0 +1,104 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Arrays.asList;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.List;
+import java.util.Optional;
+
+import org.jboss.security.xacml.sunxacml.AbstractPolicy;
+import org.jboss.security.xacml.sunxacml.EvaluationCtx;
+import org.slf4j.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * A bounded cache of residual policies, computed by the {@link PolicyPartialEvaluator} once for each subject class,
+ * as told apart by its {@link SubjectFingerprint}, and each policy of a {@link PolicySnapshot}. Every session of the
+ * same class shares the residuals. Residuals of an older snapshot are dropped as soon as a newer one is used.
+ *
+ * @author agent
+ */
+public class ResidualPolicyCache {
+
+    private static final Logger LOGGER = getLogger(ResidualPolicyCache.class);
+
+    private final Cache<List<Object>, Optional<AbstractPolicy>> residuals;
+
+    private volatile PolicySnapshot snapshot;
+
+    /**
+     * Constructor
+     *
+     * @param maximumSize the maximum number of residuals to retain
+     */
+    public ResidualPolicyCache(final long maximumSize) {
+        this.residuals = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+    }
+
+    /**
+     * Get the residual of a policy of a snapshot for a subject, partially evaluating the policy if necessary.
+     *
+     * @param snapshot the snapshot holding the policy
+     * @param policyPath the repository path of the policy
+     * @param subject the fingerprint of the subject
+     * @param generation the policy attribute generation the fingerprint was computed against
+     * @param context the context of a request of the subject
+     * @return the residual, or null if the policy cannot apply to the subject
+     */
+    public AbstractPolicy get(final PolicySnapshot snapshot, final String policyPath, final SubjectFingerprint subject,
+                              final long generation, final EvaluationCtx context) {
+        if (snapshot != this.snapshot) {
+            synchronized (this) {
+                if (snapshot != this.snapshot) {
+                    LOGGER.debug("Policy snapshot replaced, dropping all residual policies");
+                    residuals.invalidateAll();
+                    this.snapshot = snapshot;
+                }
+            }
+        }
+        // The snapshot is part of the key, so that a thread still holding an older one never shares its residuals
+        final List<Object> key = asList(snapshot, policyPath, subject, generation);
+        Optional<AbstractPolicy> residual = residuals.getIfPresent(key);
+        if (residual == null) {
+            final AbstractPolicy policy = snapshot.getPolicy(policyPath);
+            residual = Optional.ofNullable(policy == null ? null : PolicyPartialEvaluator.evaluate(policy, context));
+            residuals.put(key, residual);
+            LOGGER.debug("Partially evaluated policy {} for subject {}", policyPath, subject);
+        }
+        return residual.orElse(null);
+    }
+
+    /**
+     * Drop all residuals.
+     */
+    public void invalidateAll() {
+        residuals.invalidateAll();
+    }
+
+    /**
+     * @return the hit, miss and eviction counts of the cache
+     */
+    public CacheStats stats() {
+        return residuals.stats();
+    }
+}
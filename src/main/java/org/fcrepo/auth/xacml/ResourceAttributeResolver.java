@@ -0,0 +1,42 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import java.util.List;
+
+import org.apache.jena.graph.Node;
+import org.fcrepo.kernel.api.models.FedoraResource;
+
+/**
+ * Resolves the values of one resource attribute directly from a resource, without going through its RDF
+ * representation. The values are those that the resource's triples would carry as objects of the attribute's
+ * predicate.
+ *
+ * @author agent
+ */
+@FunctionalInterface
+public interface ResourceAttributeResolver {
+
+    /**
+     * Resolve the attribute values of a resource.
+     *
+     * @param resource the resource acted on
+     * @return the values, as URI or literal nodes
+     */
+    List<Node> resolve(FedoraResource resource);
+}
@@ -0,0 +1,297 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static javax.xml.stream.XMLStreamConstants.END_ELEMENT;
+import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.ACTION_TARGET;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.ENVIRONMENT_TARGET;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.RESOURCE_TARGET;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.SUBJECT_CATEGORY_DEFAULT;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.SUBJECT_TARGET;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.jboss.security.xacml.sunxacml.Indenter;
+import org.jboss.security.xacml.sunxacml.Target;
+import org.slf4j.Logger;
+
+/**
+ * A target read back from its encoding, when every match in it compares a literal with an attribute designator
+ * using <code>string-equal</code> or <code>anyURI-equal</code>. The library keeps the matches of a target to
+ * itself, so this is the only way to learn what a target compares, short of keeping the policy DOM around.
+ *
+ * @author agent
+ */
+final class SimpleTarget {
+
+    private static final Logger LOGGER = getLogger(SimpleTarget.class);
+
+    static final URI STRING_TYPE = URI.create("http://www.w3.org/2001/XMLSchema#string");
+
+    static final URI ANYURI_TYPE = URI.create("http://www.w3.org/2001/XMLSchema#anyURI");
+
+    static final String STRING_EQUAL = "urn:oasis:names:tc:xacml:1.0:function:string-equal";
+
+    static final String ANYURI_EQUAL = "urn:oasis:names:tc:xacml:1.0:function:anyURI-equal";
+
+    static final URI DEFAULT_CATEGORY = URI.create(SUBJECT_CATEGORY_DEFAULT);
+
+    private static final String[] SECTIONS = { "Subjects", "Resources", "Actions", "Environments" };
+
+    private static final String[] ELEMENTS = { "Subject", "Resource", "Action", "Environment" };
+
+    private static final int[] DESIGNATOR_TYPES = { SUBJECT_TARGET, RESOURCE_TARGET, ACTION_TARGET,
+        ENVIRONMENT_TARGET };
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final List<List<List<Match>>> sections;
+
+    private SimpleTarget(final List<List<List<Match>>> sections) {
+        this.sections = sections;
+    }
+
+    /**
+     * Read a target.
+     *
+     * @param target the target, or null
+     * @return the target read back, or null if it is missing or compares anything other than literal strings and
+     *         URIs with designated attributes
+     */
+    static SimpleTarget of(final Target target) {
+        if (target == null) {
+            return null;
+        }
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            target.encode(out, new Indenter(0));
+            final XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(
+                    new ByteArrayInputStream(out.toByteArray()));
+            try {
+                return scan(reader);
+            } finally {
+                reader.close();
+            }
+        } catch (final XMLStreamException | RuntimeException e) {
+            LOGGER.debug("Unable to read target", e);
+            return null;
+        }
+    }
+
+    /**
+     * Get the sections of the target, in the order they are matched: subjects, resources, actions and environments.
+     * A section is a list of groups of matches, and an empty section matches anything.
+     *
+     * @return the sections
+     */
+    List<List<List<Match>>> getSections() {
+        return sections;
+    }
+
+    private static SimpleTarget scan(final XMLStreamReader reader) throws XMLStreamException {
+        final List<List<List<Match>>> sections = new ArrayList<>();
+        for (int i = 0; i < SECTIONS.length; i++) {
+            sections.add(new ArrayList<>());
+        }
+        int section = -1;
+        List<Match> group = null;
+        String function = null;
+        URI valueType = null;
+        String value = null;
+        Match match = null;
+        while (reader.hasNext()) {
+            final int event = reader.next();
+            if (event == START_ELEMENT) {
+                final String name = reader.getLocalName();
+                final String element = section < 0 ? null : ELEMENTS[section];
+                if (indexOf(SECTIONS, name) >= 0) {
+                    section = indexOf(SECTIONS, name);
+                } else if (name.equals(element)) {
+                    group = new ArrayList<>();
+                } else if (name.equals("Any" + element)) {
+                    // A 1.x section that matches anything, the same as an empty one
+                    continue;
+                } else if (group != null && name.equals(element + "Match")) {
+                    function = reader.getAttributeValue(null, "MatchId");
+                    valueType = null;
+                    value = null;
+                    match = null;
+                } else if (group != null && name.equals("AttributeValue")) {
+                    valueType = URI.create(reader.getAttributeValue(null, "DataType"));
+                    value = reader.getElementText();
+                    // The library does not escape literals when encoding them, so any markup in them is suspect
+                    if (value.indexOf('&') >= 0 || value.indexOf('<') >= 0 || value.indexOf('\r') >= 0) {
+                        return null;
+                    }
+                } else if (group != null && name.equals(element + "AttributeDesignator")) {
+                    match = match(reader, DESIGNATOR_TYPES[section], function, valueType, value);
+                    if (match == null) {
+                        return null;
+                    }
+                } else if (!name.equals("Target")) {
+                    // Selectors, and anything else that is not a plain comparison
+                    return null;
+                }
+            } else if (event == END_ELEMENT && section >= 0) {
+                final String name = reader.getLocalName();
+                if (name.equals(ELEMENTS[section] + "Match")) {
+                    if (match == null) {
+                        return null;
+                    }
+                    group.add(match);
+                } else if (name.equals(ELEMENTS[section]) && group != null) {
+                    sections.get(section).add(group);
+                    group = null;
+                } else if (name.equals(SECTIONS[section])) {
+                    section = -1;
+                }
+            }
+        }
+        return new SimpleTarget(sections);
+    }
+
+    /**
+     * Read the designator of a match, given the function and the literal read before it.
+     *
+     * @return the match, or null if it is not a plain comparison of a string or URI
+     */
+    private static Match match(final XMLStreamReader reader, final int designatorType, final String function,
+                               final URI valueType, final String value) {
+        if (value == null) {
+            return null;
+        }
+        final URI dataType = URI.create(reader.getAttributeValue(null, "DataType"));
+        final boolean string = STRING_EQUAL.equals(function) && STRING_TYPE.equals(dataType);
+        final boolean uri = ANYURI_EQUAL.equals(function) && ANYURI_TYPE.equals(dataType);
+        if (!string && !uri || !dataType.equals(valueType)) {
+            return null;
+        }
+        final String issuer = reader.getAttributeValue(null, "Issuer");
+        final String category = reader.getAttributeValue(null, "SubjectCategory");
+        return new Match(designatorType, URI.create(reader.getAttributeValue(null, "AttributeId")), dataType,
+                issuer == null ? null : URI.create(issuer),
+                designatorType != SUBJECT_TARGET ? null : category == null ? DEFAULT_CATEGORY : URI.create(category),
+                "true".equals(reader.getAttributeValue(null, "MustBePresent")),
+                string ? value : URI.create(value));
+    }
+
+    private static int indexOf(final String[] names, final String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * One comparison of a literal with the values of a designated attribute.
+     */
+    static final class Match {
+
+        private final int designatorType;
+
+        private final URI attributeId;
+
+        private final URI dataType;
+
+        private final URI issuer;
+
+        private final URI category;
+
+        private final boolean mustBePresent;
+
+        private final Object literal;
+
+        private Match(final int designatorType, final URI attributeId, final URI dataType, final URI issuer,
+                      final URI category, final boolean mustBePresent, final Object literal) {
+            this.designatorType = designatorType;
+            this.attributeId = attributeId;
+            this.dataType = dataType;
+            this.issuer = issuer;
+            this.category = category;
+            this.mustBePresent = mustBePresent;
+            this.literal = literal;
+        }
+
+        /**
+         * @return the kind of designator, one of the targets of {@link
+         *         org.jboss.security.xacml.sunxacml.attr.AttributeDesignator}
+         */
+        int getDesignatorType() {
+            return designatorType;
+        }
+
+        /**
+         * @return the designated attribute
+         */
+        URI getAttributeId() {
+            return attributeId;
+        }
+
+        /**
+         * @return the data type of the attribute and the literal, a string or a URI
+         */
+        URI getDataType() {
+            return dataType;
+        }
+
+        /**
+         * @return the issuer the attribute must come from, or null
+         */
+        URI getIssuer() {
+            return issuer;
+        }
+
+        /**
+         * @return the subject category of a subject attribute, or null for other attributes
+         */
+        URI getCategory() {
+            return category;
+        }
+
+        /**
+         * @return whether a missing attribute makes the match indeterminate
+         */
+        boolean isMustBePresent() {
+            return mustBePresent;
+        }
+
+        /**
+         * @return the literal, a {@link String} or a {@link URI}
+         */
+        Object getLiteral() {
+            return literal;
+        }
+    }
+}
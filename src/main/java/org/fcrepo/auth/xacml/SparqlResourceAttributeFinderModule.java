@@ -17,24 +17,120 @@
  */
 package org.fcrepo.auth.xacml;
 
+import static java.util.Collections.singletonList;
+import static java.util.Collections.unmodifiableSet;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.fcrepo.kernel.api.RdfCollectors.toModel;
+import static org.fcrepo.kernel.api.RequiredRdfContext.PROPERTIES;
+import static org.jboss.security.xacml.sunxacml.attr.BagAttribute.createEmptyBag;
+import static org.jboss.security.xacml.sunxacml.ctx.Status.STATUS_PROCESSING_ERROR;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
 
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.QuerySolutionMap;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.riot.RDFDataMgr;
+import org.fcrepo.kernel.api.FedoraSession;
+import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
+import org.fcrepo.kernel.api.identifiers.IdentifierConverter;
+import org.fcrepo.kernel.api.models.FedoraResource;
+import org.fcrepo.kernel.api.services.NodeService;
 import org.jboss.security.xacml.sunxacml.EvaluationCtx;
 import org.jboss.security.xacml.sunxacml.attr.AttributeDesignator;
+import org.jboss.security.xacml.sunxacml.attr.AttributeValue;
+import org.jboss.security.xacml.sunxacml.attr.BagAttribute;
 import org.jboss.security.xacml.sunxacml.cond.EvaluationResult;
+import org.jboss.security.xacml.sunxacml.ctx.Status;
 import org.jboss.security.xacml.sunxacml.finder.AttributeFinderModule;
+import org.slf4j.Logger;
 import org.springframework.stereotype.Component;
 import org.w3c.dom.Node;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
 
 /**
  * Finds resource attributes via a configured set of SPARQL queries.
+ *
+ * Each supported attribute ID is mapped to a SPARQL SELECT query, which is parsed once when it is configured. The
+ * values of the first result variable are the attribute values. The query is run with the variable
+ * <code>?resource</code> bound to the resource acted on, against either the resource's own graph or, when one is
+ * set, a local dataset; the latter allows relationship-based rules, such as membership of a collection, to be
+ * expressed.
+ *
+ * Results are cached by resource path and last-modified date, for a configurable time, so that the graph is not
+ * read or queried again for every decision. A query against a dataset may read any resource, so its results are
+ * also keyed by a change generation that every batch of repository changes bumps; changes made to the dataset from
+ * outside the repository are only seen once the results expire. Queries are read at start-up from the properties
+ * file named by the {@value #QUERIES_FILE} system property (keyed by attribute ID, in the XML format if the name ends
+ * in ".xml"), and the dataset from the RDF file named by the {@value #DATASET} system property; both may also be
+ * set directly.
+ *
  * @author Gregory Jansen
  */
 @Component
-public class SparqlResourceAttributeFinderModule extends AttributeFinderModule {
+public class SparqlResourceAttributeFinderModule extends AttributeFinderModule implements InvalidationTarget {
+
+    private static final Logger LOGGER = getLogger(SparqlResourceAttributeFinderModule.class);
+
+    /**
+     * System property naming the properties file that maps attribute IDs to SPARQL queries.
+     */
+    public static final String QUERIES_FILE = "fcrepo.xacml.sparql.queries";
+
+    /**
+     * System property naming an RDF file to load as the dataset queries are run against.
+     */
+    public static final String DATASET = "fcrepo.xacml.sparql.dataset";
+
+    /**
+     * System property for the maximum number of cached query results.
+     */
+    public static final String CACHE_SIZE = "fcrepo.xacml.sparql.cache.size";
+
+    /**
+     * System property for how long query results may be reused, in seconds.
+     */
+    public static final String CACHE_TTL = "fcrepo.xacml.sparql.cache.ttl";
+
+    /**
+     * The query variable bound to the resource acted on.
+     */
+    public static final String RESOURCE_VARIABLE = "resource";
+
+    private static final long DEFAULT_CACHE_SIZE = 10000;
+
+    private static final long DEFAULT_CACHE_TTL = 60;
 
     /**
      * Supported designator types.
@@ -43,6 +139,159 @@ public class SparqlResourceAttributeFinderModule extends AttributeFinderModule {
             .unmodifiableSet(Collections
                     .singleton(AttributeDesignator.RESOURCE_TARGET));
 
+    /**
+     * The pool of internal sessions used to read the repository.
+     */
+    @Inject
+    protected InternalSessionPool sessionPool;
+
+    @Inject
+    protected NodeService nodeService;
+
+    @Inject
+    protected InvalidationPipeline invalidationPipeline;
+
+    private final Map<URI, Query> queries = new ConcurrentHashMap<>();
+
+    private volatile Cache<List<String>, List<org.apache.jena.graph.Node>> results =
+            newResultCache(DEFAULT_CACHE_SIZE, DEFAULT_CACHE_TTL);
+
+    private volatile Dataset dataset;
+
+    /**
+     * Bumped by every batch of repository changes, which may change the results of queries against the dataset.
+     */
+    private final AtomicLong changes = new AtomicLong();
+
+    /**
+     * Size the result cache as configured, load the queries and the dataset named by the {@value #QUERIES_FILE} and
+     * {@value #DATASET} system properties, if any, and drop cached results as resources change.
+     */
+    @PostConstruct
+    public void init() {
+        final long size = Long.getLong(CACHE_SIZE, DEFAULT_CACHE_SIZE);
+        final long ttl = Long.getLong(CACHE_TTL, DEFAULT_CACHE_TTL);
+        results = newResultCache(size, ttl);
+        LOGGER.debug("SPARQL attribute result cache size: {}, TTL: {}s", size, ttl);
+
+        final String file = System.getProperty(QUERIES_FILE);
+        if (file != null) {
+            loadQueries(Paths.get(file));
+        }
+        final String datasetLocation = System.getProperty(DATASET);
+        if (datasetLocation != null) {
+            loadDataset(datasetLocation);
+        }
+        if (invalidationPipeline != null) {
+            invalidationPipeline.register(this);
+        }
+    }
+
+    private static Cache<List<String>, List<org.apache.jena.graph.Node>> newResultCache(final long size,
+                                                                                        final long ttl) {
+        return CacheBuilder.newBuilder().maximumSize(size).expireAfterWrite(ttl, SECONDS).recordStats().build();
+    }
+
+    /**
+     * Load attribute queries from a properties file, keyed by attribute ID.
+     *
+     * @param file the properties file, in the XML format if its name ends in ".xml"
+     */
+    public void loadQueries(final Path file) {
+        final Properties properties = new Properties();
+        try (final InputStream in = Files.newInputStream(file)) {
+            if (file.toString().endsWith(".xml")) {
+                properties.loadFromXML(in);
+            } else {
+                properties.load(in);
+            }
+        } catch (final IOException e) {
+            throw new IllegalStateException("Unable to load SPARQL attribute queries from " + file, e);
+        }
+        properties.stringPropertyNames().forEach(id -> setQuery(URI.create(id), properties.getProperty(id)));
+        LOGGER.info("Loaded {} SPARQL attribute queries from {}", properties.size(), file);
+    }
+
+    /**
+     * Map attribute IDs to SPARQL queries.
+     *
+     * @param queries SPARQL SELECT queries, by attribute ID
+     */
+    public void setQueries(final Map<String, String> queries) {
+        queries.forEach((id, query) -> setQuery(URI.create(id), query));
+    }
+
+    /**
+     * Map an attribute ID to a SPARQL query, replacing any previous query and its cached results.
+     *
+     * @param attributeId the attribute ID
+     * @param query a SPARQL SELECT query
+     */
+    public void setQuery(final URI attributeId, final String query) {
+        final Query compiled = QueryFactory.create(query);
+        if (!compiled.isSelectType() || compiled.getResultVars().isEmpty()) {
+            throw new IllegalArgumentException("Query for " + attributeId + " must be a SELECT query");
+        }
+        queries.put(attributeId, compiled);
+        invalidateAll();
+    }
+
+    /**
+     * Run queries against a dataset loaded from an RDF file.
+     *
+     * @param location the file, in any syntax its extension identifies
+     */
+    public void loadDataset(final String location) {
+        setDataset(RDFDataMgr.loadDataset(location));
+        LOGGER.info("Running SPARQL attribute queries against dataset {}", location);
+    }
+
+    /**
+     * Run queries against a dataset instead of the resource's own graph, dropping the results cached so far.
+     *
+     * @param dataset the dataset, or null to query the resource's graph
+     */
+    public void setDataset(final Dataset dataset) {
+        this.dataset = dataset;
+        invalidateAll();
+    }
+
+    /**
+     * Drop all cached query results.
+     */
+    public void invalidateAll() {
+        results.invalidateAll();
+    }
+
+    /**
+     * Drop the cached results of resources changed in a batch.
+     */
+    @Override
+    public void invalidate(final Invalidation invalidation) {
+        changes.incrementAndGet();
+        if (invalidation.isAll()) {
+            invalidateAll();
+            return;
+        }
+        final Set<String> paths = invalidation.getAffectedPaths();
+        results.asMap().keySet().removeIf(key -> {
+            final String path = key.get(0);
+            for (final String changed : paths) {
+                if (path.equals(changed) || path.startsWith(changed + "/") || "/".equals(changed)) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    /**
+     * @return the hit, miss and eviction counts of the result cache
+     */
+    public CacheStats getResultCacheStats() {
+        return results.stats();
+    }
+
     /*
      * (non-Javadoc)
      * @see org.jboss.security.xacml.sunxacml.finder.AttributeFinderModule#
@@ -60,7 +309,7 @@ public class SparqlResourceAttributeFinderModule extends AttributeFinderModule {
      */
     @Override
     public final boolean isSelectorSupported() {
-        return true;
+        return false;
     }
 
     /*
@@ -80,12 +329,11 @@ public class SparqlResourceAttributeFinderModule extends AttributeFinderModule {
      */
     @Override
     public final Set<URI> getSupportedIds() {
-        // TODO Auto-generated method stub
-        return super.getSupportedIds();
+        return unmodifiableSet(new HashSet<>(queries.keySet()));
     }
 
     /*
-     * (non-Javadoc)
+     * Runs the query mapped to the attribute ID, if any.
      * @see
      * org.jboss.security.xacml.sunxacml.finder.AttributeFinderModule#findAttribute
      * (java.net.URI, java.net.URI, java.net.URI, java.net.URI,
@@ -95,13 +343,57 @@ public class SparqlResourceAttributeFinderModule extends AttributeFinderModule {
     public final EvaluationResult findAttribute(final URI attributeType,
             final URI attributeId, final URI issuer, final URI subjectCategory,
             final EvaluationCtx context, final int designatorType) {
-        // TODO Auto-generated method stub
-        return super.findAttribute(attributeType, attributeId, issuer,
-                subjectCategory, context, designatorType);
+        final BagAttribute emptyBag = createEmptyBag(attributeType);
+        final Query query = queries.get(attributeId);
+        if (designatorType != AttributeDesignator.RESOURCE_TARGET || query == null) {
+            return new EvaluationResult(emptyBag);
+        }
+
+        // The resource is resolved once per decision
+        final ResourceGraph graph;
+        if (context instanceof FedoraEvaluationCtx) {
+            graph = ((FedoraEvaluationCtx) context).memoize(ResourceGraph.class,
+                    () -> resolveResource(context, false));
+        } else {
+            graph = resolveResource(context, false);
+        }
+        if (graph.status != null) {
+            return new EvaluationResult(graph.status);
+        }
+        if (graph.resource == null) {
+            return new EvaluationResult(emptyBag);
+        }
+
+        final List<org.apache.jena.graph.Node> values;
+        final Dataset target = dataset;
+        try {
+            values = results.get(resultKey(graph.path, graph.version, attributeId, target), () -> {
+                // The graph is only read if a result was missing when the resource was resolved
+                final ResourceGraph source = target != null || graph.model != null ? graph :
+                        resolveResource(context, true);
+                if (source.status != null || source.resource == null) {
+                    return Collections.<org.apache.jena.graph.Node>emptyList();
+                }
+                return runQuery(query, source, target);
+            });
+        } catch (final ExecutionException | RuntimeException e) {
+            LOGGER.warn("Unable to query attribute {} of {}", attributeId, graph.path, e);
+            return new EvaluationResult(new Status(singletonList(STATUS_PROCESSING_ERROR),
+                    "Error querying attribute " + attributeId + " of [" + graph.path + "]!"));
+        }
+
+        final Set<AttributeValue> bag = new HashSet<>();
+        for (final org.apache.jena.graph.Node value : values) {
+            final AttributeValue attributeValue = PolicyUtil.toAttributeValue(attributeType, value);
+            if (attributeValue != null) {
+                bag.add(attributeValue);
+            }
+        }
+        return new EvaluationResult(bag.isEmpty() ? emptyBag : new BagAttribute(attributeType, bag));
     }
 
     /*
-     * (non-Javadoc)
+     * Selectors are not mapped to queries.
      * @see
      * org.jboss.security.xacml.sunxacml.finder.AttributeFinderModule#findAttribute
      * (java.lang.String, org.w3c.dom.Node, java.net.URI,
@@ -111,9 +403,137 @@ public class SparqlResourceAttributeFinderModule extends AttributeFinderModule {
     public final EvaluationResult findAttribute(final String contextPath,
             final Node namespaceNode, final URI attributeType,
             final EvaluationCtx context, final String xpathVersion) {
-        // TODO Auto-generated method stub
-        return super.findAttribute(contextPath, namespaceNode, attributeType,
-                context, xpathVersion);
+        return new EvaluationResult(createEmptyBag(attributeType));
     }
 
+    /**
+     * Get the key of the cached result of a query for a resource.
+     *
+     * @param path the resource path
+     * @param version the resource's last-modified date
+     * @param attributeId the attribute queried
+     * @param target the dataset queried, or null if the resource's graph is
+     * @return the key, including the change generation if a dataset is queried
+     */
+    private List<String> resultKey(final String path, final String version, final URI attributeId,
+                                   final Dataset target) {
+        return Arrays.asList(path, version, attributeId.toString(),
+                target != null ? String.valueOf(changes.get()) : "");
+    }
+
+    /**
+     * Run a query for a resource.
+     *
+     * @param query the query
+     * @param graph the resource
+     * @param target the dataset to query, or null to query the resource's graph
+     * @return the values of the first result variable
+     */
+    private List<org.apache.jena.graph.Node> runQuery(final Query query, final ResourceGraph graph,
+                                                      final Dataset target) {
+        final QuerySolutionMap bindings = new QuerySolutionMap();
+        bindings.add(RESOURCE_VARIABLE, graph.subject);
+
+        final List<org.apache.jena.graph.Node> values = new ArrayList<>();
+        try (final QueryExecution execution = target != null ? QueryExecutionFactory.create(query, target, bindings)
+                : QueryExecutionFactory.create(query, graph.model, bindings)) {
+            final ResultSet resultSet = execution.execSelect();
+            final String variable = query.getResultVars().get(0);
+            while (resultSet.hasNext()) {
+                final RDFNode value = resultSet.next().get(variable);
+                if (value != null) {
+                    values.add(value.asNode());
+                }
+            }
+        }
+        LOGGER.debug("Query for {} found {} values", graph.path, values.size());
+        return values;
+    }
+
+    /**
+     * Resolve the resource being acted on.
+     *
+     * @param context the evaluation context
+     * @param readGraph whether to read the resource's graph even if every query result for it is cached
+     * @return the resource, an empty result if there is no such resource, or an error status
+     */
+    private ResourceGraph resolveResource(final EvaluationCtx context, final boolean readGraph) {
+        try (final InternalSessionPool.Lease lease = sessionPool.lease()) {
+            final FedoraSession session;
+            try {
+                session = lease.getSession();
+            } catch (final RepositoryRuntimeException e) {
+                LOGGER.debug("Error getting session!");
+                return new ResourceGraph(new Status(singletonList(STATUS_PROCESSING_ERROR),
+                        "Error getting session"));
+            }
+            return resolveResource(context, session, lease.getIdentifierTranslator(), readGraph);
+        }
+    }
+
+    private ResourceGraph resolveResource(final EvaluationCtx context, final FedoraSession session,
+                                          final IdentifierConverter<Resource, FedoraResource> idTranslator,
+                                          final boolean readGraph) {
+        final String resourceId = PolicyUtil.getResourceNodePath(context);
+        if (resourceId == null) {
+            return new ResourceGraph(new Status(singletonList(STATUS_PROCESSING_ERROR), "Resource Id not found!"));
+        }
+
+        try {
+            final FedoraResource resource = nodeService.find(session, resourceId);
+            if (resource == null) {
+                return ResourceGraph.EMPTY;
+            }
+            final String path = resource.getPath();
+            final String version = String.valueOf(resource.getLastModifiedDate());
+
+            // The graph is read while the session is leased, and only if a query will need it
+            final Model model = dataset == null && (readGraph || queries.keySet().stream()
+                    .anyMatch(id -> results.getIfPresent(resultKey(path, version, id, null)) == null)) ?
+                    resource.getTriples(idTranslator, PROPERTIES).collect(toModel()) : null;
+            return new ResourceGraph(resource, path, version, idTranslator.reverse().convert(resource), model);
+        } catch (final RepositoryRuntimeException e) {
+            // If the object does not exist, it may be due to the action being "create"
+            return ResourceGraph.EMPTY;
+        }
+    }
+
+    /**
+     * The resource acted on by a decision, with its graph if a query needs it, or the reason it is unavailable.
+     */
+    private static final class ResourceGraph {
+
+        private static final ResourceGraph EMPTY = new ResourceGraph((Status) null);
+
+        private final FedoraResource resource;
+
+        private final String path;
+
+        private final String version;
+
+        private final Resource subject;
+
+        private final Model model;
+
+        private final Status status;
+
+        private ResourceGraph(final FedoraResource resource, final String path, final String version,
+                              final Resource subject, final Model model) {
+            this.resource = resource;
+            this.path = path;
+            this.version = version;
+            this.subject = subject;
+            this.model = model;
+            this.status = null;
+        }
+
+        private ResourceGraph(final Status status) {
+            this.resource = null;
+            this.path = null;
+            this.version = null;
+            this.subject = null;
+            this.model = null;
+            this.status = status;
+        }
+    }
 }
@@ -0,0 +1,106 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Collections.unmodifiableSortedSet;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_SUBJECT_ID;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_GROUP;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_ROLE;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.SUBJECT_TARGET;
+
+import java.util.Collection;
+import java.util.Objects;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * The canonical form of the subject attributes added by {@link FedoraEvaluationCtxBuilder#addSubject} and
+ * {@link FedoraEvaluationCtxBuilder#addGroups}: the user, the roles and the groups, in sorted order. Attributes
+ * that no loaded policy designates are left out, so users who differ only in what policies cannot observe, most
+ * often their name, share one fingerprint and therefore share cached decisions.
+ *
+ * A fingerprint is only meaningful together with the {@link PolicyAttributeRegistry} generation it was computed
+ * against, since a newly loaded policy may start to observe an attribute that was left out.
+ *
+ * @author agent
+ */
+public final class SubjectFingerprint {
+
+    private final String user;
+
+    private final SortedSet<String> roles;
+
+    private final SortedSet<String> groups;
+
+    private final int hash;
+
+    /**
+     * Constructor for a fingerprint that keeps every attribute.
+     *
+     * @param user the user principal name, or null
+     * @param roles the effective roles, or null
+     * @param groups the group names, or null
+     */
+    public SubjectFingerprint(final String user, final Collection<String> roles, final Collection<String> groups) {
+        this.user = user;
+        this.roles = roles == null ? null : unmodifiableSortedSet(new TreeSet<>(roles));
+        this.groups = groups == null ? null : unmodifiableSortedSet(new TreeSet<>(groups));
+        this.hash = Objects.hash(user, this.roles, this.groups);
+    }
+
+    /**
+     * Get the fingerprint of a subject, leaving out the attributes that no loaded policy designates.
+     *
+     * @param user the user principal name
+     * @param roles the effective roles
+     * @param groups the group names
+     * @param registry the attributes referenced by the loaded policies
+     * @return the fingerprint
+     */
+    public static SubjectFingerprint of(final String user, final Collection<String> roles,
+                                        final Collection<String> groups, final PolicyAttributeRegistry registry) {
+        final boolean all = registry.usesSelectors();
+        return new SubjectFingerprint(
+                all || registry.isReferenced(SUBJECT_TARGET, ATTRIBUTEID_SUBJECT_ID) ? user : null,
+                all || registry.isReferenced(SUBJECT_TARGET, FCREPO_SUBJECT_ROLE) ? roles : null,
+                all || registry.isReferenced(SUBJECT_TARGET, FCREPO_SUBJECT_GROUP) ? groups : null);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SubjectFingerprint)) {
+            return false;
+        }
+        final SubjectFingerprint other = (SubjectFingerprint) o;
+        return hash == other.hash && Objects.equals(user, other.user) && Objects.equals(roles, other.roles) &&
+                Objects.equals(groups, other.groups);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "user=" + user + ", roles=" + roles + ", groups=" + groups;
+    }
+}
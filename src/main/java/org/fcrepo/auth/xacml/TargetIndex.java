@@ -0,0 +1,361 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_ACTION_ID;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_RESOURCE_ID;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_SUBJECT_ID;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_GROUP;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_ROLE;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jboss.security.xacml.sunxacml.AbstractPolicy;
+import org.jboss.security.xacml.sunxacml.EvaluationCtx;
+import org.jboss.security.xacml.sunxacml.Policy;
+import org.jboss.security.xacml.sunxacml.PolicyReference;
+import org.jboss.security.xacml.sunxacml.PolicySet;
+import org.jboss.security.xacml.sunxacml.Target;
+import org.jboss.security.xacml.sunxacml.attr.AttributeValue;
+import org.jboss.security.xacml.sunxacml.attr.BagAttribute;
+import org.jboss.security.xacml.sunxacml.combine.PolicyCombinerElement;
+import org.jboss.security.xacml.sunxacml.combine.PolicyCombiningAlgorithm;
+import org.jboss.security.xacml.sunxacml.combine.RuleCombinerElement;
+import org.jboss.security.xacml.sunxacml.combine.RuleCombiningAlgorithm;
+import org.jboss.security.xacml.sunxacml.cond.EvaluationResult;
+import org.jboss.security.xacml.sunxacml.ctx.Result;
+import org.slf4j.Logger;
+
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Indexes the children of policies and policy sets by the literal <code>action-id</code> and
+ * <code>fcrepo-xacml:subject-role</code> values their targets match with <code>string-equal</code>, so that
+ * combining a request visits only the children whose targets can match it.
+ *
+ * A child is left out only if its target cannot match the request and cannot be indeterminate either: every match
+ * in it compares a string literal with <code>string-equal</code> to an attribute every request carries, which is
+ * never missing or in error. Such a child could only ever be not applicable, and the standard combining algorithms
+ * pass over children that are not applicable, so the remaining children, kept in their order, combine to exactly the
+ * same result; first-applicable sees the same first applicable rule. Other children, and the children of other
+ * combining algorithms, are always visited.
+ *
+ * Indexing replaces the combining algorithm of each policy and policy set by one that selects the candidates and
+ * hands them to the original algorithm. The index of a list of children is built the first time the list is
+ * combined, so policy sets rebuilt from indexed ones, when they are linked or partially evaluated, are indexed too.
+ *
+ * @author agent
+ */
+public final class TargetIndex {
+
+    private static final Logger LOGGER = getLogger(TargetIndex.class);
+
+    private static final URI STRING_TYPE = SimpleTarget.STRING_TYPE;
+
+    private static final URI DEFAULT_CATEGORY = SimpleTarget.DEFAULT_CATEGORY;
+
+    /**
+     * The attributes every request carries, as values of the request or supplied by the context.
+     */
+    private static final Set<URI> REQUEST_ATTRIBUTES = new HashSet<>(Arrays.asList(ATTRIBUTEID_SUBJECT_ID,
+            FCREPO_SUBJECT_ROLE, FCREPO_SUBJECT_GROUP, ATTRIBUTEID_RESOURCE_ID, ATTRIBUTEID_ACTION_ID));
+
+    private TargetIndex() {
+    }
+
+    /**
+     * Index a policy or policy set, and every policy and policy set it contains.
+     *
+     * @param policy the policy
+     * @return the indexed policy, or the policy itself if there is nothing to index
+     */
+    public static AbstractPolicy index(final AbstractPolicy policy) {
+        if (policy instanceof PolicySet) {
+            final List<PolicyCombinerElement> elements = new ArrayList<>();
+            boolean changed = false;
+            for (final Object element : policy.getChildElements()) {
+                final PolicyCombinerElement combinerElement = (PolicyCombinerElement) element;
+                final AbstractPolicy child = combinerElement.getPolicy();
+                final AbstractPolicy indexed = child instanceof PolicyReference ? child : index(child);
+                if (indexed == child) {
+                    elements.add(combinerElement);
+                } else {
+                    elements.add(new PolicyCombinerElement(indexed, combinerElement.getParameters()));
+                    changed = true;
+                }
+            }
+            final PolicyCombiningAlgorithm algorithm = (PolicyCombiningAlgorithm) policy.getCombiningAlg();
+            final boolean indexable = !(algorithm instanceof IndexedPolicyAlgorithm) &&
+                    PolicyPartialEvaluator.skipsNotApplicable(algorithm);
+            if (!changed && !indexable) {
+                return policy;
+            }
+            return new PolicySet(policy.getId(), policy.getVersion(),
+                    indexable ? new IndexedPolicyAlgorithm(algorithm) : algorithm, policy.getDescription(),
+                    policy.getTarget(), elements, policy.getDefaultVersion(), policy.getObligations(),
+                    policy.getCombiningParameters());
+        }
+        if (policy instanceof Policy) {
+            final RuleCombiningAlgorithm algorithm = (RuleCombiningAlgorithm) policy.getCombiningAlg();
+            if (algorithm instanceof IndexedRuleAlgorithm || !PolicyPartialEvaluator.skipsNotApplicable(algorithm)) {
+                return policy;
+            }
+            return new Policy(policy.getId(), policy.getVersion(), new IndexedRuleAlgorithm(algorithm),
+                    policy.getDescription(), policy.getTarget(), policy.getDefaultVersion(),
+                    policy.getChildElements(), policy.getObligations(), policy.getCombiningParameters());
+        }
+        return policy;
+    }
+
+    /**
+     * Read the literals a target requires of the action and the subject roles, if it can be indexed.
+     *
+     * @param target the target, or null
+     * @return the literals, or null if the target must always be visited
+     */
+    static Literals literalsOf(final Target target) {
+        final SimpleTarget simple = SimpleTarget.of(target);
+        if (simple == null) {
+            return null;
+        }
+        final Literals literals = new Literals();
+        final List<List<List<SimpleTarget.Match>>> sections = simple.getSections();
+        for (int i = 0; i < sections.size(); i++) {
+            for (final List<SimpleTarget.Match> group : sections.get(i)) {
+                for (final SimpleTarget.Match match : group) {
+                    if (!STRING_TYPE.equals(match.getDataType()) ||
+                            !REQUEST_ATTRIBUTES.contains(match.getAttributeId()) || match.isMustBePresent() ||
+                            match.getIssuer() != null ||
+                            match.getCategory() != null && !DEFAULT_CATEGORY.equals(match.getCategory())) {
+                        // Anything that may be indeterminate
+                        return null;
+                    }
+                }
+            }
+        }
+        literals.roles = sectionLiterals(sections.get(0), FCREPO_SUBJECT_ROLE);
+        literals.actions = sectionLiterals(sections.get(2), ATTRIBUTEID_ACTION_ID);
+        return literals.actions == null && literals.roles == null ? null : literals;
+    }
+
+    /**
+     * Within a section, a group of matches requires a literal when one of its matches compares it to the indexed
+     * attribute; the section requires one of the literals of its groups, or nothing if a group requires none.
+     *
+     * @return the literals, or null if the section requires none
+     */
+    private static Set<String> sectionLiterals(final List<List<SimpleTarget.Match>> section, final URI attribute) {
+        final Set<String> literals = new HashSet<>();
+        for (final List<SimpleTarget.Match> group : section) {
+            String groupLiteral = null;
+            for (final SimpleTarget.Match match : group) {
+                if (attribute.equals(match.getAttributeId())) {
+                    groupLiteral = (String) match.getLiteral();
+                }
+            }
+            if (groupLiteral == null) {
+                return null;
+            }
+            literals.add(groupLiteral);
+        }
+        return literals.isEmpty() ? null : literals;
+    }
+
+    /**
+     * The literals a target requires: the request must carry one of the actions, if any, and one of the roles, if
+     * any, for the target to match.
+     */
+    static final class Literals {
+
+        private Set<String> actions;
+
+        private Set<String> roles;
+
+        /**
+         * @return the actions one of which the request must carry, or null
+         */
+        Set<String> getActions() {
+            return actions;
+        }
+
+        /**
+         * @return the roles one of which the subject must hold, or null
+         */
+        Set<String> getRoles() {
+            return roles;
+        }
+    }
+
+    /**
+     * The children of one list indexed by the literals of their targets.
+     */
+    private static final class Candidates {
+
+        private final int size;
+
+        private final BitSet anyAction = new BitSet();
+
+        private final BitSet anyRole = new BitSet();
+
+        private final Map<String, BitSet> byAction = new HashMap<>();
+
+        private final Map<String, BitSet> byRole = new HashMap<>();
+
+        private Candidates(final List<Target> targets) {
+            this.size = targets.size();
+            for (int i = 0; i < size; i++) {
+                final Literals literals = literalsOf(targets.get(i));
+                final Set<String> actions = literals == null ? null : literals.actions;
+                final Set<String> roles = literals == null ? null : literals.roles;
+                if (actions == null) {
+                    anyAction.set(i);
+                } else {
+                    for (final String action : actions) {
+                        byAction.computeIfAbsent(action, a -> new BitSet()).set(i);
+                    }
+                }
+                if (roles == null) {
+                    anyRole.set(i);
+                } else {
+                    for (final String role : roles) {
+                        byRole.computeIfAbsent(role, r -> new BitSet()).set(i);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the children that may match the request, in their order
+         */
+        private List<?> select(final List<?> elements, final EvaluationCtx context) {
+            if (elements.size() != size || byAction.isEmpty() && byRole.isEmpty()) {
+                return elements;
+            }
+            final BitSet selected = candidates(anyAction, byAction,
+                    byAction.isEmpty() ? null : context.getActionAttribute(STRING_TYPE, ATTRIBUTEID_ACTION_ID, null));
+            if (selected == null) {
+                return elements;
+            }
+            final BitSet byRoles = candidates(anyRole, byRole, byRole.isEmpty() ? null :
+                    context.getSubjectAttribute(STRING_TYPE, FCREPO_SUBJECT_ROLE, DEFAULT_CATEGORY));
+            if (byRoles == null) {
+                return elements;
+            }
+            selected.and(byRoles);
+            if (selected.cardinality() == size) {
+                return elements;
+            }
+            final List<Object> candidates = new ArrayList<>(selected.cardinality());
+            for (int i = selected.nextSetBit(0); i >= 0; i = selected.nextSetBit(i + 1)) {
+                candidates.add(elements.get(i));
+            }
+            LOGGER.trace("Visiting {} of {} children", candidates.size(), size);
+            return candidates;
+        }
+
+        /**
+         * @return the children that require none of the literals or one of the values, or null if the values are
+         *         in error
+         */
+        private BitSet candidates(final BitSet any, final Map<String, BitSet> byLiteral,
+                                  final EvaluationResult values) {
+            final BitSet selected = (BitSet) any.clone();
+            if (byLiteral.isEmpty()) {
+                return selected;
+            }
+            if (values == null || values.indeterminate() || !(values.getAttributeValue() instanceof BagAttribute)) {
+                return null;
+            }
+            final Iterator<?> it = ((BagAttribute) values.getAttributeValue()).iterator();
+            while (it.hasNext()) {
+                final BitSet matching = byLiteral.get(((AttributeValue) it.next()).getValue().toString());
+                if (matching != null) {
+                    selected.or(matching);
+                }
+            }
+            return selected;
+        }
+    }
+
+    /**
+     * A policy combining algorithm that combines only the candidates among the children.
+     */
+    private static final class IndexedPolicyAlgorithm extends PolicyCombiningAlgorithm {
+
+        private final PolicyCombiningAlgorithm algorithm;
+
+        private final Map<List<?>, Candidates> indexes =
+                CacheBuilder.newBuilder().weakKeys().<List<?>, Candidates>build().asMap();
+
+        private IndexedPolicyAlgorithm(final PolicyCombiningAlgorithm algorithm) {
+            super(algorithm.getIdentifier());
+            this.algorithm = algorithm;
+        }
+
+        @Override
+        public Result combine(final EvaluationCtx context, final List parameters, final List policyElements) {
+            final Candidates candidates = indexes.computeIfAbsent(policyElements, elements -> {
+                final List<Target> targets = new ArrayList<>(elements.size());
+                for (final Object element : elements) {
+                    final AbstractPolicy policy = ((PolicyCombinerElement) element).getPolicy();
+                    targets.add(policy instanceof PolicyReference ? null : policy.getTarget());
+                }
+                return new Candidates(targets);
+            });
+            return algorithm.combine(context, parameters, candidates.select(policyElements, context));
+        }
+    }
+
+    /**
+     * A rule combining algorithm that combines only the candidates among the rules.
+     */
+    private static final class IndexedRuleAlgorithm extends RuleCombiningAlgorithm {
+
+        private final RuleCombiningAlgorithm algorithm;
+
+        private final Map<List<?>, Candidates> indexes =
+                CacheBuilder.newBuilder().weakKeys().<List<?>, Candidates>build().asMap();
+
+        private IndexedRuleAlgorithm(final RuleCombiningAlgorithm algorithm) {
+            super(algorithm.getIdentifier());
+            this.algorithm = algorithm;
+        }
+
+        @Override
+        public Result combine(final EvaluationCtx context, final List parameters, final List ruleElements) {
+            final Candidates candidates = indexes.computeIfAbsent(ruleElements, elements -> {
+                final List<Target> targets = new ArrayList<>(elements.size());
+                for (final Object element : elements) {
+                    targets.add(((RuleCombinerElement) element).getRule().getTarget());
+                }
+                return new Candidates(targets);
+            });
+            return algorithm.combine(context, parameters, candidates.select(ruleElements, context));
+        }
+    }
+}
@@ -17,34 +17,52 @@
  */
 package org.fcrepo.auth.xacml;
 
+import static java.util.Arrays.asList;
 import static java.util.Collections.singleton;
+import static java.util.Collections.emptyList;
 import static java.util.Collections.singletonList;
 import static java.util.Collections.unmodifiableSet;
-import static org.fcrepo.kernel.api.RdfCollectors.toModel;
+import static java.util.stream.Collectors.toList;
+import static org.apache.jena.graph.NodeFactory.createLiteral;
+import static org.apache.jena.graph.NodeFactory.createURI;
+import static org.apache.jena.rdf.model.ResourceFactory.createProperty;
+import static org.fcrepo.kernel.api.RdfLexicon.REPOSITORY_NAMESPACE;
+import static org.fcrepo.kernel.api.RdfLexicon.isManagedPredicate;
 import static org.fcrepo.kernel.api.RequiredRdfContext.PROPERTIES;
 import static org.fcrepo.kernel.modeshape.FedoraSessionImpl.getJcrSession;
+import static org.fcrepo.kernel.modeshape.utils.FedoraTypesUtils.getReferencePropertyName;
 import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.RESOURCE_TARGET;
 import static org.jboss.security.xacml.sunxacml.attr.BagAttribute.createEmptyBag;
 import static org.jboss.security.xacml.sunxacml.ctx.Status.STATUS_PROCESSING_ERROR;
 import static org.slf4j.LoggerFactory.getLogger;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
 import javax.inject.Inject;
+import javax.jcr.NamespaceException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
 
-import org.fcrepo.http.commons.session.SessionFactory;
 import org.fcrepo.kernel.api.FedoraSession;
 import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
 import org.fcrepo.kernel.api.identifiers.IdentifierConverter;
+import org.fcrepo.kernel.api.models.FedoraBinary;
 import org.fcrepo.kernel.api.models.FedoraResource;
+import org.fcrepo.kernel.api.models.NonRdfSourceDescription;
 import org.fcrepo.kernel.api.services.NodeService;
-import org.fcrepo.kernel.modeshape.rdf.impl.DefaultIdentifierTranslator;
+import org.fcrepo.kernel.modeshape.FedoraResourceImpl;
+import org.fcrepo.kernel.modeshape.rdf.converters.ValueConverter;
 
 import org.jboss.security.xacml.sunxacml.EvaluationCtx;
-import org.jboss.security.xacml.sunxacml.attr.AnyURIAttribute;
 import org.jboss.security.xacml.sunxacml.attr.AttributeValue;
 import org.jboss.security.xacml.sunxacml.attr.BagAttribute;
 import org.jboss.security.xacml.sunxacml.cond.EvaluationResult;
@@ -53,14 +71,28 @@ import org.jboss.security.xacml.sunxacml.finder.AttributeFinderModule;
 import org.slf4j.Logger;
 import org.springframework.stereotype.Component;
 
-import org.apache.jena.rdf.model.Model;
-import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Property;
 import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.vocabulary.RDF;
 
 /**
  * Finds resource attributes based on triples in the Fedora graph. Retrieves values where the attribute URI matches the
  * triple predicate and the triple object can be supplied as the requested data type.
  *
+ * Only the values of predicates that loaded policies designate are read, all of them the first time any of them is
+ * asked for. Each is read from the JCR property it is stored in, so the cost grows with the number of designated
+ * predicates rather than with the metadata on the resource. Predicates that are not stored as a property of their
+ * own, such as server managed ones, are collected in a single pass over the resource's triples instead.
+ * Predicates with a registered {@link ResourceAttributeResolver}, by default <code>rdf:type</code> and
+ * <code>fedora:mimeType</code>, are answered by the resolver without reading properties at all.
+ *
+ * URI values are returned as <code>anyURI</code> and literal values as <code>string</code> by default; any other
+ * requested data type is created from the value's lexical form.
+ *
+ * The module holds no per-decision state, so any number of decisions may use it concurrently.
+ *
  * @author Gregory Jansen
  * @author Andrew Woods
  * @author Scott Prater
@@ -70,24 +102,48 @@ public class TripleAttributeFinderModule extends AttributeFinderModule {
 
     private static final Logger LOGGER = getLogger(TripleAttributeFinderModule.class);
 
-    private static BagAttribute empty_bag;
+    /**
+     * The fedora:mimeType predicate.
+     */
+    public static final String MIME_TYPE = REPOSITORY_NAMESPACE + "mimeType";
 
-    private static IdentifierConverter<Resource, FedoraResource> idTranslator;
+    /**
+     * Resolvers for well-known predicates, by predicate URI.
+     */
+    private final Map<String, ResourceAttributeResolver> resolvers = new ConcurrentHashMap<>();
+
+    {
+        resolvers.put(RDF.type.getURI(), TripleAttributeFinderModule::resolveTypes);
+        resolvers.put(MIME_TYPE, TripleAttributeFinderModule::resolveMimeType);
+    }
 
     /**
-     * Fedora's ModeShape session factory.
+     * The pool of internal sessions used to read the repository.
      */
     @Inject
-    protected SessionFactory sessionFactory;
+    protected InternalSessionPool sessionPool;
 
     @Inject
     protected NodeService nodeService;
 
+    @Inject
+    protected PolicyAttributeRegistry policyAttributeRegistry;
+
     /**
      * Supported designator types.
      */
     private static final Set<Integer> DESIGNATOR_TYPES = unmodifiableSet(singleton(RESOURCE_TARGET));
 
+    /**
+     * Add or replace resolvers for well-known predicates. Predicates without a resolver are read from the
+     * resource's triples.
+     *
+     * @param resolvers the resolvers, by predicate URI
+     */
+    public void setResolvers(final Map<String, ResourceAttributeResolver> resolvers) {
+        this.resolvers.putAll(resolvers);
+    }
+
     /**
      * Supports designators.
      *
@@ -127,47 +183,87 @@ public class TripleAttributeFinderModule extends AttributeFinderModule {
         LOGGER.debug("findAttribute({}, {}, {}, {}, {}, {})",
                      attributeType, attributeId, issuer, subjectCategory, context, designatorType);
 
-        empty_bag = createEmptyBag(attributeType);
+        final BagAttribute emptyBag = createEmptyBag(attributeType);
 
         // Make sure this is a Resource attribute
         if (designatorType != RESOURCE_TARGET) {
             LOGGER.debug("Not looking for a resource attribute");
-            return new EvaluationResult(empty_bag);
+            return new EvaluationResult(emptyBag);
+        }
+
+        // The resource is resolved once per decision
+        final ResourceProperties resourceProperties;
+        if (context instanceof FedoraEvaluationCtx) {
+            resourceProperties = ((FedoraEvaluationCtx) context).memoize(ResourceProperties.class,
+                    () -> resolveResource(context));
+        } else {
+            resourceProperties = resolveResource(context);
+        }
+
+        if (resourceProperties.status != null) {
+            return new EvaluationResult(resourceProperties.status);
+        }
+        if (resourceProperties.resource == null) {
+            return new EvaluationResult(emptyBag);
         }
 
-        final FedoraSession session;
+        // Get the values of the properties matching the type
+        final List<Node> matches;
         try {
-            session = sessionFactory.getInternalSession();
+            matches = resourceProperties.valuesOf(attributeId.toString());
         } catch (final RepositoryRuntimeException e) {
-            LOGGER.debug("Error getting session!");
-            final Status status = new Status(singletonList(STATUS_PROCESSING_ERROR), "Error getting session");
+            LOGGER.debug("Cannot retrieve any properties for [{}]:  {}", resourceProperties.resource, e);
+            final Status status = new Status(singletonList(STATUS_PROCESSING_ERROR),
+                    "Error retrieving properties for [" + resourceProperties.path + "]!");
             return new EvaluationResult(status);
         }
 
-        // The resourceId is the path of the object be acted on, retrieved from the PDP evaluation context
-        final EvaluationResult ridEvalRes =
-                context.getResourceAttribute(URI.create("http://www.w3.org/2001/XMLSchema#string"),
-                        URIConstants.ATTRIBUTEID_RESOURCE_ID, null);
-        final AttributeValue resourceIdAttValue = ridEvalRes.getAttributeValue();
-        if (resourceIdAttValue.getValue().toString().isEmpty()) {
-            LOGGER.debug("Context should have a resource-id attribute!");
-            final Status status = new Status(singletonList(STATUS_PROCESSING_ERROR), "Resource Id not found!");
-            return new EvaluationResult(status);
+        final Set<AttributeValue> attr_bag = new HashSet<>();
+
+        // Add the properties to the bag
+        for (final Node match : matches) {
+            final AttributeValue value = PolicyUtil.toAttributeValue(attributeType, match);
+            if (value != null) {
+                LOGGER.debug("Found property: {}", value);
+                attr_bag.add(value);
+            }
         }
 
-        String resourceId = (String) resourceIdAttValue.getValue();
+        // Return the results, or any empty bag
+        if (attr_bag.isEmpty()) {
+            LOGGER.debug("No matching properties found");
+            return new EvaluationResult(emptyBag);
+        }
 
-        // if dealing with set_property action, use parent node for triples
-        final Set<String> actions = PolicyUtil.getActions(context);
-        if (actions.contains("set_property") || actions.contains("add_node")) {
-            final int index = resourceId.lastIndexOf("/{");
-            if (index > -1) {
-                resourceId = resourceId.substring(0, index);
-            }
+        return new EvaluationResult(new BagAttribute(attributeType, attr_bag));
+    }
 
-            if (resourceId.isEmpty()) {
-                resourceId = "/";
+    /**
+     * Resolve the resource being acted on.
+     *
+     * @param context the evaluation context
+     * @return the resource, an empty result if there is no such resource, or an error status
+     */
+    private ResourceProperties resolveResource(final EvaluationCtx context) {
+        try (final InternalSessionPool.Lease lease = sessionPool.lease()) {
+            final FedoraSession session;
+            try {
+                session = lease.getSession();
+            } catch (final RepositoryRuntimeException e) {
+                LOGGER.debug("Error getting session!");
+                return ResourceProperties.error("Error getting session");
             }
+            return resolveResource(context, session, lease.getIdentifierTranslator());
+        }
+    }
+
+    private ResourceProperties resolveResource(final EvaluationCtx context, final FedoraSession session,
+                                               final IdentifierConverter<Resource, FedoraResource> idTranslator) {
+        // The resourceId is the path of the object be acted on, retrieved from the PDP evaluation context
+        final String resourceId = PolicyUtil.getResourceNodePath(context);
+        if (resourceId == null) {
+            LOGGER.debug("Context should have a resource-id attribute!");
+            return ResourceProperties.error("Resource Id not found!");
         }
 
         // Get the resource to be acted on
@@ -177,63 +273,214 @@ public class TripleAttributeFinderModule extends AttributeFinderModule {
             resource = nodeService.find(session, resourceId);
             if (resource == null) {
                 LOGGER.debug("Cannot find a fedora resource for {}", resourceId);
-                return new EvaluationResult(empty_bag);
+                return ResourceProperties.EMPTY;
             }
             path = resource.getPath();
-            idTranslator = new DefaultIdentifierTranslator(getJcrSession(session));
 
         } catch (final RepositoryRuntimeException e) {
             // If the object does not exist, it may be due to the action being "create"
-            return new EvaluationResult(empty_bag);
+            return ResourceProperties.EMPTY;
         }
 
         LOGGER.debug("Looking for properties on modeshape path {} with repo path {}", resourceId, path);
 
-        // Get the properties of the resource
-        Model properties;
-        try {
-            properties = resource.getTriples(idTranslator, PROPERTIES).collect(toModel());
+        final Resource graphNode = idTranslator.reverse().convert(resource);
+        if (null == graphNode) {
+            LOGGER.debug("Cannot get subject for[{}]", path);
+            return ResourceProperties.error("Error retrieving properties for [" + path + "]!");
+        }
 
-        } catch (final RepositoryRuntimeException e) {
-            LOGGER.debug("Cannot retrieve any properties for [{}]:  {}", resourceId, e);
-            final Status status =
-                    new Status(singletonList(STATUS_PROCESSING_ERROR),
-                               "Error retrieving properties for [" + path + "]!");
-            return new EvaluationResult(status);
+        return new ResourceProperties(resource, path, idTranslator, getJcrSession(session), graphNode.asNode(),
+                policyAttributeRegistry.getReferenced(RESOURCE_TARGET), resolvers);
+    }
+
+    /**
+     * Resolve the rdf:type values of a resource from its primary and mixin node types.
+     *
+     * @param resource the resource
+     * @return the type URIs
+     */
+    private static List<Node> resolveTypes(final FedoraResource resource) {
+        return resource.getTypes().stream().map(type -> createURI(type.toString())).collect(toList());
+    }
+
+    /**
+     * Resolve the fedora:mimeType value of a binary, or of the binary that a description describes.
+     *
+     * @param resource the resource
+     * @return the MIME type, if the resource is a binary or a binary description
+     */
+    private static List<Node> resolveMimeType(final FedoraResource resource) {
+        final FedoraResource binary = resource instanceof NonRdfSourceDescription ?
+                ((NonRdfSourceDescription) resource).getDescribedResource() : resource;
+        if (binary instanceof FedoraBinary) {
+            final String mimeType = ((FedoraBinary) binary).getMimeType();
+            if (mimeType != null) {
+                return singletonList(createLiteral(mimeType));
+            }
         }
+        return emptyList();
+    }
 
-        final Resource graphNode = idTranslator.reverse().convert(resource);
-        if (null == graphNode) {
-            LOGGER.debug("Cannot get subject for[{}]", resource.getPath());
-            final Status status =
-                    new Status(singletonList(STATUS_PROCESSING_ERROR),
-                            "Error retrieving properties for [" + path + "]!");
-            return new EvaluationResult(status);
+    /**
+     * The resource acted on by a decision, and the values of those of its properties that policies refer to, or
+     * the reason they are unavailable. Property values are read lazily, from a resolver, from the JCR property a
+     * predicate is stored in, or, for predicates without one, in a single pass over the resource's triples.
+     */
+    private static final class ResourceProperties {
+
+        private static final ResourceProperties EMPTY =
+                new ResourceProperties(null, null, null, null, null, null, null);
+
+        private final FedoraResource resource;
+
+        private final String path;
+
+        private final IdentifierConverter<Resource, FedoraResource> idTranslator;
+
+        private final Session jcrSession;
+
+        private final Node subject;
+
+        private final Set<String> referenced = new HashSet<>();
+
+        private final Map<String, List<Node>> values = new HashMap<>();
+
+        private final Map<String, ResourceAttributeResolver> resolvers;
+
+        private final Status status;
+
+        private ResourceProperties(final FedoraResource resource, final String path,
+                                   final IdentifierConverter<Resource, FedoraResource> idTranslator,
+                                   final Session jcrSession, final Node subject, final Set<URI> referenced,
+                                   final Map<String, ResourceAttributeResolver> resolvers) {
+            this.resource = resource;
+            this.path = path;
+            this.idTranslator = idTranslator;
+            this.jcrSession = jcrSession;
+            this.subject = subject;
+            this.resolvers = resolvers;
+            if (referenced != null) {
+                referenced.stream().map(URI::toString).filter(id -> !resolvers.containsKey(id))
+                        .forEach(this.referenced::add);
+            }
+            this.status = null;
         }
 
-        LOGGER.debug("Looking for properties on graph node: {}", graphNode.getURI());
+        private ResourceProperties(final Status status) {
+            this.resource = null;
+            this.path = null;
+            this.idTranslator = null;
+            this.jcrSession = null;
+            this.subject = null;
+            this.resolvers = null;
+            this.status = status;
+        }
 
-        // Get the values of the properties matching the type
-        final Iterator<RDFNode> matches =
-                properties.listObjectsOfProperty(graphNode, properties.createProperty(attributeId.toString()));
+        private static ResourceProperties error(final String message) {
+            return new ResourceProperties(new Status(singletonList(STATUS_PROCESSING_ERROR), message));
+        }
 
-        final Set<AttributeValue> attr_bag = new HashSet<>();
+        /**
+         * Get the values of a predicate, from its resolver if it has one, and otherwise reading the properties of the
+         * resource if the predicate has not been read. The first read fetches every predicate the policies refer to.
+         *
+         * @param predicate the predicate URI
+         * @return the objects of matching triples
+         */
+        private List<Node> valuesOf(final String predicate) {
+            final ResourceAttributeResolver resolver = resolvers.get(predicate);
+            if (resolver != null) {
+                return values.computeIfAbsent(predicate, p -> resolver.resolve(resource));
+            }
+            if (!values.containsKey(predicate)) {
+                final Set<String> wanted = new HashSet<>(referenced);
+                wanted.add(predicate);
+                wanted.removeAll(values.keySet());
+                wanted.forEach(p -> values.put(p, new ArrayList<>()));
+
+                try {
+                    final Set<String> unmapped = readProperties(wanted);
+                    if (!unmapped.isEmpty()) {
+                        try (final Stream<Triple> triples = resource.getTriples(idTranslator, PROPERTIES)) {
+                            triples.filter(t -> t.getSubject().equals(subject))
+                                    .filter(t -> unmapped.contains(t.getPredicate().getURI()))
+                                    .forEach(t -> values.get(t.getPredicate().getURI()).add(t.getObject()));
+                        }
+                    }
+                } catch (final RepositoryRuntimeException e) {
+                    wanted.forEach(values::remove);
+                    throw e;
+                }
+            }
+            return values.get(predicate);
+        }
 
-        // Add the properties to the bag
-        while (matches.hasNext()) {
-            final RDFNode match = matches.next();
-            final String uri = match.asResource().getURI();
-            LOGGER.debug("Found property: {}", uri);
-            attr_bag.add(new AnyURIAttribute(URI.create(uri)));
+        /**
+         * Read predicates from the JCR properties they are stored in. Server managed predicates, predicates in an
+         * unregistered namespace, and the properties of binaries, whose user properties live on their description,
+         * are left to the triples.
+         *
+         * @param predicates the predicate URIs
+         * @return the predicates that could not be read directly
+         */
+        private Set<String> readProperties(final Set<String> predicates) {
+            if (!(resource instanceof FedoraResourceImpl) || resource instanceof FedoraBinary) {
+                return predicates;
+            }
+            final javax.jcr.Node node = ((FedoraResourceImpl) resource).getNode();
+            final ValueConverter valueConverter = new ValueConverter(jcrSession, idTranslator);
+            final Set<String> unmapped = new HashSet<>();
+            try {
+                for (final String predicate : predicates) {
+                    final String name = propertyNameOf(predicate);
+                    if (name == null) {
+                        unmapped.add(predicate);
+                        continue;
+                    }
+                    for (final String propertyName : asList(name, getReferencePropertyName(name))) {
+                        for (final Value value : propertyValues(node, propertyName)) {
+                            values.get(predicate).add(valueConverter.convert(value).asNode());
+                        }
+                    }
+                }
+            } catch (final RepositoryException e) {
+                throw new RepositoryRuntimeException(e);
+            }
+            return unmapped;
         }
 
-        // Return the results, or any empty bag
-        if (attr_bag.isEmpty()) {
-            LOGGER.debug("No matching properties found");
-            return new EvaluationResult(empty_bag);
+        /**
+         * Get the name of the JCR property a predicate is stored in.
+         *
+         * @param predicate the predicate URI
+         * @return the property name, or null if the predicate is not stored as a property of its own
+         * @throws RepositoryException if the namespace registry cannot be read
+         */
+        private String propertyNameOf(final String predicate) throws RepositoryException {
+            final Property property = createProperty(predicate);
+            if (isManagedPredicate.test(property) || property.getLocalName().isEmpty()) {
+                return null;
+            }
+            try {
+                final String prefix = jcrSession.getNamespacePrefix(property.getNameSpace());
+                if (prefix == null) {
+                    return null;
+                }
+                return prefix.isEmpty() ? property.getLocalName() : prefix + ":" + property.getLocalName();
+            } catch (final NamespaceException e) {
+                return null;
+            }
         }
 
-        return new EvaluationResult(new BagAttribute(attributeType, attr_bag));
+        private static Value[] propertyValues(final javax.jcr.Node node, final String name)
+                throws RepositoryException {
+            if (!node.hasProperty(name)) {
+                return new Value[0];
+            }
+            final javax.jcr.Property property = node.getProperty(name);
+            return property.isMultiple() ? property.getValues() : new Value[] { property.getValue() };
+        }
     }
 
 }
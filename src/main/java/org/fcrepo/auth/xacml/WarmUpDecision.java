@@ -0,0 +1,129 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.emptySet;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A synthetic authorization request replayed during warm-up. Decisions are listed one per line as
+ *
+ * <pre>
+ * path actions [roles [user]]
+ * </pre>
+ *
+ * where the path is an expanded node path and actions and roles are comma-separated. Blank lines and lines starting
+ * with <code>#</code> are ignored.
+ *
+ * @author agent
+ */
+public final class WarmUpDecision {
+
+    /**
+     * The user of decisions that name none.
+     */
+    public static final String DEFAULT_USER = "xacml-warmup";
+
+    private final String path;
+
+    private final String[] actions;
+
+    private final Set<String> roles;
+
+    private final String user;
+
+    /**
+     * Constructor
+     *
+     * @param path the expanded node path
+     * @param actions the requested actions
+     * @param roles the effective roles
+     * @param user the user principal name
+     */
+    public WarmUpDecision(final String path, final String[] actions, final Set<String> roles, final String user) {
+        this.path = path;
+        this.actions = actions.clone();
+        this.roles = roles;
+        this.user = user;
+    }
+
+    /**
+     * Read decisions from a file.
+     *
+     * @param file the file
+     * @return the decisions, in file order
+     * @throws IOException if the file cannot be read
+     */
+    public static List<WarmUpDecision> load(final Path file) throws IOException {
+        final List<WarmUpDecision> decisions = new ArrayList<>();
+        int number = 0;
+        for (final String line : Files.readAllLines(file, UTF_8)) {
+            number++;
+            final String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            final String[] fields = trimmed.split("\\s+");
+            if (fields.length < 2 || fields.length > 4) {
+                throw new IllegalArgumentException("Malformed warm-up decision at " + file + ":" + number);
+            }
+            final Set<String> roles = fields.length > 2 ? new HashSet<>(Arrays.asList(fields[2].split(",")))
+                    : emptySet();
+            decisions.add(new WarmUpDecision(fields[0], fields[1].split(","), roles,
+                    fields.length > 3 ? fields[3] : DEFAULT_USER));
+        }
+        return decisions;
+    }
+
+    /**
+     * @return the expanded node path
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the requested actions
+     */
+    public String[] getActions() {
+        return actions.clone();
+    }
+
+    /**
+     * @return the effective roles
+     */
+    public Set<String> getRoles() {
+        return roles;
+    }
+
+    /**
+     * @return the user principal name
+     */
+    public String getUser() {
+        return user;
+    }
+}
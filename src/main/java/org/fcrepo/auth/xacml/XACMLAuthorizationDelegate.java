@@ -17,26 +17,46 @@
  */
 package org.fcrepo.auth.xacml;
 
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_ENVIRONMENT_ORIGINAL_IP_ADDRESS;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_GROUP;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.ENVIRONMENT_TARGET;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.SUBJECT_TARGET;
+
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Paths;
 import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.jcr.Session;
 import javax.servlet.http.HttpServletRequest;
 
 import org.fcrepo.auth.roles.common.AbstractRolesAuthorizationDelegate;
+import org.jboss.security.xacml.sunxacml.AbstractPolicy;
 import org.jboss.security.xacml.sunxacml.EvaluationCtx;
+import org.jboss.security.xacml.sunxacml.MatchResult;
 import org.jboss.security.xacml.sunxacml.PDP;
 import org.jboss.security.xacml.sunxacml.ctx.ResponseCtx;
 import org.jboss.security.xacml.sunxacml.ctx.Result;
+import org.jboss.security.xacml.sunxacml.finder.AttributeFinder;
 import org.jboss.security.xacml.sunxacml.finder.impl.CurrentEnvModule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
+import com.google.common.cache.CacheStats;
+
 /**
  * Responsible for resolving Fedora's permissions within ModeShape via a XACML
  * Policy Decision Point (PDP).
@@ -49,6 +69,66 @@ public class XACMLAuthorizationDelegate extends AbstractRolesAuthorizationDelega
 
     public static final String EVERYONE_NAME = "EVERYONE";
 
+    /**
+     * System property enabling the decision cache.
+     */
+    public static final String DECISION_CACHE_ENABLED = "fcrepo.xacml.decision.cache.enabled";
+
+    /**
+     * System property for the maximum number of cached decisions.
+     */
+    public static final String DECISION_CACHE_SIZE = "fcrepo.xacml.decision.cache.size";
+
+    /**
+     * System property for the time-to-live of cached decisions, in seconds.
+     */
+    public static final String DECISION_CACHE_TTL = "fcrepo.xacml.decision.cache.ttl";
+
+    /**
+     * System property enabling the memo of decisions made within one request.
+     */
+    public static final String REQUEST_MEMO_ENABLED = "fcrepo.xacml.request.memo.enabled";
+
+    /**
+     * System property for the most decisions remembered within one request.
+     */
+    public static final String REQUEST_MEMO_SIZE = "fcrepo.xacml.request.memo.size";
+
+    /**
+     * System property enabling the partial evaluation of policies against the subject.
+     */
+    public static final String RESIDUAL_POLICIES_ENABLED = "fcrepo.xacml.residual.enabled";
+
+    /**
+     * System property for the most residual policies retained, one for each subject class and policy.
+     */
+    public static final String RESIDUAL_POLICIES_SIZE = "fcrepo.xacml.residual.size";
+
+    /**
+     * System property enabling warm-up after initialization; {@link #isReady()} tells when it has finished.
+     */
+    public static final String WARMUP_ENABLED = "fcrepo.xacml.warmup.enabled";
+
+    /**
+     * System property naming a file of synthetic decisions to replay during warm-up.
+     */
+    public static final String WARMUP_DECISIONS = "fcrepo.xacml.warmup.decisions";
+
+    /**
+     * System property for how many times the warm-up decisions are replayed.
+     */
+    public static final String WARMUP_ITERATIONS = "fcrepo.xacml.warmup.iterations";
+
+    private static final int DEFAULT_WARMUP_ITERATIONS = 100;
+
+    private static final long DEFAULT_DECISION_CACHE_SIZE = 10000;
+
+    private static final long DEFAULT_DECISION_CACHE_TTL = 60;
+
+    private static final int DEFAULT_REQUEST_MEMO_SIZE = 10000;
+
+    private static final long DEFAULT_RESIDUAL_POLICIES_SIZE = 1000;
+
     /**
      * The security principal for every request, that represents the "EVERYONE" user.
      */
@@ -90,6 +170,11 @@ public class XACMLAuthorizationDelegate extends AbstractRolesAuthorizationDelega
      */
     private final CurrentEnvModule currentEnvironmentAttributeModule = new CurrentEnvModule();
 
+    /**
+     * The attribute finder shared by every evaluation context, configured once the modules are injected.
+     */
+    private AttributeFinder attributeFinder = null;
+
     /**
      * The triple-based resource attribute finder module.
      */
@@ -102,6 +187,38 @@ public class XACMLAuthorizationDelegate extends AbstractRolesAuthorizationDelega
     @Inject
     private SparqlResourceAttributeFinderModule sparqlResourceAttributeFinderModule;
 
+    @Inject
+    private FedoraPolicyFinderModule fedoraPolicyFinderModule;
+
+    @Inject
+    private PolicyAttributeRegistry policyAttributeRegistry;
+
+    @Inject
+    private InvalidationPipeline invalidationPipeline;
+
+    @Inject
+    private InternalSessionPool sessionPool;
+
+    /**
+     * The optional decision cache, null when disabled.
+     */
+    private DecisionCache decisionCache = null;
+
+    /**
+     * The memo of decisions made within one request, null when disabled.
+     */
+    private RequestDecisionMemo requestMemo = null;
+
+    /**
+     * The residuals of policies partially evaluated against the subject, null when disabled.
+     */
+    private ResidualPolicyCache residualPolicies = null;
+
+    /**
+     * Whether warm-up, if enabled, has finished.
+     */
+    private volatile boolean ready = true;
+
     /**
      * Configures the delegate.
      */
@@ -111,6 +228,135 @@ public class XACMLAuthorizationDelegate extends AbstractRolesAuthorizationDelega
         if (pdp == null) {
             throw new Error("There is no PDP wired by the factory in the Spring context.");
         }
+
+        // Triple attribute finder will look in modeshape for any valid
+        // predicate URI, therefore it falls last in this list.
+        final AttributeFinder finder = new AttributeFinder();
+        finder.setModules(Arrays.asList(currentEnvironmentAttributeModule, sparqlResourceAttributeFinderModule,
+                tripleResourceAttributeFinderModule));
+        attributeFinder = finder;
+
+        if (Boolean.getBoolean(DECISION_CACHE_ENABLED)) {
+            final long size = Long.getLong(DECISION_CACHE_SIZE, DEFAULT_DECISION_CACHE_SIZE);
+            final long ttl = Long.getLong(DECISION_CACHE_TTL, DEFAULT_DECISION_CACHE_TTL);
+            decisionCache = new DecisionCache(size, ttl);
+            invalidationPipeline.register(decisionCache);
+            invalidationPipeline.registerPolicyMatcher(fedoraPolicyFinderModule::affectsPolicy);
+            invalidationPipeline.start();
+            LOGGER.info("XACML decision cache enabled, size: {}, TTL: {}s", size, ttl);
+        }
+
+        if (Boolean.getBoolean(REQUEST_MEMO_ENABLED)) {
+            requestMemo = new RequestDecisionMemo(Integer.getInteger(REQUEST_MEMO_SIZE, DEFAULT_REQUEST_MEMO_SIZE));
+            invalidationPipeline.register(requestMemo);
+            invalidationPipeline.start();
+        }
+
+        if (Boolean.getBoolean(RESIDUAL_POLICIES_ENABLED)) {
+            residualPolicies = new ResidualPolicyCache(Long.getLong(RESIDUAL_POLICIES_SIZE,
+                    DEFAULT_RESIDUAL_POLICIES_SIZE));
+        }
+
+        if (Boolean.getBoolean(WARMUP_ENABLED)) {
+            ready = false;
+            LOGGER.info("XACML warm-up started, isReady() reports false until it finishes");
+            final Thread warmUp = new Thread(this::warmUp, "xacml-warmup");
+            warmUp.setDaemon(true);
+            warmUp.start();
+        }
+    }
+
+    /**
+     * Tell whether the delegate is ready to serve decisions at full speed: warm-up is disabled, or has finished.
+     * Decisions are served during warm-up too, only more slowly. A deployment that enables warm-up and wants to keep
+     * traffic away until it is done should have its readiness check poll this method on the delegate, the Spring
+     * bean named "fad", and report ready only once it returns true. Completion is also logged, as "XACML
+     * authorization ready".
+     *
+     * @return whether warm-up has finished
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Load and link every assigned policy, then replay the configured synthetic decisions so that the evaluation
+     * path is compiled before real requests arrive.
+     */
+    private void warmUp() {
+        final long start = System.nanoTime();
+        try {
+            final PolicySnapshot snapshot = fedoraPolicyFinderModule.getPolicySnapshot();
+            LOGGER.info("XACML warm-up loaded {} policies in {} ms",
+                    snapshot == null ? 0 : snapshot.getPolicies().size(),
+                    NANOSECONDS.toMillis(System.nanoTime() - start));
+
+            final String file = System.getProperty(WARMUP_DECISIONS);
+            if (file != null) {
+                final List<WarmUpDecision> decisions = WarmUpDecision.load(Paths.get(file));
+                final int iterations = Integer.getInteger(WARMUP_ITERATIONS, DEFAULT_WARMUP_ITERATIONS);
+                final long replayStart = System.nanoTime();
+                int failures = 0;
+                for (int i = 0; i < iterations; i++) {
+                    for (final WarmUpDecision decision : decisions) {
+                        try {
+                            evaluate(buildEvaluationContext(decision));
+                        } catch (final RuntimeException e) {
+                            failures++;
+                            LOGGER.debug("Warm-up decision for {} failed", decision.getPath(), e);
+                        }
+                    }
+                }
+                LOGGER.info("XACML warm-up replayed {} decisions {} times in {} ms, {} failed", decisions.size(),
+                        iterations, NANOSECONDS.toMillis(System.nanoTime() - replayStart), failures);
+            }
+        } catch (final IOException | RuntimeException e) {
+            LOGGER.warn("XACML warm-up did not complete", e);
+        } finally {
+            ready = true;
+            LOGGER.info("XACML authorization ready after {} ms of warm-up",
+                    NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Releases the decision cache.
+     */
+    @PreDestroy
+    public final void destroy() {
+        if (decisionCache != null) {
+            invalidationPipeline.unregister(decisionCache);
+        }
+        if (requestMemo != null) {
+            invalidationPipeline.unregister(requestMemo);
+        }
+    }
+
+    /**
+     * Get the statistics of the memo of decisions made within one request.
+     *
+     * @return the hit and miss counts, or null if the memo is disabled
+     */
+    public CacheStats getRequestMemoStats() {
+        return requestMemo == null ? null : requestMemo.stats();
+    }
+
+    /**
+     * Get the statistics of the cache of residual policies.
+     *
+     * @return the hit, miss and eviction counts, or null if partial evaluation is disabled
+     */
+    public CacheStats getResidualPolicyStats() {
+        return residualPolicies == null ? null : residualPolicies.stats();
+    }
+
+    /**
+     * Get the statistics of the decision cache.
+     *
+     * @return the hit, miss and eviction counts, or null if the cache is disabled
+     */
+    public CacheStats getDecisionCacheStats() {
+        return decisionCache == null ? null : decisionCache.stats();
     }
 
     /*
@@ -124,15 +370,202 @@ public class XACMLAuthorizationDelegate extends AbstractRolesAuthorizationDelega
                                        final String absPath,
                                        final String[] actions,
                                        final Set<String> roles) {
+        warnDeprecated();
+
+        // ModeShape checks the same node and each of its properties many times while serving one request
+        final String checkPath = foldedPath(absPath, actions);
+        final long memoEpoch = requestMemo == null ? 0 : requestMemo.getEpoch();
+        // The PDP evaluates this snapshot or a newer one, so a decision is only as current as this snapshot
+        final PolicySnapshot snapshot = fedoraPolicyFinderModule.getPolicySnapshot();
+        final long policyGeneration = policyGenerationOf(snapshot);
+        final DecisionCache.Key key = decisionCache == null ? null : decisionKey(session, checkPath, actions, roles);
+        final Boolean recalled = recall(session, checkPath, actions, roles, key, memoEpoch);
+        if (recalled != null) {
+            return recalled;
+        }
+
+        final boolean permit = decide(session, snapshot, absPath, actions, roles, subjectOf(session, roles));
+
+        LOGGER.debug("Request for actions: {}, on path: {}, with roles: {}. Permission={}",
+                     actions,
+                     absPath,
+                     roles,
+                     permit);
+
+        retain(session, checkPath, actions, roles, key, memoEpoch, policyGeneration, permit);
+        return permit;
+    }
+
+    /**
+     * Decide many checks made by one session at once, such as whether each child of a container may be read.
+     * Checks already remembered for the request, or cached, are answered without evaluation. The others are decided
+     * exactly as single checks are, against one policy snapshot, with the subject attributes built once for each
+     * set of roles and one pooled session held for the whole batch. Checks that fold to the same decision are
+     * evaluated once.
+     *
+     * @param session the session of the request
+     * @param checks the checks
+     * @return the decision for each check, in the order of the checks
+     */
+    public boolean[] rolesHavePermission(final Session session, final List<PermissionCheck> checks) {
+        warnDeprecated();
+
+        final boolean[] permits = new boolean[checks.size()];
+        final long memoEpoch = requestMemo == null ? 0 : requestMemo.getEpoch();
+        final PolicySnapshot snapshot = fedoraPolicyFinderModule.getPolicySnapshot();
+        final long policyGeneration = policyGenerationOf(snapshot);
+
+        final String[] checkPaths = new String[checks.size()];
+        final DecisionCache.Key[] keys = new DecisionCache.Key[checks.size()];
+        final List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < checks.size(); i++) {
+            final PermissionCheck check = checks.get(i);
+            checkPaths[i] = foldedPath(check.getPath(), check.getActions());
+            keys[i] = decisionCache == null ? null :
+                    decisionKey(session, checkPaths[i], check.getActions(), check.getRoles());
+            final Boolean recalled = recall(session, checkPaths[i], check.getActions(), check.getRoles(), keys[i],
+                    memoEpoch);
+            if (recalled != null) {
+                permits[i] = recalled;
+                continue;
+            }
+            pending.add(i);
+        }
+
+        final Map<Set<String>, FedoraEvaluationCtxBuilder> subjects = new HashMap<>();
+        final Map<List<Object>, Boolean> decided = new HashMap<>();
+        int evaluated = 0;
+        try (final InternalSessionPool.Lease lease = sessionPool.lease()) {
+            for (final int i : pending) {
+                final PermissionCheck check = checks.get(i);
+                final List<Object> decision = Arrays.asList(checkPaths[i], Arrays.asList(check.getActions()),
+                        check.getRoles());
+                final Boolean known = decided.get(decision);
+                if (known != null) {
+                    permits[i] = known;
+                    continue;
+                }
+                final boolean permit = decide(session, snapshot, check.getPath(), check.getActions(),
+                        check.getRoles(), subjects.computeIfAbsent(check.getRoles(),
+                                roles -> subjectOf(session, roles)));
+                evaluated++;
+                permits[i] = permit;
+                decided.put(decision, permit);
+                retain(session, checkPaths[i], check.getActions(), check.getRoles(), keys[i], memoEpoch,
+                        policyGeneration, permit);
+            }
+        }
+        LOGGER.debug("Decided {} checks, {} evaluated", checks.size(), evaluated);
+        return permits;
+    }
+
+    /**
+     * Evaluate a check. With residual policies enabled, the effective policy of the path is found in the snapshot
+     * and its residual for the subject evaluated directly, as the PDP would evaluate the policy once found;
+     * otherwise, or if the snapshot holds no policy for the path, the PDP decides.
+     *
+     * @param session the session of the request
+     * @param snapshot the policy snapshot read for the request, or null
+     * @param absPath the node or property path
+     * @param actions the requested actions
+     * @param roles the effective roles
+     * @param subject the subject attributes for the roles
+     * @return whether the check is permitted
+     */
+    private boolean decide(final Session session, final PolicySnapshot snapshot, final String absPath,
+                           final String[] actions, final Set<String> roles, final FedoraEvaluationCtxBuilder subject) {
+        final EvaluationCtx evaluationCtx = buildEvaluationContext(session, absPath, actions, subject);
+        final String policyPath = residualPolicies == null || snapshot == null ? null :
+                snapshot.findEffectivePolicy(absPath);
+        if (policyPath == null || snapshot.getPolicy(policyPath) == null) {
+            return isPermit(evaluate(evaluationCtx));
+        }
+        try (final InternalSessionPool.Lease lease = sessionPool.lease()) {
+            final AbstractPolicy residual = residualOf(snapshot, policyPath, session, roles, evaluationCtx);
+            return residual != null && isPermit(residual, evaluationCtx);
+        }
+    }
+
+    private void warnDeprecated() {
         LOGGER.warn("===========================");
         LOGGER.warn("This authorization provider is deprecated and will be removed in a future release of Fedora: {}",
                 this.getClass());
         LOGGER.warn("===========================");
+    }
 
-        final EvaluationCtx evaluationCtx = buildEvaluationContext(session, absPath, actions, roles);
-        final ResponseCtx resp = pdp.evaluate(evaluationCtx);
+    /**
+     * Get the policy generation a decision evaluated against a snapshot reflects.
+     *
+     * @param snapshot the snapshot, or null if the policies are not held in one
+     * @return the generation of the snapshot, or the current generation of the invalidation pipeline
+     */
+    private long policyGenerationOf(final PolicySnapshot snapshot) {
+        if (decisionCache == null && requestMemo == null) {
+            return 0;
+        }
+        return snapshot == null ? invalidationPipeline.getGeneration() : snapshot.getGeneration();
+    }
 
-        boolean permit = true;
+    /**
+     * Get a decision already remembered for the request, or cached.
+     *
+     * @return the decision, or null if it must be evaluated
+     */
+    private Boolean recall(final Session session, final String checkPath, final String[] actions,
+                           final Set<String> roles, final DecisionCache.Key key, final long memoEpoch) {
+        if (requestMemo != null) {
+            final Boolean remembered = requestMemo.get(session, checkPath, actions, roles);
+            if (remembered != null) {
+                LOGGER.debug("Remembered decision for actions: {}, on path: {}, with roles: {}. Permission={}",
+                        actions, checkPath, roles, remembered);
+                return remembered;
+            }
+        }
+        if (key != null) {
+            final Boolean cached = decisionCache.get(key);
+            if (cached != null) {
+                LOGGER.debug("Cached decision for actions: {}, on path: {}, with roles: {}. Permission={}",
+                        actions, checkPath, roles, cached);
+                if (requestMemo != null) {
+                    requestMemo.put(session, checkPath, actions, roles, memoEpoch, cached);
+                }
+                return cached;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Keep an evaluated decision in the decision cache and the request memo.
+     */
+    private void retain(final Session session, final String checkPath, final String[] actions,
+                        final Set<String> roles, final DecisionCache.Key key, final long memoEpoch,
+                        final long policyGeneration, final boolean permit) {
+        // Do not cache a decision reached while newly loaded policies changed what the key must contain, or against
+        // a snapshot that a policy change has already made stale, even if the new snapshot is not swapped in yet
+        if (key != null && key.getGeneration() == policyAttributeRegistry.getGeneration() &&
+                policyGeneration == invalidationPipeline.getGeneration()) {
+            decisionCache.put(key, permit);
+            // A change translated since the check may have cleared the cache before the decision was put
+            if (policyGeneration != invalidationPipeline.getGeneration()) {
+                decisionCache.remove(key);
+            }
+        }
+        // The memo epoch moves on when the memo is invalidated, which may come before the snapshot is swapped
+        if (requestMemo != null && policyGeneration == invalidationPipeline.getGeneration()) {
+            requestMemo.put(session, checkPath, actions, roles, memoEpoch, permit);
+            if (LOGGER.isDebugEnabled()) {
+                final CacheStats stats = requestMemo.stats();
+                LOGGER.debug("Request memo hits: {}, misses: {}, hit rate: {}", stats.hitCount(), stats.missCount(),
+                        stats.hitRate());
+            }
+        }
+    }
+
+    /**
+     * @return whether every result of a response permits the request
+     */
+    private static boolean isPermit(final ResponseCtx resp) {
         for (final Object o : resp.getResults()) {
             final Result res = (Result) o;
             if (LOGGER.isDebugEnabled()) {
@@ -144,17 +577,151 @@ public class XACMLAuthorizationDelegate extends AbstractRolesAuthorizationDelega
                 }
             }
             if (Result.DECISION_PERMIT != res.getDecision()) {
-                permit = false;
-                break;
+                return false;
             }
         }
+        return true;
+    }
 
-        LOGGER.debug("Request for actions: {}, on path: {}, with roles: {}. Permission={}",
-                     actions,
-                     absPath,
-                     roles,
-                     permit);
-        return permit;
+    /**
+     * Evaluate a context against the policy it was found to fall under, as the PDP would once the policy is found.
+     *
+     * @return whether the policy applies and permits the request
+     */
+    private boolean isPermit(final AbstractPolicy policy, final EvaluationCtx evaluationCtx) {
+        if (pdp instanceof CompiledPDP) {
+            return ((CompiledPDP) pdp).evaluate(policy, evaluationCtx) == Result.DECISION_PERMIT;
+        }
+        final MatchResult match = policy.match(evaluationCtx);
+        return match.getResult() == MatchResult.MATCH &&
+                policy.evaluate(evaluationCtx).getDecision() == Result.DECISION_PERMIT;
+    }
+
+    /**
+     * Get the residual of a policy of the snapshot for the subject of a request, or the policy itself when partial
+     * evaluation is disabled or the loaded policies could tell apart requests of the same subject.
+     *
+     * @return the residual, or null if the policy cannot apply to the subject
+     */
+    private AbstractPolicy residualOf(final PolicySnapshot snapshot, final String policyPath, final Session session,
+                                      final Set<String> roles, final EvaluationCtx evaluationCtx) {
+        final long generation = policyAttributeRegistry.getGeneration();
+        if (residualPolicies == null || !PolicyPartialEvaluator.canEvaluate(policyAttributeRegistry)) {
+            return snapshot.getPolicy(policyPath);
+        }
+        return residualPolicies.get(snapshot, policyPath, subjectFingerprint(session, roles), generation,
+                evaluationCtx);
+    }
+
+    /**
+     * Get the path under which the decision for a check is remembered. Checks made with set_property or add_node
+     * are resolved against the parent of their path, so sibling paths lead to the same decision unless a policy
+     * can tell their resource IDs apart, or a policy is assigned to one of them. Such siblings share one path made
+     * of the parent and the signature of the resource ID; every other check keeps its own path.
+     *
+     * @return the path to remember the decision under
+     */
+    private String foldedPath(final String absPath, final String[] actions) {
+        final int index = absPath.lastIndexOf("/{");
+        final List<String> actionList = Arrays.asList(actions);
+        if (index < 0 || !actionList.contains("set_property") && !actionList.contains("add_node")) {
+            return absPath;
+        }
+        // Loading the snapshot registers the policies, so it comes before the signature
+        final PolicySnapshot snapshot = fedoraPolicyFinderModule.getPolicySnapshot();
+        if (snapshot == null || snapshot.getAssignments().containsKey(absPath)) {
+            return absPath;
+        }
+        final String signature = policyAttributeRegistry.getResourceIdSignature(absPath);
+        if (signature == null) {
+            return absPath;
+        }
+        // No JCR name contains '*', so a folded path cannot be mistaken for the path of a resource
+        return absPath.substring(0, index) + "/*" + signature;
+    }
+
+    /**
+     * Evaluates a decision while holding one pooled session, so that every finder module reads through it.
+     */
+    private ResponseCtx evaluate(final EvaluationCtx evaluationCtx) {
+        try (final InternalSessionPool.Lease lease = sessionPool.lease()) {
+            return pdp.evaluate(evaluationCtx);
+        }
+    }
+
+    /**
+     * Builds the decision cache key for a request.
+     *
+     * @return the key, or null if the decision may depend on something the key cannot capture
+     */
+    private DecisionCache.Key decisionKey(final Session session,
+                                          final String absPath,
+                                          final String[] actions,
+                                          final Set<String> roles) {
+        final long generation = policyAttributeRegistry.getGeneration();
+        if (policyAttributeRegistry.usesSelectors()) {
+            return null;
+        }
+
+        // Environment attributes other than the request IP, such as the current time, vary on every request
+        String environment = null;
+        for (final URI id : policyAttributeRegistry.getReferenced(ENVIRONMENT_TARGET)) {
+            if (!ATTRIBUTEID_ENVIRONMENT_ORIGINAL_IP_ADDRESS.equals(id)) {
+                return null;
+            }
+        }
+        if (policyAttributeRegistry.isReferenced(ATTRIBUTEID_ENVIRONMENT_ORIGINAL_IP_ADDRESS)) {
+            environment = ((HttpServletRequest) session.getAttribute(FEDORA_SERVLET_REQUEST)).getRemoteAddr();
+        }
+
+        return new DecisionCache.Key(subjectFingerprint(session, roles), absPath, actions, environment, generation);
+    }
+
+    /**
+     * Computes the fingerprint of the subject of a session's requests with the given roles, which leaves out the
+     * attributes no loaded policy refers to.
+     */
+    private SubjectFingerprint subjectFingerprint(final Session session, final Set<String> roles) {
+        final Principal user = (Principal) session.getAttribute(FEDORA_USER_PRINCIPAL);
+        Set<String> groups = null;
+        if (policyAttributeRegistry.isReferenced(SUBJECT_TARGET, FCREPO_SUBJECT_GROUP)) {
+            @SuppressWarnings("unchecked")
+            final Set<Principal> allGroups = (Set<Principal>) session.getAttribute(FEDORA_ALL_PRINCIPALS);
+            groups = new HashSet<>();
+            if (allGroups != null) {
+                for (final Principal group : allGroups) {
+                    if (!group.equals(user)) {
+                        groups.add(group.getName());
+                    }
+                }
+            }
+        }
+        return SubjectFingerprint.of(user.getName(), roles, groups, policyAttributeRegistry);
+    }
+
+    /**
+     * Builds the subject of a session's requests with the given roles, which can be shared by the contexts of many
+     * requests.
+     *
+     * @param session the ModeShape session
+     * @param roles the effective roles
+     * @return a builder holding only the subject
+     */
+    private FedoraEvaluationCtxBuilder subjectOf(final Session session, final Set<String> roles) {
+        final FedoraEvaluationCtxBuilder builder = new FedoraEvaluationCtxBuilder(attributeFinder);
+        LOGGER.debug("effective roles: {}", roles);
+
+        final Principal user = (Principal) session.getAttribute(FEDORA_USER_PRINCIPAL);
+        builder.addSubject(user.getName(), roles);
+
+        // the user's groups are only looked up if a policy asks for them
+        builder.addGroups(user, () -> {
+            @SuppressWarnings("unchecked")
+            final Set<Principal> allGroups = (Set<Principal>) session.getAttribute(FEDORA_ALL_PRINCIPALS);
+            LOGGER.debug("effective groups: {}", allGroups);
+            return allGroups;
+        });
+        return builder;
     }
 
     /**
@@ -164,57 +731,37 @@ public class XACMLAuthorizationDelegate extends AbstractRolesAuthorizationDelega
      * @param session the ModeShape session
      * @param absPath the node or property path
      * @param actions the actions requested
+     * @param subject the subject of the request
      * @return an attribute finder
      */
     private EvaluationCtx buildEvaluationContext(final Session session,
                                                  final String absPath,
                                                  final String[] actions,
-                                                 final Set<String> roles) {
-        final FedoraEvaluationCtxBuilder builder = new FedoraEvaluationCtxBuilder();
-        builder.addFinderModule(currentEnvironmentAttributeModule);
-        builder.addFinderModule(sparqlResourceAttributeFinderModule);
-
-        // A subject attribute finder prototype is injected with Session
-        // AttributeFinderModule subjectAttributeFinder = null;
-        // if (applicationContext
-        // .containsBeanDefinition(SUBJECT_ATTRIBUTE_FINDER_BEAN)) {
-        // subjectAttributeFinder =
-        // (AttributeFinderModule) applicationContext.getBean(
-        // SUBJECT_ATTRIBUTE_FINDER_BEAN, session);
-        // builder.addFinderModule(subjectAttributeFinder);
-        // }
-
-        // environment attribute finder is injected with Session
-        // AttributeFinderModule environmentAttributeFinder = null;
-        // if (applicationContext
-        // .containsBeanDefinition(ENVIRONMENT_ATTRIBUTE_FINDER_BEAN)) {
-        // environmentAttributeFinder =
-        // (AttributeFinderModule) applicationContext.getBean(
-        // ENVIRONMENT_ATTRIBUTE_FINDER_BEAN, session);
-        // builder.addFinderModule(environmentAttributeFinder);
-        // }
-
-        // Triple attribute finder will look in modeshape for any valid
-        // predicate URI, therefore it falls last in this list.
-        builder.addFinderModule(tripleResourceAttributeFinderModule);
-        LOGGER.debug("effective roles: {}", roles);
-
-        final Principal user = (Principal) session.getAttribute(FEDORA_USER_PRINCIPAL);
-        builder.addSubject(user.getName(), roles);
+                                                 final FedoraEvaluationCtxBuilder subject) {
+        final FedoraEvaluationCtxBuilder builder = new FedoraEvaluationCtxBuilder(attributeFinder);
+        builder.addSubjects(subject);
         builder.addResourceID(absPath);
-        builder.addWorkspace(session.getWorkspace().getName());
         builder.addActions(actions);
 
-        // add the original IP address
-        final HttpServletRequest request = (HttpServletRequest) session.getAttribute(FEDORA_SERVLET_REQUEST);
-        builder.addOriginalRequestIP(request.getRemoteAddr());
+        // the workspace and the original IP address are only looked up if a policy asks for them
+        builder.addWorkspace(() -> session.getWorkspace().getName());
+        builder.addOriginalRequestIP(() -> {
+            final HttpServletRequest request = (HttpServletRequest) session.getAttribute(FEDORA_SERVLET_REQUEST);
+            return request == null ? null : request.getRemoteAddr();
+        });
 
-        // add user's groups
-        @SuppressWarnings("unchecked")
-        final Set<Principal> allGroups = (Set<Principal>) session.getAttribute(FEDORA_ALL_PRINCIPALS);
-        LOGGER.debug("effective groups: {}", allGroups);
-        builder.addGroups(user, allGroups);
+        return builder.build();
+    }
 
+    /**
+     * Builds the evaluation context of a synthetic warm-up decision, which has no session behind it.
+     */
+    private EvaluationCtx buildEvaluationContext(final WarmUpDecision decision) {
+        final FedoraEvaluationCtxBuilder builder = new FedoraEvaluationCtxBuilder(attributeFinder);
+        builder.addSubject(decision.getUser(), decision.getRoles());
+        builder.addResourceID(decision.getPath());
+        builder.addWorkspace("default");
+        builder.addActions(decision.getActions());
         return builder.build();
     }
 
@@ -17,10 +17,19 @@
  */
 package org.fcrepo.auth.xacml;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
 import java.net.URL;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 import javax.jcr.Node;
@@ -37,12 +46,21 @@ import org.fcrepo.kernel.api.models.FedoraBinary;
 import org.fcrepo.kernel.api.services.BinaryService;
 
 import org.apache.commons.io.FileUtils;
+import org.jboss.security.xacml.sunxacml.ParsingException;
+import org.jboss.security.xacml.sunxacml.Policy;
+import org.jboss.security.xacml.sunxacml.PolicySet;
 import org.modeshape.jcr.api.nodetype.NodeTypeManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
 
 import com.google.common.collect.ImmutableList;
 
+import static java.util.Collections.singleton;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.stream.Collectors.toList;
 import static org.fcrepo.kernel.modeshape.FedoraSessionImpl.getJcrSession;
 
 /**
@@ -66,6 +84,14 @@ public class XACMLWorkspaceInitializer {
     @Inject
     private BinaryService binaryService;
 
+    @Inject
+    private PolicyParser policyParser;
+
+    /**
+     * The IDs of the initial policies, by file.
+     */
+    private final Map<File, String> policyIds = new ConcurrentHashMap<>();
+
     private final File initialPoliciesDirectory;
 
     private final File initialRootPolicyFile;
@@ -153,28 +179,83 @@ public class XACMLWorkspaceInitializer {
 
     /**
      * Create nodes for the default XACML policy set. Policies are created at paths according to their IDs.
+     *
+     * Files are read, digested and parsed in parallel, so that an invalid policy fails startup before anything is
+     * written. Binaries whose content digest already matches their file are left alone, and the others are written
+     * in a single commit.
      */
     private void loadInitialPolicies() {
+        final long start = System.nanoTime();
+        final List<InitialPolicy> policies = Arrays.stream(initialPoliciesDirectory.listFiles()).parallel()
+                .map(this::readPolicy).collect(toList());
+        final long parsed = System.nanoTime();
+
         FedoraSession session = null;
+        int unchanged = 0;
         try {
             session = sessionFactory.getInternalSession();
-            for (final File p : initialPoliciesDirectory.listFiles()) {
-                final String id = PolicyUtil.getID(FileUtils.openInputStream(p));
-                final String repoPath = PolicyUtil.getPathForId(id);
+            for (final InitialPolicy policy : policies) {
+                final String repoPath = PolicyUtil.getPathForId(policy.id);
                 final FedoraBinary binary = binaryService.findOrCreate(session, repoPath);
-                try (FileInputStream stream = new FileInputStream(p)) {
-                    binary.setContent(stream, "application/xml", null, p.getName(), null);
+                if (policy.digest.equals(binary.getContentDigest())) {
+                    LOGGER.debug("Initial policy {} is unchanged at {}", policy.file.getAbsolutePath(), repoPath);
+                    unchanged++;
+                    continue;
                 }
-                LOGGER.info("Add initial policy {} at {}", p.getAbsolutePath(), binary.getPath());
+                binary.setContent(new ByteArrayInputStream(policy.content), "application/xml",
+                        singleton(policy.digest), policy.file.getName(), null);
+                LOGGER.info("Add initial policy {} at {}", policy.file.getAbsolutePath(), binary.getPath());
             }
-            session.commit();
-        } catch (final InvalidChecksumException | IOException e) {
+            if (unchanged < policies.size()) {
+                session.commit();
+            }
+        } catch (final InvalidChecksumException e) {
             throw new Error("Cannot create default root policies", e);
         } finally {
             if (session != null) {
                 session.expire();
             }
         }
+
+        policyIds.clear();
+        policies.forEach(policy -> policyIds.put(policy.file.getAbsoluteFile(), policy.id));
+        LOGGER.info("Loaded {} initial XACML policies ({} unchanged): parsed in {} ms, stored in {} ms",
+                policies.size(), unchanged, NANOSECONDS.toMillis(parsed - start),
+                NANOSECONDS.toMillis(System.nanoTime() - parsed));
+    }
+
+    /**
+     * Read, digest and validate a policy file.
+     */
+    private InitialPolicy readPolicy(final File file) {
+        try {
+            final byte[] content = Files.readAllBytes(file.toPath());
+            final Document doc = policyParser.parse(new ByteArrayInputStream(content));
+            final Element root = doc.getDocumentElement();
+            if ("Policy".equals(root.getTagName())) {
+                Policy.getInstance(root);
+            } else if ("PolicySet".equals(root.getTagName())) {
+                PolicySet.getInstance(root);
+            } else {
+                throw new ParsingException("Unknown root document type: " + root.getTagName());
+            }
+            return new InitialPolicy(file, content, PolicyUtil.getID(doc), digest(content));
+        } catch (final IOException | SAXException | ParsingException | RuntimeException e) {
+            throw new Error("Cannot read initial policy " + file.getAbsolutePath(), e);
+        }
+    }
+
+    private static URI digest(final byte[] content) {
+        try {
+            final byte[] hash = MessageDigest.getInstance("SHA-1").digest(content);
+            final StringBuilder hex = new StringBuilder("urn:sha1:");
+            for (final byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return URI.create(hex.toString());
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     /**
@@ -185,7 +266,12 @@ public class XACMLWorkspaceInitializer {
         try {
             session = getJcrSession(sessionFactory.getInternalSession());
             session.getRootNode().addMixin("authz:xacmlAssignable");
-            final String id = PolicyUtil.getID(FileUtils.openInputStream(initialRootPolicyFile));
+            String id = policyIds.get(initialRootPolicyFile.getAbsoluteFile());
+            if (id == null) {
+                try (final InputStream stream = FileUtils.openInputStream(initialRootPolicyFile)) {
+                    id = PolicyUtil.getID(policyParser, stream);
+                }
+            }
             final String repoPath = PolicyUtil.getPathForId(id);
             final Node globalPolicy = session.getNode(repoPath);
             session.getRootNode().setProperty("authz:policy", globalPolicy);
@@ -198,4 +284,25 @@ public class XACMLWorkspaceInitializer {
             }
         }
     }
+
+    /**
+     * A policy file, read and validated.
+     */
+    private static class InitialPolicy {
+
+        private final File file;
+
+        private final byte[] content;
+
+        private final String id;
+
+        private final URI digest;
+
+        private InitialPolicy(final File file, final byte[] content, final String id, final URI digest) {
+            this.file = file;
+            this.content = content;
+            this.id = id;
+            this.digest = digest;
+        }
+    }
 }
@@ -0,0 +1,63 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_ACTION_ID;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_GROUP;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_ROLE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.jboss.security.xacml.sunxacml.ctx.Attribute;
+import org.junit.Test;
+
+/**
+ * @author agent
+ */
+public class AttributeFlyweightsTest {
+
+    @Test
+    public void testActions() {
+        for (final String action : AttributeFlyweights.ACTIONS) {
+            final Attribute attribute = AttributeFlyweights.action(action);
+            assertSame(attribute, AttributeFlyweights.action(action));
+            assertEquals(ATTRIBUTEID_ACTION_ID, attribute.getId());
+            assertEquals(action, attribute.getValue().encode());
+        }
+    }
+
+    @Test
+    public void testUnknownActionNotShared() {
+        final Attribute attribute = AttributeFlyweights.action("custom");
+        assertNotSame(attribute, AttributeFlyweights.action("custom"));
+        assertEquals("custom", attribute.getValue().encode());
+    }
+
+    @Test
+    public void testRolesAndGroupsInterned() {
+        final Attribute role = AttributeFlyweights.role("admin");
+        assertSame(role, AttributeFlyweights.role("admin"));
+        assertEquals(FCREPO_SUBJECT_ROLE, role.getId());
+
+        final Attribute group = AttributeFlyweights.group("admin");
+        assertSame(group, AttributeFlyweights.group("admin"));
+        assertEquals(FCREPO_SUBJECT_GROUP, group.getId());
+        assertNotSame(role, group);
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonList;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.RESOURCE_TARGET;
+import static org.jboss.security.xacml.sunxacml.ctx.Status.STATUS_PROCESSING_ERROR;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.jboss.security.xacml.sunxacml.AbstractPolicy;
+import org.jboss.security.xacml.sunxacml.EvaluationCtx;
+import org.jboss.security.xacml.sunxacml.MatchResult;
+import org.jboss.security.xacml.sunxacml.PDP;
+import org.jboss.security.xacml.sunxacml.PDPConfig;
+import org.jboss.security.xacml.sunxacml.Policy;
+import org.jboss.security.xacml.sunxacml.PolicySet;
+import org.jboss.security.xacml.sunxacml.attr.AnyURIAttribute;
+import org.jboss.security.xacml.sunxacml.attr.AttributeValue;
+import org.jboss.security.xacml.sunxacml.attr.BagAttribute;
+import org.jboss.security.xacml.sunxacml.attr.StringAttribute;
+import org.jboss.security.xacml.sunxacml.cond.EvaluationResult;
+import org.jboss.security.xacml.sunxacml.ctx.ResponseCtx;
+import org.jboss.security.xacml.sunxacml.ctx.Result;
+import org.jboss.security.xacml.sunxacml.ctx.Status;
+import org.jboss.security.xacml.sunxacml.finder.AttributeFinder;
+import org.jboss.security.xacml.sunxacml.finder.AttributeFinderModule;
+import org.jboss.security.xacml.sunxacml.finder.PolicyFinder;
+import org.jboss.security.xacml.sunxacml.finder.PolicyFinderModule;
+import org.jboss.security.xacml.sunxacml.finder.PolicyFinderResult;
+import org.jboss.security.xacml.sunxacml.finder.ResourceFinder;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.w3c.dom.Element;
+
+/**
+ * Differential tests of the compiled engine against the library, over the default policies.
+ *
+ * @author agent
+ */
+public class CompiledPDPTest {
+
+    private static final String[] POLICIES = { "AdminPermissionPolicySet", "AdminRolePolicySet",
+        "GlobalPermissionPolicySet", "GlobalRolesPolicySet", "PreventReadingMasterFilesPolicySet",
+        "ReadNormalNodePermissionPolicySet", "ReadOnlyExceptToLocalPolicySet", "ReaderGroupPolicySet",
+        "ReaderRolePolicySet", "WriteNormalNodePermissionPolicySet", "WriterRolePolicySet" };
+
+    private static final String[] USERS = { "alice", "bob" };
+
+    private static final String[] ROLES = { "reader", "writer", "admin", "other" };
+
+    private static final String[] GROUPS = { "other", "staff" };
+
+    private static final String[] ACTIONS = { "read", "add_node", "set_property", "remove", "remove_child_nodes",
+        "read_access_control", "modify_access_control", "unlock_any", "register_namespace" };
+
+    private static final String[] PATHS = { "", "/", "/{}a", "/{}a/{}b",
+        "/{http://fedora.info/definitions/v4/authorization#}policy",
+        "/{}a/{http://fedora.info/definitions/v4/authorization#}rule/{}b" };
+
+    private static final String[] ADDRESSES = { "127.0.0.1", "192.168.1.20", "10.0.0.7", "10.0.1.7", "8.8.8.8" };
+
+    private static final String[] TYPES = { "http://fedora.info/definitions/v4/authorization#Rbacl",
+        "http://fedora.info/definitions/v4/authorization#Assignment", "http://example.com/mixins#master",
+        "http://fedora.info/definitions/v4/repository#Resource" };
+
+    private static final String[] MIME_TYPES = { "image/tiff", "text/plain" };
+
+    private static final URI RDF_TYPE = URI.create("http://www.w3.org/1999/02/22-rdf-syntax-ns#type");
+
+    private static final URI MIME_TYPE = URI.create("http://fedora.info/definitions/v4/repository#mimeType");
+
+    private static final int REQUESTS = 400;
+
+    @Mock
+    private FedoraPolicyFinderModule fedoraPolicyFinderModule;
+
+    private final PolicyParser parser = new PolicyParser();
+
+    private final PolicyLinker linker = new PolicyLinker(this::load);
+
+    private AbstractPolicy policy;
+
+    private PDP library;
+
+    private CompiledPDP compiled;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+        when(fedoraPolicyFinderModule.getEffectivePolicy(anyString())).thenAnswer(invocation -> policy);
+
+        final PolicyFinder policyFinder = new PolicyFinder();
+        policyFinder.setModules(singleton(new CurrentPolicyModule()));
+        library = new PDP(new PDPConfig(new AttributeFinder(), policyFinder, new ResourceFinder()));
+        compiled = new CompiledPDP(new PDPConfig(new AttributeFinder(), new PolicyFinder(), new ResourceFinder()),
+                fedoraPolicyFinderModule);
+    }
+
+    @Test
+    public void testSameDecisionsAsLibrary() {
+        final Random random = new Random(20161017L);
+        final Set<Integer> decisions = new HashSet<>();
+        for (final String name : POLICIES) {
+            final AbstractPolicy linked = linker.get("/policies/" + name);
+            assertNotNull(name, linked);
+            assertNotNull("Every default policy compiles", DecisionFunction.compile(linked));
+
+            for (final AbstractPolicy candidate : asList(linked, TargetIndex.index(linked))) {
+                policy = candidate;
+                for (int i = 0; i < REQUESTS; i++) {
+                    final Request request = new Request(random);
+                    final int expected = decision(library.evaluate(request.context()));
+                    assertEquals(name + " " + request, expected, decision(compiled.evaluate(request.context())));
+                    assertEquals(name + " " + request, decide(candidate, request.context()),
+                            compiled.evaluate(candidate, request.context()));
+                    decisions.add(expected);
+                }
+            }
+        }
+        assertTrue("Links resolved", linker.getMissingReferences().isEmpty());
+        assertTrue("The requests reach every decision but errors", decisions.containsAll(asList(
+                Result.DECISION_PERMIT, Result.DECISION_DENY, Result.DECISION_NOT_APPLICABLE)));
+    }
+
+    @Test
+    public void testUnresolvedReferencesNotCompiled() {
+        assertNull(DecisionFunction.compile(load("/policies/GlobalRolesPolicySet")));
+    }
+
+    private static int decision(final ResponseCtx response) {
+        assertEquals(1, response.getResults().size());
+        return ((Result) response.getResults().iterator().next()).getDecision();
+    }
+
+    private static int decide(final AbstractPolicy policy, final EvaluationCtx context) {
+        final int match = policy.match(context).getResult();
+        if (match == MatchResult.NO_MATCH) {
+            return Result.DECISION_NOT_APPLICABLE;
+        }
+        return match == MatchResult.MATCH ? policy.evaluate(context).getDecision() : Result.DECISION_INDETERMINATE;
+    }
+
+    /**
+     * Parses a default policy from the classpath, without linking it.
+     */
+    private AbstractPolicy load(final String path) {
+        try (final InputStream in = getClass().getResourceAsStream(path + ".xml")) {
+            if (in == null) {
+                return null;
+            }
+            final Element root = parser.parse(in).getDocumentElement();
+            return root.getTagName().equals("Policy") ? Policy.getInstance(root) :
+                    PolicySet.getInstance(root, new PolicyFinder());
+        } catch (final Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static <T> T pick(final Random random, final T[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    private static Set<String> some(final Random random, final String[] values) {
+        final Set<String> picked = new HashSet<>();
+        for (final String value : values) {
+            if (random.nextInt(3) == 0) {
+                picked.add(value);
+            }
+        }
+        return picked;
+    }
+
+    /**
+     * A random request, which builds a fresh context for each engine.
+     */
+    private static final class Request {
+
+        private final String user;
+
+        private final Set<String> roles;
+
+        private final Set<String> groups;
+
+        private final String path;
+
+        private final String[] actions;
+
+        private final String address;
+
+        private final Set<String> types;
+
+        private final String mimeType;
+
+        private final boolean error;
+
+        private Request(final Random random) {
+            this.user = pick(random, USERS);
+            this.roles = some(random, ROLES);
+            this.groups = some(random, GROUPS);
+            this.path = pick(random, PATHS);
+            final Set<String> picked = some(random, ACTIONS);
+            picked.add(pick(random, ACTIONS));
+            this.actions = picked.toArray(new String[picked.size()]);
+            this.address = random.nextInt(5) == 0 ? null : pick(random, ADDRESSES);
+            this.types = some(random, TYPES);
+            this.mimeType = random.nextBoolean() ? null : pick(random, MIME_TYPES);
+            this.error = random.nextInt(8) == 0;
+        }
+
+        private EvaluationCtx context() {
+            final FedoraEvaluationCtxBuilder builder = new FedoraEvaluationCtxBuilder()
+                    .addFinderModule(new ResourceAttributes(types, mimeType, error))
+                    .addSubject(user, roles).addResourceID(path).addActions(actions);
+            final Set<Principal> principals = new HashSet<>();
+            for (final String group : groups) {
+                principals.add(principal(group));
+            }
+            builder.addGroups(principal(user), principals);
+            if (address != null) {
+                builder.addOriginalRequestIP(address);
+            }
+            return builder.build();
+        }
+
+        private static Principal principal(final String name) {
+            return () -> name;
+        }
+
+        @Override
+        public String toString() {
+            return "user=" + user + ", roles=" + roles + ", groups=" + groups + ", path=" + path + ", actions=" +
+                    Arrays.toString(actions) + ", address=" + address + ", types=" + types + ", mimeType=" +
+                    mimeType + ", error=" + error;
+        }
+    }
+
+    /**
+     * Supplies the types and MIME type of the resource of one request, or an error in place of its types.
+     */
+    private static final class ResourceAttributes extends AttributeFinderModule {
+
+        private final Set<String> types;
+
+        private final String mimeType;
+
+        private final boolean error;
+
+        private ResourceAttributes(final Set<String> types, final String mimeType, final boolean error) {
+            this.types = types;
+            this.mimeType = mimeType;
+            this.error = error;
+        }
+
+        @Override
+        public boolean isDesignatorSupported() {
+            return true;
+        }
+
+        @Override
+        public Set<Integer> getSupportedDesignatorTypes() {
+            return singleton(RESOURCE_TARGET);
+        }
+
+        @Override
+        public EvaluationResult findAttribute(final URI attributeType, final URI attributeId, final URI issuer,
+                                              final URI subjectCategory, final EvaluationCtx context,
+                                              final int designatorType) {
+            final List<AttributeValue> values = new ArrayList<>();
+            if (designatorType == RESOURCE_TARGET && RDF_TYPE.equals(attributeId) &&
+                    SimpleTarget.ANYURI_TYPE.equals(attributeType)) {
+                if (error) {
+                    return new EvaluationResult(new Status(singletonList(STATUS_PROCESSING_ERROR)));
+                }
+                for (final String type : types) {
+                    values.add(new AnyURIAttribute(URI.create(type)));
+                }
+            } else if (designatorType == RESOURCE_TARGET && MIME_TYPE.equals(attributeId) && mimeType != null &&
+                    SimpleTarget.STRING_TYPE.equals(attributeType)) {
+                values.add(new StringAttribute(mimeType));
+            }
+            return new EvaluationResult(values.isEmpty() ? BagAttribute.createEmptyBag(attributeType) :
+                    new BagAttribute(attributeType, values));
+        }
+    }
+
+    /**
+     * Finds the policy under test for every request, as the {@link FedoraPolicyFinderModule} finds the policy in
+     * effect.
+     */
+    private final class CurrentPolicyModule extends PolicyFinderModule {
+
+        @Override
+        public void init(final PolicyFinder finder) {
+            // Nothing to set up
+        }
+
+        @Override
+        public boolean isRequestSupported() {
+            return true;
+        }
+
+        @Override
+        public PolicyFinderResult findPolicy(final EvaluationCtx context) {
+            final MatchResult match = policy.match(context);
+            if (match.getResult() == MatchResult.INDETERMINATE) {
+                return new PolicyFinderResult(match.getStatus());
+            }
+            return match.getResult() == MatchResult.MATCH ? new PolicyFinderResult(policy) :
+                    new PolicyFinderResult();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.attribute.PosixFilePermissions.fromString;
+import static org.fcrepo.http.commons.test.util.TestHelpers.setField;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.jboss.security.xacml.sunxacml.Policy;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * @author agent
+ */
+public class CompiledPolicyStoreTest {
+
+    private static final URI DIGEST = URI.create("urn:sha1:1234");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private PolicyParser parser;
+
+    private CompiledPolicyStore store;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        parser = new PolicyParser();
+        store = new CompiledPolicyStore();
+        setField(store, "policyParser", parser);
+        directory = temporaryFolder.newFolder();
+        store.setDirectory(directory.toPath());
+    }
+
+    private Document parse(final String resource) throws Exception {
+        try (final InputStream in = this.getClass().getResourceAsStream(resource)) {
+            return parser.parse(in);
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final Document doc = parse("/xacml/testPolicy.xml");
+        store.write(DIGEST, doc);
+
+        final Document compiled = store.read(DIGEST);
+        assertNotNull(compiled);
+        final Element root = compiled.getDocumentElement();
+        assertEquals(doc.getDocumentElement().getNamespaceURI(), root.getNamespaceURI());
+        assertEquals(PolicyUtil.getID(doc), PolicyUtil.getID(compiled));
+        assertEquals(Policy.getInstance(doc.getDocumentElement()).getId(), Policy.getInstance(root).getId());
+        assertEquals(doc.getElementsByTagNameNS("*", "AttributeValue").getLength(),
+                compiled.getElementsByTagNameNS("*", "AttributeValue").getLength());
+        assertEquals(1, store.getHitCount());
+    }
+
+    @Test
+    public void testKeyedByDigest() throws Exception {
+        store.write(DIGEST, parse("/xacml/testPolicy.xml"));
+        assertNull(store.read(URI.create("urn:sha1:5678")));
+        assertNull(store.read(null));
+        assertEquals(2, store.getMissCount());
+    }
+
+    @Test
+    public void testCorruptEntryDiscarded() throws Exception {
+        store.write(DIGEST, parse("/xacml/testPolicy.xml"));
+        final File[] files = entries();
+        assertEquals(1, files.length);
+        Files.write(files[0].toPath(), "garbage".getBytes(UTF_8));
+
+        assertNull(store.read(DIGEST));
+        assertEquals(0, entries().length);
+    }
+
+    @Test
+    public void testTamperedEntryDiscarded() throws Exception {
+        store.write(DIGEST, parse("/xacml/testPolicy.xml"));
+        final Path entry = entries()[0].toPath();
+        final byte[] bytes = Files.readAllBytes(entry);
+        bytes[bytes.length - 2] ^= 1;
+        Files.write(entry, bytes);
+
+        assertNull(store.read(DIGEST));
+        assertEquals(0, entries().length);
+    }
+
+    @Test
+    public void testEntryBoundToDigest() throws Exception {
+        store.write(DIGEST, parse("/xacml/testPolicy.xml"));
+        final URI other = URI.create("urn:sha1:5678");
+        final Path entry = entries()[0].toPath();
+        Files.copy(entry, entry.resolveSibling("urn-sha1-5678.policy"));
+
+        assertNull("An entry is only used for the digest it was written for", store.read(other));
+        assertNotNull(store.read(DIGEST));
+    }
+
+    @Test
+    public void testEntryFromAnotherStoreRejected() throws Exception {
+        store.write(DIGEST, parse("/xacml/testPolicy.xml"));
+        final CompiledPolicyStore other = new CompiledPolicyStore();
+        setField(other, "policyParser", parser);
+        final File otherDirectory = temporaryFolder.newFolder();
+        other.setDirectory(otherDirectory.toPath());
+        Files.copy(entries()[0].toPath(), otherDirectory.toPath().resolve(entries()[0].getName()));
+
+        assertNull(other.read(DIGEST));
+    }
+
+    @Test
+    public void testDirectoryOwnerOnly() throws Exception {
+        assumeTrue(directory.toPath().getFileSystem().supportedFileAttributeViews().contains("posix"));
+        final Path nested = directory.toPath().resolve("compiled");
+        store.setDirectory(nested);
+        assertEquals(fromString("rwx------"), Files.getPosixFilePermissions(nested));
+    }
+
+    @Test
+    public void testDisabledWithoutHome() throws Exception {
+        final String home = System.getProperty("fcrepo.home");
+        System.clearProperty("fcrepo.home");
+        System.clearProperty(CompiledPolicyStore.DIRECTORY);
+        try {
+            store.init();
+            store.write(DIGEST, parse("/xacml/testPolicy.xml"));
+            assertNull(store.read(DIGEST));
+        } finally {
+            if (home != null) {
+                System.setProperty("fcrepo.home", home);
+            }
+        }
+    }
+
+    private File[] entries() {
+        return directory.listFiles((dir, name) -> name.endsWith(".policy"));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        store.setDirectory(null);
+        store.write(DIGEST, parse("/xacml/testPolicy.xml"));
+        assertNull(store.read(DIGEST));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DecisionCacheTest {
+
+    private static final String[] READ = { "read" };
+
+    private DecisionCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new DecisionCache(100, 60);
+    }
+
+    private static DecisionCache.Key key(final String path) {
+        return new DecisionCache.Key(new SubjectFingerprint("user", singleton("reader"), null), path, READ, null, 0);
+    }
+
+    @Test
+    public void testKeyEquality() {
+        final DecisionCache.Key a = new DecisionCache.Key(new SubjectFingerprint("user", singleton("reader"),
+                singleton("g")), "/{}a", new String[] { "read", "remove" }, null, 0);
+        final DecisionCache.Key b = new DecisionCache.Key(new SubjectFingerprint("user", singleton("reader"),
+                singleton("g")), "/{}a", new String[] { "remove", "read" }, null, 0);
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+    }
+
+    @Test
+    public void testPutGet() {
+        cache.put(key("/{}a"), true);
+        assertTrue(cache.get(key("/{}a")));
+        assertNull(cache.get(key("/{}b")));
+    }
+
+    @Test
+    public void testInvalidatePath() {
+        cache.put(key("/{}a"), true);
+        cache.put(key("/{}a/{ns}prop"), true);
+        cache.put(key("/{}ab"), false);
+
+        cache.invalidatePath("/{}a");
+
+        assertNull(cache.get(key("/{}a")));
+        assertNull(cache.get(key("/{}a/{ns}prop")));
+        assertEquals(false, cache.get(key("/{}ab")));
+    }
+
+    @Test
+    public void testInvalidateRoot() {
+        cache.put(key("/{}a"), true);
+        cache.invalidatePath("/");
+        assertNull(cache.get(key("/{}a")));
+    }
+
+    @Test
+    public void testInvalidate() {
+        cache.put(key("/{}a"), true);
+        cache.put(key("/{}b"), true);
+
+        cache.invalidate(new Invalidation(emptySet(), emptySet(), emptySet(), singleton("/a"), emptySet(),
+                singletonMap("/a", "/{}a"), false, 0));
+        assertNull(cache.get(key("/{}a")));
+        assertTrue(cache.get(key("/{}b")));
+
+        cache.invalidate(new Invalidation(emptySet(), emptySet(), emptySet(), emptySet(), singleton("/c"),
+                singletonMap("/c", "/{}c"), true, 1));
+        assertNull(cache.get(key("/{}b")));
+    }
+}
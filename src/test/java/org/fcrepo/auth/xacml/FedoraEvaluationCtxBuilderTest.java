@@ -17,14 +17,29 @@
  */
 package org.fcrepo.auth.xacml;
 
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+
+import java.lang.management.ManagementFactory;
 import java.net.URI;
+import java.security.Principal;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import org.jboss.security.xacml.interfaces.XMLSchemaConstants;
 import org.jboss.security.xacml.sunxacml.EvaluationCtx;
+import org.jboss.security.xacml.sunxacml.attr.AttributeDesignator;
+import org.jboss.security.xacml.sunxacml.attr.BagAttribute;
+import org.jboss.security.xacml.sunxacml.attr.StringAttribute;
 import org.jboss.security.xacml.sunxacml.cond.EvaluationResult;
+import org.jboss.security.xacml.sunxacml.finder.AttributeFinder;
+import org.jboss.security.xacml.sunxacml.finder.AttributeFinderModule;
+import org.jboss.security.xacml.sunxacml.finder.impl.CurrentEnvModule;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
@@ -39,6 +54,8 @@ import org.modeshape.jcr.api.Session;
 @RunWith(MockitoJUnitRunner.class)
 public class FedoraEvaluationCtxBuilderTest {
 
+    private static final int CONTEXTS = 1000;
+
     @Mock
     private Session session;
 
@@ -63,4 +80,185 @@ public class FedoraEvaluationCtxBuilderTest {
         Assert.assertNull(evAction.getStatus());
         Assert.assertEquals("read", evAction.getAttributeValue().getValue());
     }
+
+    @Test
+    public void testPreconfiguredAttributeFinder() {
+        final AttributeFinder finder = new AttributeFinder();
+        final FedoraEvaluationCtxBuilder builder = new FedoraEvaluationCtxBuilder(finder);
+        builder.addSubject("testuser", singleton("reader"));
+        builder.addResourceID("/testobject");
+        builder.addActions(new String[] {"read", "custom"});
+        final EvaluationCtx ctx = builder.build();
+
+        final URI string = URI.create(XMLSchemaConstants.DATATYPE_STRING);
+        final EvaluationResult evRole = ctx.getSubjectAttribute(string, URIConstants.FCREPO_SUBJECT_ROLE,
+                URI.create(AttributeDesignator.SUBJECT_CATEGORY_DEFAULT));
+        Assert.assertEquals(1, ((BagAttribute) evRole.getAttributeValue()).size());
+    }
+
+    /**
+     * Compare the memory allocated to build contexts that share one attribute finder with building one finder from
+     * the modules for every context, as the delegate did before.
+     */
+    @Test
+    public void testSharedAttributeFinderAllocatesLess() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        final List<AttributeFinderModule> modules = asList(new CurrentEnvModule(), new CurrentEnvModule(),
+                new CurrentEnvModule());
+        final AttributeFinder shared = new AttributeFinder();
+        shared.setModules(modules);
+
+        // Load and compile both paths before measuring them
+        allocatedBy(threads, () -> buildContexts(null, modules));
+        allocatedBy(threads, () -> buildContexts(shared, modules));
+        final long perContext = allocatedBy(threads, () -> buildContexts(null, modules));
+        final long sharedFinder = allocatedBy(threads, () -> buildContexts(shared, modules));
+
+        Assert.assertTrue("Allocated " + sharedFinder + " bytes for " + CONTEXTS + " contexts with a shared finder, "
+                + perContext + " bytes with a finder each", sharedFinder < perContext);
+    }
+
+    private static EvaluationCtx[] buildContexts(final AttributeFinder shared,
+                                                 final List<AttributeFinderModule> modules) {
+        final EvaluationCtx[] contexts = new EvaluationCtx[CONTEXTS];
+        final Set<String> roles = new HashSet<>(asList("reader", "writer"));
+        for (int i = 0; i < CONTEXTS; i++) {
+            final FedoraEvaluationCtxBuilder builder;
+            if (shared == null) {
+                builder = new FedoraEvaluationCtxBuilder();
+                modules.forEach(builder::addFinderModule);
+            } else {
+                builder = new FedoraEvaluationCtxBuilder(shared);
+            }
+            builder.addSubject("testuser", roles);
+            builder.addResourceID("/testobject");
+            builder.addActions(new String[] {"read", "set_property"});
+            contexts[i] = builder.build();
+        }
+        return contexts;
+    }
+
+    private static long allocatedBy(final com.sun.management.ThreadMXBean threads,
+                                    final Supplier<EvaluationCtx[]> work) {
+        final long thread = Thread.currentThread().getId();
+        final long before = threads.getThreadAllocatedBytes(thread);
+        final EvaluationCtx[] contexts = work.get();
+        final long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        Assert.assertEquals(CONTEXTS, contexts.length);
+        return allocated;
+    }
+
+    @Test
+    public void testLazyAttributes() {
+        final AtomicInteger groupLookups = new AtomicInteger();
+        final AtomicInteger workspaceLookups = new AtomicInteger();
+        final Principal user = new TestPrincipal("testuser");
+        final FedoraEvaluationCtxBuilder builder = new FedoraEvaluationCtxBuilder(new AttributeFinder());
+        builder.addSubject("testuser", singleton("reader"));
+        builder.addResourceID("/testobject");
+        builder.addActions(new String[] {"read"});
+        builder.addWorkspace(() -> {
+            workspaceLookups.incrementAndGet();
+            return "default";
+        });
+        builder.addGroups(user, () -> {
+            groupLookups.incrementAndGet();
+            return new HashSet<>(asList(user, new TestPrincipal("editors")));
+        });
+        final EvaluationCtx ctx = builder.build();
+        Assert.assertEquals(0, groupLookups.get());
+
+        final URI string = URI.create(XMLSchemaConstants.DATATYPE_STRING);
+        final URI category = URI.create(AttributeDesignator.SUBJECT_CATEGORY_DEFAULT);
+        for (int i = 0; i < 2; i++) {
+            final BagAttribute groups = (BagAttribute) ctx.getSubjectAttribute(string,
+                    URIConstants.FCREPO_SUBJECT_GROUP, category).getAttributeValue();
+            Assert.assertEquals(1, groups.size());
+            Assert.assertTrue(groups.contains(new StringAttribute("editors")));
+        }
+        Assert.assertEquals(1, groupLookups.get());
+        Assert.assertEquals(0, workspaceLookups.get());
+    }
+
+    @Test
+    public void testOriginalRequestIP() {
+        final FedoraEvaluationCtxBuilder builder = new FedoraEvaluationCtxBuilder(new AttributeFinder());
+        builder.addSubject("testuser", singleton("reader"));
+        builder.addResourceID("/testobject");
+        builder.addActions(new String[] {"read"});
+        builder.addOriginalRequestIP("10.0.0.1");
+        final EvaluationCtx ctx = builder.build();
+
+        final URI string = URI.create(XMLSchemaConstants.DATATYPE_STRING);
+        final BagAttribute ip = (BagAttribute) ctx.getEnvironmentAttribute(string,
+                URIConstants.ATTRIBUTEID_ENVIRONMENT_ORIGINAL_IP_ADDRESS, null).getAttributeValue();
+        Assert.assertTrue(ip.contains(new StringAttribute("10.0.0.1")));
+        final BagAttribute action = (BagAttribute) ctx.getActionAttribute(string,
+                URIConstants.ATTRIBUTEID_ENVIRONMENT_ORIGINAL_IP_ADDRESS, null).getAttributeValue();
+        Assert.assertTrue(action.isEmpty());
+    }
+
+    @Test
+    public void testLazyOriginalRequestIPMissing() {
+        final FedoraEvaluationCtxBuilder builder = new FedoraEvaluationCtxBuilder(new AttributeFinder());
+        builder.addSubject("testuser", singleton("reader"));
+        builder.addResourceID("/testobject");
+        builder.addActions(new String[] {"read"});
+        builder.addOriginalRequestIP(() -> null);
+        final EvaluationCtx ctx = builder.build();
+
+        final URI string = URI.create(XMLSchemaConstants.DATATYPE_STRING);
+        final BagAttribute ip = (BagAttribute) ctx.getEnvironmentAttribute(string,
+                URIConstants.ATTRIBUTEID_ENVIRONMENT_ORIGINAL_IP_ADDRESS, null).getAttributeValue();
+        Assert.assertTrue(ip.isEmpty());
+    }
+
+    @Test
+    public void testSharedSubject() {
+        final FedoraEvaluationCtxBuilder subject = new FedoraEvaluationCtxBuilder(new AttributeFinder());
+        subject.addSubject("testuser", singleton("reader"));
+        final URI string = URI.create(XMLSchemaConstants.DATATYPE_STRING);
+        final URI category = URI.create(AttributeDesignator.SUBJECT_CATEGORY_DEFAULT);
+
+        for (final String path : new String[] {"/{}a", "/{}b"}) {
+            final EvaluationCtx ctx = new FedoraEvaluationCtxBuilder(new AttributeFinder()).addSubjects(subject)
+                    .addResourceID(path).addActions(new String[] {"read"}).build();
+            final BagAttribute roles = (BagAttribute) ctx.getSubjectAttribute(string,
+                    URIConstants.FCREPO_SUBJECT_ROLE, category).getAttributeValue();
+            Assert.assertTrue(roles.contains(new StringAttribute("reader")));
+            Assert.assertEquals(path, ctx.getResourceId().getValue());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testPreconfiguredAttributeFinderRejectsModules() {
+        new FedoraEvaluationCtxBuilder(new AttributeFinder()).addFinderModule(new CurrentEnvModule());
+    }
+
+    private static class TestPrincipal implements Principal {
+
+        private final String name;
+
+        TestPrincipal(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof TestPrincipal && ((TestPrincipal) o).name.equals(name);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+    }
 }
@@ -17,29 +17,40 @@
  */
 package org.fcrepo.auth.xacml;
 
+import static java.util.Collections.singletonMap;
 import static org.fcrepo.auth.xacml.URIConstants.POLICY_URI_PREFIX;
 import static org.fcrepo.auth.xacml.URIConstants.XACML_POLICY_PROPERTY;
 import static org.fcrepo.http.commons.test.util.TestHelpers.setField;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import java.lang.reflect.Field;
 import java.net.URI;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.Node;
 import javax.jcr.Property;
-import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
 
 import org.fcrepo.http.commons.session.SessionFactory;
 import org.fcrepo.kernel.api.FedoraSession;
@@ -51,6 +62,7 @@ import org.fcrepo.kernel.api.services.NodeService;
 import org.fcrepo.kernel.modeshape.FedoraSessionImpl;
 import org.fcrepo.kernel.modeshape.NonRdfSourceDescriptionImpl;
 
+import org.jboss.security.xacml.sunxacml.AbstractPolicy;
 import org.jboss.security.xacml.sunxacml.EvaluationCtx;
 import org.jboss.security.xacml.sunxacml.PolicyReference;
 import org.jboss.security.xacml.sunxacml.attr.AttributeValue;
@@ -58,8 +70,12 @@ import org.jboss.security.xacml.sunxacml.combine.PolicyCombinerElement;
 import org.jboss.security.xacml.sunxacml.finder.AttributeFinderModule;
 import org.jboss.security.xacml.sunxacml.finder.PolicyFinder;
 import org.jboss.security.xacml.sunxacml.finder.PolicyFinderResult;
+import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 
 /**
@@ -77,6 +93,12 @@ public class FedoraPolicyFinderModuleTest {
     @Mock
     private Session mockJcrSession;
 
+    @Mock
+    private Workspace mockWorkspace;
+
+    @Mock
+    private ObservationManager mockObservationManager;
+
     @Mock
     private Node mockNode, mockParentNode, mockPolicyNode;
 
@@ -110,8 +132,18 @@ public class FedoraPolicyFinderModuleTest {
     @Mock
     private AttributeFinderModule mockAttributeFinder;
 
+    @Mock
+    private PolicyAssignmentIndex mockPolicyAssignmentIndex;
+
     private FedoraPolicyFinderModule finderModule;
 
+    private InvalidationPipeline invalidationPipeline;
+
+    private CompiledPolicyStore compiledPolicyStore;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Before
     public void setUp() throws Exception {
         initMocks(this);
@@ -122,6 +154,8 @@ public class FedoraPolicyFinderModuleTest {
         when(mockSessionFactory.getInternalSession()).thenReturn(mockSession);
         when(mockSession.getJcrSession()).thenReturn(mockJcrSession);
         when(mockJcrSession.getNode(anyString())).thenReturn(mockNode);
+        when(mockJcrSession.getWorkspace()).thenReturn(mockWorkspace);
+        when(mockWorkspace.getObservationManager()).thenReturn(mockObservationManager);
 
         when(mockNode.getParent()).thenReturn(mockParentNode);
 
@@ -136,12 +170,27 @@ public class FedoraPolicyFinderModuleTest {
         when(mockBinaryService.findOrCreate(any(FedoraSession.class), anyString())).thenReturn(mockBinary);
 
         finderModule = new FedoraPolicyFinderModule();
-        setField(finderModule, "sessionFactory", mockSessionFactory);
+        setField(finderModule, "sessionPool", new InternalSessionPool(mockSessionFactory));
         setField(finderModule, "nodeService", mockNodeService);
         setField(finderModule, "binaryService", mockBinaryService);
+        setField(finderModule, "policyAssignmentIndex", mockPolicyAssignmentIndex);
+        setField(finderModule, "policyAttributeRegistry", new PolicyAttributeRegistry());
+        setField(finderModule, "policyParser", new PolicyParser());
+        invalidationPipeline = new InvalidationPipeline();
+        setField(invalidationPipeline, "sessionFactory", mockSessionFactory);
+        setField(finderModule, "invalidationPipeline", invalidationPipeline);
+        compiledPolicyStore = new CompiledPolicyStore();
+        setField(compiledPolicyStore, "policyParser", new PolicyParser());
+        compiledPolicyStore.setDirectory(temporaryFolder.newFolder().toPath());
+        setField(finderModule, "compiledPolicyStore", compiledPolicyStore);
         finderModule.init(mockFinder);
     }
 
+    @After
+    public void tearDown() {
+        invalidationPipeline.destroy();
+    }
+
     @Test
     public void testIsRequestSupported() {
         assertTrue(finderModule.isRequestSupported());
@@ -153,10 +202,9 @@ public class FedoraPolicyFinderModuleTest {
     }
 
     @Test
-    public void testFindPolicyOnTargetNode() throws RepositoryException  {
+    public void testFindPolicyOnTargetNode() {
 
-        when(mockNode.hasProperty(eq(XACML_POLICY_PROPERTY))).thenReturn(true);
-        when(mockNode.getProperty(eq(XACML_POLICY_PROPERTY))).thenReturn(mockPolicyProperty);
+        when(mockPolicyAssignmentIndex.getAssignments()).thenReturn(singletonMap("/{}myPath", "/policies/test"));
 
         when(mockPolicyDs.getDescribedResource()).thenReturn(mockBinary);
         when(mockBinary.getContent()).thenReturn(this.getClass().getResourceAsStream("/xacml/testPolicy.xml"));
@@ -175,6 +223,17 @@ public class FedoraPolicyFinderModuleTest {
         assertNotNull(result.getPolicy());
     }
 
+    @Test
+    public void testFindPolicyNoAssignment() {
+        final FedoraEvaluationCtxBuilder ctxBuilder = new FedoraEvaluationCtxBuilder();
+        ctxBuilder.addResourceID("/{}unassigned");
+        ctxBuilder.addSubject("test", new HashSet<>());
+
+        final PolicyFinderResult result = finderModule.findPolicy(ctxBuilder.build());
+
+        assertTrue(result.notApplicable());
+    }
+
     @Test
     public void testFindPolicyByIdReference() {
         final String policyPath = "/path/to/policy";
@@ -192,10 +251,165 @@ public class FedoraPolicyFinderModuleTest {
     }
 
     @Test
-    public void testFindPolicySet() throws RepositoryException {
+    public void testFindPolicyByIdReferenceCached() {
+        final URI idReference = URI.create(POLICY_URI_PREFIX + "/path/to/policy");
+
+        when(mockBinary.getPath()).thenReturn("/path/to/policy");
+        when(mockBinary.getContentDigest()).thenReturn(URI.create("urn:sha1:1234"));
+        when(mockBinary.getContent()).thenReturn(this.getClass().getResourceAsStream("/xacml/testPolicy.xml"));
+
+        final PolicyFinderResult first = finderModule.findPolicy(idReference, 0, null, null);
+        final PolicyFinderResult second = finderModule.findPolicy(idReference, 0, null, null);
+
+        assertNotNull(first.getPolicy());
+        assertTrue("Cached policy should be reused", first.getPolicy() == second.getPolicy());
+        verify(mockBinary, times(1)).getContent();
+        verify(mockNodeService, times(1)).find(any(FedoraSession.class), anyString());
+        assertEquals(1, finderModule.getPolicyCacheStats().missCount());
+    }
+
+    @Test
+    public void testFindPolicyByIdReferenceAfterChange() throws Exception {
+        final URI idReference = URI.create(POLICY_URI_PREFIX + "/path/to/policy");
+
+        when(mockBinary.getPath()).thenReturn("/path/to/policy/jcr:content");
+        when(mockBinary.getContentDigest()).thenReturn(URI.create("urn:sha1:1234"))
+                .thenReturn(URI.create("urn:sha1:5678"));
+        when(mockBinary.getContent()).thenReturn(this.getClass().getResourceAsStream("/xacml/testPolicy.xml"))
+                .thenReturn(this.getClass().getResourceAsStream("/xacml/testPolicy.xml"));
+
+        final PolicyFinderResult first = finderModule.findPolicy(idReference, 0, null, null);
+
+        final ArgumentCaptor<EventListener> listener = ArgumentCaptor.forClass(EventListener.class);
+        verify(mockObservationManager).addEventListener(listener.capture(), anyInt(), eq("/"), eq(true),
+                any(String[].class), any(String[].class), eq(false));
+        final Event event = mock(Event.class);
+        when(event.getType()).thenReturn(Event.PROPERTY_CHANGED);
+        when(event.getPath()).thenReturn("/path/to/policy/jcr:content/jcr:data");
+        final EventIterator events = mock(EventIterator.class);
+        when(events.hasNext()).thenReturn(true, false);
+        when(events.nextEvent()).thenReturn(event);
+        listener.getValue().onEvent(events);
+        invalidationPipeline.flush();
+
+        final PolicyFinderResult second = finderModule.findPolicy(idReference, 0, null, null);
+
+        assertNotNull(second.getPolicy());
+        assertFalse("Changed policy should be reloaded", first.getPolicy() == second.getPolicy());
+        verify(mockBinary, times(2)).getContent();
+    }
+
+    @Test
+    public void testPolicySnapshotRebuiltOnAssignmentChange() throws Exception {
+        when(mockPolicyAssignmentIndex.getAssignments()).thenReturn(singletonMap("/{}myPath", "/policies/test"));
+        when(mockBinary.getContent()).thenReturn(this.getClass().getResourceAsStream("/xacml/testPolicy.xml"));
+
+        final PolicySnapshot first = finderModule.getPolicySnapshot();
+        assertEquals("/policies/test", first.findEffectivePolicy("/{}myPath/{}child"));
+        assertNotNull(first.getPolicy("/policies/test"));
+        assertTrue(first == finderModule.getPolicySnapshot());
+
+        when(mockPolicyAssignmentIndex.getAssignments()).thenReturn(singletonMap("/{}myPath", "/policies/other"));
+        final ArgumentCaptor<EventListener> listener = ArgumentCaptor.forClass(EventListener.class);
+        verify(mockObservationManager).addEventListener(listener.capture(), anyInt(), eq("/"), eq(true),
+                any(String[].class), any(String[].class), eq(false));
+        final Event event = mock(Event.class);
+        when(event.getType()).thenReturn(Event.PROPERTY_CHANGED);
+        when(event.getPath()).thenReturn("/myPath/" + XACML_POLICY_PROPERTY);
+        final EventIterator events = mock(EventIterator.class);
+        when(events.hasNext()).thenReturn(true, false);
+        when(events.nextEvent()).thenReturn(event);
+        listener.getValue().onEvent(events);
+        invalidationPipeline.flush();
+
+        final PolicySnapshot second = finderModule.getPolicySnapshot();
+        assertFalse(first == second);
+        assertEquals("/policies/other", second.findEffectivePolicy("/{}myPath"));
+        assertEquals("/policies/test", first.findEffectivePolicy("/{}myPath"));
+    }
+
+    @Test
+    public void testPolicySnapshotRebuiltOnAssignedNodeMove() throws Exception {
+        when(mockPolicyAssignmentIndex.getAssignments()).thenReturn(singletonMap("/{}myPath", "/policies/test"));
+        when(mockBinary.getContent()).thenReturn(this.getClass().getResourceAsStream("/xacml/testPolicy.xml"));
+        final PolicySnapshot first = finderModule.getPolicySnapshot();
+        assertEquals("/policies/test", first.findEffectivePolicy("/{}myPath/{}child"));
+
+        // The move sends a node event only, with nothing for the authz:policy property it carries
+        when(mockPolicyAssignmentIndex.getAssignments()).thenReturn(singletonMap("/{}other", "/policies/test"));
+        final ArgumentCaptor<EventListener> listener = ArgumentCaptor.forClass(EventListener.class);
+        verify(mockObservationManager).addEventListener(listener.capture(), anyInt(), eq("/"), eq(true),
+                any(String[].class), any(String[].class), eq(false));
+        final Event event = mock(Event.class);
+        when(event.getType()).thenReturn(Event.NODE_MOVED);
+        when(event.getPath()).thenReturn("/other");
+        when(event.getInfo()).thenReturn(singletonMap("srcAbsPath", "/myPath"));
+        final EventIterator events = mock(EventIterator.class);
+        when(events.hasNext()).thenReturn(true, false);
+        when(events.nextEvent()).thenReturn(event);
+        listener.getValue().onEvent(events);
+        invalidationPipeline.flush();
+
+        final PolicySnapshot second = finderModule.getPolicySnapshot();
+        assertEquals("/policies/test", second.findEffectivePolicy("/{}other/{}child"));
+        assertNull("A node recreated at the old path does not inherit the policy",
+                second.findEffectivePolicy("/{}myPath/{}child"));
+    }
+
+    @Test
+    public void testPolicySnapshotBuiltDuringChangeNotKept() throws Exception {
+        final Field generation = InvalidationPipeline.class.getDeclaredField("generation");
+        generation.setAccessible(true);
+        // A policy change is translated while the first snapshot reads the assignments
+        when(mockPolicyAssignmentIndex.getAssignments()).thenAnswer(invocation -> {
+            ((AtomicLong) generation.get(invalidationPipeline)).incrementAndGet();
+            return singletonMap("/{}myPath", "/policies/test");
+        }).thenReturn(singletonMap("/{}myPath", "/policies/other"));
+        when(mockBinary.getContent()).thenReturn(this.getClass().getResourceAsStream("/xacml/testPolicy.xml"),
+                this.getClass().getResourceAsStream("/xacml/testPolicy.xml"));
+
+        final PolicySnapshot stale = finderModule.getPolicySnapshot();
+        assertEquals(0, stale.getGeneration());
+        final PolicySnapshot current = finderModule.getPolicySnapshot();
+        assertFalse("A snapshot built during a change is not kept", stale == current);
+        assertEquals(1, current.getGeneration());
+        assertEquals("/policies/other", current.findEffectivePolicy("/{}myPath"));
+        assertTrue(current == finderModule.getPolicySnapshot());
+    }
+
+    @Test
+    public void testFindPolicyFromCompiledForm() throws Exception {
+        final URI idReference = URI.create(POLICY_URI_PREFIX + "/path/to/policy");
+        when(mockBinary.getPath()).thenReturn("/path/to/policy");
+        when(mockBinary.getContentDigest()).thenReturn(URI.create("urn:sha1:1234"));
+        when(mockBinary.getContent()).thenReturn(this.getClass().getResourceAsStream("/xacml/testPolicy.xml"));
+
+        final AbstractPolicy parsed = finderModule.findPolicy(idReference, 0, null, null).getPolicy();
+        assertEquals(1, compiledPolicyStore.getMissCount());
+
+        // A restarted module reads the compiled form rather than the binary
+        final FedoraPolicyFinderModule restarted = new FedoraPolicyFinderModule();
+        setField(restarted, "sessionPool", new InternalSessionPool(mockSessionFactory));
+        setField(restarted, "nodeService", mockNodeService);
+        setField(restarted, "binaryService", mockBinaryService);
+        setField(restarted, "policyAssignmentIndex", mockPolicyAssignmentIndex);
+        setField(restarted, "policyAttributeRegistry", new PolicyAttributeRegistry());
+        setField(restarted, "policyParser", new PolicyParser());
+        setField(restarted, "invalidationPipeline", invalidationPipeline);
+        setField(restarted, "compiledPolicyStore", compiledPolicyStore);
+        restarted.init(mockFinder);
+
+        final AbstractPolicy compiled = restarted.findPolicy(idReference, 0, null, null).getPolicy();
+        assertNotNull(compiled);
+        assertEquals(parsed.getId(), compiled.getId());
+        assertEquals(1, compiledPolicyStore.getHitCount());
+        verify(mockBinary, times(1)).getContent();
+    }
+
+    @Test
+    public void testFindPolicySet() {
 
-        when(mockNode.hasProperty(eq(XACML_POLICY_PROPERTY))).thenReturn(true);
-        when(mockNode.getProperty(eq(XACML_POLICY_PROPERTY))).thenReturn(mockPolicyProperty);
+        when(mockPolicyAssignmentIndex.getAssignments()).thenReturn(singletonMap("/{}myPath", "/policies/test"));
 
         when(mockPolicyDs.getDescribedResource()).thenReturn(mockBinary);
         when(mockBinary.getContent())
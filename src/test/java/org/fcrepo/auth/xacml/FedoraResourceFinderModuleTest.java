@@ -63,7 +63,7 @@ public class FedoraResourceFinderModuleTest {
     @Before
     public void setUp() throws RepositoryException {
         resourceFinder = new FedoraResourceFinderModule();
-        resourceFinder.sessionFactory = mockSessionFactory;
+        resourceFinder.sessionPool = new InternalSessionPool(mockSessionFactory);
 
         when( mockSessionFactory.getInternalSession() ).thenReturn(mockSession);
         when( mockSession.getJcrSession() ).thenReturn(mockJcrSession);
@@ -0,0 +1,164 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.jcr.Session;
+
+import org.apache.jena.rdf.model.Resource;
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.api.identifiers.IdentifierConverter;
+import org.fcrepo.kernel.api.models.FedoraResource;
+import org.fcrepo.kernel.modeshape.FedoraSessionImpl;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+/**
+ * @author agent
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class InternalSessionPoolTest {
+
+    @Mock
+    private SessionFactory mockSessionFactory;
+
+    @Mock
+    private FedoraSessionImpl mockSession, mockOtherSession;
+
+    @Mock
+    private Session mockJcrSession, mockOtherJcrSession;
+
+    private InternalSessionPool pool;
+
+    @Before
+    public void setUp() {
+        when(mockSessionFactory.getInternalSession()).thenReturn(mockSession, mockOtherSession);
+        when(mockSession.getJcrSession()).thenReturn(mockJcrSession);
+        when(mockOtherSession.getJcrSession()).thenReturn(mockOtherJcrSession);
+        when(mockJcrSession.isLive()).thenReturn(true);
+        when(mockOtherJcrSession.isLive()).thenReturn(true);
+        pool = new InternalSessionPool(mockSessionFactory);
+    }
+
+    @Test
+    public void testLeaseIsShared() {
+        try (final InternalSessionPool.Lease outer = pool.lease()) {
+            try (final InternalSessionPool.Lease inner = pool.lease()) {
+                assertSame(mockSession, inner.getSession());
+            }
+            assertEquals(1, pool.getActiveCount());
+            assertSame(mockSession, outer.getSession());
+        }
+        assertEquals(0, pool.getActiveCount());
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(1, pool.getCreatedCount());
+    }
+
+    @Test
+    public void testSessionIsReused() {
+        for (int i = 0; i < 3; i++) {
+            try (final InternalSessionPool.Lease lease = pool.lease()) {
+                assertSame(mockSession, lease.getSession());
+            }
+        }
+        assertEquals(1, pool.getCreatedCount());
+        assertEquals(3, pool.getLeaseCount());
+        verify(mockSessionFactory, times(1)).getInternalSession();
+    }
+
+    @Test
+    public void testIdentifierTranslatorIsReused() {
+        final IdentifierConverter<Resource, FedoraResource> translator;
+        try (final InternalSessionPool.Lease lease = pool.lease()) {
+            translator = lease.getIdentifierTranslator();
+            assertSame(translator, lease.getIdentifierTranslator());
+        }
+        try (final InternalSessionPool.Lease lease = pool.lease()) {
+            assertSame(translator, lease.getIdentifierTranslator());
+        }
+    }
+
+    @Test
+    public void testUnusedLeaseOpensNoSession() {
+        try (final InternalSessionPool.Lease lease = pool.lease()) {
+            assertEquals(0, pool.getActiveCount());
+        }
+        verify(mockSessionFactory, never()).getInternalSession();
+        assertEquals(0, pool.getLeaseCount());
+    }
+
+    @Test
+    public void testStaleSessionIsRefreshed() throws Exception {
+        try (final InternalSessionPool.Lease lease = pool.lease()) {
+            lease.getSession();
+        }
+        pool.invalidate(Invalidation.all(1));
+
+        try (final InternalSessionPool.Lease lease = pool.lease()) {
+            assertSame(mockSession, lease.getSession());
+        }
+        try (final InternalSessionPool.Lease lease = pool.lease()) {
+            lease.getSession();
+        }
+        verify(mockJcrSession, times(1)).refresh(false);
+        assertEquals(1, pool.getRefreshCount());
+    }
+
+    @Test
+    public void testDeadSessionIsDiscarded() {
+        try (final InternalSessionPool.Lease lease = pool.lease()) {
+            lease.getSession();
+        }
+        when(mockJcrSession.isLive()).thenReturn(false);
+
+        try (final InternalSessionPool.Lease lease = pool.lease()) {
+            assertSame(mockOtherSession, lease.getSession());
+        }
+        assertEquals(2, pool.getCreatedCount());
+        assertEquals(1, pool.getDiscardCount());
+    }
+
+    @Test
+    public void testPendingChangesAreDropped() throws Exception {
+        when(mockJcrSession.hasPendingChanges()).thenReturn(true);
+        try (final InternalSessionPool.Lease lease = pool.lease()) {
+            lease.getSession();
+        }
+        verify(mockJcrSession).refresh(false);
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    public void testDestroy() {
+        try (final InternalSessionPool.Lease lease = pool.lease()) {
+            lease.getSession();
+        }
+        pool.destroy();
+        verify(mockJcrSession).logout();
+        assertEquals(0, pool.getIdleCount());
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static javax.jcr.observation.Event.NODE_ADDED;
+import static javax.jcr.observation.Event.NODE_MOVED;
+import static javax.jcr.observation.Event.NODE_REMOVED;
+import static javax.jcr.observation.Event.PROPERTY_CHANGED;
+import static org.fcrepo.auth.xacml.URIConstants.XACML_POLICY_PROPERTY;
+import static org.fcrepo.http.commons.test.util.TestHelpers.setField;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.modeshape.FedoraSessionImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * @author agent
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class InvalidationPipelineTest {
+
+    @Mock
+    private SessionFactory mockSessionFactory;
+
+    @Mock
+    private FedoraSessionImpl mockSession;
+
+    @Mock
+    private Session mockJcrSession;
+
+    @Mock
+    private Workspace mockWorkspace;
+
+    @Mock
+    private ObservationManager mockObservationManager;
+
+    private InvalidationPipeline pipeline;
+
+    private EventListener listener;
+
+    private final List<Invalidation> received = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        when(mockSessionFactory.getInternalSession()).thenReturn(mockSession);
+        when(mockSession.getJcrSession()).thenReturn(mockJcrSession);
+        when(mockJcrSession.getWorkspace()).thenReturn(mockWorkspace);
+        when(mockWorkspace.getObservationManager()).thenReturn(mockObservationManager);
+
+        pipeline = new InvalidationPipeline();
+        setField(pipeline, "sessionFactory", mockSessionFactory);
+        pipeline.register(received::add);
+        pipeline.start();
+
+        final ArgumentCaptor<EventListener> captor = ArgumentCaptor.forClass(EventListener.class);
+        verify(mockObservationManager).addEventListener(captor.capture(), anyInt(), eq("/"), eq(true),
+                any(String[].class), any(String[].class), eq(false));
+        listener = captor.getValue();
+    }
+
+    @After
+    public void tearDown() {
+        pipeline.destroy();
+    }
+
+    private static Event event(final int type, final String path) throws RepositoryException {
+        final Event event = mock(Event.class);
+        when(event.getType()).thenReturn(type);
+        when(event.getPath()).thenReturn(path);
+        return event;
+    }
+
+    private void fire(final Event... events) {
+        final Iterator<Event> iterator = asList(events).iterator();
+        final EventIterator eventIterator = mock(EventIterator.class);
+        when(eventIterator.hasNext()).thenAnswer(i -> iterator.hasNext());
+        when(eventIterator.nextEvent()).thenAnswer(i -> iterator.next());
+        listener.onEvent(eventIterator);
+        pipeline.flush();
+    }
+
+    @Test
+    public void testSubtreeDeleteIsCoalesced() throws Exception {
+        fire(event(NODE_REMOVED, "/a/b/c"), event(NODE_REMOVED, "/a/b"), event(NODE_REMOVED, "/a/bc"),
+                event(NODE_ADDED, "/x"), event(NODE_ADDED, "/x/y"));
+
+        assertEquals(1, received.size());
+        final Invalidation invalidation = received.get(0);
+        assertEquals(new HashSet<>(asList("/a/b", "/a/bc")), invalidation.getRemovedPaths());
+        assertEquals(singleton("/x"), invalidation.getAddedPaths());
+        assertEquals("/{}a/{}b", invalidation.getExpandedPath("/a/b"));
+        assertFalse(invalidation.isPolicyChanged());
+        assertEquals(0, pipeline.getGeneration());
+    }
+
+    @Test
+    public void testMove() throws Exception {
+        final Event move = event(NODE_MOVED, "/dest");
+        when(move.getInfo()).thenReturn(ImmutableMap.of("srcAbsPath", "/src"));
+        fire(move);
+
+        final Invalidation invalidation = received.get(0);
+        assertEquals(singleton("/src"), invalidation.getRemovedPaths());
+        assertEquals(singleton("/dest"), invalidation.getMovedPaths());
+    }
+
+    @Test
+    public void testPolicyChangeBumpsGeneration() throws Exception {
+        pipeline.registerPolicyMatcher("/policies/A"::equals);
+
+        fire(event(PROPERTY_CHANGED, "/a/" + XACML_POLICY_PROPERTY));
+        assertEquals(singleton("/a"), received.get(0).getAssignmentNodes());
+        assertTrue(received.get(0).isPolicyChanged());
+        assertEquals(1, pipeline.getGeneration());
+
+        fire(event(PROPERTY_CHANGED, "/a/dc:title"));
+        assertEquals(singleton("/a"), received.get(1).getChangedNodes());
+        assertFalse(received.get(1).isPolicyChanged());
+
+        fire(event(PROPERTY_CHANGED, "/policies/A/jcr:data"));
+        assertTrue(received.get(2).isPolicyChanged());
+        assertEquals(2, received.get(2).getGeneration());
+    }
+
+    @Test
+    public void testAssignedNodeDeleteOrMoveBumpsGeneration() throws Exception {
+        final PolicyAssignmentIndex index = new PolicyAssignmentIndex();
+        index.assign("/{}a/{}b", "/policies/B");
+        pipeline.registerAssignmentMatcher(index::holdsAssignment);
+
+        // Neither change sends an event for the authz:policy property of the assigned node
+        fire(event(NODE_REMOVED, "/a/c"));
+        assertFalse(received.get(0).isPolicyChanged());
+        assertEquals(0, pipeline.getGeneration());
+
+        fire(event(NODE_REMOVED, "/a"));
+        assertTrue("Deleting an ancestor of an assigned node changes policy", received.get(1).isPolicyChanged());
+        assertEquals(1, pipeline.getGeneration());
+
+        final Event move = event(NODE_MOVED, "/d");
+        when(move.getInfo()).thenReturn(ImmutableMap.of("srcAbsPath", "/a/b"));
+        fire(move);
+        assertTrue("Moving an assigned node changes policy", received.get(2).isPolicyChanged());
+        assertEquals(2, received.get(2).getGeneration());
+    }
+
+    @Test
+    public void testUnreadableEventInvalidatesEverything() throws Exception {
+        final Event event = mock(Event.class);
+        when(event.getType()).thenReturn(NODE_ADDED);
+        when(event.getPath()).thenThrow(new RepositoryException("expected"));
+        fire(event);
+
+        assertEquals(singleton("/"), received.get(0).getRemovedPaths());
+    }
+}
@@ -20,9 +20,11 @@ package org.fcrepo.auth.xacml;
 
 import static org.fcrepo.http.commons.test.util.TestHelpers.setField;
 import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.not;
 import static org.junit.Assert.assertThat;
 
 import org.jboss.security.xacml.sunxacml.PDP;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -46,9 +48,21 @@ public class PDPFactoryTest {
         setField(pdpFactory, "fedoraResourceFinderModule", fedoraResourceFinderModule);
     }
 
+    @After
+    public void tearDown() {
+        System.clearProperty(PDPFactory.ENGINE);
+    }
+
     @Test
     public void testMakePdp() {
         assertThat(pdpFactory.makePDP(), instanceOf(PDP.class));
+        assertThat(pdpFactory.makePDP(), not(instanceOf(CompiledPDP.class)));
+    }
+
+    @Test
+    public void testMakeCompiledPdp() {
+        System.setProperty(PDPFactory.ENGINE, PDPFactory.COMPILED_ENGINE);
+        assertThat(pdpFactory.makePDP(), instanceOf(CompiledPDP.class));
     }
 
 }
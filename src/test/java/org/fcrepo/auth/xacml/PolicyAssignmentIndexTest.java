@@ -0,0 +1,244 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonMap;
+import static javax.jcr.query.Query.JCR_SQL2;
+import static org.fcrepo.auth.xacml.URIConstants.XACML_POLICY_PROPERTY;
+import static org.fcrepo.http.commons.test.util.TestHelpers.setField;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+import javax.jcr.query.InvalidQueryException;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.modeshape.FedoraSessionImpl;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PolicyAssignmentIndexTest {
+
+    @Mock
+    private SessionFactory mockSessionFactory;
+
+    @Mock
+    private FedoraSessionImpl mockSession;
+
+    @Mock
+    private Session mockJcrSession;
+
+    @Mock
+    private Workspace mockWorkspace;
+
+    @Mock
+    private ObservationManager mockObservationManager;
+
+    @Mock
+    private QueryManager mockQueryManager;
+
+    @Mock
+    private Query mockQuery;
+
+    @Mock
+    private QueryResult mockQueryResult;
+
+    @Mock
+    private NodeIterator mockNodes;
+
+    @Mock
+    private Node mockRootNode, mockPolicyNode;
+
+    @Mock
+    private Property mockPolicyProperty;
+
+    private PolicyAssignmentIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        when(mockSessionFactory.getInternalSession()).thenReturn(mockSession);
+        when(mockSession.getJcrSession()).thenReturn(mockJcrSession);
+        when(mockJcrSession.getWorkspace()).thenReturn(mockWorkspace);
+        when(mockWorkspace.getObservationManager()).thenReturn(mockObservationManager);
+        when(mockWorkspace.getQueryManager()).thenReturn(mockQueryManager);
+        when(mockQueryManager.createQuery(anyString(), anyString())).thenReturn(mockQuery);
+        when(mockQuery.execute()).thenReturn(mockQueryResult);
+        when(mockQueryResult.getNodes()).thenReturn(mockNodes);
+        when(mockNodes.hasNext()).thenReturn(true, false);
+        when(mockNodes.nextNode()).thenReturn(mockRootNode);
+        when(mockRootNode.getPath()).thenReturn("/");
+        when(mockRootNode.hasProperty(XACML_POLICY_PROPERTY)).thenReturn(true);
+        when(mockRootNode.getProperty(XACML_POLICY_PROPERTY)).thenReturn(mockPolicyProperty);
+        when(mockPolicyProperty.getNode()).thenReturn(mockPolicyNode);
+        when(mockPolicyNode.getPath()).thenReturn("/policies/GlobalRolesPolicySet");
+
+        final InvalidationPipeline invalidationPipeline = new InvalidationPipeline();
+        setField(invalidationPipeline, "sessionFactory", mockSessionFactory);
+        index = new PolicyAssignmentIndex();
+        setField(index, "sessionFactory", mockSessionFactory);
+        setField(index, "invalidationPipeline", invalidationPipeline);
+        index.init();
+    }
+
+    @Test
+    public void testBuildFromRepository() throws Exception {
+        assertEquals("/policies/GlobalRolesPolicySet", index.findEffectivePolicy("/{}a/{}b/{ns}prop"));
+        assertEquals("/policies/GlobalRolesPolicySet", index.findEffectivePolicy("/"));
+
+        index.findEffectivePolicy("/{}a");
+        verify(mockQuery, times(1)).execute();
+        verify(mockObservationManager).addEventListener(any(EventListener.class), anyInt(), eq("/"), anyBoolean(),
+                any(String[].class), any(String[].class), anyBoolean());
+    }
+
+    @Test
+    public void testLongestPrefix() {
+        index.assign("/{}a/{}b", "/policies/B");
+        index.assign("/{}a/{}b/{}c/{}d", "/policies/D");
+
+        assertEquals("/policies/GlobalRolesPolicySet", index.findEffectivePolicy("/{}a"));
+        assertEquals("/policies/B", index.findEffectivePolicy("/{}a/{}b/{}c"));
+        assertEquals("/policies/B", index.findEffectivePolicy("/{}a/{}b/{ns}prop"));
+        assertEquals("/policies/D", index.findEffectivePolicy("/{}a/{}b/{}c/{}d/{}e/{ns}prop"));
+        assertEquals("/policies/GlobalRolesPolicySet", index.findEffectivePolicy("/{}a/{}bb"));
+    }
+
+    @Test
+    public void testGetAssignments() {
+        index.assign("/{}a/{}b", "/policies/B");
+
+        final Map<String, String> assignments = index.getAssignments();
+        assertEquals(2, assignments.size());
+        assertEquals("/policies/GlobalRolesPolicySet", assignments.get("/"));
+        assertEquals("/policies/B", assignments.get("/{}a/{}b"));
+    }
+
+    @Test
+    public void testUnassignAndRemoveSubtree() {
+        index.assign("/{}a/{}b", "/policies/B");
+        index.assign("/{}a/{}b/{}c", "/policies/C");
+
+        index.unassign("/{}a/{}b");
+        assertEquals("/policies/C", index.findEffectivePolicy("/{}a/{}b/{}c/{}x"));
+        assertEquals("/policies/GlobalRolesPolicySet", index.findEffectivePolicy("/{}a/{}b/{}x"));
+
+        index.removeSubtree("/{}a");
+        assertEquals("/policies/GlobalRolesPolicySet", index.findEffectivePolicy("/{}a/{}b/{}c/{}x"));
+
+        index.removeSubtree("/");
+        assertNull(index.findEffectivePolicy("/{}a"));
+    }
+
+    @Test
+    public void testHoldsAssignment() {
+        index.assign("/{}a/{}b", "/policies/B");
+
+        assertTrue(index.holdsAssignment("/{}a"));
+        assertTrue(index.holdsAssignment("/{}a/{}b"));
+        assertFalse(index.holdsAssignment("/{}a/{}b/{}c"));
+        assertFalse(index.holdsAssignment("/{}x"));
+        assertTrue(index.holdsAssignment("/"));
+    }
+
+    @Test
+    public void testInvalidation() throws Exception {
+        index.assign("/{}a/{}b", "/policies/B");
+        index.assign("/{}c", "/policies/C");
+        when(mockJcrSession.nodeExists("/c")).thenReturn(false);
+        when(mockJcrSession.nodeExists("/d")).thenReturn(true);
+        when(mockJcrSession.getNode("/d")).thenReturn(mockPolicyNode);
+        when(mockPolicyNode.getPath()).thenReturn("/d");
+        when(mockPolicyNode.hasProperty(XACML_POLICY_PROPERTY)).thenReturn(true);
+        when(mockPolicyNode.getProperty(XACML_POLICY_PROPERTY)).thenReturn(mockPolicyProperty);
+        when(mockPolicyProperty.getNode()).thenReturn(mockPolicyNode);
+        when(mockNodes.hasNext()).thenReturn(false);
+
+        // "/a" is deleted, "/c" is moved to "/d"
+        final Map<String, String> expanded = new HashMap<>();
+        expanded.put("/a", "/{}a");
+        expanded.put("/c", "/{}c");
+        expanded.put("/d", "/{}d");
+        index.invalidate(new Invalidation(new TreeSet<>(asList("/a", "/c")), singleton("/d"), emptySet(),
+                emptySet(), emptySet(), expanded, false, 0));
+
+        assertEquals("/policies/GlobalRolesPolicySet", index.findEffectivePolicy("/{}a/{}b/{}x"));
+        assertEquals("/policies/GlobalRolesPolicySet", index.findEffectivePolicy("/{}c/{}x"));
+        assertEquals("/d", index.findEffectivePolicy("/{}d/{}x"));
+        verify(mockQueryManager).createQuery(contains("ISDESCENDANTNODE(n, '/d')"), eq(JCR_SQL2));
+    }
+
+    @Test
+    public void testBuildOnChangeAfterFailedStart() throws Exception {
+        final PolicyAssignmentIndex unbuilt = new PolicyAssignmentIndex();
+        setField(unbuilt, "sessionFactory", mockSessionFactory);
+        final InvalidationPipeline invalidationPipeline = new InvalidationPipeline();
+        setField(invalidationPipeline, "sessionFactory", mockSessionFactory);
+        setField(unbuilt, "invalidationPipeline", invalidationPipeline);
+        when(mockQuery.execute()).thenThrow(new InvalidQueryException("expected")).thenReturn(mockQueryResult);
+        when(mockNodes.hasNext()).thenReturn(true, false);
+
+        unbuilt.init();
+        assertNull(unbuilt.findEffectivePolicy("/{}a"));
+
+        unbuilt.invalidate(new Invalidation(emptySet(), emptySet(), emptySet(), singleton("/a"), emptySet(),
+                singletonMap("/a", "/{}a"), false, 0));
+        assertEquals("/policies/GlobalRolesPolicySet", unbuilt.findEffectivePolicy("/{}a"));
+    }
+
+    @Test
+    public void testInvalidateAssignment() throws Exception {
+        index.assign("/{}a", "/policies/A");
+        when(mockJcrSession.nodeExists("/a")).thenReturn(false);
+
+        index.invalidate(new Invalidation(emptySet(), emptySet(), emptySet(), emptySet(), singleton("/a"),
+                singletonMap("/a", "/{}a"), true, 1));
+
+        assertEquals("/policies/GlobalRolesPolicySet", index.findEffectivePolicy("/{}a"));
+    }
+}
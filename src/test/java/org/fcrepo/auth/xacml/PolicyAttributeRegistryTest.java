@@ -0,0 +1,109 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_ACTION_ID;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_ENVIRONMENT_ORIGINAL_IP_ADDRESS;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_ROLE;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.ACTION_TARGET;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.ENVIRONMENT_TARGET;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.RESOURCE_TARGET;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.SUBJECT_TARGET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.StringReader;
+import java.net.URI;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+public class PolicyAttributeRegistryTest {
+
+    private PolicyAttributeRegistry registry;
+
+    @Before
+    public void setUp() {
+        registry = new PolicyAttributeRegistry();
+    }
+
+    private static Document parse(final String name) throws Exception {
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new File("src/main/resources/policies/" + name));
+    }
+
+    @Test
+    public void testRegisterPolicy() throws Exception {
+        registry.register(parse("WriteNormalNodePermissionPolicySet.xml"));
+
+        assertTrue(registry.isReferenced(ACTION_TARGET, ATTRIBUTEID_ACTION_ID));
+        assertTrue(registry.isReferenced(RESOURCE_TARGET,
+                URI.create("http://www.w3.org/1999/02/22-rdf-syntax-ns#type")));
+        assertFalse(registry.isReferenced(SUBJECT_TARGET, FCREPO_SUBJECT_ROLE));
+        assertFalse(registry.isReferenced(ATTRIBUTEID_ENVIRONMENT_ORIGINAL_IP_ADDRESS));
+        assertFalse(registry.usesSelectors());
+
+        registry.register(parse("ReadOnlyExceptToLocalPolicySet.xml"));
+        assertTrue(registry.isReferenced(ENVIRONMENT_TARGET, ATTRIBUTEID_ENVIRONMENT_ORIGINAL_IP_ADDRESS));
+    }
+
+    @Test
+    public void testResourceIdSignature() throws Exception {
+        assertEquals("", registry.getResourceIdSignature("/{}a/{ns}title"));
+
+        registry.register(parse("WriteNormalNodePermissionPolicySet.xml"));
+        final String title = registry.getResourceIdSignature("/{}a/{ns}title");
+        assertEquals("The regexp-string-match on the resource ID is recorded", "0", title);
+        assertEquals(title, registry.getResourceIdSignature("/{}a/{ns}description"));
+        assertNotEquals(title,
+                registry.getResourceIdSignature("/{}a/{http://fedora.info/definitions/v4/authorization#}policy"));
+    }
+
+    @Test
+    public void testResourceIdInCondition() throws Exception {
+        final String policy = "<Policy xmlns=\"urn:oasis:names:tc:xacml:2.0:policy:schema:os\"><Rule><Condition>" +
+                "<ResourceAttributeDesignator AttributeId=\"urn:oasis:names:tc:xacml:1.0:resource:resource-id\" " +
+                "DataType=\"http://www.w3.org/2001/XMLSchema#string\"/></Condition></Rule></Policy>";
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        registry.register(factory.newDocumentBuilder().parse(new InputSource(new StringReader(policy))));
+
+        assertNull(registry.getResourceIdSignature("/{}a/{ns}title"));
+    }
+
+    @Test
+    public void testGeneration() throws Exception {
+        final long initial = registry.getGeneration();
+        registry.register(parse("ReaderRolePolicySet.xml"));
+        final long loaded = registry.getGeneration();
+        assertTrue(loaded > initial);
+
+        registry.register(parse("ReaderRolePolicySet.xml"));
+        assertEquals("Re-registering known attributes should not change the generation",
+                loaded, registry.getGeneration());
+    }
+}
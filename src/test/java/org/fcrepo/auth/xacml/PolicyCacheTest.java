@@ -0,0 +1,99 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.when;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.fcrepo.kernel.api.models.FedoraBinary;
+import org.jboss.security.xacml.sunxacml.AbstractPolicy;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PolicyCacheTest {
+
+    @Mock
+    private FedoraBinary mockBinary;
+
+    @Mock
+    private AbstractPolicy mockPolicy;
+
+    private PolicyCache cache;
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private final Function<FedoraBinary, AbstractPolicy> loader = b -> {
+        loads.incrementAndGet();
+        return mockPolicy;
+    };
+
+    @Before
+    public void setUp() {
+        cache = new PolicyCache(10);
+        when(mockBinary.getPath()).thenReturn("/policies/test");
+        when(mockBinary.getContentDigest()).thenReturn(URI.create("urn:sha1:1"));
+    }
+
+    @Test
+    public void testHit() {
+        assertSame(mockPolicy, cache.get(mockBinary, loader));
+        assertSame(mockPolicy, cache.get(mockBinary, loader));
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.stats().hitCount());
+        assertEquals(1, cache.stats().missCount());
+    }
+
+    @Test
+    public void testNewDigestIsMiss() {
+        cache.get(mockBinary, loader);
+        when(mockBinary.getContentDigest()).thenReturn(URI.create("urn:sha1:2"));
+        cache.get(mockBinary, loader);
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testInvalidatePath() {
+        cache.get(mockBinary, loader);
+        cache.invalidate("/policies/test");
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testFailuresNotCached() {
+        assertNull(cache.get(mockBinary, b -> null));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testNoVersionNotCached() {
+        when(mockBinary.getContentDigest()).thenReturn(null);
+        cache.get(mockBinary, loader);
+        cache.get(mockBinary, loader);
+        assertEquals(2, loads.get());
+    }
+}
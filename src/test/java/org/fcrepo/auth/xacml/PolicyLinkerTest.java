@@ -0,0 +1,201 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.security.xacml.sunxacml.AbstractPolicy;
+import org.jboss.security.xacml.sunxacml.Policy;
+import org.jboss.security.xacml.sunxacml.PolicyReference;
+import org.jboss.security.xacml.sunxacml.PolicySet;
+import org.jboss.security.xacml.sunxacml.combine.PolicyCombinerElement;
+import org.jboss.security.xacml.sunxacml.finder.PolicyFinder;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+/**
+ * @author agent
+ */
+public class PolicyLinkerTest {
+
+    private static final String NS = "urn:oasis:names:tc:xacml:1.0:policy";
+
+    private static final String TARGET = "<Target><Subjects><AnySubject/></Subjects><Resources><AnyResource/>" +
+            "</Resources><Actions><AnyAction/></Actions></Target>";
+
+    private final Map<String, String[]> policySets = new HashMap<>();
+
+    private final Set<String> policies = new HashSet<>();
+
+    private final Map<String, AtomicInteger> loads = new HashMap<>();
+
+    private final PolicyParser parser = new PolicyParser();
+
+    private final PolicyFinder finder = new PolicyFinder();
+
+    private PolicyLinker linker;
+
+    @Before
+    public void setUp() {
+        linker = new PolicyLinker(this::load);
+    }
+
+    @Test
+    public void testLinkReferences() {
+        policySet("/policies/Root", "/policies/A", "/policies/B");
+        policySet("/policies/A", "/policies/C");
+        policy("/policies/B");
+        policy("/policies/C");
+
+        final AbstractPolicy root = linker.get("/policies/Root");
+
+        final List<?> children = root.getChildElements();
+        assertEquals(2, children.size());
+        final AbstractPolicy a = child(root, 0);
+        assertTrue(a instanceof PolicySet);
+        assertTrue(child(root, 1) instanceof Policy);
+        assertTrue(child(a, 0) instanceof Policy);
+        assertTrue(linker.getMissingReferences().isEmpty());
+
+        assertSame(root, linker.get("/policies/Root"));
+        assertSame(a, linker.get("/policies/A"));
+        assertEquals(1, loads.get("/policies/Root").get());
+        assertEquals(1, loads.get("/policies/C").get());
+    }
+
+    @Test
+    public void testMissingReference() {
+        policySet("/policies/Root", "/policies/A", "/policies/Missing");
+        policy("/policies/A");
+
+        final AbstractPolicy root = linker.get("/policies/Root");
+
+        assertTrue(child(root, 0) instanceof Policy);
+        assertTrue(child(root, 1) instanceof PolicyReference);
+        assertEquals(1, linker.getMissingReferences().size());
+        assertTrue(linker.getMissingReferences().contains("info:fedora/policies/Missing"));
+    }
+
+    @Test
+    public void testCycle() {
+        policySet("/policies/Root", "/policies/A");
+        policySet("/policies/A", "/policies/B");
+        policySet("/policies/B", "/policies/A");
+
+        final AbstractPolicy root = linker.get("/policies/Root");
+
+        assertNotNull(root);
+        assertTrue(linker.isCyclic("/policies/A"));
+        assertTrue(linker.isCyclic("/policies/B"));
+        assertFalse(linker.isCyclic("/policies/Root"));
+        final AbstractPolicy b = child(child(root, 0), 0);
+        assertTrue("The reference closing the cycle is left in place", child(b, 0) instanceof PolicyReference);
+    }
+
+    @Test
+    public void testInvalidateRelinksAffectedPolicies() {
+        policySet("/policies/Root", "/policies/A", "/policies/B");
+        policySet("/policies/A", "/policies/C");
+        policy("/policies/B");
+        policy("/policies/C");
+        final AbstractPolicy root = linker.get("/policies/Root");
+        final AbstractPolicy b = linker.get("/policies/B");
+
+        linker.invalidate("/policies/C/jcr:content");
+
+        final AbstractPolicy relinked = linker.get("/policies/Root");
+        assertFalse(root == relinked);
+        assertSame("Unaffected subtrees are reused", b, child(relinked, 1));
+        assertEquals(2, loads.get("/policies/Root").get());
+        assertEquals(2, loads.get("/policies/A").get());
+        assertEquals(2, loads.get("/policies/C").get());
+        assertEquals(1, loads.get("/policies/B").get());
+    }
+
+    @Test
+    public void testInvalidateSubtree() {
+        policySet("/policies/Root", "/policies/A");
+        policy("/policies/A");
+        linker.get("/policies/Root");
+
+        linker.invalidate("/policies");
+
+        assertFalse(linker.containsPath("/policies/Root"));
+        linker.get("/policies/Root");
+        assertEquals(2, loads.get("/policies/A").get());
+    }
+
+    private static AbstractPolicy child(final AbstractPolicy policy, final int index) {
+        return ((PolicyCombinerElement) policy.getChildElements().get(index)).getPolicy();
+    }
+
+    private AbstractPolicy load(final String path) {
+        loads.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+        final String xml = toXml(path);
+        if (xml == null) {
+            return null;
+        }
+        try {
+            final Element root = parser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8"))).getDocumentElement();
+            return root.getTagName().equals("Policy") ? Policy.getInstance(root) : PolicySet.getInstance(root, finder);
+        } catch (final Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private String toXml(final String path) {
+        if (policies.contains(path)) {
+            return "<Policy xmlns=\"" + NS + "\" PolicyId=\"info:fedora" + path + "\" RuleCombiningAlgId=\"" +
+                    "urn:oasis:names:tc:xacml:1.0:rule-combining-algorithm:first-applicable\">" + TARGET +
+                    "</Policy>";
+        }
+        if (!policySets.containsKey(path)) {
+            return null;
+        }
+        final StringBuilder xml = new StringBuilder("<PolicySet xmlns=\"" + NS + "\" PolicySetId=\"info:fedora" +
+                path + "\" PolicyCombiningAlgId=\"urn:oasis:names:tc:xacml:1.0:policy-combining-algorithm:" +
+                "first-applicable\">" + TARGET);
+        for (final String reference : policySets.get(path)) {
+            final String element = policies.contains(reference) ? "PolicyIdReference" : "PolicySetIdReference";
+            xml.append('<').append(element).append(">info:fedora").append(reference).append("</")
+                    .append(element).append('>');
+        }
+        return xml.append("</PolicySet>").toString();
+    }
+
+    private void policySet(final String path, final String... references) {
+        policySets.put(path, references);
+    }
+
+    private void policy(final String path) {
+        policies.add(path);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * @author agent
+ */
+public class PolicyParserTest {
+
+    private static final File POLICIES = new File("src/main/resources/policies");
+
+    private PolicyParser parser;
+
+    @Before
+    public void setUp() {
+        parser = new PolicyParser();
+    }
+
+    @Test
+    public void testGetID() throws Exception {
+        try (final InputStream in = FileUtils.openInputStream(new File(POLICIES, "GlobalRolesPolicySet.xml"))) {
+            assertEquals("info:fedora/policies/GlobalRolesPolicySet", parser.getID(in));
+        }
+        assertEquals(1, parser.getScanCount());
+        assertEquals(0, parser.getParseCount());
+    }
+
+    @Test
+    public void testGetIDOfUnknownDocument() throws Exception {
+        assertNull(parser.getID(new ByteArrayInputStream("<Foo PolicyId=\"x\"/>".getBytes("UTF-8"))));
+    }
+
+    @Test
+    public void testParseMatchesScan() throws Exception {
+        for (final File file : POLICIES.listFiles()) {
+            final Document doc;
+            try (final InputStream in = FileUtils.openInputStream(file)) {
+                doc = parser.parse(in);
+            }
+            try (final InputStream in = FileUtils.openInputStream(file)) {
+                assertEquals(PolicyUtil.getID(doc), parser.getID(in));
+            }
+        }
+        assertEquals(POLICIES.listFiles().length, parser.getParseCount());
+        assertTrue(parser.getParseTimeNanos() > 0);
+    }
+
+    @Test(expected = Exception.class)
+    public void testParseMalformed() throws Exception {
+        parser.parse(new ByteArrayInputStream("<PolicySet".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void testConcurrentParsing() throws Exception {
+        final File file = new File(POLICIES, "GlobalRolesPolicySet.xml");
+        final ExecutorService executor = newFixedThreadPool(8);
+        try {
+            final List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                results.add(executor.submit(() -> {
+                    try (final InputStream in = FileUtils.openInputStream(file)) {
+                        return PolicyUtil.getID(parser.parse(in));
+                    }
+                }));
+            }
+            for (final Future<String> result : results) {
+                assertEquals("info:fedora/policies/GlobalRolesPolicySet", result.get(30, SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
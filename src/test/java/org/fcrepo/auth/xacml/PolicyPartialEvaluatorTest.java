@@ -0,0 +1,180 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_ROLE;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.SUBJECT_TARGET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.jboss.security.xacml.sunxacml.AbstractPolicy;
+import org.jboss.security.xacml.sunxacml.EvaluationCtx;
+import org.jboss.security.xacml.sunxacml.MatchResult;
+import org.jboss.security.xacml.sunxacml.Policy;
+import org.jboss.security.xacml.sunxacml.PolicySet;
+import org.jboss.security.xacml.sunxacml.combine.PolicyCombinerElement;
+import org.jboss.security.xacml.sunxacml.ctx.Result;
+import org.jboss.security.xacml.sunxacml.finder.PolicyFinder;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+/**
+ * @author agent
+ */
+public class PolicyPartialEvaluatorTest {
+
+    private static final String NS = "urn:oasis:names:tc:xacml:2.0:policy:schema:os";
+
+    private static final String PERMIT_OVERRIDES =
+            "urn:oasis:names:tc:xacml:1.0:policy-combining-algorithm:permit-overrides";
+
+    private static final String FIRST_APPLICABLE =
+            "urn:oasis:names:tc:xacml:1.0:rule-combining-algorithm:first-applicable";
+
+    private final PolicyParser parser = new PolicyParser();
+
+    @Test
+    public void testFoldsSubjects() {
+        final AbstractPolicy policySet = rolesPolicySet();
+        final AbstractPolicy residual = PolicyPartialEvaluator.evaluate(policySet, context(singleton("reader"),
+                "read"));
+
+        assertTrue(residual instanceof PolicySet);
+        assertTrue(residual.getTarget().getSubjectsSection().matchesAny());
+        assertEquals("The writer policy is dropped", 2, residual.getChildElements().size());
+        final AbstractPolicy reader = child(residual, 0);
+        assertTrue(reader.getTarget().getSubjectsSection().matchesAny());
+        final AbstractPolicy shared = child(residual, 1);
+        assertEquals("The admin rule is dropped", 1, shared.getChildElements().size());
+    }
+
+    @Test
+    public void testNotApplicable() {
+        final AbstractPolicy writer = child(rolesPolicySet(), 1);
+        assertNull(PolicyPartialEvaluator.evaluate(writer, context(singleton("reader"), "read")));
+    }
+
+    @Test
+    public void testUnchanged() {
+        final AbstractPolicy policy = policy("shared", "", "<Rule RuleId=\"permit\" Effect=\"Permit\"/>");
+        assertSame(policy, PolicyPartialEvaluator.evaluate(policy, context(singleton("reader"), "read")));
+    }
+
+    @Test
+    public void testSameDecisions() {
+        final AbstractPolicy policySet = rolesPolicySet();
+        final Set<Set<String>> subjects = new HashSet<>(asList(emptySet(), singleton("reader"), singleton("writer"),
+                singleton("admin"), new HashSet<>(asList("reader", "admin"))));
+        for (final Set<String> roles : subjects) {
+            final AbstractPolicy residual = PolicyPartialEvaluator.evaluate(policySet, context(roles, "read"));
+            for (final String action : new String[] { "read", "write", "delete" }) {
+                final EvaluationCtx context = context(roles, action);
+                assertEquals(roles + " " + action, decide(policySet, context),
+                        residual == null ? Result.DECISION_NOT_APPLICABLE : decide(residual, context));
+            }
+        }
+    }
+
+    @Test
+    public void testCanEvaluate() {
+        final PolicyAttributeRegistry registry = new PolicyAttributeRegistry();
+        registry.register(SUBJECT_TARGET, FCREPO_SUBJECT_ROLE);
+        assertTrue(PolicyPartialEvaluator.canEvaluate(registry));
+
+        registry.register(SUBJECT_TARGET, URI.create("urn:example:subject:clearance"));
+        assertFalse(PolicyPartialEvaluator.canEvaluate(registry));
+    }
+
+    private static int decide(final AbstractPolicy policy, final EvaluationCtx context) {
+        final int match = policy.match(context).getResult();
+        if (match == MatchResult.NO_MATCH) {
+            return Result.DECISION_NOT_APPLICABLE;
+        }
+        return match == MatchResult.MATCH ? policy.evaluate(context).getDecision() : Result.DECISION_INDETERMINATE;
+    }
+
+    private static EvaluationCtx context(final Set<String> roles, final String action) {
+        return new FedoraEvaluationCtxBuilder().addSubject("alice", roles).addResourceID("/{}a")
+                .addActions(new String[] { action }).build();
+    }
+
+    private static AbstractPolicy child(final AbstractPolicy policy, final int index) {
+        return ((PolicyCombinerElement) policy.getChildElements().get(index)).getPolicy();
+    }
+
+    /**
+     * A policy set in the form of the default role policies: one policy for each of two roles, and one shared
+     * policy with a rule for a third role.
+     */
+    private AbstractPolicy rolesPolicySet() {
+        return parse("<PolicySet xmlns=\"" + NS + "\" PolicySetId=\"info:fedora/policies/Roles\" " +
+                "PolicyCombiningAlgId=\"" + PERMIT_OVERRIDES + "\"><Target/>" +
+                policyXml("reader", subjects("reader"), "<Rule RuleId=\"read\" Effect=\"Permit\"><Target>" +
+                        actions("read") + "</Target></Rule><Rule RuleId=\"deny\" Effect=\"Deny\"/>") +
+                policyXml("writer", subjects("writer"), "<Rule RuleId=\"write\" Effect=\"Permit\"/>") +
+                policyXml("shared", "", "<Rule RuleId=\"admin\" Effect=\"Permit\"><Target>" + subjects("admin") +
+                        "</Target></Rule><Rule RuleId=\"delete\" Effect=\"Deny\"><Target>" + actions("delete") +
+                        "</Target></Rule>") +
+                "</PolicySet>");
+    }
+
+    private AbstractPolicy policy(final String id, final String subjects, final String rules) {
+        return parse(policyXml(id, subjects, rules).replace("<Policy ", "<Policy xmlns=\"" + NS + "\" "));
+    }
+
+    private static String policyXml(final String id, final String subjects, final String rules) {
+        return "<Policy PolicyId=\"info:fedora/policies/" + id + "\" RuleCombiningAlgId=\"" + FIRST_APPLICABLE +
+                "\"><Target>" + subjects + "</Target>" + rules + "</Policy>";
+    }
+
+    private static String subjects(final String role) {
+        return "<Subjects><Subject><SubjectMatch MatchId=\"urn:oasis:names:tc:xacml:1.0:function:string-equal\">" +
+                "<AttributeValue DataType=\"http://www.w3.org/2001/XMLSchema#string\">" + role +
+                "</AttributeValue><SubjectAttributeDesignator AttributeId=\"fcrepo-xacml:subject-role\" " +
+                "DataType=\"http://www.w3.org/2001/XMLSchema#string\"/></SubjectMatch></Subject></Subjects>";
+    }
+
+    private static String actions(final String action) {
+        return "<Actions><Action><ActionMatch MatchId=\"urn:oasis:names:tc:xacml:1.0:function:string-equal\">" +
+                "<AttributeValue DataType=\"http://www.w3.org/2001/XMLSchema#string\">" + action +
+                "</AttributeValue><ActionAttributeDesignator " +
+                "AttributeId=\"urn:oasis:names:tc:xacml:1.0:action:action-id\" " +
+                "DataType=\"http://www.w3.org/2001/XMLSchema#string\"/></ActionMatch></Action></Actions>";
+    }
+
+    private AbstractPolicy parse(final String xml) {
+        try {
+            final Element root = parser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8"))).getDocumentElement();
+            return root.getTagName().equals("Policy") ? Policy.getInstance(root) :
+                    PolicySet.getInstance(root, new PolicyFinder());
+        } catch (final Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+}
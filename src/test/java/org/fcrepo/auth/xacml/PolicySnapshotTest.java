@@ -0,0 +1,72 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jboss.security.xacml.sunxacml.AbstractPolicy;
+import org.junit.Test;
+
+/**
+ * @author agent
+ */
+public class PolicySnapshotTest {
+
+    private static final String FEDORA = "{http://fedora.info/definitions/v4/repository#}";
+
+    @Test
+    public void testFindEffectivePolicy() {
+        final Map<String, String> assignments = new HashMap<>();
+        assignments.put("/", "/policies/Global");
+        assignments.put("/" + FEDORA + "a", "/policies/A");
+        assignments.put("/" + FEDORA + "a/{}b/{}c", "/policies/C");
+        final PolicySnapshot snapshot = new PolicySnapshot(assignments, emptyMap(), 0);
+
+        assertEquals("/policies/Global", snapshot.findEffectivePolicy("/"));
+        assertEquals("/policies/Global", snapshot.findEffectivePolicy("/{}x/" + FEDORA + "y"));
+        assertEquals("/policies/A", snapshot.findEffectivePolicy("/" + FEDORA + "a/{}b/" + FEDORA + "prop"));
+        assertEquals("/policies/C", snapshot.findEffectivePolicy("/" + FEDORA + "a/{}b/{}c/{}d"));
+        assertEquals("/policies/Global", snapshot.findEffectivePolicy("/" + FEDORA + "ab"));
+        assertEquals("/policies/Global", snapshot.findEffectivePolicy("relative"));
+    }
+
+    @Test
+    public void testNoAssignments() {
+        assertNull(PolicySnapshot.EMPTY.findEffectivePolicy("/{}a"));
+    }
+
+    @Test
+    public void testImmutable() {
+        final Map<String, AbstractPolicy> policies = new HashMap<>();
+        final AbstractPolicy policy = mock(AbstractPolicy.class);
+        policies.put("/policies/A", policy);
+        final PolicySnapshot snapshot = new PolicySnapshot(singletonMap("/", "/policies/A"), policies, 3);
+        policies.clear();
+
+        assertTrue(policy == snapshot.getPolicy("/policies/A"));
+        assertEquals(3, snapshot.getGeneration());
+    }
+}
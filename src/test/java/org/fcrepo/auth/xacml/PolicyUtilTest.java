@@ -17,7 +17,13 @@
  */
 package org.fcrepo.auth.xacml;
 
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
 import java.io.File;
+import java.io.InputStream;
+
+import javax.jcr.Session;
 
 import org.apache.commons.io.FileUtils;
 import org.junit.Assert;
@@ -33,7 +39,7 @@ public class PolicyUtilTest {
     @Test
     public void test() throws Exception {
         final String id =
-                PolicyUtil.getID(FileUtils.openInputStream(
+                PolicyUtil.getID(new PolicyParser(), FileUtils.openInputStream(
                 new File("src/main/resources/policies/GlobalRolesPolicySet.xml")));
         Assert.assertEquals("info:fedora/policies/GlobalRolesPolicySet", id);
 
@@ -41,4 +47,23 @@ public class PolicyUtilTest {
         Assert.assertEquals("/policies/GlobalRolesPolicySet", path);
     }
 
+    @Test
+    public void testGetIDCountedByParser() throws Exception {
+        final PolicyParser parser = new PolicyParser();
+        try (final InputStream in = FileUtils.openInputStream(
+                new File("src/main/resources/policies/GlobalRolesPolicySet.xml"))) {
+            Assert.assertEquals("info:fedora/policies/GlobalRolesPolicySet", PolicyUtil.getID(parser, in));
+        }
+        Assert.assertEquals(1, parser.getScanCount());
+    }
+
+    @Test
+    public void testToExpandedPath() throws Exception {
+        final Session session = mock(Session.class);
+        when(session.getNamespaceURI("fedora")).thenReturn("http://fedora.info/definitions/v4/repository#");
+        Assert.assertEquals("/{}a/{http://fedora.info/definitions/v4/repository#}b/{}c",
+                PolicyUtil.toExpandedPath("/a/fedora:b/c[2]", session));
+        Assert.assertEquals("/", PolicyUtil.toExpandedPath("/", session));
+    }
+
 }
@@ -0,0 +1,100 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Collections.singleton;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.jcr.Session;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+/**
+ * @author agent
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class RequestDecisionMemoTest {
+
+    private static final String[] READ = new String[] {"read"};
+
+    @Mock
+    private Session mockSession, mockOtherSession;
+
+    private RequestDecisionMemo memo;
+
+    @Before
+    public void setUp() {
+        memo = new RequestDecisionMemo(2);
+    }
+
+    @Test
+    public void testRemember() {
+        assertNull(memo.get(mockSession, "/{}a", READ, singleton("reader")));
+        memo.put(mockSession, "/{}a", READ, singleton("reader"), memo.getEpoch(), true);
+        memo.put(mockSession, "/{}a/{ns}prop", READ, singleton("reader"), memo.getEpoch(), false);
+
+        assertTrue(memo.get(mockSession, "/{}a", READ, new HashSet<>(singleton("reader"))));
+        assertFalse(memo.get(mockSession, "/{}a/{ns}prop", READ, singleton("reader")));
+        assertNull(memo.get(mockSession, "/{}a", new String[] {"remove"}, singleton("reader")));
+        assertNull(memo.get(mockSession, "/{}a", READ, singleton("writer")));
+        assertNull(memo.get(mockOtherSession, "/{}a", READ, singleton("reader")));
+        assertEquals(2, memo.stats().hitCount());
+        assertEquals(4, memo.stats().missCount());
+    }
+
+    @Test
+    public void testCallerMayReuseArguments() {
+        final String[] actions = new String[] {"read"};
+        final Set<String> roles = new HashSet<>(singleton("reader"));
+        memo.put(mockSession, "/{}a", actions, roles, memo.getEpoch(), true);
+        actions[0] = "remove";
+        roles.add("writer");
+
+        assertTrue(memo.get(mockSession, "/{}a", READ, singleton("reader")));
+    }
+
+    @Test
+    public void testInvalidate() {
+        final long epoch = memo.getEpoch();
+        memo.put(mockSession, "/{}a", READ, singleton("reader"), epoch, true);
+        memo.invalidate(Invalidation.all(0));
+        assertNull(memo.get(mockSession, "/{}a", READ, singleton("reader")));
+
+        // A decision evaluated before the change is not remembered
+        memo.put(mockSession, "/{}a", READ, singleton("reader"), epoch, true);
+        assertNull(memo.get(mockSession, "/{}a", READ, singleton("reader")));
+    }
+
+    @Test
+    public void testMaximumDecisions() {
+        memo.put(mockSession, "/{}a", READ, singleton("reader"), memo.getEpoch(), true);
+        memo.put(mockSession, "/{}b", READ, singleton("reader"), memo.getEpoch(), true);
+        memo.put(mockSession, "/{}c", READ, singleton("reader"), memo.getEpoch(), true);
+        assertNull(memo.get(mockSession, "/{}c", READ, singleton("reader")));
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.jboss.security.xacml.sunxacml.AbstractPolicy;
+import org.jboss.security.xacml.sunxacml.EvaluationCtx;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+/**
+ * @author agent
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ResidualPolicyCacheTest {
+
+    private static final String POLICY = "/policies/Root";
+
+    @Mock
+    private AbstractPolicy mockPolicy;
+
+    @Mock
+    private EvaluationCtx mockContext;
+
+    private PolicySnapshot snapshot;
+
+    private ResidualPolicyCache cache;
+
+    @Before
+    public void setUp() {
+        snapshot = new PolicySnapshot(singletonMap("/", POLICY), singletonMap(POLICY, mockPolicy), 1);
+        cache = new ResidualPolicyCache(100);
+    }
+
+    @Test
+    public void testSharedBySubjectClass() {
+        final SubjectFingerprint reader = new SubjectFingerprint(null, singleton("reader"), null);
+        assertSame(mockPolicy, cache.get(snapshot, POLICY, reader, 0, mockContext));
+        assertSame(mockPolicy, cache.get(snapshot, POLICY, new SubjectFingerprint(null, singleton("reader"), null),
+                0, mockContext));
+        assertEquals(1, cache.stats().hitCount());
+
+        cache.get(snapshot, POLICY, new SubjectFingerprint(null, singleton("writer"), null), 0, mockContext);
+        cache.get(snapshot, POLICY, reader, 1, mockContext);
+        assertEquals(3, cache.stats().missCount());
+    }
+
+    @Test
+    public void testSnapshotReplaced() {
+        final SubjectFingerprint reader = new SubjectFingerprint(null, singleton("reader"), null);
+        cache.get(snapshot, POLICY, reader, 0, mockContext);
+
+        final PolicySnapshot replaced = new PolicySnapshot(singletonMap("/", POLICY),
+                singletonMap(POLICY, mockPolicy), 2);
+        cache.get(replaced, POLICY, reader, 0, mockContext);
+        cache.get(replaced, POLICY, reader, 0, mockContext);
+        assertEquals(1, cache.stats().hitCount());
+        assertEquals(2, cache.stats().missCount());
+    }
+
+    @Test
+    public void testMissingPolicy() {
+        assertNull(cache.get(snapshot, "/policies/Missing", new SubjectFingerprint(null, null, null), 0,
+                mockContext));
+    }
+}
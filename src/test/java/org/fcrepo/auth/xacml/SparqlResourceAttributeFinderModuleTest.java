@@ -17,12 +17,239 @@
  */
 package org.fcrepo.auth.xacml;
 
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonMap;
+import static org.apache.jena.graph.NodeFactory.createURI;
+import static org.fcrepo.kernel.api.RequiredRdfContext.PROPERTIES;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.RESOURCE_TARGET;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.SUBJECT_TARGET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.net.URI;
+import java.time.Instant;
+import java.util.stream.Stream;
+
+import javax.jcr.Session;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.api.RdfStream;
+import org.fcrepo.kernel.api.identifiers.IdentifierConverter;
+import org.fcrepo.kernel.api.models.FedoraResource;
+import org.fcrepo.kernel.api.rdf.DefaultRdfStream;
+import org.fcrepo.kernel.api.services.NodeService;
+import org.fcrepo.kernel.modeshape.FedoraSessionImpl;
+import org.fcrepo.kernel.modeshape.rdf.impl.DefaultIdentifierTranslator;
+import org.jboss.security.xacml.sunxacml.EvaluationCtx;
+import org.jboss.security.xacml.sunxacml.attr.AnyURIAttribute;
+import org.jboss.security.xacml.sunxacml.attr.BagAttribute;
+import org.jboss.security.xacml.sunxacml.cond.EvaluationResult;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
 /**
- * TODO write some actual tests
- *
  * @author Andrew Woods
  *         Date: 5/9/14
  */
+@RunWith(MockitoJUnitRunner.class)
 public class SparqlResourceAttributeFinderModuleTest {
 
+    private static final URI ANY_URI = URI.create(AnyURIAttribute.identifier);
+
+    private static final URI COLLECTION = URI.create("uri:collection");
+
+    private static final String RESOURCE_ID = "/{ns}path/{ns}to/{ns}resource";
+
+    private SparqlResourceAttributeFinderModule finder;
+
+    @Mock
+    private SessionFactory mockSessionFactory;
+
+    @Mock
+    private FedoraSessionImpl mockSession;
+
+    @Mock
+    private Session mockJcrSession;
+
+    @Mock
+    private NodeService mockNodeService;
+
+    @Mock
+    private FedoraResource mockResource;
+
+    @Before
+    public void setUp() {
+        finder = new SparqlResourceAttributeFinderModule();
+        finder.sessionPool = new InternalSessionPool(mockSessionFactory);
+        finder.nodeService = mockNodeService;
+        finder.setQueries(singletonMap(COLLECTION.toString(),
+                "SELECT ?c WHERE { ?resource <http://pcdm.org/models#memberOf> ?c }"));
+
+        when(mockSessionFactory.getInternalSession()).thenReturn(mockSession);
+        when(mockSession.getJcrSession()).thenReturn(mockJcrSession);
+        when(mockNodeService.find(mockSession, RESOURCE_ID)).thenReturn(mockResource);
+        when(mockResource.getPath()).thenReturn(RESOURCE_ID);
+        when(mockResource.getLastModifiedDate()).thenReturn(Instant.ofEpochMilli(1000));
+        when(mockResource.getTriples(any(IdentifierConverter.class), eq(PROPERTIES))).thenAnswer(
+                invocation -> triples("uri:collection/1"));
+    }
+
+    @Test
+    public void testIsSelectorSupported() {
+        assertFalse("Selector should not be supported!", finder.isSelectorSupported());
+    }
+
+    @Test
+    public void testGetSupportedIds() {
+        assertEquals(1, finder.getSupportedIds().size());
+        assertTrue(finder.getSupportedIds().contains(COLLECTION));
+    }
+
+    @Test
+    public void testFindAttribute() {
+        final BagAttribute bag = findCollections();
+        assertEquals(1, bag.size());
+        assertTrue(bag.contains(new AnyURIAttribute(URI.create("uri:collection/1"))));
+    }
+
+    @Test
+    public void testFindUnmappedAttribute() {
+        final EvaluationResult result = finder.findAttribute(ANY_URI, URI.create("uri:unmapped"), null, null,
+                evaluationCtx(), RESOURCE_TARGET);
+        assertTrue(((BagAttribute) result.getAttributeValue()).isEmpty());
+        verify(mockNodeService, never()).find(mockSession, RESOURCE_ID);
+    }
+
+    @Test
+    public void testFindAttributeWrongDesignator() {
+        final EvaluationResult result = finder.findAttribute(ANY_URI, COLLECTION, null, null, evaluationCtx(),
+                SUBJECT_TARGET);
+        assertTrue(((BagAttribute) result.getAttributeValue()).isEmpty());
+    }
+
+    @Test
+    public void testResultsCached() {
+        findCollections();
+        findCollections();
+
+        verify(mockResource, times(1)).getTriples(any(IdentifierConverter.class), eq(PROPERTIES));
+        assertEquals(1, finder.getResultCacheStats().hitCount());
+    }
+
+    @Test
+    public void testResultsNotReusedAfterModification() {
+        findCollections();
+        when(mockResource.getLastModifiedDate()).thenReturn(Instant.ofEpochMilli(2000));
+        findCollections();
+
+        verify(mockResource, times(2)).getTriples(any(IdentifierConverter.class), eq(PROPERTIES));
+    }
+
+    @Test
+    public void testFindAttributeInDataset() {
+        final Node subject = subject();
+        final Model model = ModelFactory.createDefaultModel();
+        model.add(model.createResource(subject.getURI()), model.createProperty("http://pcdm.org/models#memberOf"),
+                model.createResource("uri:collection/2"));
+        finder.setDataset(DatasetFactory.create(model));
+
+        final BagAttribute bag = findCollections();
+        assertEquals(1, bag.size());
+        assertTrue(bag.contains(new AnyURIAttribute(URI.create("uri:collection/2"))));
+        verify(mockResource, never()).getTriples(any(IdentifierConverter.class), eq(PROPERTIES));
+    }
+
+    @Test
+    public void testDatasetResultsCachedUntilChange() {
+        final Node subject = subject();
+        final Model model = ModelFactory.createDefaultModel();
+        model.add(model.createResource(subject.getURI()), model.createProperty("http://pcdm.org/models#memberOf"),
+                model.createResource("uri:collection/2"));
+        finder.setDataset(DatasetFactory.create(model));
+        assertTrue(findCollections().contains(new AnyURIAttribute(URI.create("uri:collection/2"))));
+
+        // The resource is unchanged, but a relationship it is queried for has changed
+        model.removeAll();
+        model.add(model.createResource(subject.getURI()), model.createProperty("http://pcdm.org/models#memberOf"),
+                model.createResource("uri:collection/3"));
+        assertTrue(findCollections().contains(new AnyURIAttribute(URI.create("uri:collection/2"))));
+
+        // Any change in the repository may be such a change
+        finder.invalidate(new Invalidation(emptySet(), emptySet(), emptySet(), singleton("/{ns}other"), emptySet(),
+                emptyMap(), false, 0));
+        final BagAttribute bag = findCollections();
+        assertEquals(1, bag.size());
+        assertTrue(bag.contains(new AnyURIAttribute(URI.create("uri:collection/3"))));
+        assertEquals(1, finder.getResultCacheStats().hitCount());
+    }
+
+    @Test
+    public void testResultsDroppedWithDataset() {
+        findCollections();
+        finder.setDataset(DatasetFactory.create(ModelFactory.createDefaultModel()));
+        finder.setDataset(null);
+        findCollections();
+
+        verify(mockResource, times(2)).getTriples(any(IdentifierConverter.class), eq(PROPERTIES));
+    }
+
+    @Test
+    public void testCacheSizeReadOnInit() {
+        System.setProperty(SparqlResourceAttributeFinderModule.CACHE_SIZE, "0");
+        try {
+            finder.init();
+        } finally {
+            System.clearProperty(SparqlResourceAttributeFinderModule.CACHE_SIZE);
+        }
+        findCollections();
+        findCollections();
+
+        verify(mockResource, times(2)).getTriples(any(IdentifierConverter.class), eq(PROPERTIES));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonSelectQuery() {
+        finder.setQuery(COLLECTION, "ASK { ?resource ?p ?o }");
+    }
+
+    private BagAttribute findCollections() {
+        final EvaluationResult result = finder.findAttribute(ANY_URI, COLLECTION, null, null, evaluationCtx(),
+                RESOURCE_TARGET);
+        return (BagAttribute) result.getAttributeValue();
+    }
+
+    private Node subject() {
+        return new DefaultIdentifierTranslator(mockJcrSession).reverse().convert(mockResource).asNode();
+    }
+
+    private RdfStream triples(final String collection) {
+        final Node subject = subject();
+        return new DefaultRdfStream(subject, Stream.of(
+                new Triple(subject, createURI("http://pcdm.org/models#memberOf"), createURI(collection))));
+    }
+
+    private static EvaluationCtx evaluationCtx() {
+        final FedoraEvaluationCtxBuilder builder = new FedoraEvaluationCtxBuilder();
+        builder.addResourceID(RESOURCE_ID);
+        builder.addActions(new String[] { "read" });
+        builder.addSubject("user", null);
+        return builder.build();
+    }
 }
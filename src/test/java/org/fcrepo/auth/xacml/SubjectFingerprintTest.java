@@ -0,0 +1,74 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_SUBJECT_ID;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_GROUP;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_ROLE;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.SUBJECT_TARGET;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author agent
+ */
+public class SubjectFingerprintTest {
+
+    private PolicyAttributeRegistry registry;
+
+    @Before
+    public void setUp() {
+        registry = new PolicyAttributeRegistry();
+        registry.register(SUBJECT_TARGET, FCREPO_SUBJECT_ROLE);
+    }
+
+    @Test
+    public void testCanonicalOrder() {
+        final SubjectFingerprint a = new SubjectFingerprint("alice", asList("reader", "writer"), singleton("g"));
+        final SubjectFingerprint b = new SubjectFingerprint("alice", asList("writer", "reader"), singleton("g"));
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+    }
+
+    @Test
+    public void testUnreferencedSubjectIdLeftOut() {
+        assertEquals(SubjectFingerprint.of("alice", singleton("reader"), singleton("g"), registry),
+                SubjectFingerprint.of("bob", singleton("reader"), singleton("h"), registry));
+        assertNotEquals(SubjectFingerprint.of("alice", singleton("reader"), null, registry),
+                SubjectFingerprint.of("alice", singleton("writer"), null, registry));
+    }
+
+    @Test
+    public void testReferencedSubjectId() {
+        registry.register(SUBJECT_TARGET, ATTRIBUTEID_SUBJECT_ID);
+        assertNotEquals(SubjectFingerprint.of("alice", singleton("reader"), null, registry),
+                SubjectFingerprint.of("bob", singleton("reader"), null, registry));
+    }
+
+    @Test
+    public void testReferencedGroups() {
+        registry.register(SUBJECT_TARGET, FCREPO_SUBJECT_GROUP);
+        assertNotEquals(SubjectFingerprint.of("alice", singleton("reader"), singleton("g"), registry),
+                SubjectFingerprint.of("alice", singleton("reader"), singleton("h"), registry));
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jboss.security.xacml.sunxacml.AbstractPolicy;
+import org.jboss.security.xacml.sunxacml.EvaluationCtx;
+import org.jboss.security.xacml.sunxacml.MatchResult;
+import org.jboss.security.xacml.sunxacml.Policy;
+import org.jboss.security.xacml.sunxacml.PolicySet;
+import org.jboss.security.xacml.sunxacml.Target;
+import org.jboss.security.xacml.sunxacml.combine.RuleCombinerElement;
+import org.jboss.security.xacml.sunxacml.ctx.Result;
+import org.jboss.security.xacml.sunxacml.finder.PolicyFinder;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+/**
+ * @author agent
+ */
+public class TargetIndexTest {
+
+    private static final String NS = "urn:oasis:names:tc:xacml:2.0:policy:schema:os";
+
+    private static final String STRING = "http://www.w3.org/2001/XMLSchema#string";
+
+    private final PolicyParser parser = new PolicyParser();
+
+    @Test
+    public void testLiterals() {
+        final List<?> rules = rulesPolicy().getChildElements();
+
+        final TargetIndex.Literals read = TargetIndex.literalsOf(rule(rules, 0));
+        assertEquals(singleton("read"), read.getActions());
+        assertNull(read.getRoles());
+
+        final TargetIndex.Literals write = TargetIndex.literalsOf(rule(rules, 1));
+        assertEquals(new HashSet<>(asList("write", "delete")), write.getActions());
+        assertEquals(singleton("writer"), write.getRoles());
+
+        assertNull("A match that may be indeterminate is not indexed", TargetIndex.literalsOf(rule(rules, 2)));
+        assertNull("A rule without a target is not indexed", TargetIndex.literalsOf(rule(rules, 3)));
+    }
+
+    @Test
+    public void testSameDecisions() {
+        final AbstractPolicy policySet = parse("<PolicySet xmlns=\"" + NS + "\" PolicySetId=\"info:fedora/Roles\" " +
+                "PolicyCombiningAlgId=\"urn:oasis:names:tc:xacml:1.0:policy-combining-algorithm:permit-overrides\">" +
+                "<Target/>" + rulesPolicyXml("first") + "<Policy PolicyId=\"info:fedora/admin\" " +
+                "RuleCombiningAlgId=\"urn:oasis:names:tc:xacml:1.0:rule-combining-algorithm:first-applicable\">" +
+                "<Target><Subjects>" + subject("admin") + "</Subjects></Target>" +
+                "<Rule RuleId=\"permit\" Effect=\"Permit\"/></Policy></PolicySet>");
+        final AbstractPolicy indexed = TargetIndex.index(policySet);
+        assertNotSame(policySet, indexed);
+
+        final Set<Set<String>> subjects = new HashSet<>(asList(emptySet(), singleton("writer"),
+                singleton("admin"), new HashSet<>(asList("writer", "admin"))));
+        for (final Set<String> roles : subjects) {
+            for (final String action : new String[] { "read", "write", "delete", "move" }) {
+                final EvaluationCtx context = new FedoraEvaluationCtxBuilder().addSubject("alice", roles)
+                        .addResourceID("/{}a").addActions(new String[] { action }).build();
+                assertEquals(roles + " " + action, decide(policySet, context), decide(indexed, context));
+            }
+        }
+    }
+
+    @Test
+    public void testFirstApplicableOrder() {
+        final AbstractPolicy indexed = TargetIndex.index(rulesPolicy());
+        final EvaluationCtx write = new FedoraEvaluationCtxBuilder().addSubject("alice", singleton("writer"))
+                .addResourceID("/{}a").addActions(new String[] { "write" }).build();
+        assertEquals("The deny rule for writers comes first", Result.DECISION_DENY, decide(indexed, write));
+    }
+
+    private static int decide(final AbstractPolicy policy, final EvaluationCtx context) {
+        final int match = policy.match(context).getResult();
+        if (match == MatchResult.NO_MATCH) {
+            return Result.DECISION_NOT_APPLICABLE;
+        }
+        return match == MatchResult.MATCH ? policy.evaluate(context).getDecision() : Result.DECISION_INDETERMINATE;
+    }
+
+    private static Target rule(final List<?> rules, final int index) {
+        return ((RuleCombinerElement) rules.get(index)).getRule().getTarget();
+    }
+
+    private AbstractPolicy rulesPolicy() {
+        return parse(rulesPolicyXml("rules").replace("<Policy ", "<Policy xmlns=\"" + NS + "\" "));
+    }
+
+    /**
+     * A first-applicable policy: permit reads, deny writers writing or deleting, permit anything where the subject
+     * may lack a clearance, and deny the rest.
+     */
+    private static String rulesPolicyXml(final String id) {
+        return "<Policy PolicyId=\"info:fedora/" + id + "\" " +
+                "RuleCombiningAlgId=\"urn:oasis:names:tc:xacml:1.0:rule-combining-algorithm:first-applicable\">" +
+                "<Target/>" +
+                "<Rule RuleId=\"read\" Effect=\"Permit\"><Target><Actions>" + action("read") +
+                "</Actions></Target></Rule>" +
+                "<Rule RuleId=\"write\" Effect=\"Deny\"><Target><Subjects>" + subject("writer") +
+                "</Subjects><Actions>" + action("write") + action("delete") + "</Actions></Target></Rule>" +
+                "<Rule RuleId=\"clearance\" Effect=\"Permit\"><Target><Subjects><Subject>" +
+                "<SubjectMatch MatchId=\"urn:oasis:names:tc:xacml:1.0:function:string-equal\">" +
+                "<AttributeValue DataType=\"" + STRING + "\">top</AttributeValue>" +
+                "<SubjectAttributeDesignator AttributeId=\"urn:example:clearance\" DataType=\"" + STRING +
+                "\" MustBePresent=\"true\"/></SubjectMatch></Subject></Subjects></Target></Rule>" +
+                "<Rule RuleId=\"deny\" Effect=\"Deny\"/>" +
+                "</Policy>";
+    }
+
+    private static String subject(final String role) {
+        return "<Subject><SubjectMatch MatchId=\"urn:oasis:names:tc:xacml:1.0:function:string-equal\">" +
+                "<AttributeValue DataType=\"" + STRING + "\">" + role + "</AttributeValue>" +
+                "<SubjectAttributeDesignator AttributeId=\"fcrepo-xacml:subject-role\" DataType=\"" + STRING +
+                "\"/></SubjectMatch></Subject>";
+    }
+
+    private static String action(final String action) {
+        return "<Action><ActionMatch MatchId=\"urn:oasis:names:tc:xacml:1.0:function:string-equal\">" +
+                "<AttributeValue DataType=\"" + STRING + "\">" + action + "</AttributeValue>" +
+                "<ActionAttributeDesignator AttributeId=\"urn:oasis:names:tc:xacml:1.0:action:action-id\" " +
+                "DataType=\"" + STRING + "\"/></ActionMatch></Action>";
+    }
+
+    private AbstractPolicy parse(final String xml) {
+        try {
+            final Element root = parser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8"))).getDocumentElement();
+            return root.getTagName().equals("Policy") ? Policy.getInstance(root) :
+                    PolicySet.getInstance(root, new PolicyFinder());
+        } catch (final Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+}
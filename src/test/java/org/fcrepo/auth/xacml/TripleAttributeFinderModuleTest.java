@@ -17,6 +17,13 @@
  */
 package org.fcrepo.auth.xacml;
 
+import static org.apache.jena.graph.NodeFactory.createLiteral;
+import static org.apache.jena.graph.NodeFactory.createURI;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.fcrepo.kernel.api.RequiredRdfContext.PROPERTIES;
 import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.RESOURCE_TARGET;
 import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.SUBJECT_TARGET;
@@ -27,24 +34,44 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import javax.jcr.Property;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
 
 import org.fcrepo.http.commons.session.SessionFactory;
 import org.fcrepo.kernel.api.FedoraSession;
 import org.fcrepo.kernel.api.RdfStream;
 import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
 import org.fcrepo.kernel.api.identifiers.IdentifierConverter;
+import org.fcrepo.kernel.api.models.FedoraBinary;
 import org.fcrepo.kernel.api.models.FedoraResource;
+import org.fcrepo.kernel.api.rdf.DefaultRdfStream;
 import org.fcrepo.kernel.api.services.NodeService;
+import org.fcrepo.kernel.modeshape.FedoraResourceImpl;
 import org.fcrepo.kernel.modeshape.FedoraSessionImpl;
+import org.fcrepo.kernel.modeshape.rdf.impl.DefaultIdentifierTranslator;
 
 import org.jboss.security.xacml.sunxacml.EvaluationCtx;
+import org.jboss.security.xacml.sunxacml.attr.AnyURIAttribute;
 import org.jboss.security.xacml.sunxacml.attr.AttributeValue;
 import org.jboss.security.xacml.sunxacml.attr.BagAttribute;
+import org.jboss.security.xacml.sunxacml.attr.StringAttribute;
 import org.jboss.security.xacml.sunxacml.cond.EvaluationResult;
 import org.jboss.security.xacml.sunxacml.ctx.Status;
 import org.junit.Before;
@@ -53,12 +80,12 @@ import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import org.apache.jena.rdf.model.Model;
-import org.apache.jena.rdf.model.NodeIterator;
-import org.apache.jena.rdf.model.Property;
-import org.apache.jena.rdf.model.RDFNode;
-import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.vocabulary.RDF;
 
 /**
  * @author Andrew Woods
@@ -67,8 +94,14 @@ import org.apache.jena.rdf.model.Resource;
 @RunWith(MockitoJUnitRunner.class)
 public class TripleAttributeFinderModuleTest {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(TripleAttributeFinderModuleTest.class);
+
+    private static final URI CONCURRENT_ATTRIBUTE = URI.create("http://example.com/ns#value");
+
     private TripleAttributeFinderModule finder;
 
+    private PolicyAttributeRegistry registry;
+
     @Mock
     private SessionFactory mockSessionFactory;
 
@@ -82,31 +115,22 @@ public class TripleAttributeFinderModuleTest {
     private FedoraResource mockFedoraResource;
 
     @Mock
-    private IdentifierConverter<Object, Object> mockIdentifierTranslator;
+    private FedoraBinary mockBinary;
 
     @Mock
-    private Model mockModel;
-
-    @Mock
-    private RdfStream mockRdfStream;
-
-    @Mock
-    private NodeIterator mockMatches;
-
-    @Mock
-    private Resource mockResource;
-
-    @Mock
-    private RDFNode mockRDFNode;
+    private Session mockJcrSession;
 
 
     @Before
     public void setUp() {
         finder = new TripleAttributeFinderModule();
-        finder.sessionFactory = mockSessionFactory;
+        finder.sessionPool = new InternalSessionPool(mockSessionFactory);
         finder.nodeService = mockNodeService;
+        registry = new PolicyAttributeRegistry();
+        finder.policyAttributeRegistry = registry;
 
         when(mockSessionFactory.getInternalSession()).thenReturn(mockSession);
+        when(mockSession.getJcrSession()).thenReturn(mockJcrSession);
     }
 
     @Test
@@ -160,18 +184,9 @@ public class TripleAttributeFinderModuleTest {
         final String resourceId = "/{ns}path/{ns}to/{ns}resource";
 
         when(mockNodeService.find(mockSession, resourceId)).thenReturn(mockFedoraResource);
-        when(mockFedoraResource.getTriples(any(IdentifierConverter.class), eq(PROPERTIES))).thenReturn(
-                mockRdfStream);
-        when(mockIdentifierTranslator.reverse()).thenReturn(mockIdentifierTranslator);
-        when(mockIdentifierTranslator.convert(mockFedoraResource)).thenReturn(mockResource);
         when(mockFedoraResource.getPath()).thenReturn(resourceId);
-        when(mockRdfStream.collect(any())).thenReturn(mockModel);
-        when(mockModel.listObjectsOfProperty(any(Resource.class),
-                any(Property.class))).thenReturn(mockMatches);
-        when(mockMatches.hasNext()).thenReturn(true).thenReturn(false);
-        when(mockMatches.next()).thenReturn(mockRDFNode);
-        when(mockRDFNode.asResource()).thenReturn(mockResource);
-        when(mockResource.getURI()).thenReturn("SamIAm");
+        when(mockFedoraResource.getTriples(any(IdentifierConverter.class), eq(PROPERTIES))).thenAnswer(
+                invocation -> triples(mockFedoraResource, "uri:att-id", "SamIAm"));
 
         final EvaluationResult result = doFindAttribute(resourceId);
 
@@ -184,6 +199,176 @@ public class TripleAttributeFinderModuleTest {
         assertEquals(value.toString(), "SamIAm");
     }
 
+    @Test
+    public void testFindAttributeIgnoresOtherPredicates() {
+        final String resourceId = "/{ns}path/{ns}to/{ns}resource";
+
+        when(mockNodeService.find(mockSession, resourceId)).thenReturn(mockFedoraResource);
+        when(mockFedoraResource.getPath()).thenReturn(resourceId);
+        when(mockFedoraResource.getTriples(any(IdentifierConverter.class), eq(PROPERTIES))).thenAnswer(
+                invocation -> triples(mockFedoraResource, "uri:other", "SamIAm"));
+
+        assertIsEmptyResult(doFindAttribute(resourceId));
+    }
+
+    @Test
+    public void testFindAttributeOncePerContext() {
+        final String resourceId = "/{ns}path/{ns}to/{ns}resource";
+
+        registry.register(RESOURCE_TARGET, URI.create("uri:att-1"));
+        registry.register(RESOURCE_TARGET, URI.create("uri:att-2"));
+        when(mockNodeService.find(mockSession, resourceId)).thenReturn(mockFedoraResource);
+        when(mockFedoraResource.getPath()).thenReturn(resourceId);
+        when(mockFedoraResource.getTriples(any(IdentifierConverter.class), eq(PROPERTIES))).thenAnswer(
+                invocation -> triples(mockFedoraResource, "uri:att-2", "uri:value-2"));
+
+        final URI attributeType = URI.create("http://www.w3.org/2001/XMLSchema#anyURI");
+        final EvaluationCtx context = evaluationCtx(resourceId, null);
+        final EvaluationResult first =
+                finder.findAttribute(attributeType, URI.create("uri:att-1"), null, null, context, RESOURCE_TARGET);
+        final EvaluationResult second =
+                finder.findAttribute(attributeType, URI.create("uri:att-2"), null, null, context, RESOURCE_TARGET);
+
+        assertIsEmptyResult(first);
+        assertEquals("uri:value-2", second.getAttributeValue().getValue().toString());
+        verify(mockNodeService, times(1)).find(mockSession, resourceId);
+        verify(mockFedoraResource, times(1)).getTriples(any(IdentifierConverter.class), eq(PROPERTIES));
+    }
+
+    @Test
+    public void testFindUnreferencedAttribute() {
+        final String resourceId = "/{ns}path/{ns}to/{ns}resource";
+
+        registry.register(RESOURCE_TARGET, URI.create("uri:att-1"));
+        when(mockNodeService.find(mockSession, resourceId)).thenReturn(mockFedoraResource);
+        when(mockFedoraResource.getPath()).thenReturn(resourceId);
+        when(mockFedoraResource.getTriples(any(IdentifierConverter.class), eq(PROPERTIES))).thenAnswer(
+                invocation -> triples(mockFedoraResource, "uri:att-2", "uri:value-2"));
+
+        final URI attributeType = URI.create("http://www.w3.org/2001/XMLSchema#anyURI");
+        final EvaluationCtx context = evaluationCtx(resourceId, null);
+        finder.findAttribute(attributeType, URI.create("uri:att-1"), null, null, context, RESOURCE_TARGET);
+        final EvaluationResult result =
+                finder.findAttribute(attributeType, URI.create("uri:att-2"), null, null, context, RESOURCE_TARGET);
+        finder.findAttribute(attributeType, URI.create("uri:att-2"), null, null, context, RESOURCE_TARGET);
+
+        assertEquals("uri:value-2", result.getAttributeValue().getValue().toString());
+        verify(mockFedoraResource, times(2)).getTriples(any(IdentifierConverter.class), eq(PROPERTIES));
+    }
+
+    @Test
+    public void testFindTypeFromNodeTypes() {
+        final String resourceId = "/{ns}path/{ns}to/{ns}resource";
+
+        when(mockNodeService.find(mockSession, resourceId)).thenReturn(mockFedoraResource);
+        when(mockFedoraResource.getPath()).thenReturn(resourceId);
+        when(mockFedoraResource.getTypes()).thenReturn(
+                asList(URI.create("http://example.com/mixins#master"), URI.create("uri:type")));
+
+        final EvaluationResult result = finder.findAttribute(URI.create(AnyURIAttribute.identifier),
+                URI.create(RDF.type.getURI()), null, null, evaluationCtx(resourceId, null), RESOURCE_TARGET);
+
+        final BagAttribute bag = (BagAttribute) result.getAttributeValue();
+        assertEquals(2, bag.size());
+        assertTrue(bag.contains(new AnyURIAttribute(URI.create("http://example.com/mixins#master"))));
+        verify(mockFedoraResource, never()).getTriples(any(IdentifierConverter.class), eq(PROPERTIES));
+    }
+
+    @Test
+    public void testFindMimeTypeFromBinary() {
+        final String resourceId = "/{ns}path/{ns}to/{ns}binary";
+
+        when(mockNodeService.find(mockSession, resourceId)).thenReturn(mockBinary);
+        when(mockBinary.getPath()).thenReturn(resourceId);
+        when(mockBinary.getMimeType()).thenReturn("image/tiff");
+
+        final EvaluationResult result = finder.findAttribute(URI.create(StringAttribute.identifier),
+                URI.create(TripleAttributeFinderModule.MIME_TYPE), null, null, evaluationCtx(resourceId, null),
+                RESOURCE_TARGET);
+
+        final BagAttribute bag = (BagAttribute) result.getAttributeValue();
+        assertEquals(1, bag.size());
+        assertTrue(bag.contains(new StringAttribute("image/tiff")));
+        verify(mockBinary, never()).getTriples(any(IdentifierConverter.class), eq(PROPERTIES));
+    }
+
+    @Test
+    public void testFindAttributeFromJcrProperty() throws RepositoryException {
+        final String resourceId = "/{ns}path/{ns}to/{ns}resource";
+        final FedoraResourceImpl resource = mock(FedoraResourceImpl.class);
+        final javax.jcr.Node node = mock(javax.jcr.Node.class);
+        final Property property = mock(Property.class);
+        final Value value = mock(Value.class);
+
+        when(mockNodeService.find(mockSession, resourceId)).thenReturn(resource);
+        when(resource.getPath()).thenReturn(resourceId);
+        when(resource.getNode()).thenReturn(node);
+        when(mockJcrSession.getNamespacePrefix("http://example.com/ns#")).thenReturn("ex");
+        when(node.hasProperty("ex:value")).thenReturn(true);
+        when(node.getProperty("ex:value")).thenReturn(property);
+        when(property.getValue()).thenReturn(value);
+        when(value.getType()).thenReturn(PropertyType.STRING);
+        when(value.getString()).thenReturn("SamIAm");
+
+        final EvaluationResult result = finder.findAttribute(URI.create(StringAttribute.identifier),
+                URI.create("http://example.com/ns#value"), null, null, evaluationCtx(resourceId, null),
+                RESOURCE_TARGET);
+
+        final BagAttribute bag = (BagAttribute) result.getAttributeValue();
+        assertEquals(1, bag.size());
+        assertTrue(bag.contains(new StringAttribute("SamIAm")));
+        verify(resource, never()).getTriples(any(IdentifierConverter.class), eq(PROPERTIES));
+    }
+
+    @Test
+    public void testFindUnregisteredNamespaceFromTriples() {
+        final String resourceId = "/{ns}path/{ns}to/{ns}resource";
+        final FedoraResourceImpl resource = mock(FedoraResourceImpl.class);
+
+        when(mockNodeService.find(mockSession, resourceId)).thenReturn(resource);
+        when(resource.getPath()).thenReturn(resourceId);
+        when(resource.getNode()).thenReturn(mock(javax.jcr.Node.class));
+        when(resource.getTriples(any(IdentifierConverter.class), eq(PROPERTIES))).thenAnswer(
+                invocation -> triples(resource, "uri:att-id", "SamIAm"));
+
+        final EvaluationResult result = doFindAttribute(resourceId);
+
+        assertEquals("SamIAm", result.getAttributeValue().getValue().toString());
+        verify(resource, times(1)).getTriples(any(IdentifierConverter.class), eq(PROPERTIES));
+    }
+
+    @Test
+    public void testFindLiteralAsString() {
+        final String resourceId = "/{ns}path/{ns}to/{ns}resource";
+
+        when(mockNodeService.find(mockSession, resourceId)).thenReturn(mockFedoraResource);
+        when(mockFedoraResource.getPath()).thenReturn(resourceId);
+        when(mockFedoraResource.getTriples(any(IdentifierConverter.class), eq(PROPERTIES))).thenAnswer(
+                invocation -> triples(mockFedoraResource, "uri:unrelated", "uri:value"));
+
+        final EvaluationResult result = finder.findAttribute(URI.create(StringAttribute.identifier),
+                URI.create("uri:unrelated"), null, null, evaluationCtx(resourceId, null), RESOURCE_TARGET);
+
+        final BagAttribute bag = (BagAttribute) result.getAttributeValue();
+        assertEquals(2, bag.size());
+        assertTrue(bag.contains(new StringAttribute("ignored")));
+        assertTrue(bag.contains(new StringAttribute("uri:value")));
+    }
+
+    @Test
+    public void testFindAttributeWithCustomResolver() {
+        final String resourceId = "/{ns}path/{ns}to/{ns}resource";
+
+        finder.setResolvers(singletonMap("uri:att-id", resource -> singletonList(createURI("uri:resolved"))));
+        when(mockNodeService.find(mockSession, resourceId)).thenReturn(mockFedoraResource);
+        when(mockFedoraResource.getPath()).thenReturn(resourceId);
+
+        final EvaluationResult result = doFindAttribute(resourceId);
+
+        assertEquals("uri:resolved", result.getAttributeValue().getValue().toString());
+        verify(mockFedoraResource, never()).getTriples(any(IdentifierConverter.class), eq(PROPERTIES));
+    }
+
     @Test
     public void testFindAttributeBySelector() {
         final URI attributeType = URI.create("uri:att-type");
@@ -309,16 +494,98 @@ public class TripleAttributeFinderModuleTest {
     public void testFindAttributeNoAttr() {
         final String resourceId = "/{ns}no/{ns}such/{ns}path";
 
-        when(mockMatches.hasNext()).thenReturn(false);
-
         final EvaluationResult result = doFindAttribute(resourceId, null);
         final BagAttribute bag = (BagAttribute) result.getAttributeValue();
         assertTrue("EvaluationResult should be a bag!", bag.isBag());
         assertTrue("Attribute bag should be empty!", bag.isEmpty());
     }
 
+    @Test
+    public void testConcurrentDecisions() throws Exception {
+        final int threads = 32;
+        final int decisionsPerThread = 200;
+
+        // A pool that may keep a session per thread
+        System.setProperty(InternalSessionPool.MAXIMUM_IDLE, String.valueOf(threads));
+        try {
+            finder.sessionPool = new InternalSessionPool(mockSessionFactory);
+        } finally {
+            System.clearProperty(InternalSessionPool.MAXIMUM_IDLE);
+        }
+        when(mockJcrSession.isLive()).thenReturn(true);
+
+        // Each thread acts on its own resource, whose only property value identifies it
+        for (int i = 0; i < threads; i++) {
+            final String path = "/{ns}resource" + i;
+            final FedoraResource resource = mock(FedoraResource.class);
+            final String value = "http://example.com/value/" + i;
+            when(resource.getPath()).thenReturn(path);
+            when(resource.getTriples(any(IdentifierConverter.class), eq(PROPERTIES))).thenAnswer(
+                    invocation -> triples(resource, CONCURRENT_ATTRIBUTE.toString(), value));
+            when(mockNodeService.find(mockSession, path)).thenReturn(resource);
+        }
+
+        // The same decisions, made on one thread and then spread over many
+        final long serial = timeDecisions(1, threads, decisionsPerThread);
+        final long concurrent = timeDecisions(threads, threads, decisionsPerThread);
+        LOGGER.info("{} decisions: {} ms on one thread, {} ms on {} threads", threads * decisionsPerThread,
+                serial / 1000000, concurrent / 1000000, threads);
+
+        // Decisions must not be serialized behind one another, nor open a session each
+        assertTrue("Concurrent decisions should take no longer than twice as long as serial ones",
+                concurrent <= 2 * serial);
+        assertTrue("Sessions should be pooled rather than opened per decision",
+                finder.sessionPool.getCreatedCount() <= threads);
+    }
+
     // Helper methods
 
+    /**
+     * Make decisions on the resources of testConcurrentDecisions, each checking that it sees its own resource.
+     *
+     * @return the elapsed time, in nanoseconds
+     */
+    private long timeDecisions(final int threads, final int resources, final int decisionsPerResource)
+            throws Exception {
+        final ExecutorService executor = newFixedThreadPool(threads);
+        try {
+            final List<Future<Integer>> results = new ArrayList<>();
+            final long start = System.nanoTime();
+            for (int i = 0; i < resources; i++) {
+                final int resource = i;
+                results.add(executor.submit(() -> {
+                    int correct = 0;
+                    for (int j = 0; j < decisionsPerResource; j++) {
+                        final EvaluationCtx context =
+                                evaluationCtx("/{ns}resource" + resource, new String[] {"read"});
+                        final EvaluationResult result = finder.findAttribute(URI.create(AnyURIAttribute.identifier),
+                                CONCURRENT_ATTRIBUTE, null, null, context, RESOURCE_TARGET);
+                        final BagAttribute bag = (BagAttribute) result.getAttributeValue();
+                        if (bag.size() == 1 && bag.contains(new AnyURIAttribute(
+                                URI.create("http://example.com/value/" + resource)))) {
+                            correct++;
+                        }
+                    }
+                    return correct;
+                }));
+            }
+            for (final Future<Integer> result : results) {
+                assertEquals("Every decision should see its own resource", decisionsPerResource,
+                        result.get(60, SECONDS).intValue());
+            }
+            return System.nanoTime() - start;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private RdfStream triples(final FedoraResource resource, final String predicate, final String object) {
+        final Node subject = new DefaultIdentifierTranslator(mockJcrSession).reverse().convert(resource).asNode();
+        return new DefaultRdfStream(subject, Stream.of(
+                new Triple(subject, createURI("uri:unrelated"), createLiteral("ignored")),
+                new Triple(subject, createURI(predicate), createURI(object))));
+    }
+
     private static void assertIsEmptyResult(final EvaluationResult result) {
         final BagAttribute attributeValue = (BagAttribute) result.getAttributeValue();
         assertNotNull("Evaluation.attributeValue shoud not be null!", attributeValue);
@@ -0,0 +1,67 @@
+/*
+ * Licensed to DuraSpace under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership.
+ *
+ * DuraSpace licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.xacml;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author agent
+ */
+public class WarmUpDecisionTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testLoad() throws Exception {
+        final File file = temporaryFolder.newFile();
+        Files.write(file.toPath(), asList("# comment", "", "/{}a read", "  /{}b  read,remove  admin,writer  alice"),
+                UTF_8);
+
+        final List<WarmUpDecision> decisions = WarmUpDecision.load(file.toPath());
+
+        assertEquals(2, decisions.size());
+        assertEquals("/{}a", decisions.get(0).getPath());
+        assertArrayEquals(new String[] { "read" }, decisions.get(0).getActions());
+        assertTrue(decisions.get(0).getRoles().isEmpty());
+        assertEquals(WarmUpDecision.DEFAULT_USER, decisions.get(0).getUser());
+        assertArrayEquals(new String[] { "read", "remove" }, decisions.get(1).getActions());
+        assertEquals(new HashSet<>(asList("admin", "writer")), decisions.get(1).getRoles());
+        assertEquals("alice", decisions.get(1).getUser());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformed() throws Exception {
+        final File file = temporaryFolder.newFile();
+        Files.write(file.toPath(), asList("/{}a"), UTF_8);
+        WarmUpDecision.load(file.toPath());
+    }
+}
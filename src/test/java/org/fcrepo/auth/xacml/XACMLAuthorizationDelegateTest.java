@@ -17,31 +17,62 @@
  */
 package org.fcrepo.auth.xacml;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
 import static org.fcrepo.auth.common.FedoraAuthorizationDelegate.FEDORA_SERVLET_REQUEST;
 import static org.fcrepo.auth.common.FedoraAuthorizationDelegate.FEDORA_USER_PRINCIPAL;
+import static org.fcrepo.auth.xacml.URIConstants.ATTRIBUTEID_SUBJECT_ID;
+import static org.fcrepo.auth.xacml.URIConstants.FCREPO_SUBJECT_ROLE;
 import static org.fcrepo.http.commons.test.util.TestHelpers.setField;
+import static org.jboss.security.xacml.sunxacml.attr.AttributeDesignator.SUBJECT_TARGET;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import java.io.File;
+import java.nio.file.Files;
 import java.security.Principal;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
 import javax.servlet.http.HttpServletRequest;
+import javax.xml.parsers.DocumentBuilderFactory;
 
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.modeshape.FedoraSessionImpl;
+import org.jboss.security.xacml.sunxacml.AbstractPolicy;
 import org.jboss.security.xacml.sunxacml.EvaluationCtx;
+import org.jboss.security.xacml.sunxacml.MatchResult;
 import org.jboss.security.xacml.sunxacml.PDP;
 import org.jboss.security.xacml.sunxacml.ctx.ResponseCtx;
 import org.jboss.security.xacml.sunxacml.ctx.Result;
+import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mock;
 import org.modeshape.jcr.api.Session;
 import org.modeshape.jcr.api.Workspace;
+import org.w3c.dom.Document;
 
 /**
  * @author Andrew Woods
@@ -50,8 +81,13 @@ import org.modeshape.jcr.api.Workspace;
 public class XACMLAuthorizationDelegateTest {
 
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private XACMLAuthorizationDelegate xacmlAD;
 
+    private InvalidationPipeline invalidationPipeline;
+
     @Mock
     private FedoraPolicyFinderModule mockFedoraPFM;
 
@@ -88,6 +124,21 @@ public class XACMLAuthorizationDelegateTest {
     @Mock
     private SparqlResourceAttributeFinderModule mockSparqlRAFM;
 
+    @Mock
+    private SessionFactory mockSessionFactory;
+
+    @Mock
+    private FedoraSessionImpl mockInternalSession;
+
+    @Mock
+    private Session mockInternalJcrSession;
+
+    @Mock
+    private Workspace mockInternalWorkspace;
+
+    @Mock
+    private ObservationManager mockObservationManager;
+
     @Before
     public void setUp() {
         initMocks(this);
@@ -100,11 +151,32 @@ public class XACMLAuthorizationDelegateTest {
         when(mockSession.getAttribute(FEDORA_USER_PRINCIPAL)).thenReturn(mockUser);
         when(mockSession.getAttribute(FEDORA_SERVLET_REQUEST)).thenReturn(mockHttpServletRequest);
         when(mockSession.getWorkspace()).thenReturn(mockWorkspace);
+        when(mockSessionFactory.getInternalSession()).thenReturn(mockInternalSession);
+        when(mockInternalSession.getJcrSession()).thenReturn(mockInternalJcrSession);
+        when(mockInternalJcrSession.getWorkspace()).thenReturn(mockInternalWorkspace);
+        when(mockInternalWorkspace.getObservationManager()).thenReturn(mockObservationManager);
 
         xacmlAD = new XACMLAuthorizationDelegate();
         setField(xacmlAD, "pdpFactory", mockPdpFactory);
         setField(xacmlAD, "tripleResourceAttributeFinderModule", mockTripleAFM);
         setField(xacmlAD, "sparqlResourceAttributeFinderModule", mockSparqlRAFM);
+        setField(xacmlAD, "fedoraPolicyFinderModule", mockFedoraPFM);
+        setField(xacmlAD, "policyAttributeRegistry", new PolicyAttributeRegistry());
+        invalidationPipeline = new InvalidationPipeline();
+        setField(invalidationPipeline, "sessionFactory", mockSessionFactory);
+        setField(xacmlAD, "invalidationPipeline", invalidationPipeline);
+        setField(xacmlAD, "sessionPool", new InternalSessionPool(mockSessionFactory));
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(XACMLAuthorizationDelegate.DECISION_CACHE_ENABLED);
+        System.clearProperty(XACMLAuthorizationDelegate.REQUEST_MEMO_ENABLED);
+        System.clearProperty(XACMLAuthorizationDelegate.RESIDUAL_POLICIES_ENABLED);
+        System.clearProperty(XACMLAuthorizationDelegate.WARMUP_ENABLED);
+        System.clearProperty(XACMLAuthorizationDelegate.WARMUP_DECISIONS);
+        System.clearProperty(XACMLAuthorizationDelegate.WARMUP_ITERATIONS);
+        invalidationPipeline.destroy();
     }
 
     private Set<Result> getFakeResultSet() {
@@ -134,8 +206,9 @@ public class XACMLAuthorizationDelegateTest {
 
         verify(mockPdp).evaluate(any(EvaluationCtx.class));
         verify(mockSession).getAttribute(FEDORA_USER_PRINCIPAL);
-        verify(mockSession).getAttribute(FEDORA_SERVLET_REQUEST);
-        verify(mockSession).getWorkspace();
+        // no policy asked for the request IP or the workspace, so neither was looked up
+        verify(mockSession, never()).getAttribute(FEDORA_SERVLET_REQUEST);
+        verify(mockSession, never()).getWorkspace();
         verify(mockResponseCtx).getResults();
         verify(mockResult).getDecision();
     }
@@ -153,6 +226,305 @@ public class XACMLAuthorizationDelegateTest {
         assertFalse(xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles()));
     }
 
+    @Test
+    public void testDecisionCache() throws Exception {
+        System.setProperty(XACMLAuthorizationDelegate.DECISION_CACHE_ENABLED, "true");
+        System.setProperty(XACMLAuthorizationDelegate.REQUEST_MEMO_ENABLED, "false");
+
+        xacmlAD.init();
+        verify(mockObservationManager).addEventListener(any(EventListener.class), anyInt(), anyString(),
+                anyBoolean(), any(String[].class), any(String[].class), anyBoolean());
+
+        assertTrue(xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles()));
+        assertTrue(xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles()));
+        verify(mockPdp, times(1)).evaluate(any(EvaluationCtx.class));
+
+        xacmlAD.rolesHavePermission(mockSession, "/fake/other", getFakeActions(), getFakeRoles());
+        verify(mockPdp, times(2)).evaluate(any(EvaluationCtx.class));
+        assertTrue(xacmlAD.getDecisionCacheStats().hitCount() == 1);
+    }
+
+    @Test
+    public void testDecisionCacheSkipsStaleSnapshot() {
+        System.setProperty(XACMLAuthorizationDelegate.DECISION_CACHE_ENABLED, "true");
+        System.setProperty(XACMLAuthorizationDelegate.REQUEST_MEMO_ENABLED, "false");
+        // A policy change has been translated, but the snapshot it affects is not swapped in yet
+        final InvalidationPipeline mockPipeline = mock(InvalidationPipeline.class);
+        when(mockPipeline.getGeneration()).thenReturn(1L);
+        setField(xacmlAD, "invalidationPipeline", mockPipeline);
+        when(mockFedoraPFM.getPolicySnapshot()).thenReturn(PolicySnapshot.EMPTY);
+
+        xacmlAD.init();
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
+        verify(mockPdp, times(2)).evaluate(any(EvaluationCtx.class));
+
+        when(mockFedoraPFM.getPolicySnapshot()).thenReturn(new PolicySnapshot(new HashMap<>(), new HashMap<>(), 1));
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
+        verify(mockPdp, times(3)).evaluate(any(EvaluationCtx.class));
+    }
+
+    @Test
+    public void testDecisionCacheDisabled() {
+        System.setProperty(XACMLAuthorizationDelegate.REQUEST_MEMO_ENABLED, "false");
+        xacmlAD.init();
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
+        verify(mockPdp, times(2)).evaluate(any(EvaluationCtx.class));
+    }
+
+    @Test
+    public void testDecisionCacheSharedBySubjectClass() {
+        System.setProperty(XACMLAuthorizationDelegate.DECISION_CACHE_ENABLED, "true");
+        System.setProperty(XACMLAuthorizationDelegate.REQUEST_MEMO_ENABLED, "false");
+        final PolicyAttributeRegistry registry = new PolicyAttributeRegistry();
+        registry.register(SUBJECT_TARGET, FCREPO_SUBJECT_ROLE);
+        setField(xacmlAD, "policyAttributeRegistry", registry);
+        xacmlAD.init();
+
+        final Principal otherUser = mock(Principal.class);
+        when(otherUser.getName()).thenReturn("other");
+        final Session otherSession = mock(Session.class);
+        when(otherSession.getAttribute(FEDORA_USER_PRINCIPAL)).thenReturn(otherUser);
+
+        // No policy refers to the subject-id, so users with the same roles share decisions
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
+        xacmlAD.rolesHavePermission(otherSession, "/fake/path", getFakeActions(), getFakeRoles());
+        verify(mockPdp, times(1)).evaluate(any(EvaluationCtx.class));
+
+        registry.register(SUBJECT_TARGET, ATTRIBUTEID_SUBJECT_ID);
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
+        xacmlAD.rolesHavePermission(otherSession, "/fake/path", getFakeActions(), getFakeRoles());
+        verify(mockPdp, times(3)).evaluate(any(EvaluationCtx.class));
+    }
+
+    @Test
+    public void testRequestMemo() {
+        System.setProperty(XACMLAuthorizationDelegate.REQUEST_MEMO_ENABLED, "true");
+        xacmlAD.init();
+        assertTrue(xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles()));
+        assertTrue(xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles()));
+        verify(mockPdp, times(1)).evaluate(any(EvaluationCtx.class));
+
+        // Another request has its own memo
+        final Session otherSession = mock(Session.class);
+        when(otherSession.getAttribute(FEDORA_USER_PRINCIPAL)).thenReturn(mockUser);
+        xacmlAD.rolesHavePermission(otherSession, "/fake/path", getFakeActions(), getFakeRoles());
+        verify(mockPdp, times(2)).evaluate(any(EvaluationCtx.class));
+        assertEquals(1, xacmlAD.getRequestMemoStats().hitCount());
+        assertEquals(2, xacmlAD.getRequestMemoStats().missCount());
+    }
+
+    @Test
+    public void testRequestMemoDisabled() {
+        xacmlAD.init();
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
+        verify(mockPdp, times(2)).evaluate(any(EvaluationCtx.class));
+        assertNull(xacmlAD.getRequestMemoStats());
+    }
+
+    @Test
+    public void testRequestMemoSkipsStaleSnapshot() {
+        System.setProperty(XACMLAuthorizationDelegate.REQUEST_MEMO_ENABLED, "true");
+        // A policy change has been translated, but the snapshot it affects is not swapped in yet
+        final InvalidationPipeline mockPipeline = mock(InvalidationPipeline.class);
+        when(mockPipeline.getGeneration()).thenReturn(1L);
+        setField(xacmlAD, "invalidationPipeline", mockPipeline);
+        when(mockFedoraPFM.getPolicySnapshot()).thenReturn(PolicySnapshot.EMPTY);
+
+        xacmlAD.init();
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
+        xacmlAD.rolesHavePermission(mockSession, "/fake/path", getFakeActions(), getFakeRoles());
+        verify(mockPdp, times(2)).evaluate(any(EvaluationCtx.class));
+    }
+
+    @Test
+    public void testPropertyChecksFolded() {
+        System.setProperty(XACMLAuthorizationDelegate.REQUEST_MEMO_ENABLED, "true");
+        when(mockFedoraPFM.getPolicySnapshot()).thenReturn(PolicySnapshot.EMPTY);
+        xacmlAD.init();
+        final String[] setProperty = new String[] {"set_property"};
+        xacmlAD.rolesHavePermission(mockSession, "/{}a/{ns}title", setProperty, getFakeRoles());
+        xacmlAD.rolesHavePermission(mockSession, "/{}a/{ns}description", setProperty, getFakeRoles());
+        verify(mockPdp, times(1)).evaluate(any(EvaluationCtx.class));
+
+        // Other actions are resolved against the path itself
+        final String[] read = new String[] {"read"};
+        xacmlAD.rolesHavePermission(mockSession, "/{}a/{ns}title", read, getFakeRoles());
+        xacmlAD.rolesHavePermission(mockSession, "/{}a/{ns}description", read, getFakeRoles());
+        verify(mockPdp, times(3)).evaluate(any(EvaluationCtx.class));
+    }
+
+    @Test
+    public void testPropertyChecksFoldedByDefaultPolicy() throws Exception {
+        System.setProperty(XACMLAuthorizationDelegate.REQUEST_MEMO_ENABLED, "true");
+        final PolicyAttributeRegistry registry = new PolicyAttributeRegistry();
+        setField(xacmlAD, "policyAttributeRegistry", registry);
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        final Document policy = factory.newDocumentBuilder().parse(
+                new File("src/main/resources/policies/WriteNormalNodePermissionPolicySet.xml"));
+        // As in the finder module, the policies are registered while the snapshot is first built
+        when(mockFedoraPFM.getPolicySnapshot()).thenAnswer(invocation -> {
+            registry.register(policy);
+            return PolicySnapshot.EMPTY;
+        });
+        xacmlAD.init();
+
+        final String[] setProperty = new String[] {"set_property"};
+        xacmlAD.rolesHavePermission(mockSession, "/{}a/{ns}title", setProperty, getFakeRoles());
+        xacmlAD.rolesHavePermission(mockSession, "/{}a/{ns}description", setProperty, getFakeRoles());
+        verify(mockPdp, times(1)).evaluate(any(EvaluationCtx.class));
+
+        // The policy tells authorization properties apart by their resource ID
+        xacmlAD.rolesHavePermission(mockSession, "/{}a/{http://fedora.info/definitions/v4/authorization#}policy",
+                setProperty, getFakeRoles());
+        verify(mockPdp, times(2)).evaluate(any(EvaluationCtx.class));
+    }
+
+    @Test
+    public void testBatch() {
+        xacmlAD.init();
+        final String[] read = new String[] {"read"};
+        final boolean[] permits = xacmlAD.rolesHavePermission(mockSession, asList(
+                new PermissionCheck("/{}a", read, getFakeRoles()),
+                new PermissionCheck("/{}b", read, getFakeRoles()),
+                new PermissionCheck("/{}a", read, getFakeRoles())));
+
+        assertArrayEquals(new boolean[] {true, true, true}, permits);
+        verify(mockPdp, times(2)).evaluate(any(EvaluationCtx.class));
+    }
+
+    @Test
+    public void testBatchByEffectivePolicy() {
+        System.setProperty(XACMLAuthorizationDelegate.RESIDUAL_POLICIES_ENABLED, "true");
+        final AbstractPolicy mockPolicy = mock(AbstractPolicy.class);
+        when(mockPolicy.match(any(EvaluationCtx.class))).thenReturn(new MatchResult(MatchResult.MATCH));
+        when(mockPolicy.evaluate(any(EvaluationCtx.class))).thenReturn(mockResult);
+        final AbstractPolicy mockDenyPolicy = mock(AbstractPolicy.class);
+        when(mockDenyPolicy.match(any(EvaluationCtx.class))).thenReturn(new MatchResult(MatchResult.NO_MATCH));
+        final Map<String, String> assignments = new HashMap<>();
+        assignments.put("/", "/policies/Root");
+        assignments.put("/{}closed", "/policies/Closed");
+        final Map<String, AbstractPolicy> policies = new HashMap<>();
+        policies.put("/policies/Root", mockPolicy);
+        policies.put("/policies/Closed", mockDenyPolicy);
+        when(mockFedoraPFM.getPolicySnapshot()).thenReturn(new PolicySnapshot(assignments, policies, 1));
+
+        xacmlAD.init();
+        final String[] read = new String[] {"read"};
+        final boolean[] permits = xacmlAD.rolesHavePermission(mockSession, asList(
+                new PermissionCheck("/{}open/{}a", read, getFakeRoles()),
+                new PermissionCheck("/{}closed/{}b", read, getFakeRoles()),
+                new PermissionCheck("/{}open/{}c", read, getFakeRoles())));
+
+        assertArrayEquals(new boolean[] {true, false, true}, permits);
+        verify(mockPdp, never()).evaluate(any(EvaluationCtx.class));
+        verify(mockPolicy, times(2)).evaluate(any(EvaluationCtx.class));
+        verify(mockDenyPolicy, never()).evaluate(any(EvaluationCtx.class));
+    }
+
+    @Test
+    public void testBatchMatchesSingleChecks() {
+        System.setProperty(XACMLAuthorizationDelegate.RESIDUAL_POLICIES_ENABLED, "true");
+        final AbstractPolicy mockPolicy = mock(AbstractPolicy.class);
+        when(mockPolicy.match(any(EvaluationCtx.class))).thenReturn(new MatchResult(MatchResult.MATCH));
+        when(mockPolicy.evaluate(any(EvaluationCtx.class))).thenReturn(mockResult);
+        final AbstractPolicy mockDenyPolicy = mock(AbstractPolicy.class);
+        when(mockDenyPolicy.match(any(EvaluationCtx.class))).thenReturn(new MatchResult(MatchResult.NO_MATCH));
+        final Map<String, String> assignments = new HashMap<>();
+        assignments.put("/{}open", "/policies/Open");
+        assignments.put("/{}closed", "/policies/Closed");
+        assignments.put("/{}missing", "/policies/Missing");
+        final Map<String, AbstractPolicy> policies = new HashMap<>();
+        policies.put("/policies/Open", mockPolicy);
+        policies.put("/policies/Closed", mockDenyPolicy);
+        when(mockFedoraPFM.getPolicySnapshot()).thenReturn(new PolicySnapshot(assignments, policies, 1));
+
+        // Checks under no assigned policy, or one missing from the snapshot, go to the PDP, which denies them
+        final Result denyResult = mock(Result.class);
+        when(denyResult.getDecision()).thenReturn(Result.DECISION_DENY);
+        when(mockResponseCtx.getResults()).thenReturn(singleton(denyResult));
+        final List<PermissionCheck> checks = asList(
+                new PermissionCheck("/{}open/{}a", new String[] {"read"}, getFakeRoles()),
+                new PermissionCheck("/{}closed/{}b", new String[] {"read"}, getFakeRoles()),
+                new PermissionCheck("/{}elsewhere/{}c", new String[] {"read"}, getFakeRoles()),
+                new PermissionCheck("/{}missing/{}d", new String[] {"read"}, getFakeRoles()));
+        xacmlAD.init();
+        final boolean[] single = new boolean[checks.size()];
+        for (int i = 0; i < checks.size(); i++) {
+            single[i] = xacmlAD.rolesHavePermission(mockSession, checks.get(i).getPath(),
+                    checks.get(i).getActions(), checks.get(i).getRoles());
+        }
+        final boolean[] batch = xacmlAD.rolesHavePermission(mockSession, checks);
+
+        assertArrayEquals(new boolean[] {true, false, false, false}, single);
+        assertArrayEquals(single, batch);
+        verify(mockPdp, times(4)).evaluate(any(EvaluationCtx.class));
+    }
+
+    @Test
+    public void testResidualPolicies() {
+        System.setProperty(XACMLAuthorizationDelegate.RESIDUAL_POLICIES_ENABLED, "true");
+        final AbstractPolicy mockPolicy = mock(AbstractPolicy.class);
+        when(mockPolicy.match(any(EvaluationCtx.class))).thenReturn(new MatchResult(MatchResult.MATCH));
+        when(mockPolicy.evaluate(any(EvaluationCtx.class))).thenReturn(mockResult);
+        final Map<String, String> assignments = new HashMap<>();
+        assignments.put("/", "/policies/Root");
+        final Map<String, AbstractPolicy> policies = new HashMap<>();
+        policies.put("/policies/Root", mockPolicy);
+        when(mockFedoraPFM.getPolicySnapshot()).thenReturn(new PolicySnapshot(assignments, policies, 1));
+
+        xacmlAD.init();
+        assertTrue(xacmlAD.rolesHavePermission(mockSession, "/{}a", getFakeActions(), getFakeRoles()));
+        assertTrue(xacmlAD.rolesHavePermission(mockSession, "/{}b", getFakeActions(), getFakeRoles()));
+
+        verify(mockPdp, never()).evaluate(any(EvaluationCtx.class));
+        verify(mockPolicy, times(2)).evaluate(any(EvaluationCtx.class));
+        assertEquals(1, xacmlAD.getResidualPolicyStats().hitCount());
+    }
+
+    @Test
+    public void testResidualPoliciesDisabled() {
+        final Map<String, String> assignments = new HashMap<>();
+        assignments.put("/", "/policies/Root");
+        final Map<String, AbstractPolicy> policies = new HashMap<>();
+        policies.put("/policies/Root", mock(AbstractPolicy.class));
+        when(mockFedoraPFM.getPolicySnapshot()).thenReturn(new PolicySnapshot(assignments, policies, 1));
+
+        xacmlAD.init();
+        assertTrue(xacmlAD.rolesHavePermission(mockSession, "/{}a", getFakeActions(), getFakeRoles()));
+        verify(mockPdp).evaluate(any(EvaluationCtx.class));
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        final File decisions = temporaryFolder.newFile();
+        Files.write(decisions.toPath(), asList("# synthetic decisions", "/{}a read admin", "/{}b read,remove"), UTF_8);
+        System.setProperty(XACMLAuthorizationDelegate.WARMUP_ENABLED, "true");
+        System.setProperty(XACMLAuthorizationDelegate.WARMUP_DECISIONS, decisions.getAbsolutePath());
+        System.setProperty(XACMLAuthorizationDelegate.WARMUP_ITERATIONS, "3");
+        when(mockFedoraPFM.getPolicySnapshot()).thenReturn(PolicySnapshot.EMPTY);
+
+        xacmlAD.init();
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!xacmlAD.isReady() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertTrue(xacmlAD.isReady());
+        verify(mockFedoraPFM).getPolicySnapshot();
+        verify(mockPdp, times(6)).evaluate(any(EvaluationCtx.class));
+    }
+
+    @Test
+    public void testReadyWithoutWarmUp() {
+        xacmlAD.init();
+        assertTrue(xacmlAD.isReady());
+    }
+
     private static String[] getFakeActions() {
         final String[] fakeActions =  new String[2];
         fakeActions[0] = "fakeAction1";
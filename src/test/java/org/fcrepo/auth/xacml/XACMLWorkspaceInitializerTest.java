@@ -17,16 +17,23 @@
  */
 package org.fcrepo.auth.xacml;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.fcrepo.http.commons.test.util.TestHelpers.setField;
 import static org.junit.Assert.assertNotNull;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.File;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.security.MessageDigest;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -37,9 +44,12 @@ import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
 import org.fcrepo.kernel.api.models.NonRdfSourceDescription;
 import org.fcrepo.kernel.api.models.FedoraBinary;
 import org.fcrepo.kernel.api.services.BinaryService;
+import org.fcrepo.kernel.api.services.policy.StoragePolicyDecisionPoint;
 import org.fcrepo.kernel.modeshape.FedoraSessionImpl;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
@@ -54,6 +64,9 @@ import org.mockito.runners.MockitoJUnitRunner;
 @RunWith(MockitoJUnitRunner.class)
 public class XACMLWorkspaceInitializerTest {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private XACMLWorkspaceInitializer xacmlWI;
 
     @Mock
@@ -91,6 +104,7 @@ public class XACMLWorkspaceInitializerTest {
 
         setField(xacmlWI, "sessionFactory", mockSessionFactory);
         setField(xacmlWI, "binaryService", mockBinaryService);
+        setField(xacmlWI, "policyParser", new PolicyParser());
     }
 
     private File policiesDirectory() {
@@ -133,6 +147,45 @@ public class XACMLWorkspaceInitializerTest {
 
         verify(mockNode).addMixin("authz:xacmlAssignable");
         verify(mockNode).setProperty(eq("authz:policy"), any(Node.class));
+        verify(mockBinary, times(expectedFiles)).setContent(any(InputStream.class), eq("application/xml"),
+                anyCollectionOf(URI.class), anyString(), any(StoragePolicyDecisionPoint.class));
+        verify(mockSession).commit();
+    }
+
+    @Test
+    public void testInitSkipsUnchangedPolicies() throws Exception {
+        final File directory = temporaryFolder.newFolder();
+        final File policy = new File(directory, "testPolicy.xml");
+        Files.copy(rootPolicyFile().toPath(), policy.toPath());
+        final byte[] hash = MessageDigest.getInstance("SHA-1").digest(Files.readAllBytes(policy.toPath()));
+        final StringBuilder digest = new StringBuilder("urn:sha1:");
+        for (final byte b : hash) {
+            digest.append(String.format("%02x", b));
+        }
+        when(mockBinary.getContentDigest()).thenReturn(URI.create(digest.toString()));
+
+        xacmlWI = new XACMLWorkspaceInitializer(directory, policy);
+        setField(xacmlWI, "sessionFactory", mockSessionFactory);
+        setField(xacmlWI, "binaryService", mockBinaryService);
+        setField(xacmlWI, "policyParser", new PolicyParser());
+        xacmlWI.init();
+
+        verify(mockBinary, never()).setContent(any(InputStream.class), anyString(), anyCollectionOf(URI.class),
+                anyString(), any(StoragePolicyDecisionPoint.class));
+        verify(mockSession, never()).commit();
+        verify(mockNode).setProperty(eq("authz:policy"), any(Node.class));
+    }
+
+    @Test(expected = Error.class)
+    public void testInitInvalidPolicy() throws Exception {
+        final File directory = temporaryFolder.newFolder();
+        Files.write(new File(directory, "invalid.xml").toPath(), "<Policy/>".getBytes(UTF_8));
+
+        xacmlWI = new XACMLWorkspaceInitializer(directory, rootPolicyFile());
+        setField(xacmlWI, "sessionFactory", mockSessionFactory);
+        setField(xacmlWI, "binaryService", mockBinaryService);
+        setField(xacmlWI, "policyParser", new PolicyParser());
+        xacmlWI.init();
     }
 
     @Test(expected = RepositoryRuntimeException.class)